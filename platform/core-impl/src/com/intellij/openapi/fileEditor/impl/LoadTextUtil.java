@@ -33,6 +33,7 @@ import com.intellij.openapi.vfs.encoding.EncodingRegistry;
 import com.intellij.testFramework.LightVirtualFile;
 import com.intellij.util.ArrayUtil;
 import com.intellij.util.ObjectUtils;
+import com.intellij.util.text.ByteArrayCharSequence;
 import com.intellij.util.text.CharArrayUtil;
 import org.jetbrains.annotations.Nls;
 import org.jetbrains.annotations.NotNull;
@@ -42,6 +43,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.charset.UnsupportedCharsetException;
 
 public final class LoadTextUtil {
@@ -454,6 +456,32 @@ public final class LoadTextUtil {
     return result.getFirst();
   }
 
+  /**
+   * Same as {@link #getTextByBinaryPresentation(byte[], Charset)}, but when every byte maps to the same char and no line separator
+   * conversion is needed (e.g. ASCII content without '\r') the text is a view over {@code bytes} instead of a decoded copy.
+   * Thus the caller must not modify the array afterwards.
+   */
+  @NotNull
+  public static CharSequence getTextByBinaryPresentationSharingBytes(@NotNull byte[] bytes, @NotNull Charset charset) {
+    Pair.NonNull<Charset, byte[]> pair = getCharsetAndBOM(bytes, charset);
+    int offset = pair.getSecond().length;
+    if (canShareBytesAsText(bytes, offset, pair.first)) {
+      return new ByteArrayCharSequence(bytes, offset, bytes.length);
+    }
+    return convertBytes(bytes, pair.first, offset).getFirst();
+  }
+
+  private static boolean canShareBytesAsText(@NotNull byte[] bytes, int offset, @NotNull Charset charset) {
+    boolean latin1 = StandardCharsets.ISO_8859_1.equals(charset);
+    if (!latin1 && !CharsetToolkit.UTF8_CHARSET.equals(charset) && !StandardCharsets.US_ASCII.equals(charset)) return false;
+
+    for (int i = offset; i < bytes.length; i++) {
+      byte b = bytes[i];
+      if (b == '\r' || b < 0 && !latin1) return false;
+    }
+    return true;
+  }
+
   // do not need to think about BOM here. it is processed outside
   @NotNull
   private static Pair<CharSequence, String> convertBytes(@NotNull byte[] bytes, @NotNull Charset charset, final int startOffset) {
@@ -46,9 +46,11 @@ import com.intellij.psi.impl.source.tree.FileElement;
 import com.intellij.psi.impl.source.tree.ForeignLeafPsiElement;
 import com.intellij.psi.impl.source.tree.TreeUtil;
 import com.intellij.psi.text.BlockSupport;
+import com.intellij.util.Consumer;
 import com.intellij.util.ExceptionUtil;
 import com.intellij.util.Processor;
 import com.intellij.util.SmartList;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.concurrency.BoundedTaskExecutor;
 import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.containers.HashSetQueue;
@@ -61,28 +63,33 @@ import org.jetbrains.ide.PooledThreadExecutor;
 
 import javax.swing.*;
 import java.text.SimpleDateFormat;
-import java.util.Collections;
-import java.util.Date;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class DocumentCommitThread implements Runnable, Disposable, DocumentCommitProcessor {
   private static final Logger LOG = Logger.getInstance("#com.intellij.psi.impl.DocumentCommitThread");
   private static final String SYNC_COMMIT_REASON = "Sync commit";
+  // different documents are reparsed in parallel, while commits of the same document are never run simultaneously
+  static final int COMMIT_WORKERS = SystemProperties.getIntProperty(
+    "idea.document.commit.workers", Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)));
 
-  private final ExecutorService executor = new BoundedTaskExecutor("Document committing pool", PooledThreadExecutor.INSTANCE, 1, this);
+  private final ExecutorService executor =
+    new BoundedTaskExecutor("Document committing pool", PooledThreadExecutor.INSTANCE, COMMIT_WORKERS, this);
   private final Object lock = new Object();
   private final HashSetQueue<CommitTask> documentsToCommit = new HashSetQueue<>();      // guarded by lock
   private final HashSetQueue<CommitTask> documentsToApplyInEDT = new HashSetQueue<>();  // guarded by lock
   private final ApplicationEx myApplication;
   private volatile boolean isDisposed;
-  private CommitTask currentTask; // guarded by lock
+  private final List<CommitTask> runningTasks = new ArrayList<>(); // tasks being committed in background, guarded by lock
+  private int activeWorkers; // workers submitted to the executor which haven't found the queue empty yet, guarded by lock
+  private volatile Consumer<Document> beforeBackgroundCommit; // test hook
+  private final CommitStatistics myStatistics = new CommitStatistics();
   private boolean myEnabled; // true if we can do commits. set to false temporarily during the write action.  guarded by lock
 
   public static DocumentCommitThread getInstance() {
@@ -117,13 +124,13 @@ public class DocumentCommitThread implements Runnable, Disposable, DocumentCommi
     synchronized (lock) {
       documentsToCommit.clear();
     }
-    cancel("Stop thread");
+    cancelRunningTasks("Stop thread");
   }
 
   private void disable(@NonNls @NotNull Object reason) {
     // write action has just started, all commits are useless
     synchronized (lock) {
-      cancel(reason);
+      cancelRunningTasks(reason);
       myEnabled = false;
     }
     log(null, "disabled", null, reason);
@@ -139,13 +146,21 @@ public class DocumentCommitThread implements Runnable, Disposable, DocumentCommi
 
   // under lock
   private void wakeUpQueue() {
-    if (!isDisposed && !documentsToCommit.isEmpty()) {
-      executor.execute(this);
+    if (!isDisposed && myEnabled) {
+      // every worker commits documents until the queue is empty, so only the missing workers are started
+      for (int i = Math.min(COMMIT_WORKERS, documentsToCommit.size()) - activeWorkers; i > 0; i--) {
+        activeWorkers++;
+        executor.execute(this);
+      }
     }
   }
 
-  private void cancel(@NonNls @NotNull Object reason) {
-    startNewTask(null, reason);
+  private void cancelRunningTasks(@NonNls @NotNull Object reason) {
+    synchronized (lock) {
+      for (CommitTask task : new ArrayList<>(runningTasks)) {
+        task.cancel(reason, this);
+      }
+    }
   }
 
   @Override
@@ -194,7 +209,7 @@ public class DocumentCommitThread implements Runnable, Disposable, DocumentCommi
       CommitTask newTask = new CommitTask(project, document, oldFileNodes, createProgressIndicator(), reason, context,
                                           lastCommittedText);
       cancelAndRemoveFromDocsToCommit(newTask, reason);
-      cancelAndRemoveCurrentTask(newTask, reason);
+      cancelRunningTask(newTask, reason);
       cancelAndRemoveFromDocsToApplyInEDT(newTask, reason);
 
       return newTask;
@@ -261,7 +276,7 @@ public class DocumentCommitThread implements Runnable, Disposable, DocumentCommi
   @TestOnly // under lock
   private void cancelAll() {
     String reason = "Cancel all in tests";
-    cancel(reason);
+    cancelRunningTasks(reason);
     for (CommitTask commitTask : documentsToCommit) {
       commitTask.cancel(reason, this);
       log(commitTask.project, "Removed from background queue", commitTask);
@@ -272,12 +287,11 @@ public class DocumentCommitThread implements Runnable, Disposable, DocumentCommi
       log(commitTask.project, "Removed from EDT apply queue (sync commit called)", commitTask);
     }
     documentsToApplyInEDT.clear();
-    CommitTask task = currentTask;
-    if (task != null) {
+    for (CommitTask task : new ArrayList<>(runningTasks)) {
       cancelAndRemoveFromDocsToCommit(task, reason);
     }
-    cancel("Sync commit intervened");
-    ((BoundedTaskExecutor)executor).clearAndCancelAll();
+    cancelRunningTasks("Sync commit intervened");
+    activeWorkers -= ((BoundedTaskExecutor)executor).clearAndCancelAll().size();
   }
 
   @TestOnly
@@ -288,11 +302,13 @@ public class DocumentCommitThread implements Runnable, Disposable, DocumentCommi
     }
   }
 
-  private void cancelAndRemoveCurrentTask(@NotNull CommitTask newTask, @NotNull Object reason) {
-    CommitTask currentTask = this.currentTask;
-    if (currentTask != null && currentTask.equals(newTask)) {
-      cancelAndRemoveFromDocsToCommit(currentTask, reason);
-      cancel(reason);
+  // under lock
+  private void cancelRunningTask(@NotNull CommitTask newTask, @NotNull Object reason) {
+    for (CommitTask runningTask : new ArrayList<>(runningTasks)) {
+      if (runningTask.equals(newTask)) {
+        cancelAndRemoveFromDocsToCommit(runningTask, reason);
+        runningTask.cancel(reason, this);
+      }
     }
   }
 
@@ -343,7 +359,8 @@ public class DocumentCommitThread implements Runnable, Disposable, DocumentCommi
     try {
       ProgressIndicator indicator;
       synchronized (lock) {
-        if (!myEnabled || (task = documentsToCommit.poll()) == null) {
+        if (!myEnabled || (task = pollNotRunningTask()) == null) {
+          activeWorkers--; // the worker stops, decided under the same lock the queue is woken up with
           return false;
         }
 
@@ -360,7 +377,7 @@ public class DocumentCommitThread implements Runnable, Disposable, DocumentCommi
           return true; // document has been marked as removed, e.g. by synchronous commit
         }
 
-        startNewTask(task, "Pulled new task");
+        runningTasks.add(task);
 
         // transfer to documentsToApplyInEDT
         documentsToApplyInEDT.add(task);
@@ -372,7 +389,13 @@ public class DocumentCommitThread implements Runnable, Disposable, DocumentCommi
       else {
         final CommitTask commitTask = task;
         final Ref<Pair<Runnable, Object>> result = new Ref<>();
-        ProgressManager.getInstance().executeProcessUnderProgress(() -> result.set(commitUnderProgress(commitTask, false)), indicator);
+        long started = System.nanoTime();
+        ProgressManager.getInstance().executeProcessUnderProgress(() -> {
+          Consumer<Document> hook = beforeBackgroundCommit;
+          if (hook != null) hook.consume(commitTask.getDocument());
+          result.set(commitUnderProgress(commitTask, false));
+        }, indicator);
+        myStatistics.commitFinished(task, started, System.nanoTime());
         final Runnable finishRunnable = result.get().first;
         success = finishRunnable != null;
         failureReason = result.get().second;
@@ -385,12 +408,17 @@ public class DocumentCommitThread implements Runnable, Disposable, DocumentCommi
       }
     }
     catch (ProcessCanceledException e) {
-      cancel(e + " (cancel reason: "+((UserDataHolder)task.indicator).getUserData(CANCEL_REASON)+")"); // leave queue unchanged
+      if (task != null) {
+        // leave queue unchanged
+        task.cancel(e + " (cancel reason: " + ((UserDataHolder)task.indicator).getUserData(CANCEL_REASON) + ")", this);
+      }
       success = false;
       failureReason = e;
     }
     catch (Throwable e) {
-      cancel(e);
+      if (task != null) {
+        task.cancel(e, this);
+      }
       failureReason = ExceptionUtil.getThrowableText(e);
     }
 
@@ -414,12 +442,28 @@ public class DocumentCommitThread implements Runnable, Disposable, DocumentCommi
       });
     }
     synchronized (lock) {
-      currentTask = null; // do not cancel, it's being invokeLatered
+      // do not cancel, it's being invokeLatered
+      CommitTask finishedTask = task;
+      runningTasks.removeIf(t -> t == finishedTask);
     }
 
     return true;
   }
 
+  // under lock
+  // skips the documents which are being committed by other workers, they are polled by the same worker after it finishes
+  @Nullable
+  private CommitTask pollNotRunningTask() {
+    for (HashSetQueue.PositionalIterator<CommitTask> iterator = documentsToCommit.iterator(); iterator.hasNext(); ) {
+      CommitTask task = iterator.next();
+      if (!runningTasks.contains(task)) {
+        iterator.remove();
+        return task;
+      }
+    }
+    return null;
+  }
+
   @Override
   public void commitSynchronously(@NotNull Document document, @NotNull Project project, @NotNull PsiFile psiFile) {
     assert !isDisposed;
@@ -480,16 +524,6 @@ public class DocumentCommitThread implements Runnable, Disposable, DocumentCommi
     return new StandardProgressIndicatorBase();
   }
 
-  private void startNewTask(@Nullable CommitTask task, @NotNull Object reason) {
-    synchronized (lock) { // sync to prevent overwriting
-      CommitTask cur = currentTask;
-      if (cur != null) {
-        cur.cancel(reason, this);
-      }
-      currentTask = task;
-    }
-  }
-
   // returns (finish commit Runnable (to be invoked later in EDT), null) on success or (null, failure reason) on failure
   @NotNull
   private Pair<Runnable, Object> commitUnderProgress(@NotNull final CommitTask task, final boolean synchronously) {
@@ -630,9 +664,26 @@ public class DocumentCommitThread implements Runnable, Disposable, DocumentCommi
     }
   }
 
+  /**
+   * Times of the background commits since the start: how long the documents waited in the queue, and how long they were reparsed.
+   */
+  @NotNull
+  public String getStatistics() {
+    return myStatistics.toString();
+  }
+
   @Override
   public String toString() {
-    return "Document commit thread; application: "+myApplication+"; isDisposed: "+isDisposed+"; myEnabled: "+isEnabled();
+    return "Document commit thread; application: "+myApplication+"; isDisposed: "+isDisposed+"; myEnabled: "+isEnabled()+
+           "; workers: "+COMMIT_WORKERS+"; "+getStatistics();
+  }
+
+  /**
+   * The hook is called on the worker thread under the progress indicator of the task before every background commit.
+   */
+  @TestOnly
+  void setBeforeBackgroundCommitHook(@Nullable Consumer<Document> hook) {
+    beforeBackgroundCommit = hook;
   }
 
   @TestOnly
@@ -645,6 +696,44 @@ public class DocumentCommitThread implements Runnable, Disposable, DocumentCommi
   }
 
   private static final Key<Object> CANCEL_REASON = Key.create("CANCEL_REASON");
+
+  private static class CommitStatistics {
+    private final AtomicLong myCommits = new AtomicLong();
+    private final AtomicLong myQueueWait = new AtomicLong();
+    private final AtomicLong myMaxQueueWait = new AtomicLong();
+    private final AtomicLong myReparse = new AtomicLong();
+    private final AtomicLong myMaxReparse = new AtomicLong();
+
+    void commitFinished(@NotNull CommitTask task, long started, long finished) {
+      long queueWait = started - task.myQueuedNanos;
+      long reparse = finished - started;
+      myCommits.incrementAndGet();
+      myQueueWait.addAndGet(queueWait);
+      myMaxQueueWait.accumulateAndGet(queueWait, Math::max);
+      myReparse.addAndGet(reparse);
+      myMaxReparse.accumulateAndGet(reparse, Math::max);
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Committed in background in " + TimeUnit.NANOSECONDS.toMillis(reparse) + " ms after waiting in queue for " +
+                  TimeUnit.NANOSECONDS.toMillis(queueWait) + " ms: " + task.getDocument());
+      }
+    }
+
+    @Override
+    public String toString() {
+      long commits = myCommits.get();
+      return commits + " commits; queue wait: avg " + averageMillis(myQueueWait, commits) + " ms, max " + millis(myMaxQueueWait) +
+             " ms; reparse: avg " + averageMillis(myReparse, commits) + " ms, max " + millis(myMaxReparse) + " ms";
+    }
+
+    private static long averageMillis(@NotNull AtomicLong nanos, long count) {
+      return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(nanos.get() / count);
+    }
+
+    private static long millis(@NotNull AtomicLong nanos) {
+      return TimeUnit.NANOSECONDS.toMillis(nanos.get());
+    }
+  }
+
   private class CommitTask {
     @NotNull private final Document document;
     @NotNull final Project project;
@@ -658,6 +747,7 @@ public class DocumentCommitThread implements Runnable, Disposable, DocumentCommi
     @Nullable final TransactionId myCreationContext;
     private final CharSequence myLastCommittedText;
     @NotNull final List<Pair<PsiFileImpl, FileASTNode>> myOldFileNodes;
+    private final long myQueuedNanos = System.nanoTime();
 
     CommitTask(@NotNull final Project project,
                @NotNull final Document document,
@@ -718,8 +808,9 @@ public class DocumentCommitThread implements Runnable, Disposable, DocumentCommi
         ((UserDataHolder)indicator).putUserData(CANCEL_REASON, reason);
 
         synchronized (lock) {
-          documentsToCommit.remove(this);
-          documentsToApplyInEDT.remove(this);
+          // a newer task of the same document is equal to this one and may be queued already
+          if (documentsToCommit.find(this) == this) documentsToCommit.remove(this);
+          if (documentsToApplyInEDT.find(this) == this) documentsToApplyInEDT.remove(this);
         }
       }
     }
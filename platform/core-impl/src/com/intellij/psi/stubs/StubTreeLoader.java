@@ -51,6 +51,18 @@ public abstract class StubTreeLoader {
   @Nullable
   public abstract ObjectStubTree readFromVFile(Project project, final VirtualFile vFile);
 
+  /**
+   * Reads from the index only the stub with the given index (as in stub indices) and its ancestors, not the whole tree,
+   * for the callers which need stub data and not PSI.
+   */
+  @Nullable
+  public Stub readStubFromVFile(Project project, final VirtualFile vFile, int stubIndex) {
+    ObjectStubTree<?> tree = readFromVFile(project, vFile);
+    if (tree == null) return null;
+    List<? extends Stub> stubs = tree.getPlainListFromAllRoots();
+    return stubIndex < stubs.size() ? stubs.get(stubIndex) : null;
+  }
+
   public boolean isStubReloadingProhibited() {
     return false;
   }
@@ -33,6 +33,7 @@ import com.intellij.psi.LanguageSubstitutors;
 import com.intellij.psi.PsiDocumentManager;
 import com.intellij.psi.PsiFile;
 import com.intellij.psi.PsiFileFactory;
+import com.intellij.util.SystemProperties;
 import consulo.annotations.RequiredReadAction;
 import consulo.lang.LanguageVersion;
 import consulo.lang.LanguageVersionResolvers;
@@ -50,6 +51,9 @@ import java.nio.charset.Charset;
  * Class is not final since it is overridden in Upsource
  */
 public class FileContentImpl extends UserDataHolderBase implements FileContent {
+  // single byte content (e.g. ASCII sources) is exposed to indices as a view over loaded bytes instead of decoded char copy
+  private static final boolean ourShareContentBytes = SystemProperties.getBooleanProperty("idea.indexing.share.content.bytes", true);
+
   protected final VirtualFile myFile;
   protected final String myFileName;
   protected final FileType myFileType;
@@ -235,7 +239,9 @@ public class FileContentImpl extends UserDataHolderBase implements FileContent {
     }
     if (myContentAsText == null) {
       if (myContent != null) {
-        myContentAsText = LoadTextUtil.getTextByBinaryPresentation(myContent, myCharset);
+        myContentAsText = ourShareContentBytes
+                          ? LoadTextUtil.getTextByBinaryPresentationSharingBytes(myContent, myCharset)
+                          : LoadTextUtil.getTextByBinaryPresentation(myContent, myCharset);
         myContent = null; // help gc, indices are expected to use bytes or chars but not both
       }
     }
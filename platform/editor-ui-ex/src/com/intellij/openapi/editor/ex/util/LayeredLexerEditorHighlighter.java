@@ -57,6 +57,11 @@ public class LayeredLexerEditorHighlighter extends LexerEditorHighlighter {
     return new MappingSegments();
   }
 
+  @Override
+  protected boolean isAsyncRelexingSupported() {
+    return false;
+  }
+
   public synchronized void registerLayer(IElementType tokenType, LayerDescriptor layerHighlighter) {
     myTokensToLayer.put(tokenType, layerHighlighter);
     getSegments().removeAll();
@@ -1,5 +1,5 @@
 /*
- * Copyright 2000-2016 JetBrains s.r.o.
+ * Copyright 2000-2017 JetBrains s.r.o.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -32,12 +32,17 @@ import com.intellij.openapi.editor.impl.EditorDocumentPriorities;
 import com.intellij.openapi.editor.markup.TextAttributes;
 import com.intellij.openapi.fileTypes.PlainSyntaxHighlighter;
 import com.intellij.openapi.fileTypes.SyntaxHighlighter;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
 import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.project.DumbAwareRunnable;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.Comparing;
+import com.intellij.psi.TokenType;
 import com.intellij.psi.tree.IElementType;
 import com.intellij.util.ArrayUtil;
+import com.intellij.util.SystemProperties;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import com.intellij.util.text.ImmutableCharSequence;
 import com.intellij.util.text.MergingCharSequence;
 import com.intellij.util.text.SingleCharSequence;
@@ -46,11 +51,20 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.*;
+import java.util.concurrent.ExecutorService;
 
 public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDocumentListener {
   private static final Logger LOG = Logger.getInstance("#com.intellij.openapi.editor.ex.util.LexerEditorHighlighter");
   private static final int LEXER_INCREMENTALITY_THRESHOLD = 200;
   private static final Set<Class> ourNonIncrementalLexers = new HashSet<>();
+  // texts longer than the threshold, as well as the changes relexing more tokens than the limit, are lexed on pooled threads,
+  // in parallel chunks, while the editor keeps showing the previous segments moved to match the changed text
+  private static final boolean ASYNC_RELEXING = SystemProperties.getBooleanProperty("idea.editor.async.relexing", false);
+  private static final int ASYNC_RELEXING_TEXT_LENGTH = SystemProperties.getIntProperty("idea.editor.async.relexing.length", 256 * 1024);
+  private static final int ASYNC_RELEXING_TOKENS = SystemProperties.getIntProperty("idea.editor.async.relexing.tokens", 10000);
+  private static final int ASYNC_RELEXING_CHUNK_SIZE = 64 * 1024;
+  private static final ExecutorService ourRelexingExecutor = AppExecutorUtil.createBoundedApplicationPoolExecutor(
+    "Editor highlighter relexing", Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
   private HighlighterClient myEditor;
   private final Lexer myLexer;
   private final Map<IElementType, TextAttributes> myAttributesMap = new HashMap<>();
@@ -59,6 +73,8 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
   private EditorColorsScheme myScheme;
   private final int myInitialState;
   protected CharSequence myText;
+  @Nullable private final ParallelLexer myParallelLexer;
+  private RelexingRequest myRelexingRequest; // guarded by this
 
   public LexerEditorHighlighter(@NotNull SyntaxHighlighter highlighter, @NotNull EditorColorsScheme scheme) {
     myScheme = scheme;
@@ -67,6 +83,9 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
     myInitialState = myLexer.getState();
     myHighlighter = highlighter;
     mySegments = createSegments();
+    // the chunks need their own lexers
+    myParallelLexer = ASYNC_RELEXING && highlighter.getHighlightingLexer() != myLexer
+                      ? new ParallelLexer(highlighter, myInitialState, ASYNC_RELEXING_CHUNK_SIZE) : null;
   }
 
   protected SegmentArrayWithData createSegments() {
@@ -126,8 +145,12 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
   }
 
   private int packData(IElementType tokenType, int state) {
+    return packData(tokenType, state, myInitialState);
+  }
+
+  static int packData(IElementType tokenType, int state, int initialState) {
     final short idx = tokenType.getIndex();
-    return state == myInitialState ? idx : -idx;
+    return state == initialState ? idx : -idx;
   }
 
   public boolean isValid() {
@@ -155,6 +178,7 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
       CharSequence text = document.getImmutableCharSequence();
 
       if (document instanceof DocumentEx && ((DocumentEx)document).isInBulkUpdate()) {
+        cancelRelexing();
         myText = null;
         mySegments.removeAll();
         return;
@@ -180,6 +204,20 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
       }
       while (true);
 
+      if (myRelexingRequest != null) {
+        // the current segments are kept in place until the relexed ones replace them, so just relex again from the earliest restart point
+        startIndex = Math.min(startIndex, myRelexingRequest.myStartIndex);
+        shiftSegmentsAfterChange(e);
+        if (mySegments.getSegmentCount() == 0) {
+          myText = null;
+          doSetText(text);
+          return;
+        }
+        scheduleRelexing(text, startIndex);
+        return;
+      }
+
+      final int restartIndex = startIndex;
       int startOffset = mySegments.getSegmentStart(startIndex);
       int newEndOffset = e.getOffset() + e.getNewLength();
 
@@ -284,6 +322,15 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
         insertSegments.setElementAt(insertSegmentCount, tokenStart, tokenEnd, data);
         insertSegmentCount++;
         myLexer.advance();
+
+        if (insertSegmentCount > ASYNC_RELEXING_TOKENS && isAsyncRelexingEnabled()) {
+          // show the tokens relexed so far followed by the current segments until the rest is relexed
+          shiftSegmentsAfterChange(e);
+          replaceSegmentsUpTo(startIndex, insertSegments);
+          scheduleRelexing(text, restartIndex);
+          myEditor.repaint(startOffset, insertSegments.getSegmentEnd(insertSegmentCount - 1));
+          return;
+        }
       }
 
       final int shift = e.getNewLength() - e.getOldLength();
@@ -317,6 +364,7 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
       myEditor.repaint(startOffset, repaintEnd);
     }
     catch (ProcessCanceledException ex) {
+      cancelRelexing();
       myText = null;
       mySegments.removeAll();
       throw ex;
@@ -370,6 +418,16 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
     if (Comparing.equal(myText, text)) return;
     myText = ImmutableCharSequence.asImmutable(text);
 
+    if (text.length() > ASYNC_RELEXING_TEXT_LENGTH && isAsyncRelexingEnabled()) {
+      // there are no segments of the new text to keep, so it's shown as plain text until it's lexed
+      mySegments.removeAll();
+      mySegments.setElementAt(0, 0, text.length(), packData(TokenType.WHITE_SPACE, myInitialState));
+      scheduleRelexing(myText, 0);
+      repaintLater(0, text.length());
+      return;
+    }
+    cancelRelexing();
+
     final TokenProcessor processor = createTokenProcessor(0);
     final int textLength = text.length();
     myLexer.start(text, 0, textLength, myInitialState);
@@ -390,16 +448,139 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
       throw new IllegalStateException("Unexpected termination offset for lexer " + myLexer);
     }
 
+    repaintLater(0, textLength);
+  }
+
+  private void repaintLater(final int start, final int end) {
     if(myEditor != null && !ApplicationManager.getApplication().isHeadlessEnvironment()) {
       UIUtil.invokeLaterIfNeeded(new DumbAwareRunnable() {
         @Override
         public void run() {
-          myEditor.repaint(0, textLength);
+          myEditor.repaint(start, end);
         }
       });
     }
   }
 
+  /**
+   * Highlighters with custom segments or token processing, e.g. the layered ones, relex synchronously.
+   */
+  protected boolean isAsyncRelexingSupported() {
+    return true;
+  }
+
+  private boolean isAsyncRelexingEnabled() {
+    return myParallelLexer != null && myEditor != null && isAsyncRelexingSupported();
+  }
+
+  /**
+   * Moves the segments after the change by its length difference, the segments touched by the change are merged into one,
+   * so that they match the new text until it's relexed.
+   */
+  private void shiftSegmentsAfterChange(@NotNull DocumentEvent e) {
+    int count = mySegments.getSegmentCount();
+    int oldEndOffset = e.getOffset() + e.getOldLength();
+    int first = mySegments.findSegmentIndex(e.getOffset());
+    int last = oldEndOffset >= mySegments.getLastValidOffset() ? count - 1 : mySegments.findSegmentIndex(oldEndOffset);
+    int shift = e.getNewLength() - e.getOldLength();
+
+    int start = mySegments.getSegmentStart(first);
+    int end = mySegments.getSegmentEnd(last) + shift;
+    int data = mySegments.getSegmentData(first);
+    mySegments.shiftSegments(last + 1, shift);
+    if (end > start) {
+      mySegments.remove(first + 1, last + 1);
+      mySegments.setElementAt(first, start, end, data);
+    }
+    else {
+      mySegments.remove(first, last + 1);
+    }
+  }
+
+  /**
+   * Replaces the segments from the given one up to the end of the relexed ones, the segment at their end is cut if needed.
+   */
+  private void replaceSegmentsUpTo(int startIndex, @NotNull SegmentArrayWithData relexed) {
+    int end = relexed.getSegmentEnd(relexed.getSegmentCount() - 1);
+    int endIndex;
+    if (end >= mySegments.getLastValidOffset()) {
+      endIndex = mySegments.getSegmentCount();
+    }
+    else {
+      endIndex = mySegments.findSegmentIndex(end);
+      if (mySegments.getSegmentStart(endIndex) < end) {
+        mySegments.setElementAt(endIndex, end, mySegments.getSegmentEnd(endIndex), mySegments.getSegmentData(endIndex));
+      }
+    }
+    mySegments.replace(startIndex, endIndex, relexed);
+  }
+
+  /**
+   * Relexes the text from the start of the given segment, where the lexer is in the initial state, on pooled threads.
+   * The current segments stay visible until the relexed ones, which are not modified after lexing, replace them on EDT at once.
+   */
+  private void scheduleRelexing(@NotNull CharSequence text, int startIndex) {
+    assert myParallelLexer != null;
+    cancelRelexing();
+
+    final int startOffset = mySegments.getSegmentStart(startIndex);
+    final RelexingRequest request = new RelexingRequest(ImmutableCharSequence.asImmutable(text), startIndex, startOffset);
+    myRelexingRequest = request;
+    ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          final SegmentArrayWithData relexed = myParallelLexer.lex(request.myText, startOffset, ourRelexingExecutor, request.myIndicator);
+          UIUtil.invokeLaterIfNeeded(new DumbAwareRunnable() {
+            @Override
+            public void run() {
+              applyRelexing(request, relexed);
+            }
+          });
+        }
+        catch (ProcessCanceledException ignored) {
+        }
+        catch (RuntimeException e) {
+          LOG.error("Error relexing " + LexerEditorHighlighter.this, e);
+        }
+      }
+    });
+  }
+
+  private synchronized void applyRelexing(@NotNull RelexingRequest request, @NotNull SegmentArrayWithData relexed) {
+    if (myRelexingRequest != request) return;
+    myRelexingRequest = null;
+
+    int textLength = request.myText.length();
+    int count = relexed.getSegmentCount();
+    if (request.myStartOffset < textLength && (count == 0 || relexed.getSegmentEnd(count - 1) != textLength)) {
+      LOG.error("Unexpected termination offset for lexer " + myLexer);
+      return;
+    }
+    mySegments.replace(request.myStartIndex, mySegments.getSegmentCount(), relexed);
+    myEditor.repaint(request.myStartOffset, textLength);
+  }
+
+  private void cancelRelexing() {
+    if (myRelexingRequest != null) {
+      myRelexingRequest.myIndicator.cancel();
+      myRelexingRequest = null;
+    }
+  }
+
+  private static class RelexingRequest {
+    private final CharSequence myText;
+    private final int myStartIndex;
+    private final int myStartOffset;
+    private final ProgressIndicator myIndicator = new EmptyProgressIndicator();
+
+    RelexingRequest(@NotNull CharSequence text, int startIndex, int startOffset) {
+      myText = text;
+      myStartIndex = startIndex;
+      myStartOffset = startOffset;
+    }
+  }
+
   protected TokenProcessor createTokenProcessor(final int startIndex) {
     return new TokenProcessor();
   }
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.ex.util;
+
+import com.intellij.lexer.Lexer;
+import com.intellij.openapi.fileTypes.SyntaxHighlighter;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.psi.tree.IElementType;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Lexes a text in chunks on several threads, producing the same segments as a single highlighting lexer run would.
+ * <p/>
+ * Each chunk starts at a line start and is lexed from the initial lexer state, i.e. the line start is taken as a checkpoint.
+ * The chunks are then stitched in order: the lexer of the previous chunk is advanced until it reaches a token which
+ * starts in the initial state and is found in the next chunk too, and the rest of the next chunk is taken as is.
+ * Usually it's the first token of the chunk, so only the chunks starting e.g. inside a multiline comment are partly lexed again.
+ */
+final class ParallelLexer {
+  private static final int CHECK_CANCELED_TOKENS = 1024;
+
+  private final SyntaxHighlighter myHighlighter;
+  private final int myInitialState;
+  private final int myChunkSize;
+
+  /**
+   * @param highlighter has to return a new lexer instance on every {@link SyntaxHighlighter#getHighlightingLexer()} call
+   */
+  ParallelLexer(@NotNull SyntaxHighlighter highlighter, int initialState, int chunkSize) {
+    myHighlighter = highlighter;
+    myInitialState = initialState;
+    myChunkSize = chunkSize;
+  }
+
+  /**
+   * Lexes the text from the given offset, at which the lexer has to be in the initial state, up to the end.
+   *
+   * @throws ProcessCanceledException if the indicator is canceled
+   */
+  @NotNull
+  SegmentArrayWithData lex(@NotNull final CharSequence text, int startOffset, @NotNull Executor executor,
+                           @NotNull final ProgressIndicator indicator) {
+    List<Chunk> chunks = split(text, startOffset);
+    if (chunks.isEmpty()) return new SegmentArrayWithData();
+
+    List<FutureTask<Void>> tasks = new ArrayList<>(chunks.size());
+    for (int i = 1; i < chunks.size(); i++) {
+      final Chunk chunk = chunks.get(i);
+      FutureTask<Void> task = new FutureTask<>(new Runnable() {
+        @Override
+        public void run() {
+          lexChunk(text, chunk, indicator);
+        }
+      }, null);
+      tasks.add(task);
+      executor.execute(task);
+    }
+
+    try {
+      Chunk first = chunks.get(0);
+      lexChunk(text, first, indicator);
+
+      SegmentArrayWithData result = first.mySegments;
+      Lexer lexer = first.myLexer;
+      for (int i = 1; i < chunks.size(); i++) {
+        waitFor(tasks.get(i - 1));
+        lexer = append(result, lexer, chunks.get(i), indicator);
+      }
+      return result;
+    }
+    finally {
+      for (FutureTask<Void> task : tasks) {
+        task.cancel(false);
+      }
+    }
+  }
+
+  @NotNull
+  private List<Chunk> split(@NotNull CharSequence text, int startOffset) {
+    List<Chunk> chunks = new ArrayList<>();
+    int length = text.length();
+    int start = startOffset;
+    while (start < length) {
+      int end = length - start > myChunkSize + myChunkSize / 2 ? nextLineStart(text, start + myChunkSize) : length;
+      chunks.add(new Chunk(start, end));
+      start = end;
+    }
+    return chunks;
+  }
+
+  private static int nextLineStart(@NotNull CharSequence text, int offset) {
+    for (int i = offset; i < text.length(); i++) {
+      if (text.charAt(i) == '\n') return i + 1;
+    }
+    return text.length();
+  }
+
+  private void lexChunk(@NotNull CharSequence text, @NotNull Chunk chunk, @NotNull ProgressIndicator indicator) {
+    Lexer lexer = myHighlighter.getHighlightingLexer();
+    lexer.start(text, chunk.myStart, text.length(), myInitialState);
+
+    int i = 0;
+    IElementType tokenType;
+    while ((tokenType = lexer.getTokenType()) != null && lexer.getTokenStart() < chunk.myEnd) {
+      if (i % CHECK_CANCELED_TOKENS == 0) indicator.checkCanceled();
+      chunk.mySegments.setElementAt(i++, lexer.getTokenStart(), lexer.getTokenEnd(), pack(tokenType, lexer.getState()));
+      lexer.advance();
+    }
+    chunk.myLexer = lexer;
+  }
+
+  /**
+   * Advances the lexer of the preceding chunks until it's in sync with the given chunk, and appends the tokens to the result.
+   *
+   * @return the lexer positioned at the first token after the chunk
+   */
+  @NotNull
+  private Lexer append(@NotNull SegmentArrayWithData result, @NotNull Lexer lexer, @NotNull Chunk chunk,
+                       @NotNull ProgressIndicator indicator) {
+    SegmentArrayWithData segments = chunk.mySegments;
+    int count = result.getSegmentCount();
+    int index = 0;
+
+    IElementType tokenType;
+    while ((tokenType = lexer.getTokenType()) != null && lexer.getTokenStart() < chunk.myEnd) {
+      int tokenStart = lexer.getTokenStart();
+      int data = pack(tokenType, lexer.getState());
+      while (index < segments.getSegmentCount() && segments.getSegmentStart(index) < tokenStart) {
+        index++;
+      }
+      if (index < segments.getSegmentCount() && segments.getSegmentStart(index) == tokenStart &&
+          lexer.getState() == myInitialState && segments.getSegmentData(index) == data) {
+        for (; index < segments.getSegmentCount(); index++) {
+          result.setElementAt(count++, segments.getSegmentStart(index), segments.getSegmentEnd(index), segments.getSegmentData(index));
+        }
+        return chunk.myLexer;
+      }
+
+      if (count % CHECK_CANCELED_TOKENS == 0) indicator.checkCanceled();
+      result.setElementAt(count++, tokenStart, lexer.getTokenEnd(), data);
+      lexer.advance();
+    }
+    return lexer;
+  }
+
+  private int pack(@NotNull IElementType tokenType, int state) {
+    return LexerEditorHighlighter.packData(tokenType, state, myInitialState);
+  }
+
+  private static void waitFor(@NotNull FutureTask<Void> task) {
+    try {
+      task.get();
+    }
+    catch (InterruptedException e) {
+      throw new ProcessCanceledException(e);
+    }
+    catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+      if (cause instanceof Error) throw (Error)cause;
+      throw new RuntimeException(cause);
+    }
+  }
+
+  private static class Chunk {
+    private final int myStart;
+    private final int myEnd;
+    private final SegmentArrayWithData mySegments = new SegmentArrayWithData();
+    // positioned at the first token starting after the chunk
+    private Lexer myLexer;
+
+    Chunk(int start, int end) {
+      myStart = start;
+      myEnd = end;
+    }
+  }
+}
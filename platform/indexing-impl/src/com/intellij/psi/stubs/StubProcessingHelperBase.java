@@ -92,17 +92,27 @@ public abstract class StubProcessingHelperBase {
       return true;
     }
     if (stubTree == null) {
+      if (customStubs) {
+        // only the root is needed to tell the custom stubs from the PSI ones, so the whole tree isn't read e.g. for dom indices
+        Stub root = StubTreeLoader.getInstance().readStubFromVFile(project, file, 0);
+        if (root == null) {
+          return true;
+        }
+        if (!(root instanceof PsiFileStub)) {
+          if (!skipOnErrors && !requiredClass.isInstance(psiFile)) {
+            ObjectStubTree objectStubTree = StubTreeLoader.getInstance().readFromVFile(project, file);
+            if (objectStubTree != null) {
+              inconsistencyDetected(objectStubTree, psiFile);
+            }
+            return true;
+          }
+          return processor.process((Psi)psiFile); // e.g. dom indices
+        }
+      }
       ObjectStubTree objectStubTree = StubTreeLoader.getInstance().readFromVFile(project, file);
       if (objectStubTree == null) {
         return true;
       }
-      if (customStubs && !(objectStubTree instanceof StubTree)) {
-        if (!skipOnErrors && !requiredClass.isInstance(psiFile)) {
-          inconsistencyDetected(objectStubTree, psiFile);
-          return true;
-        }
-        return processor.process((Psi)psiFile); // e.g. dom indices
-      }
       stubTree = (StubTree)objectStubTree;
       final List<StubElement<?>> plained = stubTree.getPlainListFromAllRoots();
       for (int i = 0, size = value.size(); i < size; i++) {
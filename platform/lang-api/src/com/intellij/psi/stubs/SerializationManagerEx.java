@@ -34,6 +34,17 @@ public abstract class SerializationManagerEx extends SerializationManager {
   @NotNull
   public abstract Stub deserialize(@NotNull InputStream stream) throws SerializerNotFoundException;
 
+  /**
+   * Deserializes only the stub with the given index in the depth-first order of all stub roots and its ancestors,
+   * children of which contain only the stubs on the path to it.
+   *
+   * @param cacheTable whether to keep the decoded table of the serialized content to reuse it for the next stubs,
+   *                   the bytes are retained then and must not be modified afterwards
+   */
+  @NotNull
+  public abstract Stub deserializeStub(@NotNull byte[] bytes, int length, int stubIndex, boolean cacheTable)
+    throws SerializerNotFoundException;
+
   public abstract boolean isNameStorageCorrupted();
 
   public abstract void repairNameStorage();
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.stubs;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressManager;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Processes files in their original order on the calling thread, while the data of the next files is loaded on a pool
+ * a window ahead. The window starts with a single file and doubles every time the processor asks for more,
+ * so that find-first processors don't pay for loading files they never get to.
+ * A file whose loading hasn't started yet is loaded on the calling thread.
+ */
+abstract class PrefetchingFileProcessor<T> {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.psi.stubs.PrefetchingFileProcessor");
+
+  private final AtomicBoolean myCancelled = new AtomicBoolean();
+
+  /**
+   * Called on a pool thread or on the calling thread, the result is held until the file is processed.
+   */
+  @Nullable
+  protected abstract T load(int index);
+
+  /**
+   * Called on the calling thread in the order of indices.
+   *
+   * @return false to stop processing
+   */
+  protected abstract boolean process(int index);
+
+  protected void checkCanceled() {
+    ProgressManager.checkCanceled();
+  }
+
+  public boolean processAll(int count, @NotNull Executor executor, int maxWindow) {
+    List<FutureTask<T>> tasks = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      final int index = i;
+      tasks.add(new FutureTask<>(() -> myCancelled.get() ? null : load(index)));
+    }
+
+    int window = 1;
+    int submitted = 1; // the first file is loaded on the calling thread anyway
+    try {
+      for (int i = 0; i < count; i++) {
+        for (; submitted < Math.min(count, i + 1 + window); submitted++) {
+          executor.execute(tasks.get(submitted));
+        }
+
+        FutureTask<T> task = tasks.get(i);
+        task.run();
+        @SuppressWarnings("unused") T data = waitFor(task);
+        if (!process(i)) return false;
+        tasks.set(i, null);
+        window = Math.min(maxWindow, window * 2);
+      }
+      return true;
+    }
+    finally {
+      myCancelled.set(true);
+      for (FutureTask<T> task : tasks) {
+        if (task != null) task.cancel(false);
+      }
+    }
+  }
+
+  @Nullable
+  private T waitFor(@NotNull FutureTask<T> task) {
+    while (true) {
+      checkCanceled();
+      try {
+        return task.get(10, TimeUnit.MILLISECONDS);
+      }
+      catch (TimeoutException ignored) {
+      }
+      catch (InterruptedException | CancellationException e) {
+        return null;
+      }
+      catch (ExecutionException e) {
+        LOG.debug(e);
+        return null; // will be loaded again by the processor
+      }
+    }
+  }
+}
@@ -41,6 +41,7 @@ public class SerializationManagerImpl extends SerializationManagerEx implements
   private final AtomicBoolean myShutdownPerformed = new AtomicBoolean(false);
   private AbstractStringEnumerator myNameStorage;
   private StubSerializationHelper myStubSerializationHelper;
+  private final StubTreeTableCache myTableCache = new StubTreeTableCache();
 
   public SerializationManagerImpl() {
     myFile.getParentFile().mkdirs();
@@ -84,6 +85,7 @@ public class SerializationManagerImpl extends SerializationManagerEx implements
         IOUtil.deleteAllFilesStartingWith(myFile);
         myNameStorage = new PersistentStringEnumerator(myFile, true);
         myStubSerializationHelper = new StubSerializationHelper(myNameStorage);
+        myTableCache.clear();
         for (ObjectStubSerializer serializer : myAllSerializers) {
           myStubSerializationHelper.assignId(serializer);
         }
@@ -184,4 +186,25 @@ public class SerializationManagerImpl extends SerializationManagerEx implements
       throw new RuntimeException(e);
     }
   }
+
+  @NotNull
+  @Override
+  public Stub deserializeStub(@NotNull byte[] bytes, int length, int stubIndex, boolean cacheTable) throws SerializerNotFoundException {
+    initSerializers();
+
+    try {
+      Object cacheKey = cacheTable ? StubTreeTableCache.key(bytes, length) : null;
+      StubSerializationHelper.StubTreeTable table = cacheKey == null ? null : myTableCache.get(cacheKey);
+      if (table == null) {
+        table = myStubSerializationHelper.readTable(bytes, length);
+        if (cacheKey != null) myTableCache.put(cacheKey, table);
+      }
+      return myStubSerializationHelper.deserializeStub(table, stubIndex);
+    }
+    catch (IOException e) {
+      nameStorageCrashed();
+      LOG.info(e);
+      throw new RuntimeException(e);
+    }
+  }
 }
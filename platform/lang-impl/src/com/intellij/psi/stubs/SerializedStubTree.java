@@ -88,6 +88,14 @@ public class SerializedStubTree {
     return SerializationManagerEx.getInstanceEx().deserialize(new UnsyncByteArrayInputStream(myBytes));
   }
 
+  /**
+   * @see SerializationManagerEx#deserializeStub(byte[], int, int, boolean)
+   */
+  @NotNull
+  public Stub getStub(int stubIndex) throws SerializerNotFoundException {
+    return SerializationManagerEx.getInstanceEx().deserializeStub(myBytes, myLength, stubIndex, true);
+  }
+
   public boolean contentLengthMatches(long byteContentLength, int charContentLength) {
     if (myCharContentLength >= 0 && charContentLength >= 0) {
       return myCharContentLength == charContentLength;
@@ -22,6 +22,7 @@ package com.intellij.psi.stubs;
 import com.intellij.lang.Language;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.application.ModalityState;
+import com.intellij.openapi.application.ex.ApplicationManagerEx;
 import com.intellij.openapi.components.*;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.editor.Document;
@@ -31,6 +32,7 @@ import com.intellij.openapi.fileTypes.FileType;
 import com.intellij.openapi.fileTypes.LanguageFileType;
 import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Ref;
 import com.intellij.openapi.util.ThrowableComputable;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.util.text.StringUtil;
@@ -41,6 +43,7 @@ import com.intellij.psi.LanguageSubstitutors;
 import com.intellij.psi.PsiDocumentManager;
 import com.intellij.psi.PsiElement;
 import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiManager;
 import com.intellij.psi.impl.source.PsiFileImpl;
 import com.intellij.psi.impl.source.PsiFileWithStubSupport;
 import com.intellij.psi.impl.source.tree.FileElement;
@@ -48,6 +51,8 @@ import com.intellij.psi.search.GlobalSearchScope;
 import com.intellij.util.Processor;
 import com.intellij.util.Processors;
 import com.intellij.util.SmartList;
+import com.intellij.util.SystemProperties;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.indexing.*;
 import com.intellij.util.indexing.impl.*;
@@ -62,7 +67,7 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
 import java.util.*;
-import java.util.concurrent.Future;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
 
@@ -73,6 +78,11 @@ import java.util.concurrent.locks.Lock;
 public class StubIndexImpl extends StubIndex implements ApplicationComponent, PersistentStateComponent<StubIndexState> {
   private static final AtomicReference<Boolean> ourForcedClean = new AtomicReference<>(null);
   private static final Logger LOG = Logger.getInstance("#com.intellij.psi.stubs.StubIndexImpl");
+  // stub trees of matched files are loaded on this many threads, can be overridden per index with the index name appended to the property
+  private static final int QUERY_THREADS = SystemProperties.getIntProperty("idea.stub.index.query.threads",
+                                                                           Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+  private static final int PARALLEL_QUERY_MIN_FILES = SystemProperties.getIntProperty("idea.stub.index.parallel.query.min.files", 32);
+  private static final int PARALLEL_QUERY_WINDOW = 32; // max files loaded ahead of the processed one
 
   private static class AsyncState {
     private final Map<StubIndexKey<?, ?>, MyIndex<?>> myIndices = new THashMap<>();
@@ -81,6 +91,7 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
 
   private final StubProcessingHelper myStubProcessingHelper;
   private final IndexAccessValidator myAccessValidator = new IndexAccessValidator();
+  private final ConcurrentMap<StubIndexKey<?, ?>, ExecutorService> myQueryExecutors = ContainerUtil.newConcurrentMap();
   private volatile Future<AsyncState> myStateFuture;
   private volatile AsyncState myState;
   private volatile boolean myInitialized;
@@ -327,17 +338,112 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
                                                                @Nullable IdFilter idFilter,
                                                                @NotNull final Class<Psi> requiredClass,
                                                                @NotNull final Processor<? super Psi> processor) {
-    return doProcessStubs(indexKey, key, project, scope, new StubIdListContainerAction(idFilter, project) {
+    final ExecutorService executor = getQueryExecutor(indexKey);
+    if (executor == null) {
+      return doProcessStubs(indexKey, key, project, scope, new StubIdListContainerAction(idFilter, project) {
+        final PersistentFS fs = (PersistentFS)ManagingFS.getInstance();
+        @Override
+        protected boolean process(int id, StubIdList value) {
+          final VirtualFile file = IndexInfrastructure.findFileByIdIfCached(fs, id);
+          if (file == null || scope != null && !scope.contains(file)) {
+            return true;
+          }
+          return myStubProcessingHelper.processStubsInFile(project, file, value, processor, requiredClass);
+        }
+      });
+    }
+
+    long started = System.currentTimeMillis();
+    final List<VirtualFile> files = new ArrayList<>();
+    final List<StubIdList> values = new ArrayList<>();
+    doProcessStubs(indexKey, key, project, scope, new StubIdListContainerAction(idFilter, project) {
       final PersistentFS fs = (PersistentFS)ManagingFS.getInstance();
       @Override
       protected boolean process(int id, StubIdList value) {
         final VirtualFile file = IndexInfrastructure.findFileByIdIfCached(fs, id);
-        if (file == null || scope != null && !scope.contains(file)) {
-          return true;
+        if (file != null && (scope == null || scope.contains(file))) {
+          files.add(file);
+          values.add(value);
         }
-        return myStubProcessingHelper.processStubsInFile(project, file, value, processor, requiredClass);
+        return true;
       }
     });
+    long collected = System.currentTimeMillis();
+
+    boolean parallel = files.size() >= PARALLEL_QUERY_MIN_FILES;
+    boolean result = parallel ? processInParallel(project, files, values, requiredClass, processor, executor)
+                              : processSequentially(project, files, values, requiredClass, processor);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug(indexKey + " query for " + key + ": " + files.size() + " files, " + (collected - started) + " ms in index, " +
+                (System.currentTimeMillis() - collected) + " ms in stubs" + (parallel ? " (parallel)" : "") + (result ? "" : ", stopped"));
+    }
+    return result;
+  }
+
+  private <Psi extends PsiElement> boolean processSequentially(@NotNull Project project,
+                                                               @NotNull List<VirtualFile> files,
+                                                               @NotNull List<StubIdList> values,
+                                                               @NotNull Class<Psi> requiredClass,
+                                                               @NotNull Processor<? super Psi> processor) {
+    for (int i = 0; i < files.size(); i++) {
+      ProgressManager.checkCanceled();
+      if (!myStubProcessingHelper.processStubsInFile(project, files.get(i), values.get(i), processor, requiredClass)) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Stub trees of the files are loaded on the query pool ahead of the calling thread, which feeds the stubs
+   * to the processor in the original order, see {@link PrefetchingFileProcessor}.
+   */
+  private <Psi extends PsiElement> boolean processInParallel(@NotNull final Project project,
+                                                             @NotNull final List<VirtualFile> files,
+                                                             @NotNull final List<StubIdList> values,
+                                                             @NotNull final Class<Psi> requiredClass,
+                                                             @NotNull final Processor<? super Psi> processor,
+                                                             @NotNull ExecutorService executor) {
+    final PsiManager psiManager = PsiManager.getInstance(project);
+    return new PrefetchingFileProcessor<StubTree>() {
+      @Nullable
+      @Override
+      protected StubTree load(int index) {
+        VirtualFile file = files.get(index);
+        Ref<StubTree> tree = Ref.create();
+        // don't block write actions, such files are loaded on the calling thread
+        ApplicationManagerEx.getApplicationEx().tryRunReadAction(() -> {
+          if (project.isDisposed() || !file.isValid()) return;
+          PsiFile psiFile = psiManager.findFile(file);
+          PsiFile stubBindingRoot = psiFile != null ? psiFile.getViewProvider().getStubBindingRoot() : null;
+          if (stubBindingRoot instanceof PsiFileWithStubSupport) {
+            tree.set(((PsiFileWithStubSupport)stubBindingRoot).getStubTree());
+          }
+        });
+        // the loaded tree is held until the file is processed, PSI references it softly
+        return tree.get();
+      }
+
+      @Override
+      protected boolean process(int index) {
+        return myStubProcessingHelper.processStubsInFile(project, files.get(index), values.get(index), processor, requiredClass);
+      }
+    }.processAll(files.size(), executor, PARALLEL_QUERY_WINDOW);
+  }
+
+  @Nullable
+  private ExecutorService getQueryExecutor(@NotNull StubIndexKey<?, ?> indexKey) {
+    ExecutorService executor = myQueryExecutors.get(indexKey);
+    if (executor == null) {
+      int threads = SystemProperties.getIntProperty("idea.stub.index.query.threads." + indexKey, QUERY_THREADS);
+      if (threads <= 1) return null;
+      synchronized (myQueryExecutors) {
+        executor = myQueryExecutors.get(indexKey);
+        if (executor == null) {
+          executor = AppExecutorUtil.createBoundedApplicationPoolExecutor("StubIndex " + indexKey + " query", threads);
+          myQueryExecutors.put(indexKey, executor);
+        }
+      }
+    }
+    return executor;
   }
 
   private <Key> boolean doProcessStubs(@NotNull final StubIndexKey<Key, ?> indexKey,
@@ -23,6 +23,8 @@ import com.intellij.util.containers.RecentStringInterner;
 import com.intellij.util.io.AbstractStringEnumerator;
 import com.intellij.util.io.DataInputOutputUtil;
 import com.intellij.util.io.IOUtil;
+import com.intellij.util.io.UnsyncByteArrayInputStream;
+import gnu.trove.TIntArrayList;
 import gnu.trove.TIntObjectHashMap;
 import gnu.trove.TObjectIntHashMap;
 import org.jetbrains.annotations.NotNull;
@@ -36,6 +38,10 @@ import java.util.ArrayList;
 import java.util.List;
 
 /**
+ * Serialized stub tree layout: file local strings, length of the stubs part, the stubs part (count of stub roots and stubs of each root
+ * in the depth-first order), and the table of (parent index, offset) of every stub in the stubs part, which allows materializing
+ * a single stub with its ancestors, see {@link #deserializeStub(StubTreeTable, int)}.
+ *
  * Author: dmitrylomov
  */
 public class StubSerializationHelper {
@@ -61,8 +67,12 @@ public class StubSerializationHelper {
     return myNameStorage.enumerate(serializer.getExternalId());
   }
 
-  private void doSerialize(@NotNull Stub rootStub, @NotNull StubOutputStream stream) throws IOException {
+  private void doSerialize(@NotNull Stub rootStub, @NotNull StubOutputStream stream, int parentIndex, @NotNull TIntArrayList table)
+    throws IOException {
     final ObjectStubSerializer serializer = StubSerializationUtil.getSerializer(rootStub);
+    final int index = table.size() / 2;
+    table.add(parentIndex);
+    table.add(stream.size());
 
     if (((ObjectStubBase)rootStub).isDangling()) {
       stream.writeByte(0);
@@ -74,7 +84,7 @@ public class StubSerializationHelper {
     final int childrenSize = children.size();
     DataInputOutputUtil.writeINT(stream, childrenSize);
     for (int i = 0; i < childrenSize; ++i) {
-      doSerialize(children.get(i), stream);
+      doSerialize(children.get(i), stream, index, table);
     }
   }
 
@@ -82,6 +92,7 @@ public class StubSerializationHelper {
     BufferExposingByteArrayOutputStream out = new BufferExposingByteArrayOutputStream();
     FileLocalStringEnumerator storage = new FileLocalStringEnumerator(true);
     StubOutputStream stubOutputStream = new StubOutputStream(out, storage);
+    TIntArrayList table = new TIntArrayList();
     boolean doDefaultSerialization = true;
 
     if (rootStub instanceof PsiFileStub) {
@@ -92,14 +103,14 @@ public class StubSerializationHelper {
         doDefaultSerialization = false;
         DataInputOutputUtil.writeINT(stubOutputStream, roots.length);
         for (PsiFileStub root : roots) {
-          doSerialize(root, stubOutputStream);
+          doSerialize(root, stubOutputStream, -1, table);
         }
       }
     }
 
     if (doDefaultSerialization) {
       DataInputOutputUtil.writeINT(stubOutputStream, 1);
-      doSerialize(rootStub, stubOutputStream);
+      doSerialize(rootStub, stubOutputStream, -1, table);
     }
     DataOutputStream resultStream = new DataOutputStream(stream);
     DataInputOutputUtil.writeINT(resultStream, storage.myStrings.size());
@@ -107,7 +118,15 @@ public class StubSerializationHelper {
     for(String s:storage.myStrings) {
       IOUtil.writeUTFFast(buffer, resultStream, s);
     }
+    DataInputOutputUtil.writeINT(resultStream, out.size());
     resultStream.write(out.getInternalBuffer(), 0, out.size());
+    DataInputOutputUtil.writeINT(resultStream, table.size() / 2);
+    int prevOffset = 0;
+    for (int i = 0; i < table.size(); i += 2) {
+      DataInputOutputUtil.writeINT(resultStream, table.getQuick(i) + 1);
+      DataInputOutputUtil.writeINT(resultStream, table.getQuick(i + 1) - prevOffset);
+      prevOffset = table.getQuick(i + 1);
+    }
   }
 
   private int getClassId(final ObjectStubSerializer serializer) {
@@ -122,16 +141,8 @@ public class StubSerializationHelper {
   public Stub deserialize(@NotNull InputStream stream) throws IOException, SerializerNotFoundException {
     FileLocalStringEnumerator storage = new FileLocalStringEnumerator(false);
     StubInputStream inputStream = new StubInputStream(stream, storage);
-    final int numberOfStrings = DataInputOutputUtil.readINT(inputStream);
-    byte[] buffer = IOUtil.allocReadWriteUTFBuffer();
-    storage.myStrings.ensureCapacity(numberOfStrings);
-
-    int i = 0;
-    while(i < numberOfStrings) {
-      String s = myStringInterner.get(IOUtil.readUTFFast(buffer, inputStream));
-      storage.myStrings.add(s);
-      ++i;
-    }
+    readStrings(inputStream, storage);
+    DataInputOutputUtil.readINT(inputStream); // length of the stubs part, the offsets table after it is not needed here
 
     final int stubFilesCount = DataInputOutputUtil.readINT(inputStream);
     if (stubFilesCount <= 0) {
@@ -159,12 +170,80 @@ public class StubSerializationHelper {
     return baseStub;
   }
 
+  private void readStrings(@NotNull StubInputStream inputStream, @NotNull FileLocalStringEnumerator storage) throws IOException {
+    final int numberOfStrings = DataInputOutputUtil.readINT(inputStream);
+    byte[] buffer = IOUtil.allocReadWriteUTFBuffer();
+    storage.myStrings.ensureCapacity(numberOfStrings);
+
+    int i = 0;
+    while(i < numberOfStrings) {
+      String s = myStringInterner.get(IOUtil.readUTFFast(buffer, inputStream));
+      storage.myStrings.add(s);
+      ++i;
+    }
+  }
+
+  @NotNull
+  StubTreeTable readTable(@NotNull byte[] bytes, int length) throws IOException {
+    FileLocalStringEnumerator storage = new FileLocalStringEnumerator(false);
+    UnsyncByteArrayInputStream stream = new UnsyncByteArrayInputStream(bytes, 0, length);
+    StubInputStream inputStream = new StubInputStream(stream, storage);
+    readStrings(inputStream, storage);
+
+    int stubsLength = DataInputOutputUtil.readINT(inputStream);
+    int stubsStart = length - stream.available();
+    if (inputStream.skipBytes(stubsLength) != stubsLength) throw new IOException("Stubs part is truncated");
+
+    int count = DataInputOutputUtil.readINT(inputStream);
+    int[] parents = new int[count];
+    int[] offsets = new int[count];
+    int offset = stubsStart;
+    for (int i = 0; i < count; i++) {
+      parents[i] = DataInputOutputUtil.readINT(inputStream) - 1;
+      offsets[i] = offset += DataInputOutputUtil.readINT(inputStream);
+    }
+    return new StubTreeTable(bytes, length, storage, parents, offsets);
+  }
+
+  /**
+   * @return the stub with the given index in the depth-first order of all stub roots, with its ancestors deserialized
+   * (children of which contain only the stubs on the path) and without its own children.
+   */
+  @NotNull
+  Stub deserializeStub(@NotNull StubTreeTable table, int stubIndex) throws IOException, SerializerNotFoundException {
+    if (stubIndex < 0 || stubIndex >= table.myOffsets.length) {
+      throw new IOException("No stub #" + stubIndex + " among " + table.myOffsets.length);
+    }
+    TIntArrayList path = new TIntArrayList();
+    for (int index = stubIndex; index >= 0; index = table.myParents[index]) {
+      path.add(index);
+    }
+
+    Stub stub = null;
+    for (int i = path.size() - 1; i >= 0; i--) {
+      int offset = table.myOffsets[path.getQuick(i)];
+      UnsyncByteArrayInputStream stream = new UnsyncByteArrayInputStream(table.myBytes, offset, table.myLength);
+      stub = deserializeStub(new StubInputStream(stream, table.myStorage), stub);
+    }
+    return stub;
+  }
+
   String intern(String str) {
     return myStringInterner.get(str);
   }
 
   @NotNull
   private Stub deserialize(@NotNull StubInputStream stream, @Nullable Stub parentStub) throws IOException, SerializerNotFoundException {
+    Stub stub = deserializeStub(stream, parentStub);
+    int childCount = DataInputOutputUtil.readINT(stream);
+    for (int i = 0; i < childCount; i++) {
+      deserialize(stream, stub);
+    }
+    return stub;
+  }
+
+  @NotNull
+  private Stub deserializeStub(@NotNull StubInputStream stream, @Nullable Stub parentStub) throws IOException, SerializerNotFoundException {
     boolean dangling = false;
     int id = DataInputOutputUtil.readINT(stream);
     if (id == 0) {
@@ -187,10 +266,6 @@ public class StubSerializationHelper {
     if (dangling) {
       ((ObjectStubBase) stub).markDangling();
     }
-    int childCount = DataInputOutputUtil.readINT(stream);
-    for (int i = 0; i < childCount; i++) {
-      deserialize(stream, stub);
-    }
     return stub;
   }
 
@@ -199,6 +274,37 @@ public class StubSerializationHelper {
     return myIdToSerializer.get(id);
   }
 
+  /**
+   * Decoded strings and stub offsets of a serialized stub tree, immutable once read.
+   */
+  static class StubTreeTable {
+    private final byte[] myBytes;
+    private final int myLength;
+    private final FileLocalStringEnumerator myStorage;
+    private final int[] myParents;
+    private final int[] myOffsets;
+
+    private StubTreeTable(@NotNull byte[] bytes, int length, @NotNull FileLocalStringEnumerator storage, @NotNull int[] parents, @NotNull int[] offsets) {
+      myBytes = bytes;
+      myLength = length;
+      myStorage = storage;
+      myParents = parents;
+      myOffsets = offsets;
+    }
+
+    int getStubCount() {
+      return myOffsets.length;
+    }
+
+    long estimateSize() {
+      long size = myLength + 8L * myOffsets.length;
+      for (String s : myStorage.myStrings) {
+        size += 40 + 2 * s.length();
+      }
+      return size;
+    }
+  }
+
   private static class FileLocalStringEnumerator implements AbstractStringEnumerator {
     private final TObjectIntHashMap<String> myEnumerates;
     private final ArrayList<String> myStrings = new ArrayList<>();
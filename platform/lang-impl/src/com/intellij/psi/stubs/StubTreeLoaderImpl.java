@@ -87,6 +87,42 @@ public class StubTreeLoaderImpl extends StubTreeLoader {
   @Override
   @Nullable
   public ObjectStubTree readFromVFile(Project project, final VirtualFile vFile) {
+    SerializedStubTree stubTree = readSerializedStubTree(project, vFile);
+    if (stubTree == null) {
+      return null;
+    }
+
+    Stub stub;
+    try {
+      stub = stubTree.getStub(false);
+    }
+    catch (SerializerNotFoundException e) {
+      return processError(vFile, "No stub serializer: " + vFile.getPresentableUrl() + ": " + e.getMessage(), e);
+    }
+    ObjectStubTree<?> tree = stub instanceof PsiFileStub ? new StubTree((PsiFileStub)stub) : new ObjectStubTree((ObjectStubBase)stub, true);
+    tree.setDebugInfo("created from index");
+    checkDeserializationCreatesNoPsi(tree);
+    return tree;
+  }
+
+  @Override
+  @Nullable
+  public Stub readStubFromVFile(Project project, final VirtualFile vFile, int stubIndex) {
+    SerializedStubTree stubTree = readSerializedStubTree(project, vFile);
+    if (stubTree == null) {
+      return null;
+    }
+
+    try {
+      return stubTree.getStub(stubIndex);
+    }
+    catch (SerializerNotFoundException e) {
+      return processError(vFile, "No stub serializer: " + vFile.getPresentableUrl() + ": " + e.getMessage(), e);
+    }
+  }
+
+  @Nullable
+  private SerializedStubTree readSerializedStubTree(Project project, final VirtualFile vFile) {
     if (DumbService.getInstance(project).isDumb() || NoAccessDuringPsiEvents.isInsideEventProcessing()) {
       return null;
     }
@@ -118,17 +154,7 @@ public class StubTreeLoaderImpl extends StubTreeLoader {
                             null);
       }
 
-      Stub stub;
-      try {
-        stub = stubTree.getStub(false);
-      }
-      catch (SerializerNotFoundException e) {
-        return processError(vFile, "No stub serializer: " + vFile.getPresentableUrl() + ": " + e.getMessage(), e);
-      }
-      ObjectStubTree<?> tree = stub instanceof PsiFileStub ? new StubTree((PsiFileStub)stub) : new ObjectStubTree((ObjectStubBase)stub, true);
-      tree.setDebugInfo("created from index");
-      checkDeserializationCreatesNoPsi(tree);
-      return tree;
+      return stubTree;
     }
     else if (size != 0) {
       return processError(vFile, "Twin stubs: " + vFile.getPresentableUrl() + " has " + size + " stub versions. Should only have one. id=" + id,
@@ -172,7 +198,7 @@ public class StubTreeLoaderImpl extends StubTreeLoader {
     return -1;
   }
 
-  private static ObjectStubTree processError(final VirtualFile vFile, String message, @Nullable Exception e) {
+  private static <T> T processError(final VirtualFile vFile, String message, @Nullable Exception e) {
     LOG.error(message, e);
 
     ApplicationManager.getApplication().invokeLater(() -> {
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.stubs;
+
+import com.intellij.util.SystemProperties;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of decoded stub tree tables keyed by the serialized stub tree itself, see {@link #key}, limited by their estimated size
+ * together with the retained serialized bytes, so that repeated single stub lookups in a big file don't decode all its strings again.
+ * Tables are valid only for the name storage they were decoded with, so the cache is cleared when it's recreated.
+ */
+class StubTreeTableCache {
+  private static final long BUDGET = SystemProperties.getIntProperty("idea.stub.tree.cache.kb", 16 * 1024) * 1024L;
+
+  private final LinkedHashMap<Object, StubSerializationHelper.StubTreeTable> myTables = new LinkedHashMap<>(16, 0.75f, true);
+  private long mySize;
+
+  /**
+   * The bytes are retained by the key and must not be modified afterwards.
+   */
+  @NotNull
+  static Object key(@NotNull byte[] bytes, int length) {
+    return new ContentKey(bytes, length);
+  }
+
+  @Nullable
+  synchronized StubSerializationHelper.StubTreeTable get(@NotNull Object key) {
+    return myTables.get(key);
+  }
+
+  synchronized void put(@NotNull Object key, @NotNull StubSerializationHelper.StubTreeTable table) {
+    long size = estimateSize(key, table);
+    if (size > BUDGET) return;
+
+    StubSerializationHelper.StubTreeTable old = myTables.put(key, table);
+    if (old != null) mySize -= estimateSize(key, old);
+    mySize += size;
+
+    for (Iterator<Map.Entry<Object, StubSerializationHelper.StubTreeTable>> iterator = myTables.entrySet().iterator();
+         mySize > BUDGET && iterator.hasNext(); ) {
+      Map.Entry<Object, StubSerializationHelper.StubTreeTable> entry = iterator.next();
+      mySize -= estimateSize(entry.getKey(), entry.getValue());
+      iterator.remove();
+    }
+  }
+
+  synchronized void clear() {
+    myTables.clear();
+    mySize = 0;
+  }
+
+  private static long estimateSize(@NotNull Object key, @NotNull StubSerializationHelper.StubTreeTable table) {
+    return ((ContentKey)key).myLength + table.estimateSize();
+  }
+
+  private static class ContentKey {
+    private final byte[] myBytes;
+    private final int myLength;
+    private final int myHashCode;
+
+    ContentKey(@NotNull byte[] bytes, int length) {
+      myBytes = bytes;
+      myLength = length;
+      int result = 1;
+      for (int i = 0; i < length; i++) {
+        result = 31 * result + bytes[i];
+      }
+      myHashCode = result;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof ContentKey)) return false;
+      ContentKey key = (ContentKey)o;
+      if (myHashCode != key.myHashCode || myLength != key.myLength) return false;
+      if (myBytes == key.myBytes) return true;
+      for (int i = 0; i < myLength; i++) {
+        if (myBytes[i] != key.myBytes[i]) return false;
+      }
+      return true;
+    }
+
+    @Override
+    public int hashCode() {
+      return myHashCode;
+    }
+  }
+}
@@ -16,6 +16,8 @@
 package com.intellij.util.indexing;
 
 import com.intellij.openapi.fileTypes.FileType;
+import com.intellij.openapi.util.Comparing;
+import com.intellij.openapi.util.Key;
 import com.intellij.openapi.util.ShutDownTracker;
 import com.intellij.openapi.vfs.newvfs.persistent.ContentHashesUtil;
 import com.intellij.openapi.vfs.newvfs.persistent.FlushingDaemon;
@@ -57,6 +59,49 @@ class ContentHashesSupport {
     if (ourHashesWithFileType != null && ourHashesWithFileType.isDirty()) ourHashesWithFileType.force();
   }
 
+  private static final Key<PrecalculatedHash> PRECALCULATED_HASH = Key.create("precalculated.content.hash");
+
+  private static class PrecalculatedHash {
+    final String myFileTypeName;
+    final boolean myBinary;
+    @Nullable final Charset myCharset;
+    final byte[] myHash;
+
+    PrecalculatedHash(@NotNull String fileTypeName, boolean binary, @Nullable Charset charset, @NotNull byte[] hash) {
+      myFileTypeName = fileTypeName;
+      myBinary = binary;
+      myCharset = charset;
+      myHash = hash;
+    }
+  }
+
+  /**
+   * Calculates hash of loaded content ahead of indexing, {@link #getPrecalculatedHash} returns it if hash inputs are unchanged
+   */
+  static void precalculateContentHash(@NotNull com.intellij.ide.caches.FileContent content,
+                                      @NotNull byte[] bytes,
+                                      @NotNull FileType fileType,
+                                      boolean binary,
+                                      @Nullable Charset charset) {
+    byte[] hash = binary ? calcContentHash(bytes, fileType) : calcContentHashWithFileType(bytes, charset, fileType);
+    content.putUserData(PRECALCULATED_HASH, new PrecalculatedHash(fileType.getName(), binary, charset, hash));
+  }
+
+  @Nullable
+  static byte[] getPrecalculatedHash(@NotNull com.intellij.ide.caches.FileContent content,
+                                     @NotNull FileType fileType,
+                                     boolean binary,
+                                     @Nullable Charset charset) {
+    PrecalculatedHash precalculated = content.getUserData(PRECALCULATED_HASH);
+    if (precalculated == null ||
+        precalculated.myBinary != binary ||
+        !precalculated.myFileTypeName.equals(fileType.getName()) ||
+        !Comparing.equal(precalculated.myCharset, charset)) {
+      return null;
+    }
+    return precalculated.myHash;
+  }
+
   static byte[] calcContentHash(@NotNull byte[] bytes, @NotNull FileType fileType) {
     MessageDigest messageDigest = ContentHashesUtil.HASHER_CACHE.getValue();
 
@@ -17,6 +17,7 @@
 package com.intellij.util.indexing;
 
 import com.intellij.AppTopics;
+import com.intellij.concurrency.JobLauncher;
 import com.intellij.history.LocalHistory;
 import com.intellij.ide.plugins.PluginManager;
 import com.intellij.lang.ASTNode;
@@ -25,12 +26,14 @@ import com.intellij.notification.NotificationGroup;
 import com.intellij.notification.NotificationType;
 import com.intellij.openapi.actionSystem.ex.ActionUtil;
 import com.intellij.openapi.application.*;
+import com.intellij.openapi.application.ex.ApplicationManagerEx;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.impl.EditorHighlighterCache;
 import com.intellij.openapi.extensions.Extensions;
 import com.intellij.openapi.fileEditor.FileDocumentManager;
 import com.intellij.openapi.fileEditor.FileDocumentManagerAdapter;
+import com.intellij.openapi.fileEditor.impl.LoadTextUtil;
 import com.intellij.openapi.fileTypes.*;
 import com.intellij.openapi.fileTypes.impl.FileTypeManagerImpl;
 import com.intellij.openapi.progress.ProcessCanceledException;
@@ -84,7 +87,7 @@ import com.intellij.util.messages.MessageBusConnection;
 import gnu.trove.THashMap;
 import gnu.trove.THashSet;
 import gnu.trove.TIntArrayList;
-import gnu.trove.TIntHashSet;
+import gnu.trove.TIntLongHashMap;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.annotations.TestOnly;
@@ -92,6 +95,7 @@ import org.jetbrains.annotations.TestOnly;
 import java.io.*;
 import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
+import java.nio.charset.Charset;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
@@ -144,6 +148,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
   private final AtomicInteger myUpdatingFiles = new AtomicInteger();
   private final Set<Project> myProjectsBeingUpdated = ContainerUtil.newConcurrentSet();
   private final IndexAccessValidator myAccessValidator = new IndexAccessValidator();
+  private final IndexingAllocationStatistics myAllocationStatistics = new IndexingAllocationStatistics();
 
   @SuppressWarnings({"FieldCanBeLocal", "UnusedDeclaration"})
   private volatile boolean myInitialized;
@@ -924,8 +929,8 @@ public class FileBasedIndexImpl extends FileBasedIndex {
                                                       @Nullable Condition<V> valueChecker,
                                                       @NotNull final Processor<VirtualFile> processor) {
     ProjectIndexableFilesFilter filesSet = projectIndexableFiles(filter.getProject());
-    final TIntHashSet set = collectFileIdsContainingAllKeys(indexId, dataKeys, filter, valueChecker, filesSet);
-    return set != null && processVirtualFiles(set, filter, processor);
+    final TIntArrayList ids = collectFileIdsContainingAllKeys(indexId, dataKeys, filter, valueChecker, filesSet);
+    return ids != null && processVirtualFiles(ids, filter, processor);
   }
 
   private static final Key<SoftReference<ProjectIndexableFilesFilter>> ourProjectFilesSetKey = Key.create("projectFiles");
@@ -1037,21 +1042,28 @@ public class FileBasedIndexImpl extends FileBasedIndex {
   }
 
   @Nullable
-  private <K, V> TIntHashSet collectFileIdsContainingAllKeys(@NotNull final ID<K, V> indexId,
-                                                             @NotNull final Collection<K> dataKeys,
-                                                             @NotNull final GlobalSearchScope filter,
-                                                             @Nullable final Condition<V> valueChecker,
-                                                             @Nullable final ProjectIndexableFilesFilter projectFilesFilter) {
-    ThrowableConvertor<UpdatableIndex<K, V, FileContent>, TIntHashSet, StorageException> convertor =
-            index -> InvertedIndexUtil.collectInputIdsContainingAllKeys(index, dataKeys, (k) -> {
-              ProgressManager.checkCanceled();
-              return true;
-            }, valueChecker, projectFilesFilter == null ? null : projectFilesFilter::containsFileId);
+  private <K, V> TIntArrayList collectFileIdsContainingAllKeys(@NotNull final ID<K, V> indexId,
+                                                               @NotNull final Collection<K> dataKeys,
+                                                               @NotNull final GlobalSearchScope filter,
+                                                               @Nullable final Condition<V> valueChecker,
+                                                               @Nullable final ProjectIndexableFilesFilter projectFilesFilter) {
+    // only ids of the files containing all the keys are collected, files themselves are processed outside of index lock
+    ThrowableConvertor<UpdatableIndex<K, V, FileContent>, TIntArrayList, StorageException> convertor = index -> {
+      TIntArrayList ids = new TIntArrayList();
+      InvertedIndexUtil.processInputIdsContainingAllKeys(index, dataKeys, (k) -> {
+        ProgressManager.checkCanceled();
+        return true;
+      }, valueChecker, projectFilesFilter == null ? null : projectFilesFilter::containsFileId, id -> {
+        ids.add(id);
+        return true;
+      });
+      return ids;
+    };
 
     return processExceptions(indexId, null, filter, convertor);
   }
 
-  private static boolean processVirtualFiles(@NotNull TIntHashSet ids,
+  private static boolean processVirtualFiles(@NotNull TIntArrayList ids,
                                              @NotNull final GlobalSearchScope filter,
                                              @NotNull final Processor<VirtualFile> processor) {
     final PersistentFS fs = (PersistentFS)ManagingFS.getInstance();
@@ -1432,6 +1444,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
   public void indexFileContent(@Nullable Project project, @NotNull com.intellij.ide.caches.FileContent content) {
     VirtualFile file = content.getVirtualFile();
     final int fileId = Math.abs(getIdMaskingNonIdBasedFile(file));
+    long allocationsStart = myAllocationStatistics.start();
 
     try {
       // if file was scheduled for update due to vfs events then it is present in myFilesToUpdate
@@ -1451,6 +1464,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     }
     finally {
       IndexingStamp.flushCache(fileId);
+      myAllocationStatistics.finish(allocationsStart, file);
     }
 
     myChangedFilesCollector.removeFileIdFromFilesScheduledForUpdate(fileId);
@@ -1462,48 +1476,54 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     final FileType fileType = file.getFileType();
     final Project finalProject = project == null ? ProjectUtil.guessProjectForFile(file) : project;
     myFileTypeManager.freezeFileTypeTemporarilyIn(file, () -> {
-      PsiFile psiFile = null;
-      FileContentImpl fc = null;
-      int inputId = -1;
-
       final List<ID<?, ?>> affectedIndexCandidates = getAffectedIndexCandidates(file);
+      final List<ID<?, ?>> indicesToUpdate = new SmartList<>();
       //noinspection ForLoopReplaceableByForEach
       for (int i = 0, size = affectedIndexCandidates.size(); i < size; ++i) {
         final ID<?, ?> indexId = affectedIndexCandidates.get(i);
-        if (shouldIndexFile(project, file, indexId)) {
-          if (fc == null) {
-            byte[] currentBytes;
-            try {
-              currentBytes = content.getBytes();
-            }
-            catch (IOException e) {
-              currentBytes = ArrayUtil.EMPTY_BYTE_ARRAY;
-            }
-            fc = new FileContentImpl(file, currentBytes);
-
-            if (IdIndex.ourSnapshotMappingsEnabled) {
-              FileType substituteFileType = SubstitutedFileType.substituteFileType(file, fileType, finalProject);
-              byte[] hash = fileType.isBinary()
-                            ? ContentHashesSupport.calcContentHash(currentBytes, substituteFileType)
-                            : ContentHashesSupport.calcContentHashWithFileType(currentBytes, fc.getCharset(), substituteFileType);
-              fc.setHash(hash);
-            }
+        if (shouldIndexFile(project, file, indexId)) indicesToUpdate.add(indexId);
+      }
+      if (indicesToUpdate.isEmpty()) return;
 
-            psiFile = content.getUserData(IndexingDataKeys.PSI_FILE);
-            initFileContent(fc, finalProject, psiFile);
-            inputId = Math.abs(getFileId(file));
-          }
+      byte[] currentBytes;
+      try {
+        currentBytes = content.getBytes();
+      }
+      catch (IOException e) {
+        currentBytes = ArrayUtil.EMPTY_BYTE_ARRAY;
+      }
+      final FileContentImpl fc = new FileContentImpl(file, currentBytes);
 
-          try {
+      if (IdIndex.ourSnapshotMappingsEnabled) {
+        FileType substituteFileType = SubstitutedFileType.substituteFileType(file, fileType, finalProject);
+        byte[] hash = ContentHashesSupport.getPrecalculatedHash(content, substituteFileType, fileType.isBinary(), fc.getCharset());
+        if (hash == null) {
+          hash = fileType.isBinary()
+                 ? ContentHashesSupport.calcContentHash(currentBytes, substituteFileType)
+                 : ContentHashesSupport.calcContentHashWithFileType(currentBytes, fc.getCharset(), substituteFileType);
+        }
+        fc.setHash(hash);
+      }
+
+      final PsiFile psiFile = content.getUserData(IndexingDataKeys.PSI_FILE);
+      initFileContent(fc, finalProject, psiFile);
+      final int inputId = Math.abs(getFileId(file));
+
+      try {
+        if (indicesToUpdate.size() > 1 && currentBytes.length >= CONCURRENT_INDICES_UPDATE_FILE_SIZE_THRESHOLD) {
+          updateIndicesConcurrently(indicesToUpdate, file, fileType, inputId, fc);
+        }
+        else {
+          for (ID<?, ?> indexId : indicesToUpdate) {
             ProgressManager.checkCanceled();
             updateSingleIndex(indexId, file, inputId, fc);
           }
-          catch (ProcessCanceledException e) {
-            cleanFileContent(fc, psiFile);
-            throw e;
-          }
         }
       }
+      catch (ProcessCanceledException e) {
+        cleanFileContent(fc, psiFile);
+        throw e;
+      }
 
       if (psiFile != null) {
         psiFile.putUserData(PsiFileImpl.BUILDING_STUB, null);
@@ -1511,6 +1531,108 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     });
   }
 
+  // files at least that large have their indices calculated concurrently, negative value disables the concurrent update
+  private static final int CONCURRENT_INDICES_UPDATE_FILE_SIZE_THRESHOLD = getConcurrentIndicesUpdateThreshold();
+
+  private static int getConcurrentIndicesUpdateThreshold() {
+    int thresholdKb = SystemProperties.getIntProperty("idea.indexing.concurrent.update.threshold.kb", 256);
+    return thresholdKb < 0 ? Integer.MAX_VALUE : thresholdKb * 1024;
+  }
+
+  /**
+   * Runs indexers of the same file content on {@link JobLauncher} threads. PSI dependent indices share the tree and
+   * are updated one after another in a single task, every other index gets its own task, so updates of each index storage
+   * stay on one thread.
+   */
+  private void updateIndicesConcurrently(@NotNull List<ID<?, ?>> indicesToUpdate,
+                                         @NotNull VirtualFile file,
+                                         @NotNull FileType fileType,
+                                         int inputId,
+                                         @NotNull FileContentImpl fc) {
+    // make lazily computed content state immutable before sharing it between threads
+    if (!fileType.isBinary()) fc.getContentAsText();
+    fc.ensureThreadSafeLighterAST();
+
+    List<List<ID<?, ?>>> tasks = new ArrayList<>();
+    List<ID<?, ?>> psiDependentIndices = new SmartList<>();
+    for (ID<?, ?> indexId : indicesToUpdate) {
+      if (myPsiDependentIndices.contains(indexId)) {
+        psiDependentIndices.add(indexId);
+      }
+      else {
+        tasks.add(Collections.singletonList(indexId));
+      }
+    }
+    if (!psiDependentIndices.isEmpty()) tasks.add(0, psiDependentIndices);
+
+    final Ref<Throwable> failure = Ref.create();
+    boolean completed = JobLauncher.getInstance().invokeConcurrentlyUnderProgress(
+            tasks, ProgressManager.getInstance().getProgressIndicator(), false, indexIds -> {
+              try {
+                myFileTypeManager.freezeFileTypeTemporarilyIn(file, () -> {
+                  for (ID<?, ?> indexId : indexIds) {
+                    ProgressManager.checkCanceled();
+                    updateSingleIndex(indexId, file, inputId, fc);
+                  }
+                });
+                return true;
+              }
+              catch (ProcessCanceledException e) {
+                throw e;
+              }
+              catch (Throwable e) {
+                synchronized (failure) {
+                  if (failure.isNull()) failure.set(e);
+                }
+                return false;
+              }
+            });
+
+    ExceptionUtil.rethrowAllAsUnchecked(failure.get());
+    if (!completed) throw new ProcessCanceledException();
+  }
+
+  /**
+   * @return preprocessor for {@link CacheUpdateRunner} that hashes contents on loading threads, so content reuse by hash
+   * does not cost the indexing threads anything
+   */
+  @Nullable
+  Consumer<com.intellij.ide.caches.FileContent> getContentHashPrecalculator(@Nullable Project project) {
+    if (!IdIndex.ourSnapshotMappingsEnabled) return null;
+    return content -> precalculateContentHash(project, content);
+  }
+
+  private void precalculateContentHash(@Nullable Project project, @NotNull com.intellij.ide.caches.FileContent content) {
+    final VirtualFile file = content.getVirtualFile();
+    if (!file.isValid() || isTooLarge(file)) return;
+
+    final byte[] bytes;
+    try {
+      bytes = content.getBytes();
+    }
+    catch (IOException e) {
+      return;
+    }
+
+    final FileType fileType = file.getFileType();
+    final Ref<FileType> substituteFileType = Ref.create();
+    boolean computed = ApplicationManagerEx.getApplicationEx().tryRunReadAction(() -> {
+      if (!file.isValid() || getAffectedIndexCandidates(file).isEmpty()) return;
+      Project finalProject = project == null ? ProjectUtil.guessProjectForFile(file) : project;
+      substituteFileType.set(SubstitutedFileType.substituteFileType(file, fileType, finalProject));
+    });
+    // write action is pending or there is nothing to index, indexing thread will sort it out
+    if (!computed || substituteFileType.isNull()) return;
+
+    boolean binary = fileType.isBinary();
+    Charset charset = LoadTextUtil.detectCharsetAndSetBOM(file, bytes);
+    ContentHashesSupport.precalculateContentHash(content, bytes, substituteFileType.get(), binary, charset);
+  }
+
+  void logIndexingAllocations(@NotNull String activityName) {
+    myAllocationStatistics.logAndReset(activityName);
+  }
+
   public boolean isIndexingCandidate(@NotNull VirtualFile file, @NotNull ID<?, ?> indexId) {
     return !isTooLarge(file) && getAffectedIndexCandidates(file).contains(indexId);
   }
@@ -1958,8 +2080,10 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     return file instanceof VirtualFileWithId ? ((VirtualFileWithId)file).getId() : IndexingStamp.INVALID_FILE_ID;
   }
 
-  private class UnindexedFilesFinder implements CollectingContentIterator {
+  class UnindexedFilesFinder implements CollectingContentIterator {
     private final List<VirtualFile> myFiles = new ArrayList<>();
+    // estimated indexing cost by file id, calculated while the file type is frozen during the scan, guarded by myFiles
+    private final TIntLongHashMap myCosts = new TIntLongHashMap();
     @Nullable
     private final ProgressIndicator myProgressIndicator;
 
@@ -2000,6 +2124,19 @@ public class FileBasedIndexImpl extends FileBasedIndex {
       return localFileSystemFiles;
     }
 
+    /**
+     * @see IndexingCostEstimator
+     */
+    @NotNull
+    List<VirtualFile> getFilesByDescendingCost() {
+      List<VirtualFile> files = getFiles();
+      TIntLongHashMap costs;
+      synchronized (myFiles) {
+        costs = myCosts;
+      }
+      return IndexingCostEstimator.sortByDescendingCost(files, file -> costs.get(((VirtualFileWithId)file).getId()));
+    }
+
     @Override
     public boolean processFile(@NotNull final VirtualFile file) {
       if (!file.isValid()) {
@@ -2021,8 +2158,10 @@ public class FileBasedIndexImpl extends FileBasedIndex {
             final ID<?, ?> indexId = affectedIndexCandidates.get(i);
             try {
               if (needsFileContentLoading(indexId) && shouldIndexFile(null, file, indexId)) {
+                long cost = IndexingCostEstimator.getInstance().estimateCost(file);
                 synchronized (myFiles) {
                   myFiles.add(file);
+                  myCosts.put(((VirtualFileWithId)file).getId(), cost);
                 }
                 oldStuff = false;
                 break;
@@ -2090,7 +2229,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
   }
 
   @NotNull
-  CollectingContentIterator createContentIterator(@Nullable ProgressIndicator indicator) {
+  UnindexedFilesFinder createContentIterator(@Nullable ProgressIndicator indicator) {
     return new UnindexedFilesFinder(indicator);
   }
 
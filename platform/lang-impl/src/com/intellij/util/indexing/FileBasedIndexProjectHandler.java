@@ -143,6 +143,7 @@ public class FileBasedIndexProjectHandler extends AbstractProjectComponent imple
                                             Collection<VirtualFile> files,
                                             final Project project,
                                             final FileBasedIndexImpl index) {
-    CacheUpdateRunner.processFiles(indicator, true, files, project, content -> index.processRefreshedFile(project, content));
+    CacheUpdateRunner.processFiles(indicator, true, files, project, index.getContentHashPrecalculator(project),
+                                   content -> index.processRefreshedFile(project, content));
   }
 }
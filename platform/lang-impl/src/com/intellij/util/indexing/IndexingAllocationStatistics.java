@@ -0,0 +1,100 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.SystemProperties;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects bytes allocated by indexing thread per indexed file (content loading is done elsewhere and is not counted).
+ * Works only when the JVM supports per thread allocation accounting.
+ */
+class IndexingAllocationStatistics {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.util.indexing.IndexingAllocationStatistics");
+  private static final boolean ourEnabled = SystemProperties.getBooleanProperty("idea.indexing.track.allocations", true);
+
+  @Nullable private static final com.sun.management.ThreadMXBean ourThreadMXBean = findThreadMXBean();
+
+  private final AtomicLong myTotalBytes = new AtomicLong();
+  private final AtomicInteger myFilesCount = new AtomicInteger();
+  private long myPeakBytes;
+  private String myPeakFile;
+
+  @Nullable
+  private static com.sun.management.ThreadMXBean findThreadMXBean() {
+    if (!ourEnabled) return null;
+    try {
+      ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+      if (bean instanceof com.sun.management.ThreadMXBean &&
+          ((com.sun.management.ThreadMXBean)bean).isThreadAllocatedMemorySupported() &&
+          ((com.sun.management.ThreadMXBean)bean).isThreadAllocatedMemoryEnabled()) {
+        return (com.sun.management.ThreadMXBean)bean;
+      }
+    }
+    catch (Throwable ignored) {
+      // not HotSpot
+    }
+    return null;
+  }
+
+  /**
+   * @return token to pass to {@link #finish}
+   */
+  long start() {
+    return ourThreadMXBean != null ? ourThreadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId()) : -1;
+  }
+
+  void finish(long start, @NotNull VirtualFile file) {
+    if (start == -1) return;
+    long allocated = ourThreadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - start;
+    if (allocated < 0) return;
+
+    myTotalBytes.addAndGet(allocated);
+    myFilesCount.incrementAndGet();
+    synchronized (this) {
+      if (allocated > myPeakBytes) {
+        myPeakBytes = allocated;
+        myPeakFile = file.getPath();
+      }
+    }
+  }
+
+  void logAndReset(@NotNull String activityName) {
+    int files = myFilesCount.getAndSet(0);
+    long total = myTotalBytes.getAndSet(0);
+    long peak;
+    String peakFile;
+    synchronized (this) {
+      peak = myPeakBytes;
+      peakFile = myPeakFile;
+      myPeakBytes = 0;
+      myPeakFile = null;
+    }
+    if (files == 0) return;
+
+    LOG.info(activityName + ": allocated " + StringUtil.formatFileSize(total) + " for " + files + " files, " +
+             StringUtil.formatFileSize(total / files) + " on average, peak " + StringUtil.formatFileSize(peak) + " for " + peakFile);
+  }
+}
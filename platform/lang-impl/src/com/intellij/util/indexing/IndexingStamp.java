@@ -26,6 +26,7 @@ import com.intellij.util.SmartList;
 import com.intellij.util.SystemProperties;
 import com.intellij.util.containers.ConcurrentIntObjectMap;
 import com.intellij.util.containers.ContainerUtil;
+import com.intellij.util.indexing.containers.ChangeBufferingList;
 import com.intellij.util.io.DataInputOutputUtil;
 import gnu.trove.TObjectLongHashMap;
 import gnu.trove.TObjectLongProcedure;
@@ -63,7 +64,7 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 public class IndexingStamp {
   private static final long INDEX_DATA_OUTDATED_STAMP = -2L;
 
-  private static final int VERSION = 15;
+  private static final int VERSION = 15 + (ChangeBufferingList.COMPRESSED_ID_SETS_ENABLED ? 1 : 0);
   private static final ConcurrentMap<ID<?, ?>, Long> ourIndexIdToCreationStamp = ContainerUtil.newConcurrentMap();
   static final int INVALID_FILE_ID = 0;
   private static volatile long ourLastStamp; // ensure any file index stamp increases
@@ -325,7 +326,8 @@ public class IndexingStamp {
     }
     Timestamps timestamps = myTimestampsCache.get(id);
     if (timestamps == null) {
-      final DataInputStream stream = FSRecords.readAttributeWithLock(id, Timestamps.PERSISTENCE);
+      DataInputStream stream = readPreloadedTimestamps(id);
+      if (stream == null) stream = FSRecords.readAttributeWithLock(id, Timestamps.PERSISTENCE);
       try {
         timestamps = new Timestamps(stream);
       }
@@ -337,6 +339,62 @@ public class IndexingStamp {
     return timestamps;
   }
 
+  private static class PreloadedTimestamps {
+    private final int myModCount;
+    private final ConcurrentIntObjectMap<byte[]> myBytes = ContainerUtil.createConcurrentIntObjectMap();
+
+    private PreloadedTimestamps(int modCount) {
+      myModCount = modCount;
+    }
+  }
+
+  private static volatile PreloadedTimestamps ourPreloadedTimestamps;
+
+  /**
+   * Reads stamps of all files not cached yet in one pass over VFS attributes storage, so that scanning files to index doesn't
+   * read them one by one in random order. The stamps are kept until {@link #clearPreloadedTimestamps()} and each is used at most once.
+   * Does nothing unless VFS supports bulk attribute reading.
+   */
+  public static void preloadTimestamps() {
+    if (!FSRecords.bulkAttrReadSupport) return;
+
+    final PreloadedTimestamps preloaded = new PreloadedTimestamps(FSRecords.getModCount());
+    FSRecords.readAttributeInBulk(Timestamps.PERSISTENCE, new FSRecords.BulkAttrReadCallback() {
+      @Override
+      public boolean accepts(int fileId) {
+        return myTimestampsCache.get(fileId) == null;
+      }
+
+      @Override
+      public boolean execute(int fileId, @NotNull DataInputStream is) {
+        try {
+          byte[] bytes = new byte[is.available()];
+          is.readFully(bytes);
+          preloaded.myBytes.put(fileId, bytes);
+          return true;
+        }
+        catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+    ourPreloadedTimestamps = preloaded;
+  }
+
+  public static void clearPreloadedTimestamps() {
+    ourPreloadedTimestamps = null;
+  }
+
+  @Nullable
+  private static DataInputStream readPreloadedTimestamps(int id) {
+    PreloadedTimestamps preloaded = ourPreloadedTimestamps;
+    if (preloaded == null) return null;
+    byte[] bytes = preloaded.myBytes.remove(id);
+    // the file's attributes could be rewritten or its record reused after the stamps were read
+    if (bytes == null || FSRecords.getModCount(id) > preloaded.myModCount) return null;
+    return new DataInputStream(new ByteArrayInputStream(bytes));
+  }
+
   public static void update(int fileId, @NotNull ID<?, ?> indexName, final long indexCreationStamp) {
     if (fileId < 0 || fileId == INVALID_FILE_ID) return;
     Lock writeLock = getStripedLock(fileId).writeLock();
@@ -27,7 +27,6 @@ import com.intellij.openapi.project.CacheUpdateRunner;
 import com.intellij.openapi.project.DumbModeTask;
 import com.intellij.openapi.project.DumbService;
 import com.intellij.openapi.project.Project;
-import com.intellij.openapi.roots.CollectingContentIterator;
 import com.intellij.openapi.roots.ModuleRootEvent;
 import com.intellij.openapi.roots.ModuleRootListener;
 import com.intellij.openapi.roots.impl.PushedFilePropertiesUpdater;
@@ -69,16 +68,23 @@ public class UnindexedFilesUpdater extends DumbModeTask {
 
     myIndex.clearIndicesIfNecessary();
 
-    CollectingContentIterator finder = myIndex.createContentIterator(indicator);
+    FileBasedIndexImpl.UnindexedFilesFinder finder = myIndex.createContentIterator(indicator);
     snapshot = PerformanceWatcher.takeSnapshot();
 
-    myIndex.iterateIndexableFilesConcurrently(finder, myProject, indicator);
+    IndexingStamp.preloadTimestamps();
+    try {
+      myIndex.iterateIndexableFilesConcurrently(finder, myProject, indicator);
+    }
+    finally {
+      IndexingStamp.clearPreloadedTimestamps();
+    }
 
     myIndex.filesUpdateEnumerationFinished();
 
     if (trackResponsiveness) snapshot.logResponsivenessSinceCreation("Indexable file iteration");
 
-    List<VirtualFile> files = finder.getFiles();
+    // most expensive files first, so no indexing thread is left with a huge file when the others are done
+    List<VirtualFile> files = finder.getFilesByDescendingCost();
 
     if (!ApplicationManager.getApplication().isUnitTestMode()) {
       // full VFS refresh makes sense only after it's loaded, i.e. after scanning files to index is finished
@@ -98,11 +104,15 @@ public class UnindexedFilesUpdater extends DumbModeTask {
 
     indexFiles(indicator, files);
 
-    if (trackResponsiveness) snapshot.logResponsivenessSinceCreation("Unindexed files update");
+    if (trackResponsiveness) {
+      snapshot.logResponsivenessSinceCreation("Unindexed files update");
+      myIndex.logIndexingAllocations("Unindexed files update");
+    }
   }
 
   private void indexFiles(ProgressIndicator indicator, List<VirtualFile> files) {
-    CacheUpdateRunner.processFiles(indicator, true, files, myProject, content -> myIndex.indexFileContent(myProject, content));
+    CacheUpdateRunner.processFiles(indicator, true, files, myProject, myIndex.getContentHashPrecalculator(myProject),
+                                   content -> myIndex.indexFileContent(myProject, content));
   }
 
   @Override
@@ -120,6 +120,7 @@ public class ChangeList {
           private final TIntHashSet recursionGuard = new TIntHashSet(1000);
 
           private ChangeSetHolder currentBlock;
+          private ChangeSetHolder lastStoredBlock;
           private ChangeSet next = fetchNext();
 
           public boolean hasNext() {
@@ -134,19 +135,24 @@ public class ChangeList {
 
           private ChangeSet fetchNext() {
             if (currentBlock == null) {
+              // the last stored block is read together with the current change set, so that it can't be stored in between
               synchronized (ChangeList.this) {
+                lastStoredBlock = myStorage.readPrevious(-1, recursionGuard);
                 if (myCurrentChangeSet != null) {
                   currentBlock = new ChangeSetHolder(-1, myCurrentChangeSet);
                 }
                 else {
-                  currentBlock = myStorage.readPrevious(-1, recursionGuard);
+                  currentBlock = lastStoredBlock;
                 }
               }
             }
+            else if (currentBlock.id == -1) {
+              currentBlock = lastStoredBlock;
+            }
             else {
-              synchronized (ChangeList.this) {
-                currentBlock = myStorage.readPrevious(currentBlock.id, recursionGuard);
-              }
+              // stored blocks are never changed, and the storage is thread-safe,
+              // so reading the history doesn't block recording new changes
+              currentBlock = myStorage.readPrevious(currentBlock.id, recursionGuard);
             }
             if (currentBlock == null) return null;
             return currentBlock.changeSet;
@@ -32,20 +32,20 @@ public class InMemoryChangeListStorage implements ChangeListStorage {
   }
 
   @Override
-  public long nextId() {
+  public synchronized long nextId() {
     return myCurrentId++;
   }
 
   @Override
   @Nullable
-  public ChangeSetHolder readPrevious(int id, TIntHashSet recursionGuard) {
+  public synchronized ChangeSetHolder readPrevious(int id, TIntHashSet recursionGuard) {
     if (mySets.isEmpty()) return null;
     if (id == -1) return new ChangeSetHolder(mySets.size() - 1, mySets.get(mySets.size() - 1));
     return id == 0 ? null : new ChangeSetHolder(id -1, mySets.get(id - 1));
   }
 
   @Override
-  public void writeNextSet(ChangeSet changeSet) {
+  public synchronized void writeNextSet(ChangeSet changeSet) {
     mySets.add(changeSet);
   }
 
@@ -0,0 +1,763 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.history.core;
+
+import com.intellij.history.core.changes.ChangeSet;
+import com.intellij.history.utils.LocalHistoryLog;
+import com.intellij.openapi.util.Clock;
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.newvfs.ManagingFS;
+import com.intellij.util.Consumer;
+import com.intellij.util.SystemProperties;
+import gnu.trove.TIntHashSet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Change list storage which only appends records and never modifies them.
+ * <p/>
+ * Change sets are appended to the active segment file. When it grows big enough, the offsets and timestamps of its records
+ * are written into an index file, and the segment becomes immutable. Reading doesn't take any locks: closed segments are read
+ * through their memory-mapped indexes, and the active segment exposes only the records which are completely written.
+ * Purging deletes whole segments all records of which are obsolete, so some obsolete records are kept until their segment expires.
+ */
+public class SegmentedChangeListStorage implements ChangeListStorage {
+  public static final boolean ENABLED = SystemProperties.getBooleanProperty("idea.local.history.segmented.storage", true);
+  private static final int SEGMENT_SIZE = SystemProperties.getIntProperty("idea.local.history.segment.kb", 4 * 1024) * 1024;
+
+  private static final int VERSION = 1;
+  private static final String SEGMENTS_DIR = "segments";
+  private static final String META_FILE = "meta";
+  private static final String DATA_EXTENSION = ".data";
+  private static final String INDEX_EXTENSION = ".index";
+
+  private static final int RECORD_HEADER_SIZE = 4 + 8 + 8; // length, timestamp, last id
+  private static final int INDEX_ENTRY_SIZE = 8 + 8 + 4; // offset, timestamp, length
+
+  private final File myStorageDir;
+  private final File mySegmentsDir;
+  private final long myFSTimestamp;
+  private final int mySegmentSize;
+
+  private final Object myWriteLock = new Object();
+  private final AtomicLong myLastId = new AtomicLong();
+  // sorted by the first record, the last one is active
+  private volatile List<Segment> mySegments = Collections.emptyList();
+  private volatile int myFirstRecord;
+
+  private volatile boolean isCompletelyBroken = false;
+
+  public SegmentedChangeListStorage(File storageDir) throws IOException {
+    this(storageDir, ManagingFS.getInstance().getCreationTimestamp(), SEGMENT_SIZE);
+  }
+
+  @TestOnly
+  SegmentedChangeListStorage(File storageDir, long fsTimestamp, int segmentSize) throws IOException {
+    myStorageDir = storageDir;
+    mySegmentsDir = new File(storageDir, SEGMENTS_DIR);
+    myFSTimestamp = fsTimestamp;
+    mySegmentSize = segmentSize;
+    synchronized (myWriteLock) {
+      try {
+        initStorage();
+      }
+      catch (IOException e) {
+        LocalHistoryLog.LOG.warn("cannot read local history segments, rebuilding...", e);
+        if (!FileUtil.delete(myStorageDir)) throw e;
+        initStorage();
+      }
+    }
+  }
+
+  private void initStorage() throws IOException {
+    if (!readMeta()) {
+      if (!FileUtil.delete(myStorageDir)) {
+        throw new IOException("cannot clear storage dir: " + myStorageDir);
+      }
+      FileUtil.createDirectory(mySegmentsDir);
+      myFirstRecord = 1;
+      writeMeta();
+    }
+
+    List<Integer> firstRecords = new ArrayList<Integer>();
+    File[] files = mySegmentsDir.listFiles();
+    for (File file : files == null ? new File[0] : files) {
+      String name = file.getName();
+      if (name.endsWith(DATA_EXTENSION)) {
+        try {
+          firstRecords.add(Integer.parseInt(name.substring(0, name.length() - DATA_EXTENSION.length())));
+        }
+        catch (NumberFormatException e) {
+          throw new IOException("Unexpected segment file " + file);
+        }
+      }
+    }
+    Collections.sort(firstRecords);
+
+    // segments which were purged, but could not be deleted
+    while (firstRecords.size() > 1 && firstRecords.get(1) <= myFirstRecord) {
+      deleteSegmentFiles(firstRecords.remove(0));
+    }
+
+    List<Segment> segments = new ArrayList<Segment>();
+    try {
+      for (int i = 0; i < firstRecords.size(); i++) {
+        int firstRecord = firstRecords.get(i);
+        boolean isLast = i == firstRecords.size() - 1;
+        Segment segment;
+        if (getIndexFile(firstRecord).exists()) {
+          segment = ClosedSegment.open(getDataFile(firstRecord), getIndexFile(firstRecord), firstRecord);
+        }
+        else {
+          // the active segment, or a segment the index of which was not written because of a crash
+          ActiveSegment activeSegment = ActiveSegment.open(getDataFile(firstRecord), firstRecord);
+          try {
+            segment = isLast ? activeSegment : closeSegment(activeSegment);
+          }
+          catch (IOException e) {
+            activeSegment.close();
+            throw e;
+          }
+        }
+        segments.add(segment);
+
+        if (!isLast && segment.getNextRecord() != firstRecords.get(i + 1)) {
+          throw new IOException("Segment " + firstRecord + " ends at " + segment.getNextRecord() + ", next one starts at " +
+                                firstRecords.get(i + 1));
+        }
+      }
+      if (segments.isEmpty() || !(segments.get(segments.size() - 1) instanceof ActiveSegment)) {
+        int firstRecord = segments.isEmpty() ? myFirstRecord : segments.get(segments.size() - 1).getNextRecord();
+        segments.add(ActiveSegment.open(getDataFile(firstRecord), firstRecord));
+      }
+
+      long lastId = 0;
+      for (int i = segments.size() - 1; i >= 0 && lastId == 0; i--) {
+        Segment segment = segments.get(i);
+        if (segment.getNextRecord() > segment.getFirstRecord()) lastId = segment.readLastId(segment.getNextRecord() - 1);
+      }
+      myLastId.set(lastId);
+    }
+    catch (IOException e) {
+      for (Segment segment : segments) {
+        segment.close();
+      }
+      throw e;
+    }
+
+    if (myFirstRecord < segments.get(0).getFirstRecord()) {
+      myFirstRecord = segments.get(0).getFirstRecord();
+    }
+    mySegments = Collections.unmodifiableList(segments);
+  }
+
+  private boolean readMeta() throws IOException {
+    File file = new File(mySegmentsDir, META_FILE);
+    if (!file.exists()) {
+      LocalHistoryLog.LOG.info("local history segments not found, rebuilding...");
+      return false;
+    }
+
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      int storedVersion = in.readInt();
+      if (storedVersion != VERSION) {
+        LocalHistoryLog.LOG.info(MessageFormat.format(
+          "local history version mismatch (was: {0}, expected: {1}), rebuilding...", storedVersion, VERSION));
+        return false;
+      }
+      if (in.readLong() != myFSTimestamp) {
+        LocalHistoryLog.LOG.info("FS has been rebuild, rebuilding local history...");
+        return false;
+      }
+      myFirstRecord = in.readInt();
+      return true;
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  private void writeMeta() throws IOException {
+    File file = new File(mySegmentsDir, META_FILE);
+    File tempFile = new File(mySegmentsDir, META_FILE + ".tmp");
+    DataOutputStream out = new DataOutputStream(new FileOutputStream(tempFile));
+    try {
+      out.writeInt(VERSION);
+      out.writeLong(myFSTimestamp);
+      out.writeInt(myFirstRecord);
+    }
+    finally {
+      out.close();
+    }
+    FileUtil.delete(file);
+    FileUtil.rename(tempFile, file);
+  }
+
+  private File getDataFile(int firstRecord) {
+    return new File(mySegmentsDir, firstRecord + DATA_EXTENSION);
+  }
+
+  private File getIndexFile(int firstRecord) {
+    return new File(mySegmentsDir, firstRecord + INDEX_EXTENSION);
+  }
+
+  private void deleteSegmentFiles(int firstRecord) {
+    FileUtil.delete(getIndexFile(firstRecord));
+    FileUtil.delete(getDataFile(firstRecord));
+  }
+
+  @NotNull
+  private ClosedSegment closeSegment(@NotNull ActiveSegment segment) throws IOException {
+    File indexFile = getIndexFile(segment.getFirstRecord());
+    if (!indexFile.exists()) {
+      File tempFile = new File(indexFile.getPath() + ".tmp");
+      segment.writeIndex(tempFile);
+      FileUtil.rename(tempFile, indexFile);
+    }
+    return ClosedSegment.open(segment, indexFile);
+  }
+
+  private void handleError(Throwable e, @Nullable String message, @NotNull List<Segment> failedSegments) {
+    synchronized (myWriteLock) {
+      // the storage could have been already rebuilt after an error on another thread
+      if (failedSegments != mySegments || isCompletelyBroken) return;
+
+      LocalHistoryLog.LOG.error("Local history is broken (version:" + VERSION + ")\n" + message, e);
+
+      closeSegments();
+      try {
+        FileUtil.delete(myStorageDir);
+        initStorage();
+      }
+      catch (Throwable ex) {
+        LocalHistoryLog.LOG.error("cannot recreate storage", ex);
+        isCompletelyBroken = true;
+      }
+    }
+
+    ChangeListStorageImpl.notifyUser("Local History storage file has become corrupted and will be rebuilt.");
+  }
+
+  private void closeSegments() {
+    for (Segment segment : mySegments) {
+      segment.close();
+    }
+    mySegments = Collections.emptyList();
+  }
+
+  @Override
+  public void close() {
+    synchronized (myWriteLock) {
+      closeSegments();
+    }
+  }
+
+  @Override
+  public long nextId() {
+    return myLastId.incrementAndGet();
+  }
+
+  @Nullable
+  @Override
+  public ChangeSetHolder readPrevious(int id, TIntHashSet recursionGuard) {
+    if (isCompletelyBroken) return null;
+
+    List<Segment> segments = mySegments;
+    if (segments.isEmpty()) return null;
+
+    int record = id == -1 ? segments.get(segments.size() - 1).getNextRecord() - 1 : id - 1;
+    if (record < myFirstRecord) return null;
+
+    Segment segment = findSegment(segments, record);
+    if (segment == null) return null;
+    try {
+      return new ChangeSetHolder(record, segment.read(record));
+    }
+    catch (ClosedChannelException e) {
+      // the segment was purged or the storage was closed
+      return null;
+    }
+    catch (Throwable e) {
+      handleError(e, "invalid record is: " + record + " in segment " + segment.getFirstRecord() + "-" + segment.getNextRecord(),
+                  segments);
+      return null;
+    }
+  }
+
+  @Nullable
+  private static Segment findSegment(@NotNull List<Segment> segments, int record) {
+    int low = 0;
+    int high = segments.size() - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      Segment segment = segments.get(middle);
+      if (record < segment.getFirstRecord()) {
+        high = middle - 1;
+      }
+      else if (record >= segment.getNextRecord()) {
+        low = middle + 1;
+      }
+      else {
+        return segment;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public void writeNextSet(ChangeSet changeSet) {
+    if (isCompletelyBroken) return;
+
+    BufferExposingByteArrayOutputStream bytes = new BufferExposingByteArrayOutputStream();
+    synchronized (myWriteLock) {
+      List<Segment> segments = mySegments;
+      if (segments.isEmpty()) return;
+      try {
+        DataOutputStream out = new DataOutputStream(bytes);
+        changeSet.write(out);
+        out.close();
+
+        ActiveSegment segment = (ActiveSegment)segments.get(segments.size() - 1);
+        segment.append(bytes.getInternalBuffer(), bytes.size(), Clock.getTime(), myLastId.get());
+
+        if (segment.getSize() >= mySegmentSize) {
+          List<Segment> newSegments = new ArrayList<Segment>(segments);
+          newSegments.set(newSegments.size() - 1, closeSegment(segment));
+          newSegments.add(ActiveSegment.open(getDataFile(segment.getNextRecord()), segment.getNextRecord()));
+          mySegments = Collections.unmodifiableList(newSegments);
+        }
+      }
+      catch (ClosedChannelException e) {
+        // the storage was closed, the data is fine
+        LocalHistoryLog.LOG.warn("cannot write local history record", e);
+      }
+      catch (IOException e) {
+        handleError(e, null, segments);
+      }
+    }
+  }
+
+  @Override
+  public void purge(long period, int intervalBetweenActivities, Consumer<ChangeSet> processor) {
+    if (isCompletelyBroken) return;
+
+    synchronized (myWriteLock) {
+      List<Segment> segments = mySegments;
+      try {
+        int firstObsoleteRecord = findFirstObsoleteRecord(segments, period, intervalBetweenActivities);
+        if (firstObsoleteRecord == 0) return;
+
+        // the active segment is never purged
+        int purgedCount = 0;
+        while (purgedCount < segments.size() - 1 && segments.get(purgedCount).getNextRecord() - 1 <= firstObsoleteRecord) {
+          purgedCount++;
+        }
+        if (purgedCount == 0) return;
+
+        for (int i = purgedCount - 1; i >= 0; i--) {
+          Segment segment = segments.get(i);
+          for (int record = segment.getNextRecord() - 1; record >= Math.max(segment.getFirstRecord(), myFirstRecord); record--) {
+            processor.consume(segment.read(record));
+          }
+        }
+
+        myFirstRecord = segments.get(purgedCount).getFirstRecord();
+        writeMeta();
+        mySegments = Collections.unmodifiableList(new ArrayList<Segment>(segments.subList(purgedCount, segments.size())));
+
+        for (Segment segment : segments.subList(0, purgedCount)) {
+          segment.close();
+          // may fail while the index is still mapped, in this case the files are deleted on the next start
+          deleteSegmentFiles(segment.getFirstRecord());
+        }
+      }
+      catch (ClosedChannelException e) {
+        LocalHistoryLog.LOG.warn("cannot purge local history", e);
+      }
+      catch (IOException e) {
+        handleError(e, null, segments);
+      }
+    }
+  }
+
+  private int findFirstObsoleteRecord(@NotNull List<Segment> segments, long period, int intervalBetweenActivities) throws IOException {
+    long prevTimestamp = 0;
+    long length = 0;
+
+    for (int i = segments.size() - 1; i >= 0; i--) {
+      Segment segment = segments.get(i);
+      for (int record = segment.getNextRecord() - 1; record >= Math.max(segment.getFirstRecord(), myFirstRecord); record--) {
+        long t = segment.getTimestamp(record);
+        if (prevTimestamp == 0) prevTimestamp = t;
+
+        long delta = prevTimestamp - t;
+        prevTimestamp = t;
+
+        // we sum only intervals between changes during one 'day' (intervalBetweenActivities) and add '1' between two 'days'
+        length += delta < intervalBetweenActivities ? delta : 1;
+
+        if (length >= period) return record;
+      }
+    }
+
+    return 0;
+  }
+
+  private interface ChannelAction<T> {
+    T run(@NotNull FileChannel channel) throws IOException;
+  }
+
+  private static abstract class Segment {
+    protected final int myFirstRecord;
+    @NotNull protected final File myFile;
+    // file channels are closed when a thread doing IO on them is interrupted, then the channel is reopened
+    @NotNull protected volatile FileChannel myChannel;
+    private volatile boolean myClosed;
+
+    protected Segment(int firstRecord, @NotNull File file, @NotNull FileChannel channel) {
+      myFirstRecord = firstRecord;
+      myFile = file;
+      myChannel = channel;
+    }
+
+    protected abstract boolean isWritable();
+
+    /**
+     * Runs the action again on a reopened channel if the channel was closed by an interrupt, either of this or of another thread.
+     * The interrupted status of the current thread is preserved.
+     *
+     * @throws ClosedChannelException if the segment was closed
+     */
+    protected <T> T withChannel(@NotNull ChannelAction<T> action) throws IOException {
+      FileChannel channel = myChannel;
+      try {
+        return action.run(channel);
+      }
+      catch (ClosedChannelException e) {
+        channel = reopenChannel(channel);
+        boolean interrupted = Thread.interrupted();
+        try {
+          return action.run(channel);
+        }
+        finally {
+          if (interrupted) Thread.currentThread().interrupt();
+        }
+      }
+    }
+
+    @NotNull
+    private synchronized FileChannel reopenChannel(@NotNull FileChannel closedChannel) throws IOException {
+      if (myClosed) throw new ClosedChannelException();
+      if (myChannel == closedChannel) {
+        LocalHistoryLog.LOG.info("reopening interrupted channel of " + myFile);
+        myChannel = openChannel(myFile, isWritable());
+      }
+      return myChannel;
+    }
+
+    int getFirstRecord() {
+      return myFirstRecord;
+    }
+
+    abstract int getNextRecord();
+
+    protected abstract long getOffset(int record);
+
+    protected abstract int getLength(int record);
+
+    abstract long getTimestamp(int record);
+
+    @NotNull
+    ChangeSet read(int record) throws IOException {
+      ByteBuffer buffer = readBytes(getOffset(record) + RECORD_HEADER_SIZE, getLength(record));
+      return new ChangeSet(new DataInputStream(new ByteArrayInputStream(buffer.array())));
+    }
+
+    long readLastId(int record) throws IOException {
+      return readBytes(getOffset(record) + 4 + 8, 8).getLong(0);
+    }
+
+    @NotNull
+    private ByteBuffer readBytes(final long position, final int length) throws IOException {
+      return withChannel(new ChannelAction<ByteBuffer>() {
+        @Override
+        public ByteBuffer run(@NotNull FileChannel channel) throws IOException {
+          ByteBuffer buffer = ByteBuffer.allocate(length);
+          readFully(channel, buffer, position);
+          return buffer;
+        }
+      });
+    }
+
+    synchronized void close() {
+      myClosed = true;
+      try {
+        myChannel.close();
+      }
+      catch (IOException e) {
+        LocalHistoryLog.LOG.warn(e);
+      }
+    }
+  }
+
+  private static class ActiveSegment extends Segment {
+    // the entries of the records before myCount are never changed, and new arrays are set before the count is increased
+    private long[] myOffsets = new long[16];
+    private long[] myTimestamps = new long[16];
+    private int[] myLengths = new int[16];
+    private volatile int myCount;
+    private long mySize;
+
+    private ActiveSegment(int firstRecord, @NotNull File file, @NotNull FileChannel channel) {
+      super(firstRecord, file, channel);
+    }
+
+    @Override
+    protected boolean isWritable() {
+      return true;
+    }
+
+    /**
+     * Opens the segment and reads its records; an incomplete record at the end, which was being written on a crash, is truncated.
+     */
+    @NotNull
+    static ActiveSegment open(@NotNull File file, int firstRecord) throws IOException {
+      FileChannel channel = openChannel(file, true);
+      try {
+        ActiveSegment segment = new ActiveSegment(firstRecord, file, channel);
+        long fileSize = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        while (segment.mySize + RECORD_HEADER_SIZE <= fileSize) {
+          header.clear();
+          readFully(channel, header, segment.mySize);
+          int length = header.getInt(0);
+          if (length < 0 || segment.mySize + RECORD_HEADER_SIZE + length > fileSize) break;
+          segment.addRecord(length, header.getLong(4));
+        }
+        if (segment.mySize < fileSize) {
+          LocalHistoryLog.LOG.info("truncating incomplete local history record at " + segment.mySize + " in " + file);
+          channel.truncate(segment.mySize);
+        }
+        return segment;
+      }
+      catch (IOException e) {
+        channel.close();
+        throw e;
+      }
+    }
+
+    void append(@NotNull final byte[] bytes, final int length, final long timestamp, final long lastId) throws IOException {
+      final FileChannel initialChannel = myChannel;
+      withChannel(new ChannelAction<Void>() {
+        @Override
+        public Void run(@NotNull FileChannel channel) throws IOException {
+          // drop the part of the record written before the channel was closed
+          if (channel != initialChannel && channel.size() > mySize) channel.truncate(mySize);
+
+          ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+          header.putInt(length).putLong(timestamp).putLong(lastId).flip();
+          ByteBuffer data = ByteBuffer.wrap(bytes, 0, length);
+
+          long position = mySize;
+          while (header.hasRemaining()) {
+            position += channel.write(header, position);
+          }
+          while (data.hasRemaining()) {
+            position += channel.write(data, position);
+          }
+          return null;
+        }
+      });
+      addRecord(length, timestamp);
+    }
+
+    private void addRecord(int length, long timestamp) {
+      int count = myCount;
+      if (count == myOffsets.length) {
+        myOffsets = Arrays.copyOf(myOffsets, count * 2);
+        myTimestamps = Arrays.copyOf(myTimestamps, count * 2);
+        myLengths = Arrays.copyOf(myLengths, count * 2);
+      }
+      myOffsets[count] = mySize;
+      myTimestamps[count] = timestamp;
+      myLengths[count] = length;
+      mySize += RECORD_HEADER_SIZE + length;
+      myCount = count + 1;
+    }
+
+    long getSize() {
+      return mySize;
+    }
+
+    void writeIndex(@NotNull File file) throws IOException {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+      try {
+        for (int i = 0; i < myCount; i++) {
+          out.writeLong(myOffsets[i]);
+          out.writeLong(myTimestamps[i]);
+          out.writeInt(myLengths[i]);
+        }
+      }
+      finally {
+        out.close();
+      }
+    }
+
+    @Override
+    int getNextRecord() {
+      return myFirstRecord + myCount;
+    }
+
+    @Override
+    protected long getOffset(int record) {
+      int count = myCount;
+      return myOffsets[checkRecord(record, count)];
+    }
+
+    @Override
+    protected int getLength(int record) {
+      int count = myCount;
+      return myLengths[checkRecord(record, count)];
+    }
+
+    @Override
+    long getTimestamp(int record) {
+      int count = myCount;
+      return myTimestamps[checkRecord(record, count)];
+    }
+
+    private int checkRecord(int record, int count) {
+      int index = record - myFirstRecord;
+      if (index < 0 || index >= count) throw new IllegalArgumentException("Record " + record + " is not in the segment");
+      return index;
+    }
+  }
+
+  private static class ClosedSegment extends Segment {
+    @NotNull private final MappedByteBuffer myIndex;
+    private final int myCount;
+
+    private ClosedSegment(int firstRecord, @NotNull File file, @NotNull FileChannel channel, @NotNull MappedByteBuffer index) {
+      super(firstRecord, file, channel);
+      myIndex = index;
+      myCount = index.capacity() / INDEX_ENTRY_SIZE;
+    }
+
+    /**
+     * Reuses the channel of the active segment the index was written for.
+     */
+    @NotNull
+    static ClosedSegment open(@NotNull ActiveSegment segment, @NotNull File indexFile) throws IOException {
+      ClosedSegment result = new ClosedSegment(segment.getFirstRecord(), segment.myFile, segment.myChannel, mapIndex(indexFile));
+      if (result.myCount != segment.myCount) {
+        throw new IOException("Index " + indexFile + " has " + result.myCount + " records instead of " + segment.myCount);
+      }
+      return result;
+    }
+
+    @NotNull
+    static ClosedSegment open(@NotNull File dataFile, @NotNull File indexFile, int firstRecord) throws IOException {
+      FileChannel channel = openChannel(dataFile, false);
+      try {
+        ClosedSegment result = new ClosedSegment(firstRecord, dataFile, channel, mapIndex(indexFile));
+        int lastRecord = result.getNextRecord() - 1;
+        long size = result.myCount == 0 ? 0 : result.getOffset(lastRecord) + RECORD_HEADER_SIZE + result.getLength(lastRecord);
+        if (size != channel.size()) {
+          throw new IOException("Index " + indexFile + " does not match " + dataFile + " of " + channel.size() + " bytes");
+        }
+        return result;
+      }
+      catch (IOException e) {
+        channel.close();
+        throw e;
+      }
+    }
+
+    @Override
+    protected boolean isWritable() {
+      return false;
+    }
+
+    @NotNull
+    private static MappedByteBuffer mapIndex(@NotNull File indexFile) throws IOException {
+      FileChannel indexChannel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ);
+      try {
+        long size = indexChannel.size();
+        if (size % INDEX_ENTRY_SIZE != 0) throw new IOException("Unexpected size of " + indexFile + ": " + size);
+        return indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      }
+      finally {
+        indexChannel.close();
+      }
+    }
+
+    @Override
+    int getNextRecord() {
+      return myFirstRecord + myCount;
+    }
+
+    @Override
+    protected long getOffset(int record) {
+      return myIndex.getLong(getEntry(record));
+    }
+
+    @Override
+    long getTimestamp(int record) {
+      return myIndex.getLong(getEntry(record) + 8);
+    }
+
+    @Override
+    protected int getLength(int record) {
+      return myIndex.getInt(getEntry(record) + 16);
+    }
+
+    private int getEntry(int record) {
+      int index = record - myFirstRecord;
+      if (index < 0 || index >= myCount) throw new IllegalArgumentException("Record " + record + " is not in the segment");
+      return index * INDEX_ENTRY_SIZE;
+    }
+  }
+
+  @NotNull
+  private static FileChannel openChannel(@NotNull File file, boolean writable) throws IOException {
+    return writable ? FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                    : FileChannel.open(file.toPath(), StandardOpenOption.READ);
+  }
+
+  private static void readFully(@NotNull FileChannel channel, @NotNull ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position);
+      if (read < 0) throw new EOFException("Unexpected end of " + channel + " at " + position);
+      position += read;
+    }
+  }
+}
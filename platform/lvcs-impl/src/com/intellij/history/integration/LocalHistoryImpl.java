@@ -80,7 +80,8 @@ public class LocalHistoryImpl extends LocalHistory implements ApplicationCompone
   protected void initHistory() {
     ChangeListStorage storage;
     try {
-      storage = new ChangeListStorageImpl(getStorageDir());
+      storage = SegmentedChangeListStorage.ENABLED ? new SegmentedChangeListStorage(getStorageDir())
+                                                   : new ChangeListStorageImpl(getStorageDir());
     }
     catch (Throwable e) {
       LocalHistoryLog.LOG.warn("cannot create storage, in-memory  implementation will be used", e);
@@ -123,4 +123,17 @@ public abstract class NewVirtualFileSystem implements FileSystemInterface, Cachi
    */
   @Nullable
   public abstract FileAttributes getAttributes(@NotNull VirtualFile file);
+
+  /**
+   * Lists children of a directory along with their attributes, for file systems which can do it in fewer native calls
+   * than {@link #list(VirtualFile)} followed by {@link #getAttributes(VirtualFile)} for every child.
+   *
+   * @param dir directory to list.
+   * @return attributes of the directory children by their names (<code>null</code> values for children whose attributes can't be read),
+   *         or <code>null</code> if the file system doesn't support bulk listing or the directory can't be listed this way.
+   */
+  @Nullable
+  public Map<String, FileAttributes> listWithAttributes(@NotNull VirtualFile dir) {
+    return null;
+  }
 }
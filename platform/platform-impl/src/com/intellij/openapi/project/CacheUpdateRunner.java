@@ -33,11 +33,13 @@ import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.util.Consumer;
 import gnu.trove.THashSet;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.Collection;
 import java.util.Set;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 public class CacheUpdateRunner {
   private static final Logger LOG = Logger.getInstance("#com.intellij.openapi.project.CacheUpdateRunner");
@@ -50,8 +52,20 @@ public class CacheUpdateRunner {
                                   boolean processInReadAction,
                                   Collection<VirtualFile> files,
                                   Project project, Consumer<FileContent> processor) {
+    processFiles(indicator, processInReadAction, files, project, null, processor);
+  }
+
+  /**
+   * @param preprocessor is run on content loading threads ahead of the processor, see {@link FileContentQueue}
+   */
+  public static void processFiles(final ProgressIndicator indicator,
+                                  boolean processInReadAction,
+                                  Collection<VirtualFile> files,
+                                  Project project,
+                                  @Nullable Consumer<FileContent> preprocessor,
+                                  Consumer<FileContent> processor) {
     indicator.checkCanceled();
-    final FileContentQueue queue = new FileContentQueue(files, indicator);
+    final FileContentQueue queue = new FileContentQueue(files, indicator, preprocessor);
     final double total = files.size();
     queue.startLoading();
 
@@ -78,13 +92,19 @@ public class CacheUpdateRunner {
       }
     };
 
-    while (!project.isDisposed()) {
-      indicator.checkCanceled();
-      // todo wait for the user...
-      if (processSomeFilesWhileUserIsInactive(queue, progressUpdater, processInReadAction, project, processor)) {
-        break;
+    ThreadsUtilization utilization = new ThreadsUtilization(indexingThreadCount());
+    try {
+      while (!project.isDisposed()) {
+        indicator.checkCanceled();
+        // todo wait for the user...
+        if (processSomeFilesWhileUserIsInactive(queue, progressUpdater, processInReadAction, project, processor, utilization)) {
+          break;
+        }
       }
     }
+    finally {
+      if (!ApplicationManager.getApplication().isUnitTestMode()) LOG.info(utilization.toString());
+    }
 
     if (project.isDisposed()) {
       indicator.cancel();
@@ -96,7 +116,8 @@ public class CacheUpdateRunner {
                                                              @NotNull Consumer<VirtualFile> progressUpdater,
                                                              final boolean processInReadAction,
                                                              @NotNull Project project,
-                                                             @NotNull Consumer<FileContent> fileProcessor) {
+                                                             @NotNull Consumer<FileContent> fileProcessor,
+                                                             @NotNull ThreadsUtilization utilization) {
     final ProgressIndicatorBase innerIndicator = new ProgressIndicatorBase() {
       @Override
       protected boolean isCancelable() {
@@ -119,9 +140,10 @@ public class CacheUpdateRunner {
 
     final AtomicBoolean isFinished = new AtomicBoolean();
     try {
-      int threadsCount = indexingThreadCount();
+      int threadsCount = utilization.getThreadsCount();
       if (threadsCount == 1 || application.isWriteAccessAllowed()) {
-        Runnable process = new MyRunnable(innerIndicator, queue, isFinished, progressUpdater, processInReadAction, project, fileProcessor);
+        Runnable process =
+                new MyRunnable(innerIndicator, queue, isFinished, progressUpdater, processInReadAction, project, fileProcessor, utilization, 0);
         ProgressManager.getInstance().runProcess(process, innerIndicator);
       }
       else {
@@ -130,7 +152,8 @@ public class CacheUpdateRunner {
         for (int i = 0; i < threadsCount; i++) {
           AtomicBoolean ref = new AtomicBoolean();
           finishedRefs[i] = ref;
-          Runnable process = new MyRunnable(innerIndicator, queue, ref, progressUpdater, processInReadAction, project, fileProcessor);
+          Runnable process =
+                  new MyRunnable(innerIndicator, queue, ref, progressUpdater, processInReadAction, project, fileProcessor, utilization, i);
           futures[i] = application.executeOnPooledThread(process);
         }
         isFinished.set(waitForAll(finishedRefs, futures));
@@ -176,6 +199,36 @@ public class CacheUpdateRunner {
     return false;
   }
 
+  /**
+   * Share of wall clock time each indexing thread spent in the file processor
+   */
+  private static class ThreadsUtilization {
+    private final long myStartTime = System.nanoTime();
+    private final AtomicLongArray myBusyNanos;
+
+    ThreadsUtilization(int threadsCount) {
+      myBusyNanos = new AtomicLongArray(threadsCount);
+    }
+
+    int getThreadsCount() {
+      return myBusyNanos.length();
+    }
+
+    void addBusyTime(int threadIndex, long nanos) {
+      myBusyNanos.addAndGet(threadIndex, nanos);
+    }
+
+    @Override
+    public String toString() {
+      long elapsed = Math.max(1, System.nanoTime() - myStartTime);
+      StringBuilder builder = new StringBuilder("Indexing threads utilization in ").append(elapsed / 1000000).append(" ms:");
+      for (int i = 0; i < myBusyNanos.length(); i++) {
+        builder.append(' ').append(myBusyNanos.get(i) * 100 / elapsed).append('%');
+      }
+      return builder.toString();
+    }
+  }
+
   private static class MyRunnable implements Runnable {
     private final ProgressIndicatorBase myInnerIndicator;
     private final FileContentQueue myQueue;
@@ -184,6 +237,8 @@ public class CacheUpdateRunner {
     private final boolean myProcessInReadAction;
     @NotNull private final Project myProject;
     @NotNull private final Consumer<FileContent> myProcessor;
+    @NotNull private final ThreadsUtilization myUtilization;
+    private final int myThreadIndex;
 
     public MyRunnable(@NotNull ProgressIndicatorBase innerIndicator,
                       @NotNull FileContentQueue queue,
@@ -191,7 +246,9 @@ public class CacheUpdateRunner {
                       @NotNull Consumer<VirtualFile> progressUpdater,
                       boolean processInReadAction,
                       @NotNull Project project,
-                      @NotNull Consumer<FileContent> fileProcessor) {
+                      @NotNull Consumer<FileContent> fileProcessor,
+                      @NotNull ThreadsUtilization utilization,
+                      int threadIndex) {
       myInnerIndicator = innerIndicator;
       myQueue = queue;
       myFinished = finished;
@@ -199,6 +256,8 @@ public class CacheUpdateRunner {
       myProcessInReadAction = processInReadAction;
       myProject = project;
       myProcessor = fileProcessor;
+      myUtilization = utilization;
+      myThreadIndex = threadIndex;
     }
 
     @Override
@@ -223,7 +282,11 @@ public class CacheUpdateRunner {
                 try {
                   myProgressUpdater.consume(file);
                   if (!file.isDirectory() && !Boolean.TRUE.equals(file.getUserData(FAILED_TO_INDEX))) {
+                    long started = System.nanoTime();
                     myProcessor.consume(fileContent);
+                    long elapsed = System.nanoTime() - started;
+                    myUtilization.addBusyTime(myThreadIndex, elapsed);
+                    IndexingCostEstimator.getInstance().recordIndexingTime(file.getFileType(), fileContent.getLength(), elapsed);
                   }
                 }
                 catch (ProcessCanceledException e) {
@@ -24,6 +24,7 @@ import com.intellij.openapi.vfs.InvalidVirtualFileAccessException;
 import com.intellij.openapi.vfs.VFileProperty;
 import com.intellij.openapi.vfs.VfsUtilCore;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.Consumer;
 import com.intellij.util.SystemProperties;
 import com.intellij.util.concurrency.AppExecutorUtil;
 import org.jetbrains.annotations.NotNull;
@@ -61,14 +62,26 @@ public class FileContentQueue {
   private final Object myProceedWithProcessingLock = new Object();
   private final BlockingQueue<VirtualFile> myFilesQueue;
   private final ProgressIndicator myProgressIndicator;
+  @Nullable private final Consumer<FileContent> myContentPreprocessor;
   private static final Deque<FileContentQueue> ourContentLoadingQueues = new LinkedBlockingDeque<FileContentQueue>();
 
   public FileContentQueue(@NotNull Collection<VirtualFile> files, @NotNull final ProgressIndicator indicator) {
+    this(files, indicator, null);
+  }
+
+  /**
+   * @param contentPreprocessor invoked on loading threads for each successfully loaded content before it is handed to consumers,
+   *                            e.g. to calculate content hashes in parallel with indexing
+   */
+  public FileContentQueue(@NotNull Collection<VirtualFile> files,
+                          @NotNull final ProgressIndicator indicator,
+                          @Nullable Consumer<FileContent> contentPreprocessor) {
     int numberOfFiles = files.size();
     myContentsToLoad.set(numberOfFiles);
     // ABQ is more memory efficient for significant number of files (e.g. 500K)
     myFilesQueue = numberOfFiles > 0 ? new ArrayBlockingQueue<VirtualFile>(numberOfFiles, false, files) : null;
     myProgressIndicator = indicator;
+    myContentPreprocessor = contentPreprocessor;
   }
 
   public void startLoading() {
@@ -119,9 +132,24 @@ public class FileContentQueue {
     if (!isValidFile(file) || !doLoadContent(content, indicator)) {
       content.setEmptyContent();
     }
+    else if (myContentPreprocessor != null) {
+      preprocessContent(content);
+    }
     return content;
   }
 
+  private void preprocessContent(@NotNull FileContent content) {
+    try {
+      myContentPreprocessor.consume(content);
+    }
+    catch (ProcessCanceledException e) {
+      throw e;
+    }
+    catch (Throwable e) {
+      LOG.error("Error while preprocessing " + content.getVirtualFile().getPresentableUrl(), e);
+    }
+  }
+
   private static boolean isValidFile(@NotNull VirtualFile file) {
     return file.isValid() && !file.isDirectory() && !file.is(VFileProperty.SPECIAL) && !VfsUtilCore.isBrokenLink(file);
   }
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.project;
+
+import com.intellij.openapi.fileTypes.FileType;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.ConcurrencyUtil;
+import com.intellij.util.containers.ContainerUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.ToLongFunction;
+
+/**
+ * Estimates how long indexing of a file takes from its length and the speed observed for files of the same type in this session.
+ * Files processed most expensive first keep indexing threads evenly loaded at the end of indexing:
+ * a huge file picked last would otherwise keep one thread busy while the others have nothing to do.
+ */
+public class IndexingCostEstimator {
+  private static final IndexingCostEstimator ourInstance = new IndexingCostEstimator();
+
+  // fixed per file overhead (stamps, enumerators, etc.) expressed in bytes of content
+  private static final long PER_FILE_OVERHEAD_BYTES = 1024;
+  private static final long DEFAULT_NANOS_PER_KB = 10000;
+
+  private final ConcurrentMap<String, CostHistory> myHistory = ContainerUtil.newConcurrentMap();
+
+  IndexingCostEstimator() {
+  }
+
+  @NotNull
+  public static IndexingCostEstimator getInstance() {
+    return ourInstance;
+  }
+
+  private static class CostHistory {
+    private long myTotalBytes;
+    private long myTotalNanos;
+
+    synchronized void add(long bytes, long nanos) {
+      myTotalBytes += bytes;
+      myTotalNanos += nanos;
+    }
+
+    synchronized long getNanosPerKb() {
+      return myTotalBytes == 0 ? DEFAULT_NANOS_PER_KB : Math.max(1, myTotalNanos * 1024 / myTotalBytes);
+    }
+  }
+
+  public void recordIndexingTime(@NotNull FileType fileType, long length, long nanos) {
+    CostHistory history = myHistory.get(fileType.getName());
+    if (history == null) {
+      history = ConcurrencyUtil.cacheOrGet(myHistory, fileType.getName(), new CostHistory());
+    }
+    history.add(Math.max(0, length) + PER_FILE_OVERHEAD_BYTES, nanos);
+  }
+
+  /**
+   * Needs the file type, so it's better called where the type is already detected, e.g. when the file is scanned.
+   *
+   * @return estimated indexing time of the file in nanoseconds
+   */
+  public long estimateCost(@NotNull VirtualFile file) {
+    return estimateCost(file.getFileType(), file.isDirectory() ? 0 : file.getLength());
+  }
+
+  public long estimateCost(@NotNull FileType fileType, long length) {
+    CostHistory history = myHistory.get(fileType.getName());
+    long nanosPerKb = history != null ? history.getNanosPerKb() : DEFAULT_NANOS_PER_KB;
+    return (Math.max(0, length) + PER_FILE_OVERHEAD_BYTES) * nanosPerKb / 1024;
+  }
+
+  /**
+   * Stable sort, cost of every item is evaluated once
+   */
+  @NotNull
+  public static <T> List<T> sortByDescendingCost(@NotNull Collection<T> items, @NotNull ToLongFunction<? super T> costFunction) {
+    @SuppressWarnings("unchecked") ItemWithCost<T>[] array = new ItemWithCost[items.size()];
+    int i = 0;
+    for (T item : items) {
+      array[i++] = new ItemWithCost<>(item, costFunction.applyAsLong(item));
+    }
+    Arrays.sort(array, (o1, o2) -> Long.compare(o2.myCost, o1.myCost));
+
+    List<T> result = new ArrayList<>(array.length);
+    for (ItemWithCost<T> itemWithCost : array) {
+      result.add(itemWithCost.myItem);
+    }
+    return result;
+  }
+
+  private static class ItemWithCost<T> {
+    final T myItem;
+    final long myCost;
+
+    ItemWithCost(T item, long cost) {
+      myItem = item;
+      myCost = cost;
+    }
+  }
+}
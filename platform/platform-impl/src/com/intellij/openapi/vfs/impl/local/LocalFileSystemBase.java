@@ -41,10 +41,8 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-import java.util.Locale;
+import java.nio.file.*;
+import java.util.*;
 
 /**
  * @author Dmitry Avdeev
@@ -750,6 +748,27 @@ public abstract class LocalFileSystemBase extends LocalFileSystem {
     }
   }
 
+  @Nullable
+  @Override
+  public Map<String, FileAttributes> listWithAttributes(@NotNull VirtualFile dir) {
+    if (dir.getParent() == null) return null; // roots are listed specially, see list()
+    String path = normalize(dir.getPath());
+    if (path == null) return null;
+
+    // attributes are read by the same layer as getAttributes() does, so both ways produce the same result
+    Map<String, FileAttributes> result = new LinkedHashMap<String, FileAttributes>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(FileUtil.toSystemDependentName(path)))) {
+      for (Path child : stream) {
+        result.put(child.getFileName().toString(), FileSystemUtil.getAttributes(child.toString()));
+      }
+    }
+    catch (IOException | DirectoryIteratorException | InvalidPathException e) {
+      LOG.debug(e);
+      return null;
+    }
+    return result;
+  }
+
   @Override
   public FileAttributes getAttributes(@NotNull final VirtualFile file) {
     String path = normalize(file.getPath());
@@ -30,6 +30,9 @@ import org.jetbrains.annotations.Nullable;
 
 import java.lang.ref.Reference;
 import java.lang.ref.SoftReference;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * @author Dmitry Avdeev
@@ -54,13 +57,19 @@ class Win32FsCache {
 
   @NotNull
   String[] list(@NotNull VirtualFile file) {
+    Map<String, FileAttributes> children = listWithAttributes(file);
+    return children.isEmpty() ? ArrayUtil.EMPTY_STRING_ARRAY : ArrayUtil.toStringArray(children.keySet());
+  }
+
+  @NotNull
+  Map<String, FileAttributes> listWithAttributes(@NotNull VirtualFile file) {
     String path = file.getPath();
     FileInfo[] fileInfo = myKernel.listChildren(path);
     if (fileInfo == null || fileInfo.length == 0) {
-      return ArrayUtil.EMPTY_STRING_ARRAY;
+      return Collections.emptyMap();
     }
 
-    String[] names = new String[fileInfo.length];
+    Map<String, FileAttributes> children = new LinkedHashMap<String, FileAttributes>(fileInfo.length);
     TIntObjectHashMap<THashMap<String, FileAttributes>> map = getMap();
     int parentId = ((VirtualFileWithId)file).getId();
     THashMap<String, FileAttributes> nestedMap = map.get(parentId);
@@ -68,13 +77,13 @@ class Win32FsCache {
       nestedMap = new THashMap<String, FileAttributes>(fileInfo.length, FileUtil.PATH_HASHING_STRATEGY);
       map.put(parentId, nestedMap);
     }
-    for (int i = 0, length = fileInfo.length; i < length; i++) {
-      FileInfo info = fileInfo[i];
+    for (FileInfo info : fileInfo) {
       String name = info.getName();
-      nestedMap.put(name, info.toFileAttributes());
-      names[i] = name;
+      FileAttributes attributes = info.toFileAttributes();
+      nestedMap.put(name, attributes);
+      children.put(name, attributes);
     }
-    return names;
+    return children;
   }
 
   @Nullable
@@ -23,6 +23,7 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.Collection;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -62,6 +63,12 @@ public class Win32LocalFileSystem extends LocalFileSystemBase {
     return myFsCache.getAttributes(file);
   }
 
+  @NotNull
+  @Override
+  public Map<String, FileAttributes> listWithAttributes(@NotNull VirtualFile dir) {
+    return myFsCache.listWithAttributes(dir);
+  }
+
   @NotNull
   @Override
   public Set<WatchRequest> replaceWatchedRoots(@NotNull Collection<WatchRequest> watchRequests,
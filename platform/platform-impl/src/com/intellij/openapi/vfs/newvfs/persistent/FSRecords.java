@@ -111,8 +111,14 @@ public class FSRecords implements Forceable {
 
   private static final FileAttribute ourChildrenAttr = new FileAttribute("FsRecords.DIRECTORY_CHILDREN");
 
+  // guards attributes and contents tables and compound operations spanning several tables
   private static final ReentrantReadWriteLock.ReadLock r;
   private static final ReentrantReadWriteLock.WriteLock w;
+  // guards records table only: fixed width record fields are read under recordsR without waiting for w holders (e.g. refresh),
+  // records table modifications are done under w and additionally take recordsW for the duration of the write itself.
+  // recordsR must never be held while acquiring r or w. Names enumerator is synchronized by itself and needs neither
+  private static final ReentrantReadWriteLock.ReadLock recordsR;
+  private static final ReentrantReadWriteLock.WriteLock recordsW;
 
   private static volatile int ourLocalModificationCount = 0;
   private static volatile boolean ourIsDisposed;
@@ -127,6 +133,10 @@ public class FSRecords implements Forceable {
     ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
     r = lock.readLock();
     w = lock.writeLock();
+
+    ReentrantReadWriteLock recordsLock = new ReentrantReadWriteLock();
+    recordsR = recordsLock.readLock();
+    recordsW = recordsLock.writeLock();
   }
 
   static void writeAttributesToRecord(int id, int parentId, @NotNull FileAttributes attributes, @NotNull String name) {
@@ -379,7 +389,7 @@ public class FSRecords implements Forceable {
     private static void markDirty() {
       if (!myDirty) {
         myDirty = true;
-        myRecords.putInt(HEADER_CONNECTION_STATUS_OFFSET, CONNECTED_MAGIC);
+        putHeaderInt(HEADER_CONNECTION_STATUS_OFFSET, CONNECTED_MAGIC);
       }
     }
 
@@ -460,15 +470,37 @@ public class FSRecords implements Forceable {
     }
 
     private static void setCurrentVersion() {
-      myRecords.putInt(HEADER_VERSION_OFFSET, VERSION);
-      myRecords.putLong(HEADER_TIMESTAMP_OFFSET, System.currentTimeMillis());
+      recordsW.lock();
+      try {
+        myRecords.putInt(HEADER_VERSION_OFFSET, VERSION);
+        myRecords.putLong(HEADER_TIMESTAMP_OFFSET, System.currentTimeMillis());
+      }
+      finally {
+        recordsW.unlock();
+      }
       myAttributes.setVersion(VERSION);
       myContents.setVersion(VERSION);
-      myRecords.putInt(HEADER_CONNECTION_STATUS_OFFSET, SAFELY_CLOSED_MAGIC);
+      putHeaderInt(HEADER_CONNECTION_STATUS_OFFSET, SAFELY_CLOSED_MAGIC);
+    }
+
+    private static void putHeaderInt(int offset, int value) {
+      recordsW.lock();
+      try {
+        myRecords.putInt(offset, value);
+      }
+      finally {
+        recordsW.unlock();
+      }
     }
 
     static void cleanRecord(int id) {
-      myRecords.put(id * RECORD_SIZE, ZEROES, 0, RECORD_SIZE);
+      recordsW.lock(); // may resize records file, unmapping its last page
+      try {
+        myRecords.put(id * RECORD_SIZE, ZEROES, 0, RECORD_SIZE);
+      }
+      finally {
+        recordsW.unlock();
+      }
     }
 
     public static PersistentStringEnumerator getNames() {
@@ -503,8 +535,14 @@ public class FSRecords implements Forceable {
 
       if (myRecords != null) {
         markClean();
-        myRecords.close();
-        myRecords = null;
+        recordsW.lock();
+        try {
+          myRecords.close();
+          myRecords = null;
+        }
+        finally {
+          recordsW.unlock();
+        }
       }
       ourInitialized = false;
     }
@@ -512,7 +550,7 @@ public class FSRecords implements Forceable {
     private static void markClean() {
       if (myDirty) {
         myDirty = false;
-        myRecords.putInt(HEADER_CONNECTION_STATUS_OFFSET, myCorrupted ? CORRUPTED_MAGIC : SAFELY_CLOSED_MAGIC);
+        putHeaderInt(HEADER_CONNECTION_STATUS_OFFSET, myCorrupted ? CORRUPTED_MAGIC : SAFELY_CLOSED_MAGIC);
       }
     }
 
@@ -562,12 +600,12 @@ public class FSRecords implements Forceable {
   }
 
   public static long getCreationTimestamp() {
-    r.lock();
+    recordsR.lock();
     try {
       return DbConnection.getTimestamp();
     }
     finally {
-      r.unlock();
+      recordsR.unlock();
     }
   }
 
@@ -624,12 +662,12 @@ public class FSRecords implements Forceable {
     return (int)getRecords().length();
   }
   public static int getMaxId() {
-    r.lock();
+    recordsR.lock();
     try {
       return length()/RECORD_SIZE;
     }
     finally {
-      r.unlock();
+      recordsR.unlock();
     }
   }
 
@@ -1015,7 +1053,7 @@ public class FSRecords implements Forceable {
     DbConnection.markDirty();
     ourLocalModificationCount++;
     final int count = getModCount() + 1;
-    getRecords().putInt(HEADER_GLOBAL_MOD_COUNT_OFFSET, count);
+    DbConnection.putHeaderInt(HEADER_GLOBAL_MOD_COUNT_OFFSET, count);
 
     int parent = id;
     int depth = 10000;
@@ -1034,62 +1072,64 @@ public class FSRecords implements Forceable {
   }
 
   public static int getModCount() {
-    r.lock();
+    recordsR.lock();
     try {
       return getRecords().getInt(HEADER_GLOBAL_MOD_COUNT_OFFSET);
     }
     finally {
-      r.unlock();
+      recordsR.unlock();
     }
   }
 
   public static int getParent(int id) {
+    final int parentId;
     try {
-      r.lock();
+      recordsR.lock();
       try {
-        final int parentId = getRecordInt(id, PARENT_OFFSET);
-        if (parentId == id) {
-          LOG.error("Cyclic parent child relations in the database. id = " + id);
-          return 0;
-        }
-
-        return parentId;
+        parentId = getRecordInt(id, PARENT_OFFSET);
       }
       finally {
-        r.unlock();
+        recordsR.unlock();
       }
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
     }
+    if (parentId == id) {
+      LOG.error("Cyclic parent child relations in the database. id = " + id);
+      return 0;
+    }
+    return parentId;
   }
 
   // returns id, parent(id), parent(parent(id)), ...  (already cached id or rootId)
   @NotNull
   public static TIntArrayList getParents(int id, @NotNull ConcurrentIntObjectMap<?> idCache) {
     TIntArrayList result = new TIntArrayList(10);
-    r.lock();
     try {
-      int parentId;
-      do {
-        result.add(id);
-        if (idCache.containsKey(id)) {
-          break;
-        }
-        parentId = getRecordInt(id, PARENT_OFFSET);
-        if (parentId == id || result.size() % 128 == 0 && result.contains(parentId)) {
-          LOG.error("Cyclic parent child relations in the database. id = " + parentId);
-          return result;
-        }
-        id = parentId;
-      } while (parentId != 0);
+      recordsR.lock();
+      try {
+        int parentId;
+        do {
+          result.add(id);
+          if (idCache.containsKey(id)) {
+            break;
+          }
+          parentId = getRecordInt(id, PARENT_OFFSET);
+          if (parentId == id || result.size() % 128 == 0 && result.contains(parentId)) {
+            LOG.error("Cyclic parent child relations in the database. id = " + parentId);
+            return result;
+          }
+          id = parentId;
+        } while (parentId != 0);
+      }
+      finally {
+        recordsR.unlock();
+      }
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
     }
-    finally {
-      r.unlock();
-    }
     return result;
   }
 
@@ -1114,12 +1154,12 @@ public class FSRecords implements Forceable {
 
   public static int getNameId(int id) {
     try {
-      r.lock();
+      recordsR.lock();
       try {
         return getRecordInt(id, NAME_OFFSET);
       }
       finally {
-        r.unlock();
+        recordsR.unlock();
       }
     }
     catch (Throwable e) {
@@ -1129,13 +1169,7 @@ public class FSRecords implements Forceable {
 
   public static int getNameId(String name) {
     try {
-      r.lock();
-      try {
-        return getNames().enumerate(name);
-      }
-      finally {
-        r.unlock();
-      }
+      return getNames().enumerate(name);
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -1148,14 +1182,8 @@ public class FSRecords implements Forceable {
 
   public static CharSequence getNameSequence(int id) {
     try {
-      r.lock();
-      try {
-        final int nameId = getRecordInt(id, NAME_OFFSET);
-        return nameId != 0 ? FileNameCache.getVFileName(nameId) : "";
-      }
-      finally {
-        r.unlock();
-      }
+      final int nameId = getNameId(id);
+      return nameId != 0 ? FileNameCache.getVFileName(nameId) : "";
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -1164,13 +1192,7 @@ public class FSRecords implements Forceable {
 
   public static String getNameByNameId(int nameId) {
     try {
-      r.lock();
-      try {
-        return nameId != 0 ? getNames().valueOf(nameId) : "";
-      }
-      finally {
-        r.unlock();
-      }
+      return nameId != 0 ? getNames().valueOf(nameId) : "";
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -1192,12 +1214,12 @@ public class FSRecords implements Forceable {
   }
 
   public static int getFlags(int id) {
-    r.lock();
+    recordsR.lock();
     try {
       return getRecordInt(id, FLAGS_OFFSET);
     }
     finally {
-      r.unlock();
+      recordsR.unlock();
     }
   }
 
@@ -1218,12 +1240,12 @@ public class FSRecords implements Forceable {
   }
 
   public static long getLength(int id) {
-    r.lock();
+    recordsR.lock();
     try {
       return getRecords().getLong(getOffset(id, LENGTH_OFFSET));
     }
     finally {
-      r.unlock();
+      recordsR.unlock();
     }
   }
 
@@ -1231,7 +1253,7 @@ public class FSRecords implements Forceable {
     w.lock();
     try {
       incModCount(id);
-      getRecords().putLong(getOffset(id, LENGTH_OFFSET), len);
+      putRecordLong(id, LENGTH_OFFSET, len);
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -1242,12 +1264,12 @@ public class FSRecords implements Forceable {
   }
 
   public static long getTimestamp(int id) {
-    r.lock();
+    recordsR.lock();
     try {
       return getRecords().getLong(getOffset(id, TIMESTAMP_OFFSET));
     }
     finally {
-      r.unlock();
+      recordsR.unlock();
     }
   }
 
@@ -1255,7 +1277,7 @@ public class FSRecords implements Forceable {
     w.lock();
     try {
       incModCount(id);
-      getRecords().putLong(getOffset(id, TIMESTAMP_OFFSET), value);
+      putRecordLong(id, TIMESTAMP_OFFSET, value);
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -1266,12 +1288,12 @@ public class FSRecords implements Forceable {
   }
 
   public static int getModCount(int id) {
-    r.lock();
+    recordsR.lock();
     try {
       return getRecordInt(id, MOD_COUNT_OFFSET);
     }
     finally {
-      r.unlock();
+      recordsR.unlock();
     }
   }
 
@@ -1299,8 +1321,26 @@ public class FSRecords implements Forceable {
     return getRecords().getInt(getOffset(id, offset));
   }
 
+  // should be called under w lock
   private static void putRecordInt(int id, int offset, int value) {
-    getRecords().putInt(getOffset(id, offset), value);
+    recordsW.lock();
+    try {
+      getRecords().putInt(getOffset(id, offset), value);
+    }
+    finally {
+      recordsW.unlock();
+    }
+  }
+
+  // should be called under w lock
+  private static void putRecordLong(int id, int offset, long value) {
+    recordsW.lock();
+    try {
+      getRecords().putLong(getOffset(id, offset), value);
+    }
+    finally {
+      recordsW.unlock();
+    }
   }
 
   private static int getOffset(int id, int offset) {
@@ -1310,17 +1350,10 @@ public class FSRecords implements Forceable {
   @Nullable
   public static DataInputStream readContent(int fileId) {
     try {
-      int page;
-      r.lock();
-      try {
-        checkFileIsValid(fileId);
+      checkFileIsValid(fileId);
 
-        page = getContentRecordId(fileId);
-        if (page == 0) return null;
-      }
-      finally {
-        r.unlock();
-      }
+      int page = getContentId(fileId);
+      if (page == 0) return null;
       return doReadContentById(page);
     }
     catch (Throwable e) {
@@ -1554,12 +1587,12 @@ public class FSRecords implements Forceable {
 
   public static int getContentId(int fileId) {
     try {
-      r.lock();
+      recordsR.lock();
       try {
         return getContentRecordId(fileId);
       }
       finally {
-        r.unlock();
+        recordsR.unlock();
       }
     }
     catch (Throwable e) {
@@ -1883,6 +1916,10 @@ public class FSRecords implements Forceable {
                 }
                 attrRefs.skipBytes(attrAddressOrSize);
               }
+              else if (bulkAttrReadSupport) {
+                // attribute moves inline, its separate record would otherwise be reported by bulk read as well
+                storage.deleteRecord(attrAddressOrSize - MAX_SMALL_ATTR_SIZE);
+              }
             }
           }
         }
@@ -2042,58 +2079,107 @@ public class FSRecords implements Forceable {
     return DbConnection.handleError(e);
   }
 
-  /*
   public interface BulkAttrReadCallback {
+    /**
+     * Called without VFS lock held, allows to skip files that are not interesting before their attribute is decoded
+     */
     boolean accepts(int fileId);
-    boolean execute(int fileId, DataInputStream is);
-  }
 
-  // custom DataInput implementation instead of DataInputStream (without extra allocations) (api change)
-  // store each attr in separate file: pro: read only affected data, easy versioning
+    /**
+     * @param is stream positioned after attribute version, it is reused for subsequent files and is valid only during the call
+     * @return false to stop reading
+     */
+    boolean execute(int fileId, @NotNull DataInputStream is);
+  }
 
-  public static void readAttributeInBulk(FileAttribute attr, BulkAttrReadCallback callback) throws IOException {
-    String attrId = attr.getId();
-    int encodedAttrId = DbConnection.getAttributeId(attrId);
-    synchronized (attrId) {
-      Storage storage = getAttributesStorage();
-      RecordIterator recordIterator = storage.recordIterator();
-      while (recordIterator.hasNextRecordId()) {
-        int recordId = recordIterator.nextRecordId();
-        DataInputStream stream = storage.readStream(recordId);
+  private static final int BULK_ATTR_READ_RECORDS_BATCH = 4096;
 
-        int currentAttrId = DataInputOutputUtil.readINT(stream);
-        int fileId = DataInputOutputUtil.readINT(stream);
-        if (!callback.accepts(fileId)) continue;
+  /**
+   * Reads values of given attribute for all files in the order attribute records are laid out in the storage.
+   * VFS read lock is held only while a batch of records is copied into the buffer, callback is invoked outside of it.
+   * Available only when VFS is built with record headers, i.e. with {@code idea.bulk.attr.read} turned on.
+   */
+  public static void readAttributeInBulk(@NotNull final FileAttribute attr, @NotNull BulkAttrReadCallback callback) {
+    assert bulkAttrReadSupport;
 
-        if (currentAttrId == DbConnection.RESERVED_ATTR_ID) {
-          if (!inlineAttributes) continue;
+    final BufferExposingByteArrayOutputStream batchBytes = new BufferExposingByteArrayOutputStream();
+    final TIntArrayList batch = new TIntArrayList(); // (fileId, start, end) triples in batchBytes
+    final UnsyncByteArrayInputStream batchByteStream = new UnsyncByteArrayInputStream(ArrayUtil.EMPTY_BYTE_ARRAY);
+    final DataInputStream batchStream = new DataInputStream(batchByteStream);
+    final UnsyncByteArrayInputStream recordByteStream = new UnsyncByteArrayInputStream(ArrayUtil.EMPTY_BYTE_ARRAY);
+    final DataInputStream recordStream = new DataInputStream(recordByteStream);
 
-          while(stream.available() > 0) {
-            int directoryAttrId = DataInputOutputUtil.readINT(stream);
-            int directoryAttrAddressOrSize = DataInputOutputUtil.readINT(stream);
+    int fromRecord = 1;
+    while (true) {
+      batchBytes.reset();
+      batch.resetQuick();
 
-            if (directoryAttrId != encodedAttrId) {
-              if (directoryAttrAddressOrSize < MAX_SMALL_ATTR_SIZE) stream.skipBytes(directoryAttrAddressOrSize);
-            } else {
-              if (directoryAttrAddressOrSize < MAX_SMALL_ATTR_SIZE) {
-                byte[] b = new byte[directoryAttrAddressOrSize];
-                stream.readFully(b);
-                DataInputStream inlineAttrStream = new DataInputStream(new ByteArrayInputStream(b));
-                int version = DataInputOutputUtil.readINT(inlineAttrStream);
-                if (version != attr.getVersion()) continue;
-                boolean result = callback.execute(fileId, inlineAttrStream); // todo
-                if (!result) break;
+      try {
+        r.lock();
+        try {
+          final Storage storage = getAttributesStorage();
+          if (fromRecord > storage.getRecordsCount()) return;
+          final int encodedAttrId = DbConnection.getAttributeId(attr.getId());
+
+          storage.processRecords(fromRecord, fromRecord + BULK_ATTR_READ_RECORDS_BATCH, new AbstractStorage.RecordBytesProcessor() {
+            @Override
+            public boolean process(int record, @NotNull byte[] bytes, int length) throws IOException {
+              recordByteStream.init(bytes, 0, length);
+              int recordTag = DataInputOutputUtil.readINT(recordStream);
+              int fileId = DataInputOutputUtil.readINT(recordStream);
+
+              if (recordTag == encodedAttrId) {
+                addToBatch(fileId, bytes, length - recordByteStream.available(), length);
+              }
+              else if (recordTag == DbConnection.RESERVED_ATTR_ID && inlineAttributes) {
+                while (recordByteStream.available() > 0) {
+                  int attIdOnPage = DataInputOutputUtil.readINT(recordStream);
+                  int attrAddressOrSize = DataInputOutputUtil.readINT(recordStream);
+                  if (attrAddressOrSize >= MAX_SMALL_ATTR_SIZE) continue;
+
+                  if (attIdOnPage == encodedAttrId) {
+                    int start = length - recordByteStream.available();
+                    addToBatch(fileId, bytes, start, start + attrAddressOrSize);
+                    break;
+                  }
+                  recordStream.skipBytes(attrAddressOrSize);
+                }
               }
+              return true;
             }
-          }
-        } else if (currentAttrId == encodedAttrId) {
-          int version = DataInputOutputUtil.readINT(stream);
-          if (version != attr.getVersion()) continue;
 
-          boolean result = callback.execute(fileId, stream); // todo
-          if (!result) break;
+            private void addToBatch(int fileId, byte[] bytes, int start, int end) {
+              batch.add(fileId);
+              batch.add(batchBytes.size());
+              batchBytes.write(bytes, start, end - start);
+              batch.add(batchBytes.size());
+            }
+          });
         }
+        finally {
+          r.unlock();
+        }
+      }
+      catch (Throwable e) {
+        throw DbConnection.handleError(e);
+      }
+      fromRecord += BULK_ATTR_READ_RECORDS_BATCH;
+
+      for (int i = 0; i < batch.size(); i += 3) {
+        int fileId = batch.getQuick(i);
+        if (BitUtil.isSet(getFlags(fileId), FREE_RECORD_FLAG) || !callback.accepts(fileId)) continue;
+
+        batchByteStream.init(batchBytes.getInternalBuffer(), batch.getQuick(i + 1), batch.getQuick(i + 2));
+        if (attr.isVersioned()) {
+          try {
+            if (DataInputOutputUtil.readINT(batchStream) != attr.getVersion()) continue;
+          }
+          catch (IOException e) {
+            continue;
+          }
+        }
+        if (!callback.execute(fileId, batchStream)) return;
       }
     }
-  }*/
+  }
 }
@@ -150,7 +150,9 @@ public class PersistentFSImpl extends PersistentFS implements ApplicationCompone
   private static FSRecords.NameId[] persistAllChildren(@NotNull final VirtualFile file, final int id, @NotNull FSRecords.NameId[] current) {
     final NewVirtualFileSystem fs = replaceWithNativeFS(getDelegate(file));
 
-    String[] delegateNames = VfsUtil.filterNames(fs.list(file));
+    // when nothing is persisted yet, attributes are needed for all the children, so they are read along with the listing
+    Map<String, FileAttributes> listed = current.length == 0 ? fs.listWithAttributes(file) : null;
+    String[] delegateNames = VfsUtil.filterNames(listed != null ? ArrayUtil.toStringArray(listed.keySet()) : fs.list(file));
     if (delegateNames.length == 0 && current.length > 0) {
       return current;
     }
@@ -168,7 +170,7 @@ public class PersistentFSImpl extends PersistentFS implements ApplicationCompone
     }
     for (String newName : toAdd) {
       FakeVirtualFile child = new FakeVirtualFile(file, newName);
-      FileAttributes attributes = fs.getAttributes(child);
+      FileAttributes attributes = listed != null ? listed.get(newName) : fs.getAttributes(child);
       if (attributes != null) {
         int childId = createAndFillRecord(fs, child, id, attributes);
         childrenIds.add(childId);
@@ -26,25 +26,28 @@ import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.vfs.VFileProperty;
 import com.intellij.openapi.vfs.VfsUtil;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.impl.local.LocalFileSystemImpl;
 import com.intellij.openapi.vfs.newvfs.NewVirtualFile;
 import com.intellij.openapi.vfs.newvfs.NewVirtualFileSystem;
 import com.intellij.openapi.vfs.newvfs.events.*;
 import com.intellij.openapi.vfs.newvfs.impl.FakeVirtualFile;
 import com.intellij.openapi.vfs.newvfs.impl.VirtualDirectoryImpl;
+import com.intellij.util.ArrayUtil;
 import com.intellij.util.Function;
+import com.intellij.util.SystemProperties;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.containers.OpenTHashSet;
 import com.intellij.util.containers.Queue;
 import com.intellij.util.text.FilePathHashingStrategy;
 import gnu.trove.TObjectHashingStrategy;
+import gnu.trove.TObjectIntHashMap;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.annotations.TestOnly;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.*;
 
 import static com.intellij.openapi.util.Pair.pair;
 import static com.intellij.util.containers.ContainerUtil.newTroveSet;
@@ -61,6 +64,19 @@ public class RefreshWorker {
   private final List<VFileEvent> myEvents = new ArrayList<VFileEvent>();
   private volatile boolean myCancelled;
 
+  // Directories queued for refresh are listed and their children are stat'ed ahead on a bounded pool, while events are
+  // still generated on the refresh thread in the queue order, so they are the same as without prefetching.
+  private static final int PREFETCH_THREADS = SystemProperties.getIntProperty("idea.vfs.refresh.prefetch.threads", 4);
+  private static final int MAX_PREFETCHED_DIRECTORIES = 64;
+  private static final int PREFETCH_CHUNK_SIZE = 32;
+  private static final ExecutorService ourPrefetchExecutor =
+    PREFETCH_THREADS > 1 ? AppExecutorUtil.createBoundedApplicationPoolExecutor("RefreshWorker prefetch", PREFETCH_THREADS) : null;
+
+  private boolean myPrefetchEnabled;
+  private volatile boolean myPrefetchCancelled;
+  private final Queue<VirtualDirectoryImpl> myDirectoriesToPrefetch = new Queue<VirtualDirectoryImpl>(16);
+  private final Map<VirtualFile, FutureTask<PrefetchedChildren>> myPrefetches = new HashMap<VirtualFile, FutureTask<PrefetchedChildren>>();
+
   public RefreshWorker(@NotNull NewVirtualFile refreshRoot, boolean isRecursive) {
     myIsRecursive = isRecursive;
     myRefreshQueue.addLast(pair(refreshRoot, null));
@@ -90,6 +106,8 @@ public class RefreshWorker {
     }
     else if (rootAttributes.isDirectory()) {
       fs = PersistentFS.replaceWithNativeFS(fs);
+      myPrefetchEnabled = ourPrefetchExecutor != null && fs instanceof LocalFileSystemImpl;
+      schedulePrefetch(root);
     }
 
     myRefreshQueue.addLast(pair(root, rootAttributes));
@@ -99,17 +117,35 @@ public class RefreshWorker {
     catch (RefreshCancelledException e) {
       LOG.debug("refresh cancelled");
     }
+    finally {
+      cancelPrefetches();
+    }
   }
 
   private void processQueue(NewVirtualFileSystem fs, PersistentFS persistence) throws RefreshCancelledException {
     TObjectHashingStrategy<String> strategy = FilePathHashingStrategy.create(fs.isCaseSensitive());
 
     while (!myRefreshQueue.isEmpty()) {
+      if (myPrefetchEnabled) startPrefetches(fs, strategy);
+
       Pair<NewVirtualFile, FileAttributes> pair = myRefreshQueue.pullFirst();
       NewVirtualFile file = pair.first;
+      FutureTask<PrefetchedChildren> prefetch = myPrefetches.remove(file);
       boolean fileDirty = file.isDirty();
+      // a recursively refreshed directory is marked clean before its prefetch is started (see startPrefetches),
+      // so being dirty again means it was changed after its listing could have been taken
+      boolean cleanedForPrefetch = prefetch != null && myIsRecursive;
+      if (cleanedForPrefetch && fileDirty) {
+        if (LOG.isTraceEnabled()) LOG.trace("dirty after prefetch: " + file);
+        cancel(prefetch);
+        prefetch = null;
+        cleanedForPrefetch = false;
+      }
       if (LOG.isTraceEnabled()) LOG.trace("file=" + file + " dirty=" + fileDirty);
-      if (!fileDirty) continue;
+      if (!fileDirty && !cleanedForPrefetch) {
+        if (prefetch != null) cancel(prefetch);
+        continue;
+      }
 
       checkCancelled(file);
 
@@ -128,11 +164,12 @@ public class RefreshWorker {
 
       if (file.isDirectory()) {
         boolean fullSync = ((VirtualDirectoryImpl)file).allChildrenLoaded();
+        PrefetchedChildren prefetched = prefetch != null ? getPrefetched(prefetch) : null;
         if (fullSync) {
-          fullDirRefresh(fs, persistence, strategy, (VirtualDirectoryImpl)file);
+          fullDirRefresh(fs, persistence, strategy, (VirtualDirectoryImpl)file, prefetched);
         }
         else {
-          partialDirRefresh(fs, strategy, (VirtualDirectoryImpl)file);
+          partialDirRefresh(fs, strategy, (VirtualDirectoryImpl)file, prefetched);
         }
       }
       else {
@@ -172,14 +209,18 @@ public class RefreshWorker {
         }
       }
 
-      if (myIsRecursive || !file.isDirectory()) {
+      if ((myIsRecursive || !file.isDirectory()) && !cleanedForPrefetch) {
         file.markClean();
       }
     }
   }
 
-  private void fullDirRefresh(NewVirtualFileSystem fs, PersistentFS persistence, TObjectHashingStrategy<String> strategy, VirtualDirectoryImpl dir) {
-    while (true) {
+  private void fullDirRefresh(NewVirtualFileSystem fs,
+                              PersistentFS persistence,
+                              TObjectHashingStrategy<String> strategy,
+                              VirtualDirectoryImpl dir,
+                              @Nullable PrefetchedChildren prefetched) {
+    for (;; prefetched = null) { // prefetched state is not used on retry
       // obtaining directory snapshot
       String[] currentNames;
       VirtualFile[] children;
@@ -193,8 +234,12 @@ public class RefreshWorker {
         token.finish();
       }
 
-      // reading children attributes
-      String[] upToDateNames = VfsUtil.filterNames(fs.list(dir));
+      // reading children attributes (all of them are needed, so they are read along with the listing when the file system can do it)
+      if (prefetched == null || !prefetched.myListed) {
+        Map<String, FileAttributes> listed = fs.listWithAttributes(dir);
+        if (listed != null) prefetched = new PrefetchedChildren(listed, strategy);
+      }
+      String[] upToDateNames = prefetched != null && prefetched.myListed ? prefetched.myNames : VfsUtil.filterNames(fs.list(dir));
       Set<String> newNames = newTroveSet(strategy, upToDateNames);
       ContainerUtil.removeAll(newNames, currentNames);
       Set<String> deletedNames = newTroveSet(strategy, currentNames);
@@ -209,14 +254,14 @@ public class RefreshWorker {
       List<Pair<String, FileAttributes>> addedMap = ContainerUtil.newArrayListWithCapacity(newNames.size());
       for (String name : newNames) {
         checkCancelled(dir);
-        addedMap.add(pair(name, fs.getAttributes(new FakeVirtualFile(dir, name))));
+        addedMap.add(pair(name, getAttributes(fs, prefetched, dir, name, null)));
       }
 
       List<Pair<VirtualFile, FileAttributes>> updatedMap = ContainerUtil.newArrayListWithCapacity(children.length);
       for (VirtualFile child : children) {
         if (deletedNames.contains(child.getName())) continue;
         checkCancelled(dir);
-        updatedMap.add(pair(child, fs.getAttributes(child)));
+        updatedMap.add(pair(child, getAttributes(fs, prefetched, dir, child.getName(), child)));
       }
 
       // generating events unless a directory was changed in between
@@ -263,8 +308,11 @@ public class RefreshWorker {
     }
   }
 
-  private void partialDirRefresh(NewVirtualFileSystem fs, TObjectHashingStrategy<String> strategy, VirtualDirectoryImpl dir) {
-    while (true) {
+  private void partialDirRefresh(NewVirtualFileSystem fs,
+                                 TObjectHashingStrategy<String> strategy,
+                                 VirtualDirectoryImpl dir,
+                                 @Nullable PrefetchedChildren prefetched) {
+    for (;; prefetched = null) { // prefetched state is not used on retry
       // obtaining directory snapshot
       List<VirtualFile> cached;
       List<String> wanted;
@@ -292,14 +340,14 @@ public class RefreshWorker {
       List<Pair<VirtualFile, FileAttributes>> existingMap = ContainerUtil.newArrayListWithCapacity(cached.size());
       for (VirtualFile child : cached) {
         checkCancelled(dir);
-        existingMap.add(pair(child, fs.getAttributes(child)));
+        existingMap.add(pair(child, getAttributes(fs, prefetched, dir, child.getName(), child)));
       }
 
       List<Pair<String, FileAttributes>> wantedMap = ContainerUtil.newArrayListWithCapacity(wanted.size());
       for (String name : wanted) {
         if (name.isEmpty()) continue;
         checkCancelled(dir);
-        wantedMap.add(pair(name, fs.getAttributes(new FakeVirtualFile(dir, name))));
+        wantedMap.add(pair(name, getAttributes(fs, prefetched, dir, name, null)));
       }
 
       // generating events unless a directory was changed in between
@@ -352,6 +400,7 @@ public class RefreshWorker {
 
   private void checkCancelled(@NotNull NewVirtualFile stopAt) {
     if (myCancelled || ourCancellingCondition != null && ourCancellingCondition.fun(stopAt)) {
+      cancelPrefetches();
       forceMarkDirty(stopAt);
       while (!myRefreshQueue.isEmpty()) {
         NewVirtualFile next = myRefreshQueue.pullFirst().first;
@@ -373,6 +422,7 @@ public class RefreshWorker {
       boolean upToDateIsDirectory = childAttributes.isDirectory();
       if (myIsRecursive || !upToDateIsDirectory) {
         myRefreshQueue.addLast(pair((NewVirtualFile)child, childAttributes));
+        if (upToDateIsDirectory && myPrefetchEnabled) schedulePrefetch(child);
       }
     }
   }
@@ -418,6 +468,180 @@ public class RefreshWorker {
     }
   }
 
+  private void schedulePrefetch(@NotNull VirtualFile dir) {
+    if (dir instanceof VirtualDirectoryImpl && ((VirtualDirectoryImpl)dir).isDirty()) {
+      myDirectoriesToPrefetch.addLast((VirtualDirectoryImpl)dir);
+    }
+  }
+
+  private void startPrefetches(final NewVirtualFileSystem fs, final TObjectHashingStrategy<String> strategy) {
+    while (myPrefetches.size() < MAX_PREFETCHED_DIRECTORIES && !myDirectoriesToPrefetch.isEmpty()) {
+      final VirtualDirectoryImpl dir = myDirectoriesToPrefetch.pullFirst();
+      if (!dir.isDirty() || myPrefetches.containsKey(dir)) continue;
+
+      // changes reported after this point make the directory dirty again and the prefetched state is not used then
+      if (myIsRecursive) dir.markClean();
+
+      FutureTask<PrefetchedChildren> task;
+      AccessToken token = ApplicationManager.getApplication().acquireReadActionLock();
+      try {
+        if (dir.allChildrenLoaded()) {
+          task = new FutureTask<PrefetchedChildren>(new Callable<PrefetchedChildren>() {
+            @Override
+            public PrefetchedChildren call() {
+              return new PrefetchedChildren(fs, dir, VfsUtil.filterNames(fs.list(dir)), true, strategy);
+            }
+          });
+          ourPrefetchExecutor.execute(task);
+        }
+        else {
+          List<VirtualFile> cached = dir.getCachedChildren();
+          final List<String> names = new ArrayList<String>(cached.size());
+          for (VirtualFile child : cached) names.add(child.getName());
+          for (String name : dir.getSuspiciousNames()) {
+            if (!name.isEmpty()) names.add(name);
+          }
+          task = new FutureTask<PrefetchedChildren>(new Callable<PrefetchedChildren>() {
+            @Override
+            public PrefetchedChildren call() {
+              return new PrefetchedChildren(fs, dir, ArrayUtil.toStringArray(names), false, strategy);
+            }
+          });
+          task.run(); // names are known, only children attributes are read in background
+        }
+      }
+      finally {
+        token.finish();
+      }
+      myPrefetches.put(dir, task);
+    }
+  }
+
+  private void cancelPrefetches() {
+    myPrefetchCancelled = true;
+    for (Map.Entry<VirtualFile, FutureTask<PrefetchedChildren>> entry : myPrefetches.entrySet()) {
+      cancel(entry.getValue());
+      // the directory was marked clean when its prefetch was started but it is not refreshed now
+      if (myIsRecursive) ((NewVirtualFile)entry.getKey()).markDirty();
+    }
+    myPrefetches.clear();
+    myDirectoriesToPrefetch.clear();
+  }
+
+  private static void cancel(@NotNull FutureTask<PrefetchedChildren> prefetch) {
+    if (!prefetch.cancel(false)) { // completed
+      PrefetchedChildren prefetched = getPrefetched(prefetch);
+      if (prefetched != null) prefetched.cancel();
+    }
+  }
+
+  @Nullable
+  private static PrefetchedChildren getPrefetched(@NotNull FutureTask<PrefetchedChildren> prefetch) {
+    return runOrWait(prefetch);
+  }
+
+  /**
+   * Runs the task on the current thread unless a pooled thread has already started it, so the refresh never waits for a queued task
+   */
+  @Nullable
+  private static <T> T runOrWait(@NotNull FutureTask<T> task) {
+    task.run();
+    try {
+      return task.get();
+    }
+    catch (CancellationException e) {
+      return null;
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+    catch (ExecutionException e) {
+      LOG.warn(e.getCause());
+      return null;
+    }
+  }
+
+  @Nullable
+  private static FileAttributes getAttributes(@NotNull NewVirtualFileSystem fs,
+                                              @Nullable PrefetchedChildren prefetched,
+                                              @NotNull VirtualFile dir,
+                                              @NotNull String name,
+                                              @Nullable VirtualFile child) {
+    if (prefetched != null) {
+      int index = prefetched.myIndices.get(name) - 1;
+      if (index >= 0) {
+        if (prefetched.myAttributes != null) return prefetched.myAttributes[index];
+        FileAttributes[] chunk = runOrWait(prefetched.myChunks[index / PREFETCH_CHUNK_SIZE]);
+        if (chunk != null) return chunk[index % PREFETCH_CHUNK_SIZE];
+      }
+    }
+    return fs.getAttributes(child != null ? child : new FakeVirtualFile(dir, name));
+  }
+
+  /**
+   * Names of directory children (either listed, or cached and suspicious ones when the directory is partially loaded)
+   * with their attributes, either listed along with the names or being read in chunks on the prefetch pool.
+   */
+  private class PrefetchedChildren {
+    private final String[] myNames;
+    private final boolean myListed;
+    private final TObjectIntHashMap<String> myIndices; // name -> index + 1
+    private final FutureTask<FileAttributes[]>[] myChunks;
+    private final FileAttributes[] myAttributes;
+
+    @SuppressWarnings("unchecked")
+    PrefetchedChildren(@NotNull Map<String, FileAttributes> listed, @NotNull TObjectHashingStrategy<String> strategy) {
+      myNames = VfsUtil.filterNames(ArrayUtil.toStringArray(listed.keySet()));
+      myListed = true;
+      myIndices = new TObjectIntHashMap<String>(myNames.length, strategy);
+      myAttributes = new FileAttributes[myNames.length];
+      for (int i = 0; i < myNames.length; i++) {
+        myIndices.put(myNames[i], i + 1);
+        myAttributes[i] = listed.get(myNames[i]);
+      }
+      myChunks = new FutureTask[0];
+    }
+
+    @SuppressWarnings("unchecked")
+    PrefetchedChildren(@NotNull final NewVirtualFileSystem fs,
+                       @NotNull final VirtualFile dir,
+                       @NotNull final String[] names,
+                       boolean listed,
+                       @NotNull TObjectHashingStrategy<String> strategy) {
+      myNames = names;
+      myListed = listed;
+      myAttributes = null;
+      myIndices = new TObjectIntHashMap<String>(names.length, strategy);
+      for (int i = 0; i < names.length; i++) {
+        myIndices.put(names[i], i + 1);
+      }
+      myChunks = new FutureTask[(names.length + PREFETCH_CHUNK_SIZE - 1) / PREFETCH_CHUNK_SIZE];
+      for (int i = 0; i < myChunks.length; i++) {
+        final int from = i * PREFETCH_CHUNK_SIZE;
+        final int to = Math.min(names.length, from + PREFETCH_CHUNK_SIZE);
+        myChunks[i] = new FutureTask<FileAttributes[]>(new Callable<FileAttributes[]>() {
+          @Override
+          public FileAttributes[] call() {
+            if (myPrefetchCancelled) return null;
+            FileAttributes[] attributes = new FileAttributes[to - from];
+            for (int j = from; j < to; j++) {
+              attributes[j - from] = fs.getAttributes(new FakeVirtualFile(dir, names[j]));
+            }
+            return attributes;
+          }
+        });
+        ourPrefetchExecutor.execute(myChunks[i]);
+      }
+    }
+
+    void cancel() {
+      for (FutureTask<FileAttributes[]> chunk : myChunks) {
+        chunk.cancel(false);
+      }
+    }
+  }
+
   private static Function<VirtualFile, Boolean> ourCancellingCondition;
 
   @TestOnly
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.history.core;
+
+import com.intellij.history.core.changes.ChangeSet;
+import com.intellij.history.core.changes.CreateFileChange;
+import com.intellij.openapi.util.Clock;
+import com.intellij.util.Consumer;
+import gnu.trove.TIntHashSet;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class SegmentedChangeListStorageTest extends TempDirTestCase {
+  private static final long FS_TIMESTAMP = 123;
+  private static final int SEGMENT_SIZE = 1024;
+
+  @After
+  public void resetClock() {
+    Clock.reset();
+  }
+
+  @Test
+  public void testReadingBackwards() throws IOException {
+    SegmentedChangeListStorage s = createStorage();
+    try {
+      for (int i = 0; i < 10; i++) {
+        writeSet(s, "file" + i);
+      }
+      assertEquals(paths(9, 0), readAll(s));
+    }
+    finally {
+      s.close();
+    }
+  }
+
+  @Test
+  public void testRecordsAndIdsArePreservedBetweenSegmentsAndSessions() throws IOException {
+    SegmentedChangeListStorage s = createStorage();
+    for (int i = 0; i < 200; i++) {
+      writeSet(s, "file" + i);
+    }
+    long lastWrittenId = s.nextId() - 1;
+    assertEquals(paths(199, 0), readAll(s));
+    s.close();
+
+    assertTrue(new File(myTempDir, "segments").list().length > 3);
+
+    s = createStorage();
+    try {
+      assertEquals(paths(199, 0), readAll(s));
+      assertEquals(lastWrittenId + 1, s.nextId());
+
+      writeSet(s, "file200");
+      assertEquals(paths(200, 0), readAll(s));
+    }
+    finally {
+      s.close();
+    }
+  }
+
+  @Test
+  public void testIncompleteRecordIsTruncated() throws IOException {
+    SegmentedChangeListStorage s = createStorage();
+    writeSet(s, "file0");
+    writeSet(s, "file1");
+    s.close();
+
+    File dataFile = new File(new File(myTempDir, "segments"), "1.data");
+    RandomAccessFile f = new RandomAccessFile(dataFile, "rw");
+    try {
+      f.setLength(f.length() - 3);
+    }
+    finally {
+      f.close();
+    }
+
+    s = createStorage();
+    try {
+      assertEquals(paths(0, 0), readAll(s));
+      writeSet(s, "file2");
+      assertEquals(paths(2, 2, 0, 0), readAll(s));
+    }
+    finally {
+      s.close();
+    }
+  }
+
+  @Test
+  public void testStorageIsRebuiltWhenFSChanges() throws IOException {
+    SegmentedChangeListStorage s = createStorage();
+    writeSet(s, "file0");
+    s.close();
+
+    s = new SegmentedChangeListStorage(myTempDir, FS_TIMESTAMP + 1, SEGMENT_SIZE);
+    try {
+      assertTrue(readAll(s).isEmpty());
+    }
+    finally {
+      s.close();
+    }
+  }
+
+  @Test
+  public void testPurgeDeletesWholeSegments() throws IOException {
+    SegmentedChangeListStorage s = createStorage();
+    try {
+      for (int i = 0; i < 200; i++) {
+        Clock.setTime(i * 1000L);
+        writeSet(s, "file" + i);
+      }
+
+      final List<String> purged = new ArrayList<String>();
+      s.purge(50 * 1000L, Integer.MAX_VALUE, new Consumer<ChangeSet>() {
+        @Override
+        public void consume(ChangeSet changeSet) {
+          purged.add(getPath(changeSet));
+        }
+      });
+
+      List<String> remaining = readAll(s);
+      assertFalse(purged.isEmpty());
+      assertEquals(200, purged.size() + remaining.size());
+      // at least the last 50 seconds are kept, and the records are purged from the newest to the oldest
+      assertTrue(remaining.size() > 50);
+      assertEquals("file199", remaining.get(0));
+      assertEquals("file" + (purged.size() - 1), purged.get(0));
+      assertEquals("file0", purged.get(purged.size() - 1));
+      assertEquals("file" + purged.size(), remaining.get(remaining.size() - 1));
+    }
+    finally {
+      s.close();
+    }
+
+    s = createStorage();
+    try {
+      assertEquals("file199", readAll(s).get(0));
+      assertFalse(readAll(s).contains("file0"));
+    }
+    finally {
+      s.close();
+    }
+  }
+
+  @Test
+  public void testReadingWhileWriting() throws Exception {
+    final SegmentedChangeListStorage s = createStorage();
+    try {
+      final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+      Thread reader = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < 200; i++) {
+              List<String> paths = readAll(s);
+              for (int j = 0; j < paths.size(); j++) {
+                assertEquals("file" + (paths.size() - 1 - j), paths.get(j));
+              }
+            }
+          }
+          catch (Throwable e) {
+            error.set(e);
+          }
+        }
+      };
+      reader.start();
+      for (int i = 0; i < 500; i++) {
+        writeSet(s, "file" + i);
+      }
+      reader.join();
+
+      assertNull(error.get());
+      assertEquals(500, readAll(s).size());
+    }
+    finally {
+      s.close();
+    }
+  }
+
+  @Test
+  public void testInterruptedThreadDoesNotBreakStorage() throws IOException {
+    SegmentedChangeListStorage s = createStorage();
+    try {
+      for (int i = 0; i < 100; i++) {
+        writeSet(s, "file" + i);
+      }
+
+      // file channels get closed when a thread doing IO on them is interrupted
+      Thread.currentThread().interrupt();
+      try {
+        assertEquals(paths(99, 0), readAll(s));
+        writeSet(s, "file100");
+        assertTrue(Thread.currentThread().isInterrupted());
+      }
+      finally {
+        Thread.interrupted();
+      }
+
+      writeSet(s, "file101");
+      assertEquals(paths(101, 0), readAll(s));
+    }
+    finally {
+      s.close();
+    }
+
+    s = createStorage();
+    try {
+      assertEquals(paths(101, 0), readAll(s));
+    }
+    finally {
+      s.close();
+    }
+  }
+
+  private SegmentedChangeListStorage createStorage() throws IOException {
+    return new SegmentedChangeListStorage(myTempDir, FS_TIMESTAMP, SEGMENT_SIZE);
+  }
+
+  private static void writeSet(SegmentedChangeListStorage s, String path) {
+    ChangeSet set = new ChangeSet(s.nextId(), Clock.getTime());
+    set.addChange(new CreateFileChange(s.nextId(), path));
+    s.writeNextSet(set);
+  }
+
+  private static List<String> readAll(SegmentedChangeListStorage s) {
+    List<String> result = new ArrayList<String>();
+    TIntHashSet recursionGuard = new TIntHashSet();
+    ChangeSetHolder holder = s.readPrevious(-1, recursionGuard);
+    while (holder != null) {
+      result.add(getPath(holder.changeSet));
+      holder = s.readPrevious(holder.id, recursionGuard);
+    }
+    return result;
+  }
+
+  private static String getPath(ChangeSet set) {
+    return ((CreateFileChange)set.getChanges().get(0)).getPath();
+  }
+
+  private static List<String> paths(int... ranges) {
+    List<String> result = new ArrayList<String>();
+    for (int i = 0; i < ranges.length; i += 2) {
+      for (int j = ranges[i]; j >= ranges[i + 1]; j--) {
+        result.add("file" + j);
+      }
+    }
+    return result;
+  }
+}
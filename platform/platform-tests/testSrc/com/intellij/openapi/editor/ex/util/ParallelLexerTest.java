@@ -0,0 +1,229 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.ex.util;
+
+import com.intellij.lang.Language;
+import com.intellij.lexer.Lexer;
+import com.intellij.lexer.LexerBase;
+import com.intellij.openapi.application.ModalityState;
+import com.intellij.openapi.editor.colors.TextAttributesKey;
+import com.intellij.openapi.fileTypes.SyntaxHighlighterBase;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.psi.tree.IElementType;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class ParallelLexerTest extends TestCase {
+  private static final IElementType WORD = new IElementType("WORD", Language.ANY);
+  private static final IElementType SPACE = new IElementType("SPACE", Language.ANY);
+  private static final IElementType COMMENT = new IElementType("COMMENT", Language.ANY);
+  private static final IElementType OTHER = new IElementType("OTHER", Language.ANY);
+
+  private static final SyntaxHighlighterBase HIGHLIGHTER = new SyntaxHighlighterBase() {
+    @NotNull
+    @Override
+    public Lexer getHighlightingLexer() {
+      return new CommentLexer();
+    }
+
+    @NotNull
+    @Override
+    public TextAttributesKey[] getTokenHighlights(IElementType tokenType) {
+      return EMPTY;
+    }
+  };
+
+  private ExecutorService myExecutor;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myExecutor = Executors.newFixedThreadPool(4);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myExecutor.shutdownNow();
+    super.tearDown();
+  }
+
+  public void testChunksAreStitchedAsSequentialLexing() {
+    for (int seed = 0; seed < 20; seed++) {
+      String text = generateText(new Random(seed), 3000);
+      for (int chunkSize : new int[]{10, 50, 300, 10000}) {
+        assertLexedSequentially(text, 0, chunkSize);
+      }
+    }
+  }
+
+  public void testLexingFromOffset() {
+    String text = "no comments\nhere\n" + generateText(new Random(42), 2000);
+    assertLexedSequentially(text, "no comments\n".length(), 40);
+  }
+
+  public void testTextInsideUnclosedComment() {
+    String text = "start /*" + generateText(new Random(7), 2000).replace("*/", "**");
+    assertLexedSequentially(text, 0, 30);
+  }
+
+  public void testEmptyText() {
+    assertEquals(0, lex("", 0, 10).getSegmentCount());
+  }
+
+  private void assertLexedSequentially(@NotNull String text, int startOffset, int chunkSize) {
+    SegmentArrayWithData expected = lexSequentially(text, startOffset);
+    SegmentArrayWithData actual = lex(text, startOffset, chunkSize);
+    assertEquals(expected.getSegmentCount(), actual.getSegmentCount());
+    for (int i = 0; i < expected.getSegmentCount(); i++) {
+      String message = "segment " + i + ", chunk size " + chunkSize;
+      assertEquals(message, expected.getSegmentStart(i), actual.getSegmentStart(i));
+      assertEquals(message, expected.getSegmentEnd(i), actual.getSegmentEnd(i));
+      assertEquals(message, expected.getSegmentData(i), actual.getSegmentData(i));
+    }
+  }
+
+  @NotNull
+  private SegmentArrayWithData lex(@NotNull String text, int startOffset, int chunkSize) {
+    ParallelLexer lexer = new ParallelLexer(HIGHLIGHTER, 0, chunkSize);
+    return lexer.lex(text, startOffset, myExecutor, new EmptyProgressIndicator(ModalityState.NON_MODAL));
+  }
+
+  @NotNull
+  private static SegmentArrayWithData lexSequentially(@NotNull String text, int startOffset) {
+    SegmentArrayWithData segments = new SegmentArrayWithData();
+    Lexer lexer = HIGHLIGHTER.getHighlightingLexer();
+    lexer.start(text, startOffset, text.length(), 0);
+    for (int i = 0; lexer.getTokenType() != null; i++) {
+      segments.setElementAt(i, lexer.getTokenStart(), lexer.getTokenEnd(),
+                            LexerEditorHighlighter.packData(lexer.getTokenType(), lexer.getState(), 0));
+      lexer.advance();
+    }
+    return segments;
+  }
+
+  @NotNull
+  private static String generateText(@NotNull Random random, int words) {
+    String[] parts = {"foo", "bar", " ", " ", "\n", "\n", "/*", "*/", ";", "x"};
+    StringBuilder result = new StringBuilder();
+    for (int i = 0; i < words; i++) {
+      result.append(parts[random.nextInt(parts.length)]);
+    }
+    return result.toString();
+  }
+
+  /**
+   * Words, spaces and block comments, lexed by lines in the state 1.
+   */
+  private static class CommentLexer extends LexerBase {
+    private CharSequence myBuffer;
+    private int myEndOffset;
+    private int myTokenStart;
+    private int myTokenEnd;
+    private int myState;
+    private int myNextState;
+    private IElementType myTokenType;
+
+    @Override
+    public void start(@NotNull CharSequence buffer, int startOffset, int endOffset, int initialState) {
+      myBuffer = buffer;
+      myEndOffset = endOffset;
+      myTokenEnd = startOffset;
+      myNextState = initialState;
+      advance();
+    }
+
+    @Override
+    public int getState() {
+      return myState;
+    }
+
+    @Override
+    public IElementType getTokenType() {
+      return myTokenType;
+    }
+
+    @Override
+    public int getTokenStart() {
+      return myTokenStart;
+    }
+
+    @Override
+    public int getTokenEnd() {
+      return myTokenEnd;
+    }
+
+    @Override
+    public void advance() {
+      myTokenStart = myTokenEnd;
+      myState = myNextState;
+      if (myTokenStart >= myEndOffset) {
+        myTokenType = null;
+        return;
+      }
+
+      int i = myTokenStart;
+      if (myState == 1) {
+        myTokenType = COMMENT;
+        while (i < myEndOffset && myBuffer.charAt(i) != '\n' && !startsWith(i, "*/")) i++;
+        if (i < myEndOffset && myBuffer.charAt(i) == '\n') {
+          myTokenEnd = i + 1;
+        }
+        else {
+          myTokenEnd = Math.min(myEndOffset, i + 2);
+          myNextState = 0;
+        }
+      }
+      else if (startsWith(i, "/*")) {
+        myTokenType = COMMENT;
+        myTokenEnd = i + 2;
+        myNextState = 1;
+      }
+      else if (Character.isLetter(myBuffer.charAt(i))) {
+        myTokenType = WORD;
+        while (i < myEndOffset && Character.isLetter(myBuffer.charAt(i))) i++;
+        myTokenEnd = i;
+      }
+      else if (Character.isWhitespace(myBuffer.charAt(i))) {
+        myTokenType = SPACE;
+        while (i < myEndOffset && Character.isWhitespace(myBuffer.charAt(i))) i++;
+        myTokenEnd = i;
+      }
+      else {
+        myTokenType = OTHER;
+        myTokenEnd = i + 1;
+      }
+    }
+
+    private boolean startsWith(int offset, @NotNull String prefix) {
+      return offset + prefix.length() <= myEndOffset && myBuffer.subSequence(offset, offset + prefix.length()).toString().equals(prefix);
+    }
+
+    @NotNull
+    @Override
+    public CharSequence getBufferSequence() {
+      return myBuffer;
+    }
+
+    @Override
+    public int getBufferEnd() {
+      return myEndOffset;
+    }
+  }
+}
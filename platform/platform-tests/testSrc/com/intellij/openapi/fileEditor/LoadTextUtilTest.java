@@ -2,8 +2,13 @@ package com.intellij.openapi.fileEditor;
 
 import com.intellij.openapi.fileEditor.impl.LoadTextUtil;
 import com.intellij.openapi.util.Comparing;
+import com.intellij.openapi.vfs.CharsetToolkit;
 import com.intellij.testFramework.LightPlatformTestCase;
 import com.intellij.testFramework.LightVirtualFile;
+import com.intellij.util.ArrayUtil;
+import com.intellij.util.text.ByteArrayCharSequence;
+
+import java.nio.charset.StandardCharsets;
 
 public class LoadTextUtilTest extends LightPlatformTestCase {
   private static void doTest(String source, String expected, String expectedSeparator) {
@@ -34,4 +39,19 @@ public class LoadTextUtilTest extends LightPlatformTestCase {
   public void testConvertMostCommon() {
     doTest("test\r\ntest\r\ntest\ntest", "test\ntest\ntest\ntest", "\r\n");
   }
+
+  public void testSharingBytes() {
+    assertTrue(LoadTextUtil.getTextByBinaryPresentationSharingBytes("test\ntest".getBytes(CharsetToolkit.UTF8_CHARSET), CharsetToolkit.UTF8_CHARSET)
+                 instanceof ByteArrayCharSequence);
+
+    byte[] withBom = ArrayUtil.mergeArrays(CharsetToolkit.UTF8_BOM, "test".getBytes(CharsetToolkit.UTF8_CHARSET));
+    assertTrue(Comparing.equal("test", LoadTextUtil.getTextByBinaryPresentationSharingBytes(withBom, CharsetToolkit.UTF8_CHARSET)));
+
+    CharSequence latin1 = LoadTextUtil.getTextByBinaryPresentationSharingBytes("caf\u00e9".getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.ISO_8859_1);
+    assertTrue(latin1 instanceof ByteArrayCharSequence);
+    assertTrue(Comparing.equal("caf\u00e9", latin1));
+
+    assertTrue(Comparing.equal("caf\u00e9", LoadTextUtil.getTextByBinaryPresentationSharingBytes("caf\u00e9".getBytes(CharsetToolkit.UTF8_CHARSET), CharsetToolkit.UTF8_CHARSET)));
+    assertTrue(Comparing.equal("test\ntest", LoadTextUtil.getTextByBinaryPresentationSharingBytes("test\r\ntest".getBytes(CharsetToolkit.UTF8_CHARSET), CharsetToolkit.UTF8_CHARSET)));
+  }
 }
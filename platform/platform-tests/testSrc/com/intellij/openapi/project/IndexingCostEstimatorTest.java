@@ -0,0 +1,85 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.project;
+
+import com.intellij.openapi.fileTypes.PlainTextFileType;
+import junit.framework.TestCase;
+
+import java.util.*;
+
+public class IndexingCostEstimatorTest extends TestCase {
+  private static final int FILES_COUNT = 200000;
+  private static final int THREADS_COUNT = 4;
+
+  public void testSortByDescendingCost() {
+    List<String> sorted = IndexingCostEstimator.sortByDescendingCost(Arrays.asList("a", "bbb", "cc", "dd", "eee"), String::length);
+    assertEquals(Arrays.asList("bbb", "eee", "cc", "dd", "a"), sorted);
+  }
+
+  public void testEstimationFollowsHistory() {
+    IndexingCostEstimator estimator = new IndexingCostEstimator();
+    long initial = estimator.estimateCost(PlainTextFileType.INSTANCE, 100 * 1024);
+    for (int i = 0; i < 10; i++) {
+      estimator.recordIndexingTime(PlainTextFileType.INSTANCE, 100 * 1024, initial * 10);
+    }
+    long learned = estimator.estimateCost(PlainTextFileType.INSTANCE, 100 * 1024);
+    assertTrue(initial + " " + learned, learned > initial * 5);
+  }
+
+  /**
+   * Synthetic project of 200k files with long tailed sizes, whose generated sources directory with several multi megabyte files
+   * is iterated last, dispatched from a shared queue to indexing threads as CacheUpdateRunner does: in the original and in the cost order.
+   */
+  public void testSyntheticProjectMakespan() {
+    Random random = new Random(42);
+    List<Long> sizes = new ArrayList<>(FILES_COUNT);
+    for (int i = 0; i < FILES_COUNT - 10; i++) {
+      double pareto = 1000 / Math.pow(1 - random.nextDouble(), 1 / 1.2);
+      sizes.add(Math.min((long)pareto, 1024 * 1024));
+    }
+    for (int i = 0; i < 10; i++) {
+      sizes.add(20L * 1024 * 1024);
+    }
+    IndexingCostEstimator estimator = new IndexingCostEstimator();
+
+    List<Long> ordered = IndexingCostEstimator.sortByDescendingCost(sizes, size -> estimator.estimateCost(PlainTextFileType.INSTANCE, size));
+    assertEquals(sizes.size(), ordered.size());
+    for (int i = 1; i < ordered.size(); i++) {
+      assertTrue(ordered.get(i - 1) >= ordered.get(i));
+    }
+
+    long total = 0;
+    for (Long size : sizes) total += estimator.estimateCost(PlainTextFileType.INSTANCE, size);
+    long fifo = makespan(sizes, estimator);
+    long costOrdered = makespan(ordered, estimator);
+    long lowerBound = total / THREADS_COUNT;
+
+    // the huge files picked last keep some threads busy long after the others are done, unless they are picked first
+    assertTrue(costOrdered + " " + fifo, costOrdered < fifo);
+    assertTrue(costOrdered + " " + fifo + " " + lowerBound, (costOrdered - lowerBound) * 100 < fifo - lowerBound);
+  }
+
+  private static long makespan(List<Long> sizes, IndexingCostEstimator estimator) {
+    PriorityQueue<Long> threadsBusyUntil = new PriorityQueue<>();
+    for (int i = 0; i < THREADS_COUNT; i++) threadsBusyUntil.add(0L);
+    for (Long size : sizes) {
+      threadsBusyUntil.add(threadsBusyUntil.poll() + estimator.estimateCost(PlainTextFileType.INSTANCE, size));
+    }
+    long result = 0;
+    for (Long busyUntil : threadsBusyUntil) result = Math.max(result, busyUntil);
+    return result;
+  }
+}
@@ -38,6 +38,7 @@ import com.intellij.openapi.vfs.newvfs.persistent.RefreshWorker;
 import com.intellij.testFramework.PlatformLangTestCase;
 import com.intellij.testFramework.PlatformTestUtil;
 import com.intellij.util.Function;
+import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.messages.MessageBusConnection;
 import org.jetbrains.annotations.NotNull;
 
@@ -46,6 +47,7 @@ import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 public class LocalFileSystemTest extends PlatformLangTestCase {
   private LocalFileSystem myFS;
@@ -345,6 +347,55 @@ public class LocalFileSystemTest extends PlatformLangTestCase {
     checkChildCount(virtualDir, 2);
   }
 
+  public void testWideTreeRefresh() throws Exception {
+    File testDir = FileUtil.createTempDirectory("WideTreeRefreshTest." + getName(), null);
+    for (int i = 0; i < 10; i++) {
+      File dir = new File(testDir, "dir" + i);
+      for (int j = 0; j < 100; j++) {
+        FileUtil.writeToFile(new File(dir, "file" + j + ".txt"), "");
+      }
+    }
+
+    VirtualFile virtualDir = myFS.refreshAndFindFileByIoFile(testDir);
+    assert virtualDir != null : testDir;
+    VfsUtilCore.visitChildrenRecursively(virtualDir, new VirtualFileVisitor() { });
+    virtualDir.refresh(false, true);
+
+    for (int i = 0; i < 10; i++) {
+      File dir = new File(testDir, "dir" + i);
+      FileUtil.delete(new File(dir, "file0.txt"));
+      FileUtil.writeToFile(new File(dir, "file1.txt"), "changed");
+      FileUtil.writeToFile(new File(dir, "added.txt"), "");
+    }
+    virtualDir.refresh(false, true);
+
+    for (int i = 0; i < 10; i++) {
+      VirtualFile dir = virtualDir.findChild("dir" + i);
+      assertNotNull(dir);
+      checkChildCount(dir, 100);
+      assertNull(dir.findChild("file0.txt"));
+      assertNotNull(dir.findChild("added.txt"));
+      VirtualFile changed = dir.findChild("file1.txt");
+      assertNotNull(changed);
+      assertEquals("changed".length(), changed.getLength());
+    }
+  }
+
+  public void testListWithAttributes() throws Exception {
+    File testDir = FileUtil.createTempDirectory("ListWithAttributesTest." + getName(), null);
+    FileUtil.writeToFile(new File(testDir, "file.txt"), "content");
+    assertTrue(new File(testDir, "dir").mkdir());
+
+    VirtualFile virtualDir = myFS.refreshAndFindFileByIoFile(testDir);
+    assert virtualDir != null : testDir;
+    Map<String, FileAttributes> listed = myFS.listWithAttributes(virtualDir);
+    assertNotNull(listed);
+    assertEquals(ContainerUtil.newHashSet(myFS.list(virtualDir)), listed.keySet());
+    for (VirtualFile child : virtualDir.getChildren()) {
+      assertEquals(child.getName(), myFS.getAttributes(child), listed.get(child.getName()));
+    }
+  }
+
   private static void checkChildCount(VirtualFile virtualDir, int expectedCount) {
     VirtualFile[] children = virtualDir.getChildren();
     if (children.length != expectedCount) {
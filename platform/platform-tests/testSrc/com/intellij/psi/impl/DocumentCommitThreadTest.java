@@ -0,0 +1,168 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.impl;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.psi.PsiDocumentManager;
+import com.intellij.psi.PsiFile;
+import com.intellij.testFramework.LightPlatformTestCase;
+import com.intellij.util.ui.UIUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DocumentCommitThreadTest extends LightPlatformTestCase {
+  private DocumentCommitThread myCommitThread;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myCommitThread = DocumentCommitThread.getInstance();
+    // documents are queued by the tests only
+    ((PsiDocumentManagerBase)PsiDocumentManager.getInstance(getProject())).disableBackgroundCommit(getTestRootDisposable());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      myCommitThread.setBeforeBackgroundCommitHook(null);
+      myCommitThread.clearQueue();
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testSameDocumentIsNeverCommittedConcurrently() throws Exception {
+    List<Document> documents = createDocuments(4);
+    Map<Document, AtomicInteger> running = new ConcurrentHashMap<>();
+    AtomicInteger maxRunningPerDocument = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    AtomicInteger total = new AtomicInteger();
+    myCommitThread.setBeforeBackgroundCommitHook(document -> {
+      int runningNow = total.incrementAndGet();
+      AtomicInteger counter = running.computeIfAbsent(document, d -> new AtomicInteger());
+      maxRunningPerDocument.accumulateAndGet(counter.incrementAndGet(), Math::max);
+      maxRunning.accumulateAndGet(runningNow, Math::max);
+      try {
+        Thread.sleep(20);
+      }
+      catch (InterruptedException ignored) {
+      }
+      finally {
+        counter.decrementAndGet();
+        total.decrementAndGet();
+      }
+    });
+
+    for (int round = 0; round < 10; round++) {
+      for (Document document : documents) {
+        changeDocument(document);
+        myCommitThread.commitAsynchronously(getProject(), document, "round " + round, null);
+      }
+      UIUtil.dispatchAllInvocationEvents();
+    }
+    myCommitThread.waitForAllCommits();
+
+    assertEquals(1, maxRunningPerDocument.get());
+    assertTrue(String.valueOf(maxRunning.get()), maxRunning.get() <= DocumentCommitThread.COMMIT_WORKERS);
+    for (Document document : documents) {
+      assertTrue(PsiDocumentManager.getInstance(getProject()).isCommitted(document));
+    }
+  }
+
+  public void testNewTaskCancelsOnlyItsOwnDocument() throws Exception {
+    if (DocumentCommitThread.COMMIT_WORKERS < 2) return; // the documents aren't committed simultaneously
+
+    List<Document> documents = createDocuments(2);
+    Document first = documents.get(0);
+    Document second = documents.get(1);
+    for (Document document : documents) {
+      changeDocument(document);
+    }
+
+    CountDownLatch started = new CountDownLatch(2);
+    CountDownLatch release = new CountDownLatch(1);
+    Map<Document, ProgressIndicator> firstIndicators = new ConcurrentHashMap<>();
+    myCommitThread.setBeforeBackgroundCommitHook(document -> {
+      if (firstIndicators.putIfAbsent(document, ProgressManager.getInstance().getProgressIndicator()) != null) return;
+      started.countDown();
+      try {
+        release.await(10, TimeUnit.SECONDS);
+      }
+      catch (InterruptedException ignored) {
+      }
+    });
+
+    myCommitThread.commitAsynchronously(getProject(), first, "first", null);
+    myCommitThread.commitAsynchronously(getProject(), second, "second", null);
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+
+    // no write action here, it would cancel all running commits
+    myCommitThread.commitAsynchronously(getProject(), first, "first again", null);
+    assertTrue(firstIndicators.get(first).isCanceled());
+    assertFalse(firstIndicators.get(second).isCanceled());
+
+    release.countDown();
+    myCommitThread.waitForAllCommits();
+    for (Document document : documents) {
+      assertTrue(PsiDocumentManager.getInstance(getProject()).isCommitted(document));
+    }
+  }
+
+  public void testFailedCommitIsQueuedAgain() throws Exception {
+    Document document = createDocuments(1).get(0);
+    AtomicInteger attempts = new AtomicInteger();
+    myCommitThread.setBeforeBackgroundCommitHook(d -> {
+      if (attempts.incrementAndGet() == 1) throw new IllegalStateException("first commit fails");
+    });
+
+    changeDocument(document);
+    myCommitThread.commitAsynchronously(getProject(), document, "failing", null);
+    // the worker queues the document again and commits it before it stops
+    myCommitThread.waitForAllCommits();
+
+    assertTrue(PsiDocumentManager.getInstance(getProject()).isCommitted(document));
+    assertEquals(2, attempts.get());
+  }
+
+  @NotNull
+  private static List<Document> createDocuments(int count) {
+    List<Document> documents = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      PsiFile file = createFile("a" + i + ".txt", "text " + i);
+      Document document = PsiDocumentManager.getInstance(getProject()).getDocument(file);
+      assertNotNull(document);
+      documents.add(document);
+    }
+    return documents;
+  }
+
+  private static void changeDocument(@NotNull Document document) {
+    WriteCommandAction.runWriteCommandAction(getProject(), () -> document.insertString(document.getTextLength(), " more"));
+    assertFalse(ApplicationManager.getApplication().isWriteAccessAllowed());
+  }
+}
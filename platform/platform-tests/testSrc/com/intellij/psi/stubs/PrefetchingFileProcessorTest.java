@@ -0,0 +1,137 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.stubs;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class PrefetchingFileProcessorTest extends TestCase {
+  private static final Executor SAME_THREAD = Runnable::run;
+
+  private ExecutorService myExecutor;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myExecutor = Executors.newFixedThreadPool(4);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      myExecutor.shutdownNow();
+      assertTrue(myExecutor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testFilesAreProcessedInOrderAfterLoading() {
+    TestProcessor processor = new TestProcessor(-1);
+    assertTrue(processor.processAll(1000, myExecutor, 32));
+
+    assertEquals(1000, processor.myProcessed.size());
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(i, (int)processor.myProcessed.get(i));
+    }
+    assertEquals(1000, processor.myLoaded.size());
+    assertTrue(processor.myProcessedBeforeLoading.isEmpty());
+  }
+
+  public void testStopOnFirstFileLoadsOnlyOneFileAhead() {
+    TestProcessor processor = new TestProcessor(0);
+    assertFalse(processor.processAll(1000, SAME_THREAD, 32));
+
+    assertEquals(Collections.singletonList(0), processor.myProcessed);
+    assertEquals(2, processor.myLoaded.size());
+  }
+
+  public void testWindowGrowsWhileProcessorAsksForMore() {
+    TestProcessor processor = new TestProcessor(3);
+    assertFalse(processor.processAll(1000, SAME_THREAD, 32));
+
+    assertEquals(4, processor.myProcessed.size());
+    // 1, 2, 4 and then 8 files ahead of the processed one
+    assertEquals(12, processor.myLoaded.size());
+  }
+
+  public void testWindowIsBounded() {
+    TestProcessor processor = new TestProcessor(100);
+    assertFalse(processor.processAll(1000, SAME_THREAD, 32));
+
+    assertEquals(101 + 32, processor.myLoaded.size());
+  }
+
+  public void testEarlyTerminationOnPool() throws Exception {
+    TestProcessor processor = new TestProcessor(5);
+    assertFalse(processor.processAll(1000, myExecutor, 32));
+
+    assertEquals(6, processor.myProcessed.size());
+    myExecutor.shutdown();
+    assertTrue(myExecutor.awaitTermination(10, TimeUnit.SECONDS));
+    assertTrue(String.valueOf(processor.myLoaded.size()), processor.myLoaded.size() <= 6 + 32);
+  }
+
+  public void testFailedLoadingDoesNotStopProcessing() {
+    TestProcessor processor = new TestProcessor(-1) {
+      @Override
+      protected Object load(int index) {
+        if (index % 3 == 0) throw new IllegalStateException("can't load " + index);
+        return super.load(index);
+      }
+    };
+    assertTrue(processor.processAll(100, myExecutor, 32));
+    assertEquals(100, processor.myProcessed.size());
+  }
+
+  private static class TestProcessor extends PrefetchingFileProcessor<Object> {
+    private final int myStopAt;
+    private final Set<Integer> myLoaded = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final List<Integer> myProcessed = new ArrayList<>();
+    private final List<Integer> myProcessedBeforeLoading = new ArrayList<>();
+
+    TestProcessor(int stopAt) {
+      myStopAt = stopAt;
+    }
+
+    @Override
+    protected Object load(int index) {
+      myLoaded.add(index);
+      return index;
+    }
+
+    @Override
+    protected boolean process(int index) {
+      if (!myLoaded.contains(index)) myProcessedBeforeLoading.add(index);
+      myProcessed.add(index);
+      return index != myStopAt;
+    }
+
+    @Override
+    protected void checkCanceled() {
+    }
+  }
+}
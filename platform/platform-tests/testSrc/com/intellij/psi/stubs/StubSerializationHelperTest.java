@@ -0,0 +1,241 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.stubs;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.DataInputOutputUtil;
+import com.intellij.util.io.IOUtil;
+import com.intellij.util.io.PersistentStringEnumerator;
+import com.intellij.util.io.UnsyncByteArrayInputStream;
+import com.intellij.util.io.UnsyncByteArrayOutputStream;
+import com.intellij.util.io.StringRef;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class StubSerializationHelperTest extends TestCase {
+  private static final NamedStubSerializer SERIALIZER = new NamedStubSerializer();
+
+  private File myFile;
+  private PersistentStringEnumerator myNameStorage;
+  private StubSerializationHelper myHelper;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myFile = FileUtil.createTempFile("stub-names", ".dat");
+    myNameStorage = new PersistentStringEnumerator(myFile, true);
+    myHelper = new StubSerializationHelper(myNameStorage);
+    myHelper.assignId(SERIALIZER);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      myNameStorage.close();
+      FileUtil.delete(myFile);
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testSerializedLayout() throws Exception {
+    byte[] bytes = serialize(createTree());
+    DataInputStream stream = new DataInputStream(new UnsyncByteArrayInputStream(bytes));
+
+    int stringCount = DataInputOutputUtil.readINT(stream);
+    assertEquals(7, stringCount);
+    for (int i = 0; i < stringCount; i++) {
+      IOUtil.readUTF(stream);
+    }
+    int stubsLength = DataInputOutputUtil.readINT(stream);
+    int stubsStart = bytes.length - stream.available();
+    assertEquals(stubsLength, stream.skipBytes(stubsLength));
+
+    int count = DataInputOutputUtil.readINT(stream);
+    assertEquals(7, count);
+    int[] parents = new int[count];
+    int[] offsets = new int[count];
+    int offset = 0;
+    for (int i = 0; i < count; i++) {
+      parents[i] = DataInputOutputUtil.readINT(stream) - 1;
+      offsets[i] = offset += DataInputOutputUtil.readINT(stream);
+    }
+    assertEquals(0, stream.available());
+    assertEquals("[-1, 0, 1, 1, 0, 4, 5]", Arrays.toString(parents));
+
+    // every offset points to the class id of the stub, right after the count of roots for the first one
+    assertEquals(1, offsets[0]);
+    for (int i = 0; i < count; i++) {
+      assertTrue(offsets[i] < stubsLength);
+      DataInputStream stubStream = new DataInputStream(new UnsyncByteArrayInputStream(bytes, stubsStart + offsets[i], bytes.length));
+      int id = DataInputOutputUtil.readINT(stubStream);
+      assertEquals(myNameStorage.enumerate(SERIALIZER.getExternalId()), id == 0 ? DataInputOutputUtil.readINT(stubStream) : id);
+    }
+  }
+
+  public void testFullDeserialization() throws Exception {
+    NamedStub root = createTree();
+    Stub stub = myHelper.deserialize(new UnsyncByteArrayInputStream(serialize(root)));
+    assertEquals(print(root), print(stub));
+    assertTrue(((ObjectStubBase)stub.getChildrenStubs().get(1).getChildrenStubs().get(0)).isDangling());
+  }
+
+  public void testSingleStubDeserialization() throws Exception {
+    NamedStub root = createTree();
+    List<NamedStub> expected = new ArrayList<NamedStub>();
+    collect(root, expected);
+    byte[] bytes = serialize(root);
+
+    StubSerializationHelper.StubTreeTable table = myHelper.readTable(bytes, bytes.length);
+    assertEquals(expected.size(), table.getStubCount());
+    for (int i = 0; i < expected.size(); i++) {
+      NamedStub stub = (NamedStub)myHelper.deserializeStub(table, i);
+      assertEquals(path(expected.get(i)), path(stub));
+      assertTrue(stub.getChildrenStubs().isEmpty());
+      for (NamedStub parent = stub.getParentStub(); parent != null; parent = parent.getParentStub()) {
+        assertEquals(1, parent.getChildrenStubs().size());
+      }
+    }
+    assertTrue(((NamedStub)myHelper.deserializeStub(table, 5)).isDangling());
+  }
+
+  public void testSingleStubDeserializationFromPrefix() throws Exception {
+    byte[] bytes = serialize(createTree());
+    byte[] padded = Arrays.copyOf(bytes, bytes.length + 10);
+
+    StubSerializationHelper.StubTreeTable table = myHelper.readTable(padded, bytes.length);
+    assertEquals("root/b/b1/b11", path((NamedStub)myHelper.deserializeStub(table, 6)));
+  }
+
+  public void testWrongStubIndex() throws Exception {
+    byte[] bytes = serialize(createTree());
+    StubSerializationHelper.StubTreeTable table = myHelper.readTable(bytes, bytes.length);
+    try {
+      myHelper.deserializeStub(table, 7);
+      fail();
+    }
+    catch (IOException ignored) {
+    }
+  }
+
+  public void testTruncatedStubs() throws Exception {
+    byte[] bytes = serialize(createTree());
+    try {
+      myHelper.readTable(bytes, bytes.length / 2);
+      fail();
+    }
+    catch (IOException ignored) {
+    }
+  }
+
+  @NotNull
+  private byte[] serialize(@NotNull Stub root) throws IOException {
+    UnsyncByteArrayOutputStream out = new UnsyncByteArrayOutputStream();
+    myHelper.serialize(root, out);
+    return out.toByteArray();
+  }
+
+  @NotNull
+  private static NamedStub createTree() {
+    NamedStub root = new NamedStub(null, "root");
+    NamedStub a = new NamedStub(root, "a");
+    new NamedStub(a, "a1");
+    new NamedStub(a, "a2");
+    NamedStub b = new NamedStub(root, "b");
+    NamedStub b1 = new NamedStub(b, "b1");
+    b1.markDangling();
+    new NamedStub(b1, "b11");
+    return root;
+  }
+
+  private static void collect(@NotNull NamedStub stub, @NotNull List<NamedStub> result) {
+    result.add(stub);
+    for (NamedStub child : stub.getChildrenStubs()) {
+      collect(child, result);
+    }
+  }
+
+  @NotNull
+  private static String path(@NotNull NamedStub stub) {
+    NamedStub parent = stub.getParentStub();
+    return parent == null ? stub.myName : path(parent) + "/" + stub.myName;
+  }
+
+  @NotNull
+  private static String print(@NotNull Stub stub) {
+    StringBuilder result = new StringBuilder(((NamedStub)stub).myName);
+    if (!stub.getChildrenStubs().isEmpty()) {
+      result.append("(");
+      for (Stub child : stub.getChildrenStubs()) {
+        result.append(print(child)).append(" ");
+      }
+      result.append(")");
+    }
+    return result.toString();
+  }
+
+  private static class NamedStub extends ObjectStubBase<NamedStub> {
+    private final String myName;
+    private final List<NamedStub> myChildren = new ArrayList<NamedStub>();
+
+    NamedStub(NamedStub parent, @NotNull String name) {
+      super(parent);
+      myName = name;
+      if (parent != null) parent.myChildren.add(this);
+    }
+
+    @Override
+    public List<NamedStub> getChildrenStubs() {
+      return myChildren;
+    }
+
+    @Override
+    public ObjectStubSerializer getStubType() {
+      return SERIALIZER;
+    }
+  }
+
+  private static class NamedStubSerializer implements ObjectStubSerializer<NamedStub, NamedStub> {
+    @NotNull
+    @Override
+    public String getExternalId() {
+      return "test.named.stub";
+    }
+
+    @Override
+    public void serialize(@NotNull NamedStub stub, @NotNull StubOutputStream dataStream) throws IOException {
+      dataStream.writeName(stub.myName);
+    }
+
+    @NotNull
+    @Override
+    public NamedStub deserialize(@NotNull StubInputStream dataStream, NamedStub parentStub) throws IOException {
+      return new NamedStub(parentStub, StringRef.toString(dataStream.readName()));
+    }
+
+    @Override
+    public void indexStub(@NotNull NamedStub stub, @NotNull IndexSink sink) {
+    }
+  }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.util.Condition;
+import gnu.trove.TIntHashSet;
+import gnu.trove.TIntProcedure;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+public class InvertedIndexUtilTest extends TestCase {
+  public void testIntersectionOfKeysWithDifferentFrequency() throws StorageException {
+    Random random = new Random(7);
+    TestIndex index = new TestIndex();
+    for (int id = 1; id <= 100000; id++) {
+      index.add("common", id % 2 == 0 ? "even" : "odd", id);
+      if (random.nextInt(10) == 0) index.add("frequent", "", id);
+      if (random.nextInt(1000) == 0) index.add("rare", "", id);
+    }
+
+    List<String> keys = Arrays.asList("common", "frequent", "rare");
+    TIntHashSet expected = bruteForce(index, keys, null);
+    assertFalse(expected.isEmpty());
+    assertEquals(expected, InvertedIndexUtil.collectInputIdsContainingAllKeys(index, keys, null, null, null));
+
+    Condition<String> evenOnly = new Condition<String>() {
+      @Override
+      public boolean value(String value) {
+        return value.isEmpty() || value.equals("even");
+      }
+    };
+    assertEquals(bruteForce(index, keys, evenOnly), InvertedIndexUtil.collectInputIdsContainingAllKeys(index, keys, null, evenOnly, null));
+  }
+
+  public void testEarlyTermination() throws StorageException {
+    TestIndex index = new TestIndex();
+    for (int id = 1; id <= 1000; id++) {
+      index.add("a", "", id);
+      index.add("b", "", id);
+    }
+
+    final int[] processed = {0};
+    assertFalse(InvertedIndexUtil.processInputIdsContainingAllKeys(index, Arrays.asList("a", "b"), null, null, null, new TIntProcedure() {
+      @Override
+      public boolean execute(int value) {
+        return ++processed[0] < 10;
+      }
+    }));
+    assertEquals(10, processed[0]);
+
+    index.myRequestedKeys.clear();
+    assertTrue(InvertedIndexUtil.collectInputIdsContainingAllKeys(index, Arrays.asList("a", "missing", "b"), null, null, null).isEmpty());
+    assertEquals(Arrays.asList("a", "missing"), index.myRequestedKeys);
+  }
+
+  private static TIntHashSet bruteForce(TestIndex index, Collection<String> keys, @Nullable Condition<String> valueChecker) {
+    TIntHashSet result = null;
+    for (String key : keys) {
+      TIntHashSet ids = new TIntHashSet();
+      for (Map.Entry<String, TIntHashSet> entry : index.myData.get(key).entrySet()) {
+        if (valueChecker == null || valueChecker.value(entry.getKey())) ids.addAll(entry.getValue().toArray());
+      }
+      if (result != null) ids.retainAll(result.toArray());
+      result = ids;
+    }
+    return result;
+  }
+
+  private static class TestIndex implements InvertedIndex<String, String, Void> {
+    final Map<String, Map<String, TIntHashSet>> myData = new HashMap<String, Map<String, TIntHashSet>>();
+    final List<String> myRequestedKeys = new ArrayList<String>();
+
+    void add(String key, String value, int id) {
+      Map<String, TIntHashSet> values = myData.get(key);
+      if (values == null) myData.put(key, values = new HashMap<String, TIntHashSet>());
+      TIntHashSet ids = values.get(value);
+      if (ids == null) values.put(value, ids = new TIntHashSet());
+      ids.add(id);
+    }
+
+    @NotNull
+    @Override
+    public ValueContainer<String> getData(@NotNull String key) {
+      myRequestedKeys.add(key);
+      Map<String, TIntHashSet> values = myData.get(key);
+      return new TestContainer(values != null ? values : Collections.<String, TIntHashSet>emptyMap());
+    }
+
+    @NotNull
+    @Override
+    public Computable<Boolean> update(int inputId, @Nullable Void content) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void clear() {
+    }
+
+    @Override
+    public void dispose() {
+    }
+  }
+
+  private static class TestContainer extends ValueContainer<String> {
+    private final Map<String, TIntHashSet> myValues;
+
+    TestContainer(Map<String, TIntHashSet> values) {
+      myValues = values;
+    }
+
+    @NotNull
+    @Override
+    public ValueIterator<String> getValueIterator() {
+      final Iterator<Map.Entry<String, TIntHashSet>> iterator = myValues.entrySet().iterator();
+      return new ValueIterator<String>() {
+        private TIntHashSet myIds;
+
+        @NotNull
+        @Override
+        public IntIterator getInputIdsIterator() {
+          final int[] ids = myIds.toArray();
+          return new IntIterator() {
+            private int myIndex;
+
+            @Override
+            public boolean hasNext() {
+              return myIndex < ids.length;
+            }
+
+            @Override
+            public int next() {
+              return ids[myIndex++];
+            }
+
+            @Override
+            public int size() {
+              return ids.length;
+            }
+          };
+        }
+
+        @Nullable
+        @Override
+        public IntPredicate getValueAssociationPredicate() {
+          final TIntHashSet ids = myIds;
+          return new IntPredicate() {
+            @Override
+            public boolean contains(int id) {
+              return ids.contains(id);
+            }
+          };
+        }
+
+        @Override
+        public boolean hasNext() {
+          return iterator.hasNext();
+        }
+
+        @Override
+        public String next() {
+          Map.Entry<String, TIntHashSet> next = iterator.next();
+          myIds = next.getValue();
+          return next.getKey();
+        }
+
+        @Override
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return myValues.size();
+    }
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing.containers;
+
+import com.intellij.util.io.DataInputOutputUtil;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntProcedure;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.TreeSet;
+
+public class CompressedIdSetTest extends TestCase {
+  public void testAddRemoveContains() {
+    Random random = new Random(1);
+    CompressedIdSet set = new CompressedIdSet();
+    TreeSet<Integer> expected = new TreeSet<Integer>();
+    for (int i = 0; i < 200000; ++i) {
+      // dense range turning chunks into bitmaps and back, and sparse ids all over the id space
+      int id = random.nextBoolean() ? 1 + random.nextInt(100000) : 1 + random.nextInt(Integer.MAX_VALUE - 1);
+      if (random.nextInt(4) == 0) {
+        assertEquals(expected.remove(id), set.remove(id));
+      }
+      else {
+        assertEquals(expected.add(id), set.add(id));
+      }
+      if (i % 50000 == 0) set.compact();
+    }
+    assertEquals(expected.size(), set.size());
+    for (int i = 0; i < 100000; ++i) {
+      int id = 1 + random.nextInt(150000);
+      assertEquals(expected.contains(id), set.contains(id));
+    }
+    assertSameIds(expected, set);
+    assertSameIds(expected, set.clone());
+  }
+
+  public void testSerialization() throws IOException {
+    Random random = new Random(3);
+    CompressedIdSet frequentKeyIds = new CompressedIdSet();
+    for (int i = 1; i < 400000; ++i) {
+      if (random.nextInt(3) != 0) frequentKeyIds.add(i);
+    }
+    for (int i = 0; i < 1000; ++i) frequentKeyIds.add(1 + random.nextInt(Integer.MAX_VALUE - 1));
+
+    ByteArrayOutputStream plain = new ByteArrayOutputStream();
+    DataOutputStream plainOut = new DataOutputStream(plain);
+    int prev = 0;
+    for (IntIdsIterator iterator = frequentKeyIds.intIterator(); iterator.hasNext(); ) {
+      int id = iterator.next();
+      DataInputOutputUtil.writeINT(plainOut, id - prev);
+      prev = id;
+    }
+
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    CompressedIdSet.writeSorted(new DataOutputStream(compressed), frequentKeyIds.intIterator());
+    // two thirds of the ids in the dense range take a byte each as deltas and about a bit in the bitmap chunks
+    assertTrue(compressed.size() + " " + plain.size(), compressed.size() * 3 < plain.size());
+
+    final CompressedIdSet read = new CompressedIdSet();
+    int count = CompressedIdSet.readSorted(new DataInputStream(new ByteArrayInputStream(compressed.toByteArray())), new TIntProcedure() {
+      @Override
+      public boolean execute(int value) {
+        assertTrue(read.add(value));
+        return true;
+      }
+    });
+    assertEquals(frequentKeyIds.size(), count);
+    TreeSet<Integer> expected = new TreeSet<Integer>();
+    for (IntIdsIterator iterator = frequentKeyIds.intIterator(); iterator.hasNext(); ) expected.add(iterator.next());
+    assertSameIds(expected, read);
+  }
+
+  public void testBufferingListSwitchesToCompressedSet() {
+    ChangeBufferingList list = new ChangeBufferingList();
+    TIntArrayList expected = new TIntArrayList();
+    for (int i = 1; i <= ChangeBufferingList.MAX_FILES * 3; ++i) {
+      int id = i * 1000; // sparse ids which would make a huge bit set
+      list.add(id);
+      expected.add(id);
+    }
+    list.remove(2000);
+    expected.remove(1);
+
+    IntIdsIterator iterator = list.sortedIntIterator();
+    assertEquals(expected.size(), iterator.size());
+    for (int i = 0; i < expected.size(); ++i) {
+      assertEquals(expected.get(i), iterator.next());
+    }
+    assertFalse(iterator.hasNext());
+    assertFalse(list.intPredicate().contains(2000));
+    assertTrue(list.intPredicate().contains(3000));
+  }
+
+  private static void assertSameIds(TreeSet<Integer> expected, CompressedIdSet set) {
+    assertEquals(expected.size(), set.size());
+    IntIdsIterator iterator = set.intIterator();
+    assertTrue(iterator.hasAscendingOrder());
+    for (Integer id : expected) {
+      assertTrue(iterator.hasNext());
+      assertEquals(id.intValue(), iterator.next());
+    }
+    assertFalse(iterator.hasNext());
+
+    final TIntArrayList processed = new TIntArrayList();
+    set.forEach(new TIntProcedure() {
+      @Override
+      public boolean execute(int value) {
+        processed.add(value);
+        return true;
+      }
+    });
+    assertEquals(expected.size(), processed.size());
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.concurrency.JobSchedulerImpl;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.util.ThrowableRunnable;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class PagedFileStoragePerformanceTest extends TestCase {
+  private static final int PAGE_SIZE = Page.PAGE_SIZE;
+  private static final int PAGE_COUNT = 64;
+  private static final int TOTAL_READS = 8000000;
+
+  private File myFile;
+  private PagedFileStorage.StorageLock myLock;
+  private PagedFileStorage myWriter;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myFile = FileUtil.createTempFile("storage", ".tmp");
+    myLock = new PagedFileStorage.StorageLock(false);
+    myWriter = new PagedFileStorage(myFile, myLock, PAGE_SIZE, true);
+    myWriter.resize((long)PAGE_SIZE * PAGE_COUNT);
+    for (int page = 0; page < PAGE_COUNT; page++) {
+      myWriter.putInt((long)page * PAGE_SIZE, page);
+    }
+    myWriter.force();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      myWriter.close();
+      FileUtil.delete(myFile);
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testConcurrentReadsScaleWithCores() {
+    // the same number of reads is split between all cores, so the time goes down only if page lookups don't serialize the readers
+    final int threadCount = JobSchedulerImpl.CORES_COUNT;
+    PlatformTestUtil.startPerformanceTest("Concurrent PagedFileStorage reads", 250, new ThrowableRunnable() {
+      @Override
+      public void run() throws Exception {
+        readConcurrently(threadCount, TOTAL_READS / threadCount);
+      }
+    }).cpuBound().usesAllCPUCores().assertTiming();
+  }
+
+  private void readConcurrently(int threadCount, final int readsPerThread) throws Exception {
+    List<PagedFileStorage> storages = new ArrayList<PagedFileStorage>();
+    List<Thread> threads = new ArrayList<Thread>();
+    final Throwable[] failure = new Throwable[1];
+    for (int i = 0; i < threadCount; i++) {
+      // every thread has its own storage so the per-storage last page cache does not hide StorageLock lookups
+      final PagedFileStorage storage = new PagedFileStorage(myFile, myLock, PAGE_SIZE, true);
+      final long seed = i;
+      storages.add(storage);
+      threads.add(new Thread("PagedFileStorage reader " + i) {
+        @Override
+        public void run() {
+          try {
+            Random random = new Random(seed);
+            for (int r = 0; r < readsPerThread; r++) {
+              int page = random.nextInt(PAGE_COUNT);
+              if (storage.getInt((long)page * PAGE_SIZE) != page) throw new AssertionError("Wrong value at page " + page);
+            }
+          }
+          catch (Throwable e) {
+            failure[0] = e;
+          }
+        }
+      });
+    }
+
+    try {
+      for (Thread thread : threads) thread.start();
+      for (Thread thread : threads) thread.join();
+    }
+    finally {
+      for (PagedFileStorage storage : storages) storage.close();
+    }
+    if (failure[0] != null) throw new AssertionError(failure[0]);
+  }
+}
@@ -471,4 +471,149 @@ public class PersistentMapTest extends TestCase {
     map.close();
     assertEquals(1400000000L, len);
   }
+
+  public void testConcurrentReadsWithAppends() throws Exception {
+    File file = FileUtil.createTempFile("persistent", "map");
+    final PersistentHashMap<String, String> map =
+      new PersistentHashMap<String, String>(file, new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor()) {
+        @Override
+        protected boolean allowsConcurrentReads() {
+          return true;
+        }
+      };
+    try {
+      final int keys = 1000;
+      for (int i = 0; i < keys; i++) {
+        map.put("key" + i, "value" + i);
+      }
+
+      final Throwable[] failure = new Throwable[1];
+      List<Thread> threads = new ArrayList<Thread>();
+      for (int t = 0; t < 4; t++) {
+        final int seed = t;
+        threads.add(new Thread("PersistentHashMap reader " + t) {
+          @Override
+          public void run() {
+            try {
+              Random random = new Random(seed);
+              for (int i = 0; i < 20000; i++) {
+                int key = random.nextInt(keys);
+                assertEquals("value" + key, map.get("key" + key));
+              }
+            }
+            catch (Throwable e) {
+              failure[0] = e;
+            }
+          }
+        });
+      }
+      threads.add(new Thread("PersistentHashMap writer") {
+        @Override
+        public void run() {
+          try {
+            for (int i = keys; i < 2 * keys; i++) {
+              map.put("key" + i, "value" + i);
+              if (i % 100 == 0) map.force();
+            }
+          }
+          catch (Throwable e) {
+            failure[0] = e;
+          }
+        }
+      });
+
+      for (Thread thread : threads) thread.start();
+      for (Thread thread : threads) thread.join();
+      if (failure[0] != null) throw new AssertionError(failure[0]);
+
+      for (int i = 0; i < 2 * keys; i++) {
+        assertEquals("value" + i, map.get("key" + i));
+      }
+    }
+    finally {
+      clearMap(file, map);
+    }
+  }
+
+  public void testConcurrentReadsWithCompactAndClose() throws Exception {
+    File file = FileUtil.createTempFile("persistent", "map");
+    final PersistentHashMap<String, String> map =
+      new PersistentHashMap<String, String>(file, new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor()) {
+        @Override
+        protected boolean allowsConcurrentReads() {
+          return true;
+        }
+      };
+    try {
+      final int keys = 1000;
+      for (int i = 0; i < keys; i++) {
+        map.put("key" + i, "value" + i);
+      }
+
+      final boolean[] closed = new boolean[1];
+      final Throwable[] failure = new Throwable[1];
+      List<Thread> threads = new ArrayList<Thread>();
+      for (int t = 0; t < 4; t++) {
+        final int seed = t;
+        threads.add(new Thread("PersistentHashMap reader " + t) {
+          @Override
+          public void run() {
+            Random random = new Random(seed);
+            while (true) {
+              synchronized (closed) {
+                if (closed[0]) return;
+              }
+              int key = random.nextInt(keys);
+              try {
+                String value = map.get("key" + key);
+                if (value != null && !value.startsWith("value" + key)) throw new AssertionError(value);
+              }
+              catch (Throwable e) {
+                synchronized (closed) {
+                  // the map may fail to read after being closed
+                  if (!closed[0]) failure[0] = e;
+                }
+                return;
+              }
+            }
+          }
+        });
+      }
+      threads.add(new Thread("PersistentHashMap compactor") {
+        @Override
+        public void run() {
+          try {
+            for (int round = 0; round < 5; round++) {
+              for (int i = 0; i < keys; i++) {
+                map.put("key" + i, "value" + i + "." + round);
+              }
+              map.compact();
+            }
+            Thread.sleep(10);
+            synchronized (closed) {
+              map.close();
+              closed[0] = true;
+            }
+          }
+          catch (Throwable e) {
+            failure[0] = e;
+          }
+        }
+      });
+
+      for (Thread thread : threads) {
+        // a deadlocked thread must not keep the test run from finishing
+        thread.setDaemon(true);
+        thread.start();
+      }
+      for (Thread thread : threads) {
+        thread.join(60000);
+        assertFalse("Deadlock in " + thread.getName(), thread.isAlive());
+      }
+      if (failure[0] != null) throw new AssertionError(failure[0]);
+    }
+    finally {
+      clearMap(file, map);
+    }
+  }
 }
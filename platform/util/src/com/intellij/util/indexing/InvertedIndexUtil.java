@@ -16,13 +16,15 @@
 package com.intellij.util.indexing;
 
 import com.intellij.openapi.util.Condition;
+import com.intellij.util.SmartList;
 import com.intellij.util.containers.EmptyIntHashSet;
+import gnu.trove.TIntArrayList;
 import gnu.trove.TIntHashSet;
 import gnu.trove.TIntProcedure;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.Collection;
+import java.util.*;
 
 public class InvertedIndexUtil {
   @NotNull
@@ -32,50 +34,137 @@ public class InvertedIndexUtil {
                                                                        @Nullable Condition<V> valueChecker,
                                                                        @Nullable ValueContainer.IntPredicate idChecker)
           throws StorageException {
-    TIntHashSet mainIntersection = null;
+    final TIntHashSet result = new TIntHashSet();
+    processInputIdsContainingAllKeys(index, dataKeys, keyChecker, valueChecker, idChecker, new TIntProcedure() {
+      @Override
+      public boolean execute(int id) {
+        result.add(id);
+        return true;
+      }
+    });
+    return result.isEmpty() ? EmptyIntHashSet.INSTANCE : result;
+  }
 
+  /**
+   * Passes to the processor ids of inputs associated with all the keys (and with values accepted by valueChecker).
+   * Keys are intersected from the one with the smallest number of inputs: only its ids are collected, and they are
+   * checked against predicates of the other keys, so no per key id set is built for frequent keys.
+   *
+   * @return false if the processor stopped the processing
+   */
+  public static <K, V, I> boolean processInputIdsContainingAllKeys(@NotNull InvertedIndex<K, V, I> index,
+                                                                   @NotNull Collection<K> dataKeys,
+                                                                   @Nullable Condition<K> keyChecker,
+                                                                   @Nullable Condition<V> valueChecker,
+                                                                   @Nullable ValueContainer.IntPredicate idChecker,
+                                                                   @NotNull TIntProcedure processor) throws StorageException {
+    List<KeyInputs<V>> keyInputs = new ArrayList<KeyInputs<V>>(dataKeys.size());
     for (K dataKey : dataKeys) {
       if (keyChecker != null && !keyChecker.value(dataKey)) continue;
 
-      final TIntHashSet copy = new TIntHashSet();
-      final ValueContainer<V> container = index.getData(dataKey);
+      KeyInputs<V> inputs = new KeyInputs<V>(index.getData(dataKey), valueChecker);
+      if (inputs.mySize == 0) return true; // no input contains all the keys, remaining keys are not read at all
+      keyInputs.add(inputs);
+    }
+    if (keyInputs.isEmpty()) return true;
+
+    Collections.sort(keyInputs, new Comparator<KeyInputs<V>>() {
+      @Override
+      public int compare(KeyInputs<V> o1, KeyInputs<V> o2) {
+        return o1.mySize < o2.mySize ? -1 : o1.mySize == o2.mySize ? 0 : 1;
+      }
+    });
+
+    int[] candidates = keyInputs.get(0).collectIds(idChecker);
+    int candidatesCount = candidates.length;
+    int lastKey = keyInputs.size() - 1;
 
+    for (int keyIndex = 1; keyIndex < lastKey && candidatesCount > 0; keyIndex++) {
+      ValueContainer.IntPredicate predicate = keyInputs.get(keyIndex).getPredicate();
+      int retained = 0;
+      for (int i = 0; i < candidatesCount; i++) {
+        int id = candidates[i];
+        if (predicate.contains(id)) candidates[retained++] = id;
+      }
+      candidatesCount = retained;
+    }
+
+    // the last, most frequent, key filters candidates right before they are passed to the processor
+    ValueContainer.IntPredicate lastPredicate = lastKey > 0 ? keyInputs.get(lastKey).getPredicate() : null;
+    for (int i = 0; i < candidatesCount; i++) {
+      int id = candidates[i];
+      if ((lastPredicate == null || lastPredicate.contains(id)) && !processor.execute(id)) return false;
+    }
+    return true;
+  }
+
+  private static class KeyInputs<V> {
+    private final ValueContainer<V> myContainer;
+    @Nullable private final Condition<V> myValueChecker;
+    private final int mySize;
+
+    KeyInputs(@NotNull ValueContainer<V> container, @Nullable Condition<V> valueChecker) {
+      myContainer = container;
+      myValueChecker = valueChecker;
+      int size = 0;
       for (ValueContainer.ValueIterator<V> valueIt = container.getValueIterator(); valueIt.hasNext(); ) {
         final V value = valueIt.next();
-        if (valueChecker != null && !valueChecker.value(value)) {
-          continue;
-        }
+        if (valueChecker != null && !valueChecker.value(value)) continue;
+        size += valueIt.getInputIdsIterator().size();
+      }
+      mySize = size;
+    }
 
-        ValueContainer.IntIterator iterator = valueIt.getInputIdsIterator();
+    @NotNull
+    int[] collectIds(@Nullable ValueContainer.IntPredicate idChecker) {
+      TIntArrayList ids = new TIntArrayList(mySize);
+      int acceptedValues = 0;
+      for (ValueContainer.ValueIterator<V> valueIt = myContainer.getValueIterator(); valueIt.hasNext(); ) {
+        final V value = valueIt.next();
+        if (myValueChecker != null && !myValueChecker.value(value)) continue;
+        acceptedValues++;
+        for (ValueContainer.IntIterator iterator = valueIt.getInputIdsIterator(); iterator.hasNext(); ) {
+          final int id = iterator.next();
+          if (idChecker == null || idChecker.contains(id)) ids.add(id);
+        }
+      }
+      if (acceptedValues > 1) { // the same input can be associated with several values
+        return new TIntHashSet(ids.toNativeArray()).toArray();
+      }
+      return ids.toNativeArray();
+    }
 
-        final ValueContainer.IntPredicate predicate;
-        if (mainIntersection == null || iterator.size() < mainIntersection.size() || (predicate = valueIt.getValueAssociationPredicate()) == null) {
-          while (iterator.hasNext()) {
-            final int id = iterator.next();
-            if (mainIntersection == null && (idChecker == null || idChecker.contains(id)) ||
-                mainIntersection != null && mainIntersection.contains(id)
-                    ) {
-              copy.add(id);
-            }
+    @NotNull
+    ValueContainer.IntPredicate getPredicate() {
+      final List<ValueContainer.IntPredicate> predicates = new SmartList<ValueContainer.IntPredicate>();
+      for (ValueContainer.ValueIterator<V> valueIt = myContainer.getValueIterator(); valueIt.hasNext(); ) {
+        final V value = valueIt.next();
+        if (myValueChecker != null && !myValueChecker.value(value)) continue;
+        ValueContainer.IntPredicate predicate = valueIt.getValueAssociationPredicate();
+        if (predicate == null) {
+          final TIntHashSet ids = new TIntHashSet();
+          for (ValueContainer.IntIterator iterator = valueIt.getInputIdsIterator(); iterator.hasNext(); ) {
+            ids.add(iterator.next());
           }
-        }
-        else {
-          mainIntersection.forEach(new TIntProcedure() {
+          predicate = new ValueContainer.IntPredicate() {
             @Override
-            public boolean execute(int id) {
-              if (predicate.contains(id)) copy.add(id);
-              return true;
+            public boolean contains(int id) {
+              return ids.contains(id);
             }
-          });
+          };
         }
+        predicates.add(predicate);
       }
-
-      mainIntersection = copy;
-      if (mainIntersection.isEmpty()) {
-        return EmptyIntHashSet.INSTANCE;
-      }
+      if (predicates.size() == 1) return predicates.get(0);
+      return new ValueContainer.IntPredicate() {
+        @Override
+        public boolean contains(int id) {
+          for (ValueContainer.IntPredicate predicate : predicates) {
+            if (predicate.contains(id)) return true;
+          }
+          return false;
+        }
+      };
     }
-
-    return mainIntersection == null ? EmptyIntHashSet.INSTANCE : mainIntersection;
   }
 }
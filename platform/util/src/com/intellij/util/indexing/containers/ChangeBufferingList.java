@@ -15,6 +15,7 @@
  */
 package com.intellij.util.indexing.containers;
 
+import com.intellij.util.SystemProperties;
 import com.intellij.util.indexing.impl.DebugAssertions;
 import com.intellij.util.indexing.ValueContainer;
 import gnu.trove.TIntProcedure;
@@ -35,6 +36,10 @@ import static com.intellij.util.indexing.impl.DebugAssertions.EXTRA_SANITY_CHECK
 public class ChangeBufferingList implements Cloneable {
   static final int MAX_FILES = 20000; // less than Short.MAX_VALUE
   //static final int MAX_FILES = 100;
+  /**
+   * Also switches the serialized form of large id sets, so it is a part of index versions.
+   */
+  public static final boolean COMPRESSED_ID_SETS_ENABLED = SystemProperties.getBooleanProperty("idea.indexing.compressed.id.sets", true);
   private volatile int[] changes;
   private short length;
   private boolean hasRemovals;
@@ -46,7 +51,7 @@ public class ChangeBufferingList implements Cloneable {
   public ChangeBufferingList() { this(3); }
   public ChangeBufferingList(int length) {
     if (length > MAX_FILES) {
-      randomAccessContainer = new IdBitSet(length);
+      randomAccessContainer = COMPRESSED_ID_SETS_ENABLED ? new CompressedIdSet() : new IdBitSet(length);
     } else {
       changes = new int[length];
     }
@@ -142,8 +147,10 @@ public class ChangeBufferingList implements Cloneable {
           }
         }
         else if (!hasRemovals) {
-          idSet = new IdBitSet(changes, length, 0);
+          idSet = COMPRESSED_ID_SETS_ENABLED ? new CompressedIdSet(changes, length) : new IdBitSet(changes, length, 0);
           copyChanges = false;
+        } else if (COMPRESSED_ID_SETS_ENABLED) {
+          idSet = new CompressedIdSet();
         } else {
           idSet = new IdBitSet(calcMinMax(changes, length), 0);
         }
@@ -242,6 +249,10 @@ public class ChangeBufferingList implements Cloneable {
     }
   }
 
+  static RandomAccessIntContainer createLargeContainer(RandomAccessIntContainer container, int additionalCount) {
+    return COMPRESSED_ID_SETS_ENABLED ? new CompressedIdSet(container) : new IdBitSet(container, additionalCount);
+  }
+
   static int calcNextArraySize(int currentSize, int wantedSize) {
     return Math.min(
             Math.max(currentSize < 1024 ? currentSize << 1 : currentSize + currentSize / 5, wantedSize),
@@ -0,0 +1,450 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing.containers;
+
+import com.intellij.util.indexing.ValueContainer;
+import com.intellij.util.io.DataInputOutputUtil;
+import gnu.trove.TIntProcedure;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Set of positive ids split into chunks by upper 16 bits of id (roaring bitmap layout): sparse chunk keeps sorted lower 16 bits
+ * of its ids in char[], chunk with more than {@link #MAX_ARRAY_CHUNK_SIZE} ids is a bitmap of 1024 longs.
+ * Unlike {@link IdBitSet} memory usage is proportional to number of ids and not to the range they span.
+ */
+public class CompressedIdSet implements Cloneable, RandomAccessIntContainer {
+  private static final int CHUNK_SHIFT = 16;
+  private static final int LOW_MASK = (1 << CHUNK_SHIFT) - 1;
+  private static final int BITMAP_WORDS = (1 << CHUNK_SHIFT) >> 6;
+  static final int MAX_ARRAY_CHUNK_SIZE = 4096; // bitmap chunk takes 8K, the same as the array of 4096 chars
+
+  // chunk serialized as a bitmap when it is smaller than its ids written with one byte delta each
+  private static final int MIN_SERIALIZED_BITMAP_CHUNK_SIZE = BITMAP_WORDS * 8;
+
+  private int[] myKeys;
+  private Object[] myChunks; // char[] or long[]
+  private int[] myChunkSizes;
+  private int myChunksCount;
+  private int mySize;
+
+  public CompressedIdSet() {
+    myKeys = new int[2];
+    myChunks = new Object[2];
+    myChunkSizes = new int[2];
+  }
+
+  CompressedIdSet(@NotNull RandomAccessIntContainer set) {
+    this();
+    addAll(set.intIterator());
+  }
+
+  CompressedIdSet(@NotNull int[] ids, int count) {
+    this();
+    for (int i = 0; i < count; ++i) add(ids[i]);
+  }
+
+  private void addAll(@NotNull ValueContainer.IntIterator iterator) {
+    while (iterator.hasNext()) add(iterator.next());
+  }
+
+  @Override
+  public int size() {
+    return mySize;
+  }
+
+  public boolean isEmpty() {
+    return mySize == 0;
+  }
+
+  private int findChunk(int key) {
+    if (myChunksCount > 0 && myKeys[myChunksCount - 1] == key) return myChunksCount - 1; // ids mostly come in ascending order
+    return Arrays.binarySearch(myKeys, 0, myChunksCount, key);
+  }
+
+  @Override
+  public boolean contains(int value) {
+    if (value <= 0) return false;
+    int index = findChunk(value >>> CHUNK_SHIFT);
+    if (index < 0) return false;
+    return chunkContains(myChunks[index], myChunkSizes[index], value & LOW_MASK);
+  }
+
+  private static boolean chunkContains(Object chunk, int chunkSize, int low) {
+    if (chunk instanceof long[]) {
+      return (((long[])chunk)[low >> 6] & (1L << low)) != 0;
+    }
+    return Arrays.binarySearch((char[])chunk, 0, chunkSize, (char)low) >= 0;
+  }
+
+  @Override
+  public boolean add(int value) {
+    assert value > 0;
+    int key = value >>> CHUNK_SHIFT;
+    int low = value & LOW_MASK;
+    int index = findChunk(key);
+    if (index < 0) {
+      index = -index - 1;
+      insertChunk(index, key, new char[4], 0);
+    }
+
+    Object chunk = myChunks[index];
+    int chunkSize = myChunkSizes[index];
+    if (chunk instanceof long[]) {
+      long[] bitmap = (long[])chunk;
+      long mask = 1L << low;
+      if ((bitmap[low >> 6] & mask) != 0) return false;
+      bitmap[low >> 6] |= mask;
+    }
+    else {
+      char[] array = (char[])chunk;
+      int pos = chunkSize == 0 || array[chunkSize - 1] < low ? -chunkSize - 1 : Arrays.binarySearch(array, 0, chunkSize, (char)low);
+      if (pos >= 0) return false;
+      pos = -pos - 1;
+
+      if (chunkSize == MAX_ARRAY_CHUNK_SIZE) {
+        long[] bitmap = toBitmap(array, chunkSize);
+        bitmap[low >> 6] |= 1L << low;
+        myChunks[index] = bitmap;
+      }
+      else {
+        if (chunkSize == array.length) {
+          char[] newArray = new char[Math.min(MAX_ARRAY_CHUNK_SIZE, chunkSize < 1024 ? chunkSize << 1 : chunkSize + chunkSize / 2)];
+          System.arraycopy(array, 0, newArray, 0, chunkSize);
+          myChunks[index] = array = newArray;
+        }
+        if (pos < chunkSize) System.arraycopy(array, pos, array, pos + 1, chunkSize - pos);
+        array[pos] = (char)low;
+      }
+    }
+    myChunkSizes[index] = chunkSize + 1;
+    ++mySize;
+    return true;
+  }
+
+  @Override
+  public boolean remove(int value) {
+    if (value <= 0) return false;
+    int index = findChunk(value >>> CHUNK_SHIFT);
+    if (index < 0) return false;
+    int low = value & LOW_MASK;
+
+    Object chunk = myChunks[index];
+    int chunkSize = myChunkSizes[index];
+    if (chunk instanceof long[]) {
+      long[] bitmap = (long[])chunk;
+      long mask = 1L << low;
+      if ((bitmap[low >> 6] & mask) == 0) return false;
+      bitmap[low >> 6] &= ~mask;
+    }
+    else {
+      char[] array = (char[])chunk;
+      int pos = Arrays.binarySearch(array, 0, chunkSize, (char)low);
+      if (pos < 0) return false;
+      System.arraycopy(array, pos + 1, array, pos, chunkSize - pos - 1);
+    }
+    --mySize;
+    if (chunkSize == 1) {
+      removeChunk(index);
+    }
+    else {
+      myChunkSizes[index] = chunkSize - 1;
+    }
+    return true;
+  }
+
+  private void insertChunk(int index, int key, Object chunk, int chunkSize) {
+    if (myChunksCount == myKeys.length) {
+      int newCapacity = Math.max(4, myChunksCount + (myChunksCount >> 1));
+      myKeys = Arrays.copyOf(myKeys, newCapacity);
+      myChunks = Arrays.copyOf(myChunks, newCapacity);
+      myChunkSizes = Arrays.copyOf(myChunkSizes, newCapacity);
+    }
+    int tail = myChunksCount - index;
+    if (tail > 0) {
+      System.arraycopy(myKeys, index, myKeys, index + 1, tail);
+      System.arraycopy(myChunks, index, myChunks, index + 1, tail);
+      System.arraycopy(myChunkSizes, index, myChunkSizes, index + 1, tail);
+    }
+    myKeys[index] = key;
+    myChunks[index] = chunk;
+    myChunkSizes[index] = chunkSize;
+    ++myChunksCount;
+  }
+
+  private void removeChunk(int index) {
+    int tail = myChunksCount - index - 1;
+    if (tail > 0) {
+      System.arraycopy(myKeys, index + 1, myKeys, index, tail);
+      System.arraycopy(myChunks, index + 1, myChunks, index, tail);
+      System.arraycopy(myChunkSizes, index + 1, myChunkSizes, index, tail);
+    }
+    --myChunksCount;
+    myChunks[myChunksCount] = null;
+  }
+
+  private static long[] toBitmap(char[] array, int size) {
+    long[] bitmap = new long[BITMAP_WORDS];
+    for (int i = 0; i < size; ++i) {
+      bitmap[array[i] >> 6] |= 1L << array[i];
+    }
+    return bitmap;
+  }
+
+  private static char[] toArray(long[] bitmap, int size) {
+    char[] array = new char[size];
+    int pos = 0;
+    for (int word = 0; word < BITMAP_WORDS; ++word) {
+      long bits = bitmap[word];
+      while (bits != 0) {
+        array[pos++] = (char)((word << 6) + Long.numberOfTrailingZeros(bits));
+        bits &= bits - 1;
+      }
+    }
+    return array;
+  }
+
+  @Override
+  public void compact() {
+    for (int i = 0; i < myChunksCount; ++i) {
+      Object chunk = myChunks[i];
+      int chunkSize = myChunkSizes[i];
+      if (chunk instanceof long[]) {
+        if (chunkSize <= MAX_ARRAY_CHUNK_SIZE / 2) myChunks[i] = toArray((long[])chunk, chunkSize);
+      }
+      else if (((char[])chunk).length > chunkSize + chunkSize / 2 + 4) {
+        myChunks[i] = Arrays.copyOf((char[])chunk, chunkSize);
+      }
+    }
+  }
+
+  @Override
+  public RandomAccessIntContainer ensureContainerCapacity(int diff) {
+    return this;
+  }
+
+  @Override
+  public CompressedIdSet clone() {
+    try {
+      CompressedIdSet clone = (CompressedIdSet)super.clone();
+      clone.myKeys = Arrays.copyOf(myKeys, myChunksCount);
+      clone.myChunkSizes = Arrays.copyOf(myChunkSizes, myChunksCount);
+      clone.myChunks = new Object[myChunksCount];
+      for (int i = 0; i < myChunksCount; ++i) {
+        Object chunk = myChunks[i];
+        clone.myChunks[i] = chunk instanceof long[] ? ((long[])chunk).clone() : Arrays.copyOf((char[])chunk, myChunkSizes[i]);
+      }
+      return clone;
+    }
+    catch (CloneNotSupportedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public ValueContainer.IntPredicate intPredicate() {
+    return new ValueContainer.IntPredicate() {
+      @Override
+      public boolean contains(int id) {
+        return CompressedIdSet.this.contains(id);
+      }
+    };
+  }
+
+  @Override
+  public IntIdsIterator intIterator() {
+    return new Iterator();
+  }
+
+  public void forEach(@NotNull TIntProcedure procedure) {
+    for (int i = 0; i < myChunksCount; ++i) {
+      if (!processChunk(myKeys[i] << CHUNK_SHIFT, myChunks[i], myChunkSizes[i], procedure)) return;
+    }
+  }
+
+  private static boolean processChunk(int base, Object chunk, int chunkSize, TIntProcedure procedure) {
+    if (chunk instanceof long[]) {
+      long[] bitmap = (long[])chunk;
+      for (int word = 0; word < BITMAP_WORDS; ++word) {
+        long bits = bitmap[word];
+        while (bits != 0) {
+          if (!procedure.execute(base + (word << 6) + Long.numberOfTrailingZeros(bits))) return false;
+          bits &= bits - 1;
+        }
+      }
+    }
+    else {
+      char[] array = (char[])chunk;
+      for (int j = 0; j < chunkSize; ++j) {
+        if (!procedure.execute(base + array[j])) return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Writes ascending positive ids chunk by chunk: dense chunks as bitmaps, other ones as lower 16 bits deltas.
+   * Ids written with the method are read with {@link #readSorted(DataInput, TIntProcedure)}.
+   */
+  public static void writeSorted(@NotNull DataOutput out, @NotNull ValueContainer.IntIterator sortedIds) throws IOException {
+    char[] lows = null;
+    int chunkSize = 0;
+    int chunkKey = -1;
+    int prevKey = -1;
+
+    while (true) {
+      boolean hasNext = sortedIds.hasNext();
+      int id = hasNext ? sortedIds.next() : 0;
+      int key = id >>> CHUNK_SHIFT;
+      if (chunkSize > 0 && (!hasNext || key != chunkKey)) {
+        DataInputOutputUtil.writeINT(out, chunkKey - prevKey);
+        writeChunk(out, lows, chunkSize);
+        prevKey = chunkKey;
+        chunkSize = 0;
+      }
+      if (!hasNext) break;
+
+      assert id > 0 && key >= chunkKey;
+      if (lows == null) lows = new char[Math.min(1 << CHUNK_SHIFT, Math.max(16, sortedIds.size()))];
+      else if (chunkSize == lows.length) lows = Arrays.copyOf(lows, Math.min(1 << CHUNK_SHIFT, chunkSize << 1));
+      chunkKey = key;
+      lows[chunkSize++] = (char)(id & LOW_MASK);
+    }
+    DataInputOutputUtil.writeINT(out, 0);
+  }
+
+  private static void writeChunk(DataOutput out, char[] lows, int chunkSize) throws IOException {
+    if (chunkSize >= MIN_SERIALIZED_BITMAP_CHUNK_SIZE) {
+      DataInputOutputUtil.writeINT(out, -chunkSize);
+      long[] bitmap = toBitmap(lows, chunkSize);
+      for (long word : bitmap) out.writeLong(word);
+    }
+    else {
+      DataInputOutputUtil.writeINT(out, chunkSize);
+      int prev = -1;
+      for (int i = 0; i < chunkSize; ++i) {
+        DataInputOutputUtil.writeINT(out, lows[i] - prev);
+        prev = lows[i];
+      }
+    }
+  }
+
+  /**
+   * @return number of read ids
+   */
+  public static int readSorted(@NotNull DataInput in, @NotNull TIntProcedure consumer) throws IOException {
+    int count = 0;
+    int key = -1;
+    while (true) {
+      int keyDelta = DataInputOutputUtil.readINT(in);
+      if (keyDelta == 0) return count;
+      key += keyDelta;
+      int base = key << CHUNK_SHIFT;
+
+      int chunkSize = DataInputOutputUtil.readINT(in);
+      if (chunkSize < 0) {
+        for (int word = 0; word < BITMAP_WORDS; ++word) {
+          long bits = in.readLong();
+          while (bits != 0) {
+            consumer.execute(base + (word << 6) + Long.numberOfTrailingZeros(bits));
+            bits &= bits - 1;
+          }
+        }
+        count -= chunkSize;
+      }
+      else {
+        int low = -1;
+        for (int i = 0; i < chunkSize; ++i) {
+          low += DataInputOutputUtil.readINT(in);
+          consumer.execute(base + low);
+        }
+        count += chunkSize;
+      }
+    }
+  }
+
+  private class Iterator implements IntIdsIterator {
+    private int myChunkIndex;
+    private int myPositionInChunk; // index in array or bit index in bitmap
+    private int myNext = -1;
+
+    Iterator() {
+      advance();
+    }
+
+    private void advance() {
+      while (myChunkIndex < myChunksCount) {
+        Object chunk = myChunks[myChunkIndex];
+        int base = myKeys[myChunkIndex] << CHUNK_SHIFT;
+        if (chunk instanceof long[]) {
+          long[] bitmap = (long[])chunk;
+          int word = myPositionInChunk >> 6;
+          if (word < BITMAP_WORDS) {
+            long bits = bitmap[word] & (-1L << myPositionInChunk);
+            while (true) {
+              if (bits != 0) {
+                int low = (word << 6) + Long.numberOfTrailingZeros(bits);
+                myNext = base + low;
+                myPositionInChunk = low + 1;
+                return;
+              }
+              if (++word == BITMAP_WORDS) break;
+              bits = bitmap[word];
+            }
+          }
+        }
+        else if (myPositionInChunk < myChunkSizes[myChunkIndex]) {
+          myNext = base + ((char[])chunk)[myPositionInChunk++];
+          return;
+        }
+        ++myChunkIndex;
+        myPositionInChunk = 0;
+      }
+      myNext = -1;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return myNext != -1;
+    }
+
+    @Override
+    public int next() {
+      int next = myNext;
+      advance();
+      return next;
+    }
+
+    @Override
+    public int size() {
+      return mySize;
+    }
+
+    @Override
+    public boolean hasAscendingOrder() {
+      return true;
+    }
+
+    @Override
+    public IntIdsIterator createCopyInInitialState() {
+      return new Iterator();
+    }
+  }
+}
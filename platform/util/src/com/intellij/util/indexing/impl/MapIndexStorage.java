@@ -89,7 +89,8 @@ public abstract class MapIndexStorage<Key, Value> implements IndexStorage<Key, V
           @NotNull
           @Override
           public Object getLock() {
-            return map.getDataAccessLock();
+            // map reads don't need the map monitor in concurrent mode, so only initialization of this particular container is guarded
+            return map.readsConcurrently() ? this : map.getDataAccessLock();
           }
 
           @Nullable
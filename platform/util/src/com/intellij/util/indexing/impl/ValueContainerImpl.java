@@ -22,11 +22,13 @@ import com.intellij.util.containers.EmptyIterator;
 import com.intellij.util.indexing.ID;
 import com.intellij.util.indexing.ValueContainer;
 import com.intellij.util.indexing.containers.ChangeBufferingList;
+import com.intellij.util.indexing.containers.CompressedIdSet;
 import com.intellij.util.indexing.containers.IdSet;
 import com.intellij.util.indexing.containers.IntIdsIterator;
 import com.intellij.util.io.DataExternalizer;
 import com.intellij.util.io.DataInputOutputUtil;
 import gnu.trove.THashMap;
+import gnu.trove.TIntProcedure;
 import gnu.trove.TObjectObjectProcedure;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -429,6 +431,11 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
 
         if (intIterator.size() == 1) {
           DataInputOutputUtil.writeINT(out, intIterator.next());
+        } else if (ChangeBufferingList.COMPRESSED_ID_SETS_ENABLED && intIterator.size() >= COMPRESSED_ID_SET_SERIALIZATION_THRESHOLD) {
+          // zero delta marks chunked encoding: ids of the same 64K range as bitmap or 16 bit deltas
+          DataInputOutputUtil.writeINT(out, -intIterator.size());
+          DataInputOutputUtil.writeINT(out, 0);
+          CompressedIdSet.writeSorted(out, intIterator);
         } else {
           DataInputOutputUtil.writeINT(out, -intIterator.size());
           IdSet checkSet = originalInput.getCheckSet();
@@ -452,6 +459,7 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
   }
 
   static final int NUMBER_OF_VALUES_THRESHOLD = 20;
+  private static final int COMPRESSED_ID_SET_SERIALIZATION_THRESHOLD = 4096;
 
   public void readFrom(DataInputStream stream, DataExternalizer<Value> externalizer) throws IOException {
     FileId2ValueMapping<Value> mapping = null;
@@ -486,11 +494,24 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
             if (mapping != null) mapping.associateFileIdToValue(idCountOrSingleValue, value);
           } else {
             idCountOrSingleValue = -idCountOrSingleValue;
-            ChangeBufferingList changeBufferingList = ensureFileSetCapacityForValue(value, idCountOrSingleValue);
+            final ChangeBufferingList changeBufferingList = ensureFileSetCapacityForValue(value, idCountOrSingleValue);
             int prev = 0;
 
             for (int i = 0; i < idCountOrSingleValue; i++) {
               final int id = DataInputOutputUtil.readINT(stream);
+              if (id == 0 && i == 0) { // ids are ascending and positive, so only chunked encoding starts with zero delta
+                final FileId2ValueMapping<Value> finalMapping = mapping;
+                CompressedIdSet.readSorted(stream, new TIntProcedure() {
+                  @Override
+                  public boolean execute(int inputId) {
+                    if (changeBufferingList != null) changeBufferingList.add(inputId);
+                    else addValue(inputId, value);
+                    if (finalMapping != null) finalMapping.associateFileIdToValue(inputId, value);
+                    return true;
+                  }
+                });
+                break;
+              }
               if (changeBufferingList != null)  changeBufferingList.add(prev + id);
               else addValue(prev + id, value);
               if (mapping != null) mapping.associateFileIdToValue(prev + id, value);
@@ -45,6 +45,10 @@ class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, UpdatableValu
     return myEnumerator;
   }
 
+  boolean readsConcurrently() {
+    return allowsConcurrentReads();
+  }
+
   @Override
   protected void doPut(Key key, UpdatableValueContainer<Value> container) throws IOException {
     synchronized (myEnumerator) {
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.ThreadLocalCachedByteArray;
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.openapi.util.io.ByteSequence;
+import org.iq80.snappy.CorruptionException;
+import org.iq80.snappy.Snappy;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of stored contents, e.g. of the files contents saved by the VFS and the local history.
+ * <p/>
+ * A record produced by {@link #encode} starts with the id of the codec it was compressed with, so the codec can be changed
+ * without rebuilding the storage. No id has 8 in its lower four bits, while a zlib stream always starts with such a byte,
+ * so the records can be told apart from the ones compressed with plain {@link java.util.zip.DeflaterOutputStream} before.
+ * <p/>
+ * Codecs keep their compressors and buffers per thread and can be used from any thread.
+ */
+public abstract class ContentCodec {
+  private static final Logger LOG = Logger.getInstance(ContentCodec.class);
+
+  @NonNls static final byte[] SOURCE_CODE_DICTIONARY = (
+    "                   ;\r\n\r\n\r\n\r\n\n\n\n { {\r\n }\r\n = == != < > >= <= ? : ++ += -- -= [] [i] () ()) ())) (); ()); ())); () {" +
+    "// /* /** */ * opyright (c)package com.import java.utilimport javax.swingimport java.awt" +
+    "import com.intellijimport org.import gnu.*;new super(this(public interface extends implements " +
+    "public abstract class public class private final static final protected synchronized my our " +
+    "instanceof throws return return;if (else {for (while (do {break;continue;throw try {catch (finally {" +
+    "null;true;false;void byte short int long boolean float double Object String Class System.Exception Throwable" +
+    "getsetputcontainsrunashCodeequalslengthsizeremoveaddclearwritereadopenclosename=\"getNamerray" +
+    "istollectionHashMapSetnpututputtreamhildrenarentrootitemctionefaultrojectomponentpplicationerializ" +
+    "Created by IntelliJ IDEA.@author Logger ettingsFontialog JPanel JLabel JCheckBox JComboBox JList JSpinner " +
+    "<html>/>\r\n<head</head><body bgcolor=</body>table<?xml version=\"<!DOCTYPE HTML PUBLIC \"-//W3C//DTD HTML" +
+    "titleframecaret<a href=\"http://</a><div </div><td </td><tr </tr><p </p><hscripttext/css<img src=" +
+    "<!--><link rel=width=height=align=span=centerrightleftstyle=celljsp:rootxmlns:avascript").getBytes();
+
+  /**
+   * Keeps the bytes as is, used for the contents which can't be compressed.
+   */
+  public static final ContentCodec STORED = new StoredCodec();
+  /**
+   * Fast compression with a moderate ratio, the default one.
+   */
+  public static final ContentCodec SNAPPY = new SnappyCodec();
+  /**
+   * Slower compression with a better ratio, primed with a dictionary of the common source code words.
+   */
+  public static final ContentCodec DEFLATE = new DeflateCodec((byte)3, "deflate", Deflater.DEFAULT_COMPRESSION, SOURCE_CODE_DICTIONARY);
+
+  private static final ContentCodec[] ourCodecs = {STORED, SNAPPY, DEFLATE};
+
+  private static final ContentCodec ourDefaultCodec = findCodec(System.getProperty("idea.stored.content.codec", SNAPPY.myName));
+
+  private final byte myId;
+  @NotNull private final String myName;
+
+  protected ContentCodec(byte id, @NotNull String name) {
+    assert (id & 0x0F) != 0x08 : "Id " + id + " can't be distinguished from a zlib header";
+    myId = id;
+    myName = name;
+  }
+
+  @NotNull
+  public String getName() {
+    return myName;
+  }
+
+  protected abstract void compress(@NotNull byte[] bytes, int off, int len, @NotNull BufferExposingByteArrayOutputStream out)
+    throws IOException;
+
+  @NotNull
+  protected abstract byte[] decompress(@NotNull byte[] bytes, int off, int len) throws IOException;
+
+  @NotNull
+  public static ContentCodec getDefault() {
+    return ourDefaultCodec;
+  }
+
+  @NotNull
+  private static ContentCodec findCodec(@NotNull String name) {
+    for (ContentCodec codec : ourCodecs) {
+      if (codec.myName.equals(name)) return codec;
+    }
+    LOG.warn("Unknown content codec " + name + ", " + SNAPPY.myName + " is used");
+    return SNAPPY;
+  }
+
+  @Nullable
+  private static ContentCodec findCodec(byte id) {
+    for (ContentCodec codec : ourCodecs) {
+      if (codec.myId == id) return codec;
+    }
+    return null;
+  }
+
+  /**
+   * Returns true if the bytes were produced by {@link #encode}, and not by some other compression.
+   */
+  public static boolean isEncoded(@NotNull byte[] bytes, int off, int len) {
+    return len > 0 && findCodec(bytes[off]) != null;
+  }
+
+  /**
+   * Compresses the bytes with the codec and prepends the codec id. If the compressed bytes are larger than the original ones,
+   * the bytes are {@link #STORED} instead.
+   */
+  @NotNull
+  public static BufferExposingByteArrayOutputStream encode(@NotNull ContentCodec codec, @NotNull ByteSequence bytes) throws IOException {
+    BufferExposingByteArrayOutputStream out = new BufferExposingByteArrayOutputStream(bytes.getLength() / 2 + 16);
+    out.write(codec.myId);
+    codec.compress(bytes.getBytes(), bytes.getOffset(), bytes.getLength(), out);
+    if (codec != STORED && out.size() > bytes.getLength() + 1) {
+      out.reset();
+      out.write(STORED.myId);
+      STORED.compress(bytes.getBytes(), bytes.getOffset(), bytes.getLength(), out);
+    }
+    return out;
+  }
+
+  @NotNull
+  public static byte[] decode(@NotNull byte[] bytes, int off, int len) throws IOException {
+    ContentCodec codec = len > 0 ? findCodec(bytes[off]) : null;
+    if (codec == null) throw new IOException("Unknown content codec " + (len > 0 ? bytes[off] : "of empty content"));
+    return codec.decompress(bytes, off + 1, len - 1);
+  }
+
+  private static class StoredCodec extends ContentCodec {
+    StoredCodec() {
+      super((byte)1, "none");
+    }
+
+    @Override
+    protected void compress(@NotNull byte[] bytes, int off, int len, @NotNull BufferExposingByteArrayOutputStream out) {
+      out.write(bytes, off, len);
+    }
+
+    @NotNull
+    @Override
+    protected byte[] decompress(@NotNull byte[] bytes, int off, int len) {
+      return Arrays.copyOfRange(bytes, off, off + len);
+    }
+  }
+
+  private static class SnappyCodec extends ContentCodec {
+    private final ThreadLocalCachedByteArray myBuffer = new ThreadLocalCachedByteArray();
+
+    SnappyCodec() {
+      super((byte)2, "snappy");
+    }
+
+    @Override
+    protected void compress(@NotNull byte[] bytes, int off, int len, @NotNull BufferExposingByteArrayOutputStream out) {
+      byte[] buffer = myBuffer.getBuffer(Snappy.maxCompressedLength(len));
+      int compressedSize = Snappy.compress(bytes, off, len, buffer, 0);
+      out.write(buffer, 0, compressedSize);
+    }
+
+    @NotNull
+    @Override
+    protected byte[] decompress(@NotNull byte[] bytes, int off, int len) throws IOException {
+      try {
+        return Snappy.uncompress(bytes, off, len);
+      }
+      catch (CorruptionException e) {
+        throw new IOException(e);
+      }
+    }
+  }
+
+  static class DeflateCodec extends ContentCodec {
+    private static final int BUFFER_SIZE = 4096;
+
+    private final int myLevel;
+    @Nullable private final byte[] myDictionary;
+    private final ThreadLocal<Deflater> myDeflater = new ThreadLocal<Deflater>() {
+      @Override
+      protected Deflater initialValue() {
+        return new Deflater(myLevel);
+      }
+    };
+    private final ThreadLocal<Inflater> myInflater = new ThreadLocal<Inflater>() {
+      @Override
+      protected Inflater initialValue() {
+        return new Inflater();
+      }
+    };
+    private final ThreadLocalCachedByteArray myBuffer = new ThreadLocalCachedByteArray();
+
+    DeflateCodec(byte id, @NotNull String name, int level, @Nullable byte[] dictionary) {
+      super(id, name);
+      myLevel = level;
+      myDictionary = dictionary;
+    }
+
+    @Override
+    protected void compress(@NotNull byte[] bytes, int off, int len, @NotNull BufferExposingByteArrayOutputStream out) {
+      Deflater deflater = myDeflater.get();
+      byte[] buffer = myBuffer.getBuffer(BUFFER_SIZE);
+      try {
+        if (myDictionary != null) deflater.setDictionary(myDictionary);
+        deflater.setInput(bytes, off, len);
+        deflater.finish();
+        while (!deflater.finished()) {
+          out.write(buffer, 0, deflater.deflate(buffer));
+        }
+      }
+      finally {
+        deflater.reset();
+      }
+    }
+
+    /**
+     * Decompresses zlib streams compressed both with and without the dictionary.
+     */
+    @NotNull
+    @Override
+    protected byte[] decompress(@NotNull byte[] bytes, int off, int len) throws IOException {
+      Inflater inflater = myInflater.get();
+      byte[] buffer = myBuffer.getBuffer(BUFFER_SIZE);
+      BufferExposingByteArrayOutputStream out = new BufferExposingByteArrayOutputStream(len * 4);
+      try {
+        inflater.setInput(bytes, off, len);
+        while (!inflater.finished()) {
+          int inflated = inflater.inflate(buffer);
+          if (inflated == 0 && !inflater.finished()) {
+            if (inflater.needsDictionary() && myDictionary != null) {
+              inflater.setDictionary(myDictionary);
+            }
+            else if (inflater.needsInput() || inflater.needsDictionary()) {
+              throw new IOException("Unexpected end of compressed content");
+            }
+          }
+          out.write(buffer, 0, inflated);
+        }
+        return out.toByteArray();
+      }
+      catch (DataFormatException e) {
+        throw new IOException(e);
+      }
+      finally {
+        inflater.reset();
+      }
+    }
+  }
+}
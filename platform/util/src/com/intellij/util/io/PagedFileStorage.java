@@ -22,9 +22,10 @@ import com.intellij.openapi.util.SystemInfo;
 import com.intellij.util.SystemProperties;
 import com.intellij.util.containers.ConcurrentIntObjectMap;
 import com.intellij.util.containers.ContainerUtil;
-import com.intellij.util.containers.hash.LinkedHashMap;
+import gnu.trove.TIntArrayList;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
 
 import java.io.File;
 import java.io.IOException;
@@ -35,6 +36,7 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.*;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -486,43 +488,31 @@ public class PagedFileStorage implements Forceable {
     public final StorageLockContext myDefaultStorageLockContext;
     private final ConcurrentIntObjectMap<PagedFileStorage> myIndex2Storage = ContainerUtil.createConcurrentIntObjectMap();
 
-    private final LinkedHashMap<Integer, ByteBufferWrapper> mySegments;
-    private final ReentrantLock mySegmentsAccessLock = new ReentrantLock(); // protects map operations of mySegments, needed for LRU order, mySize and myMappingChangeCount
-    // todo avoid locking for access
+    // lock-free for lookups; entries are only added or removed under mySegmentsAllocationLock, LRU order is approximated with CLOCK
+    private final ConcurrentIntObjectMap<CachedSegment> mySegments = ContainerUtil.createConcurrentIntObjectMap();
+    // keys of mySegments in the clock order, new segments are inserted right behind the hand; guarded by mySegmentsAllocationLock
+    private final TIntArrayList myClock = new TIntArrayList();
+    private int myClockHand; // guarded by mySegmentsAllocationLock
 
     private final ReentrantLock mySegmentsAllocationLock = new ReentrantLock();
     private final ConcurrentLinkedQueue<ByteBufferWrapper> mySegmentsToRemove = new ConcurrentLinkedQueue<ByteBufferWrapper>();
-    private volatile long mySize;
+    private final AtomicLong mySize = new AtomicLong();
     private volatile long mySizeLimit;
-    private volatile int myMappingChangeCount;
+    private volatile int myMappingChangeCount; // modified under mySegmentsAllocationLock only
 
     public StorageLock() {
       this(true);
     }
 
     public StorageLock(boolean checkThreadAccess) {
-      myDefaultStorageLockContext = new StorageLockContext(this, checkThreadAccess);
+      this(checkThreadAccess, UPPER_LIMIT);
+    }
 
-      mySizeLimit = UPPER_LIMIT;
-      mySegments = new LinkedHashMap<Integer, ByteBufferWrapper>(10, 0.75f, true) {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Integer, ByteBufferWrapper> eldest) {
-          return mySize > mySizeLimit;
-        }
+    @TestOnly
+    StorageLock(boolean checkThreadAccess, long sizeLimit) {
+      myDefaultStorageLockContext = new StorageLockContext(this, checkThreadAccess);
 
-        @Nullable
-        @Override
-        public ByteBufferWrapper remove(Object key) {
-          // this method can be called after removeEldestEntry
-          ByteBufferWrapper wrapper = super.remove(key);
-          if (wrapper != null) {
-            ++myMappingChangeCount;
-            mySegmentsToRemove.offer(wrapper);
-            mySize -= wrapper.myLength;
-          }
-          return wrapper;
-        }
-      };
+      mySizeLimit = sizeLimit;
     }
 
     public void lock() {
@@ -550,29 +540,17 @@ public class PagedFileStorage implements Forceable {
     }
 
     private ByteBufferWrapper get(Integer key) {
-      ByteBufferWrapper wrapper;
-      try {         // fast path
-        mySegmentsAccessLock.lock();
-        wrapper = mySegments.get(key);
-        if (wrapper != null) return wrapper;
-      }
-      finally {
-        mySegmentsAccessLock.unlock();
-      }
+      CachedSegment segment = mySegments.get(key); // fast path, no locking
+      if (segment != null) return segment.access();
 
       mySegmentsAllocationLock.lock();
       try {
         // check if anybody cared about our segment
-        mySegmentsAccessLock.lock();
-        try {
-          wrapper = mySegments.get(key);
-          if (wrapper != null) return wrapper;
-        } finally {
-          mySegmentsAccessLock.unlock();
-        }
+        segment = mySegments.get(key);
+        if (segment != null) return segment.access();
 
         long started = IOStatistics.DEBUG ? System.currentTimeMillis() : 0;
-        wrapper = createValue(key);
+        ByteBufferWrapper wrapper = createValue(key);
 
         if (IOStatistics.DEBUG) {
           long finished = System.currentTimeMillis();
@@ -582,16 +560,12 @@ public class PagedFileStorage implements Forceable {
           }
         }
 
-        mySegmentsAccessLock.lock();
-        try {
-          mySegments.put(key, wrapper);
-          mySize += wrapper.myLength;
-        }
-        finally {
-          mySegmentsAccessLock.unlock();
-        }
+        mySegments.put(key, new CachedSegment(wrapper));
+        myClock.insert(myClockHand++, key);
+        mySize.addAndGet(wrapper.myLength);
 
-        ensureSize(mySizeLimit);
+        // the segment we are about to return must stay mapped, otherwise writes into it are never flushed
+        ensureSize(mySizeLimit, key);
 
         return wrapper;
       }
@@ -600,6 +574,19 @@ public class PagedFileStorage implements Forceable {
       }
     }
 
+    private void removeSegment(int key) {
+      assert mySegmentsAllocationLock.isHeldByCurrentThread();
+      CachedSegment segment = mySegments.remove(key);
+      if (segment != null) {
+        int index = myClock.indexOf(key);
+        myClock.remove(index);
+        if (index < myClockHand) myClockHand--;
+        ++myMappingChangeCount;
+        mySegmentsToRemove.offer(segment.myWrapper);
+        mySize.addAndGet(-segment.myWrapper.myLength);
+      }
+    }
+
     private void disposeRemovedSegments() {
       if (mySegmentsToRemove.isEmpty()) return;
 
@@ -611,17 +598,20 @@ public class PagedFileStorage implements Forceable {
       }
     }
 
-    private void ensureSize(long sizeLimit) {
+    private void ensureSize(long sizeLimit, @Nullable Integer keptKey) {
       assert mySegmentsAllocationLock.isHeldByCurrentThread();
 
-      try {
-        mySegmentsAccessLock.lock();
-        while (mySize > sizeLimit) {
-          // we still have to drop something
-          mySegments.doRemoveEldestEntry();
+      int keptCount = keptKey != null && mySegments.containsKey(keptKey) ? 1 : 0;
+      while (mySize.get() > sizeLimit && myClock.size() > keptCount) {
+        // we still have to drop something: sweep the clock hand giving recently accessed segments a second chance
+        if (myClockHand >= myClock.size()) myClockHand = 0;
+        int key = myClock.get(myClockHand);
+        if ((keptKey != null && key == keptKey) || mySegments.get(key).clearAccessed()) {
+          myClockHand++;
+        }
+        else {
+          removeSegment(key);
         }
-      } finally {
-        mySegmentsAccessLock.unlock();
       }
 
       disposeRemovedSegments();
@@ -661,10 +651,10 @@ public class PagedFileStorage implements Forceable {
           if (mySizeLimit > LOWER_LIMIT) {
             mySizeLimit -= owner.myPageSize;
           }
-          long newSize = mySize - owner.myPageSize;
+          long newSize = mySize.get() - owner.myPageSize;
           if (newSize < 0) {
-            LOG.info("Currently allocated:"+mySize);
-            LOG.info("Mapping failed due to OOME. Current buffers: " + mySegments);
+            LOG.info("Currently allocated:"+mySize.get());
+            LOG.info("Mapping failed due to OOME. Current buffers: " + mySegments.values());
             LOG.info(oome);
             try {
               Class<?> aClass = Class.forName("java.nio.Bits");
@@ -686,7 +676,7 @@ public class PagedFileStorage implements Forceable {
                     "new size limit: " + mySizeLimit / MB + "MB " +
                     "trying to allocate " + wrapper.myLength + " block", e);
           }
-          ensureSize(newSize); // next try
+          ensureSize(newSize, null); // next try
         }
       }
     }
@@ -699,46 +689,33 @@ public class PagedFileStorage implements Forceable {
 
     @Nullable
     private Map<Integer, ByteBufferWrapper> getBuffersOrderedForOwner(int index, StorageLockContext storageLockContext) {
-      mySegmentsAccessLock.lock();
-      try {
-        checkThreadAccess(storageLockContext);
-        Map<Integer, ByteBufferWrapper> mineBuffers = null;
-        for (Map.Entry<Integer, ByteBufferWrapper> entry : mySegments.entrySet()) {
-          if ((entry.getKey() & FILE_INDEX_MASK) == index) {
-            if (mineBuffers == null) {
-              mineBuffers = new TreeMap<Integer, ByteBufferWrapper>(new Comparator<Integer>() {
-                @Override
-                public int compare(Integer o1, Integer o2) {
-                  return o1 - o2;
-                }
-              });
-            }
-            mineBuffers.put(entry.getKey(), entry.getValue());
+      checkThreadAccess(storageLockContext);
+      Map<Integer, ByteBufferWrapper> mineBuffers = null;
+      for (ConcurrentIntObjectMap.IntEntry<CachedSegment> entry : mySegments.entries()) {
+        if ((entry.getKey() & FILE_INDEX_MASK) == index) {
+          if (mineBuffers == null) {
+            mineBuffers = new TreeMap<Integer, ByteBufferWrapper>(new Comparator<Integer>() {
+              @Override
+              public int compare(Integer o1, Integer o2) {
+                return o1 - o2;
+              }
+            });
           }
+          mineBuffers.put(entry.getKey(), entry.getValue().myWrapper);
         }
-        return mineBuffers;
-      }
-      finally {
-        mySegmentsAccessLock.unlock();
       }
+      return mineBuffers;
     }
 
     private void unmapBuffersForOwner(int index, StorageLockContext storageLockContext) {
       final Map<Integer, ByteBufferWrapper> buffers = getBuffersOrderedForOwner(index, storageLockContext);
 
       if (buffers != null) {
-        mySegmentsAccessLock.lock();
+        mySegmentsAllocationLock.lock();
         try {
           for (Integer key : buffers.keySet()) {
-            mySegments.remove(key);
+            removeSegment(key);
           }
-        }
-        finally {
-          mySegmentsAccessLock.unlock();
-        }
-
-        mySegmentsAllocationLock.lock();
-        try {
           disposeRemovedSegments();
         } finally {
           mySegmentsAllocationLock.unlock();
@@ -773,14 +750,9 @@ public class PagedFileStorage implements Forceable {
     }
 
     public void invalidateBuffer(int page) {
-      mySegmentsAccessLock.lock();
-      try {
-        mySegments.remove(page);
-      } finally {
-        mySegmentsAccessLock.unlock();
-      }
       mySegmentsAllocationLock.lock();
       try {
+        removeSegment(page);
         disposeRemovedSegments();
       }
       finally {
@@ -789,6 +761,32 @@ public class PagedFileStorage implements Forceable {
     }
   }
 
+  private static class CachedSegment {
+    private final ByteBufferWrapper myWrapper;
+    private volatile boolean myAccessed;
+
+    private CachedSegment(@NotNull ByteBufferWrapper wrapper) {
+      myWrapper = wrapper;
+    }
+
+    @NotNull
+    private ByteBufferWrapper access() {
+      if (!myAccessed) myAccessed = true; // avoid writing shared cache line on every hit
+      return myWrapper;
+    }
+
+    private boolean clearAccessed() {
+      boolean accessed = myAccessed;
+      if (accessed) myAccessed = false;
+      return accessed;
+    }
+
+    @Override
+    public String toString() {
+      return myWrapper.toString();
+    }
+  }
+
   public static class StorageLockContext {
     private final boolean myCheckThreadAccess;
     private final ReentrantLock myLock;
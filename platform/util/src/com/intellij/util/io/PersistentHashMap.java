@@ -36,6 +36,8 @@ import java.io.*;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * @author Eugene Zhuravlev
@@ -56,6 +58,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   // directly in storage used for offset and in case of btreeenumerator directly in btree leaf.
   private static final Logger LOG = Logger.getInstance("#com.intellij.util.io.PersistentHashMap");
   private static final boolean myDoTrace = SystemProperties.getBooleanProperty("idea.trace.persistent.map", false);
+  private static final boolean ourConcurrentReads = SystemProperties.getBooleanProperty("idea.persistent.hash.map.concurrent.reads", false);
   private static final int DEAD_KEY_NUMBER_MASK = 0xFFFFFFFF;
 
   private final File myStorageFile;
@@ -87,6 +90,10 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   private boolean myIntAddressForNewRecord;
   private static final boolean doHardConsistencyChecks = false;
   private volatile boolean myBusyReading;
+  private final AtomicInteger myConcurrentReadersCount = new AtomicInteger();
+  // in concurrent reads mode value bytes are read and deserialized outside of myEnumerator monitor under the read lock,
+  // the write lock is taken (while holding the monitor) to replace or dispose myValueStorage
+  @Nullable private final ReentrantReadWriteLock myValueStorageLock;
 
   private static class AppendStream extends DataOutputStream {
     private AppendStream() {
@@ -138,6 +145,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     myStorageFile = file;
     myKeyDescriptor = keyDescriptor;
     myIsReadOnly = isReadOnly();
+    myValueStorageLock = allowsConcurrentReads() ? new ReentrantReadWriteLock() : null;
 
     myAppendCache = createAppendCache(keyDescriptor);
     final PersistentEnumeratorBase.RecordBufferHandler<PersistentEnumeratorBase> recordHandler = myEnumerator.getRecordHandler();
@@ -221,6 +229,14 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     return false;
   }
 
+  /**
+   * When true, {@link #get} holds the map monitor only while resolving value address, so reading and deserializing values
+   * runs in parallel with other readers and with modifications. Compaction and close remain exclusive.
+   */
+  protected boolean allowsConcurrentReads() {
+    return ourConcurrentReads;
+  }
+
   private SLRUCache<Key, BufferExposingByteArrayOutputStream> createAppendCache(final KeyDescriptor<Key> keyDescriptor) {
     return new SLRUCache<Key, BufferExposingByteArrayOutputStream>(16 * 1024, 4 * 1024, keyDescriptor) {
       @Override
@@ -477,6 +493,9 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
 
   @Override
   public final Value get(Key key) throws IOException {
+    if (myValueStorageLock != null && !myIntMapping) {
+      return doConcurrentGet(key);
+    }
     synchronized (myEnumerator) {
       myBusyReading = true;
       try {
@@ -488,7 +507,94 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   }
 
   public boolean isBusyReading() {
-    return myBusyReading;
+    return myBusyReading || myConcurrentReadersCount.get() > 0;
+  }
+
+  @Nullable
+  private Value doConcurrentGet(Key key) throws IOException {
+    assert myValueStorageLock != null;
+    final long valueOffset;
+    final PersistentHashMapValueStorage valueStorage;
+
+    synchronized (myEnumerator) {
+      myEnumerator.lockStorage();
+      try {
+        myAppendCache.remove(key);
+        valueOffset = readValueOffset(key);
+        if (valueOffset == NULL_ADDR) {
+          return null;
+        }
+      }
+      finally {
+        myEnumerator.unlockStorage();
+      }
+      valueStorage = myValueStorage;
+      // the read lock is taken under the monitor so compaction (which holds the monitor) can't interleave; value chunks at
+      // valueOffset stay valid until compaction since value storage is append only
+      myValueStorageLock.readLock().lock();
+      myConcurrentReadersCount.incrementAndGet();
+    }
+
+    final PersistentHashMapValueStorage.ReadResult readResult;
+    final Value valueRead;
+    try {
+      readResult = valueStorage.readBytes(valueOffset);
+
+      DataInputStream input = new DataInputStream(new UnsyncByteArrayInputStream(readResult.buffer));
+      try {
+        valueRead = myValueExternalizer.read(input);
+      }
+      finally {
+        input.close();
+      }
+    }
+    finally {
+      // myEnumerator monitor must not be taken here: close() and compact() wait for the read lock while holding it
+      myValueStorageLock.readLock().unlock();
+      myConcurrentReadersCount.decrementAndGet();
+    }
+
+    if (valueStorage.performChunksCompaction(readResult.chunksCount, readResult.buffer.length)) {
+      synchronized (myEnumerator) {
+        // the mapping could be changed or the storage compacted while we were reading, then there is nothing to compact
+        if (myValueStorage != valueStorage) return valueRead;
+
+        myEnumerator.lockStorage();
+        try {
+          if (readValueOffset(key) != valueOffset) return valueRead;
+
+          long newValueOffset = valueStorage.compactChunks(new ValueDataAppender() {
+            @Override
+            public void append(DataOutput out) throws IOException {
+              myValueExternalizer.save(out, valueRead);
+            }
+          }, readResult);
+
+          myEnumerator.markDirty(true);
+
+          if (myDirectlyStoreLongFileOffsetMode) {
+            ((PersistentBTreeEnumerator<Key>)myEnumerator).putNonnegativeValue(key, newValueOffset);
+          } else {
+            updateValueId(tryEnumerate(key), newValueOffset, valueOffset, key, 0);
+          }
+          myLiveAndGarbageKeysCounter++;
+          myReadCompactionGarbageSize += readResult.buffer.length;
+        }
+        finally {
+          myEnumerator.unlockStorage();
+        }
+      }
+    }
+    return valueRead;
+  }
+
+  // should be called under myEnumerator monitor and storage lock
+  private long readValueOffset(Key key) throws IOException {
+    if (myDirectlyStoreLongFileOffsetMode) {
+      return ((PersistentBTreeEnumerator<Key>)myEnumerator).getNonnegativeValue(key);
+    }
+    final int id = tryEnumerate(key);
+    return id == PersistentEnumerator.NULL_ID ? NULL_ADDR : readValueId(id);
   }
 
   @Nullable
@@ -662,10 +768,25 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   public final void close() throws IOException {
     if(myDoTrace) LOG.info("Closed " + myStorageFile);
     synchronized (myEnumerator) {
-      doClose();
+      lockValueStorageExclusively();
+      try {
+        doClose();
+      }
+      finally {
+        unlockValueStorageExclusively();
+      }
     }
   }
 
+  // should be called under myEnumerator monitor, waits for concurrent readers of myValueStorage to finish
+  private void lockValueStorageExclusively() {
+    if (myValueStorageLock != null) myValueStorageLock.writeLock().lock();
+  }
+
+  private void unlockValueStorageExclusively() {
+    if (myValueStorageLock != null) myValueStorageLock.writeLock().unlock();
+  }
+
   protected void doClose() throws IOException {
     myEnumerator.lockStorage();
     try {
@@ -708,80 +829,90 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   public void compact() throws IOException {
     if (myIsReadOnly) throw new IncorrectOperationException();
     synchronized (myEnumerator) {
-      force();
-      LOG.info("Compacting "+myEnumerator.myFile.getPath());
-      LOG.info("Live keys:" + ((int)(myLiveAndGarbageKeysCounter  / LIVE_KEY_MASK)) +
-               ", dead keys:" + ((int)(myLiveAndGarbageKeysCounter & DEAD_KEY_NUMBER_MASK)) +
-               ", read compaction size:" + myReadCompactionGarbageSize);
+      lockValueStorageExclusively();
+      try {
+        doCompact();
+      }
+      finally {
+        unlockValueStorageExclusively();
+      }
+    }
+  }
 
-      final long now = System.currentTimeMillis();
+  private void doCompact() throws IOException {
+    force();
+    LOG.info("Compacting "+myEnumerator.myFile.getPath());
+    LOG.info("Live keys:" + ((int)(myLiveAndGarbageKeysCounter  / LIVE_KEY_MASK)) +
+             ", dead keys:" + ((int)(myLiveAndGarbageKeysCounter & DEAD_KEY_NUMBER_MASK)) +
+             ", read compaction size:" + myReadCompactionGarbageSize);
 
-      final File oldDataFile = getDataFile(myEnumerator.myFile);
-      final String oldDataFileBaseName = oldDataFile.getName();
-      final File[] oldFiles = getFilesInDirectoryWithNameStartingWith(oldDataFile, oldDataFileBaseName);
+    final long now = System.currentTimeMillis();
 
-      final String newPath = getDataFile(myEnumerator.myFile).getPath() + ".new";
-      final PersistentHashMapValueStorage newStorage = PersistentHashMapValueStorage.create(newPath, myIsReadOnly);
-      myValueStorage.switchToCompactionMode();
-      myEnumerator.markDirty(true);
-      long sizeBefore = myValueStorage.getSize();
+    final File oldDataFile = getDataFile(myEnumerator.myFile);
+    final String oldDataFileBaseName = oldDataFile.getName();
+    final File[] oldFiles = getFilesInDirectoryWithNameStartingWith(oldDataFile, oldDataFileBaseName);
 
-      myLiveAndGarbageKeysCounter = 0;
-      myReadCompactionGarbageSize = 0;
+    final String newPath = getDataFile(myEnumerator.myFile).getPath() + ".new";
+    final PersistentHashMapValueStorage newStorage = PersistentHashMapValueStorage.create(newPath, myIsReadOnly);
+    myValueStorage.switchToCompactionMode();
+    myEnumerator.markDirty(true);
+    long sizeBefore = myValueStorage.getSize();
 
-      try {
-        if (doNewCompact()) {
-          newCompact(newStorage);
-        } else {
-          traverseAllRecords(new PersistentEnumerator.RecordsProcessor() {
-            @Override
-            public boolean process(final int keyId) throws IOException {
-              final long record = readValueId(keyId);
-              if (record != NULL_ADDR) {
-                PersistentHashMapValueStorage.ReadResult readResult = myValueStorage.readBytes(record);
-                long value = newStorage.appendBytes(readResult.buffer, 0, readResult.buffer.length, 0);
-                updateValueId(keyId, value, record, null, getCurrentKey());
-                myLiveAndGarbageKeysCounter += LIVE_KEY_MASK;
-              }
-              return true;
+    myLiveAndGarbageKeysCounter = 0;
+    myReadCompactionGarbageSize = 0;
+
+    try {
+      if (doNewCompact()) {
+        newCompact(newStorage);
+      } else {
+        traverseAllRecords(new PersistentEnumerator.RecordsProcessor() {
+          @Override
+          public boolean process(final int keyId) throws IOException {
+            final long record = readValueId(keyId);
+            if (record != NULL_ADDR) {
+              PersistentHashMapValueStorage.ReadResult readResult = myValueStorage.readBytes(record);
+              long value = newStorage.appendBytes(readResult.buffer, 0, readResult.buffer.length, 0);
+              updateValueId(keyId, value, record, null, getCurrentKey());
+              myLiveAndGarbageKeysCounter += LIVE_KEY_MASK;
             }
-          });
-        }
-      }
-      finally {
-        newStorage.dispose();
+            return true;
+          }
+        });
       }
+    }
+    finally {
+      newStorage.dispose();
+    }
 
-      myValueStorage.dispose();
+    myValueStorage.dispose();
 
-      if (oldFiles != null) {
-        for(File f:oldFiles) {
-          assert FileUtil.deleteWithRenaming(f);
-        }
+    if (oldFiles != null) {
+      for(File f:oldFiles) {
+        assert FileUtil.deleteWithRenaming(f);
       }
+    }
 
-      final long newSize = newStorage.getSize();
+    final long newSize = newStorage.getSize();
 
-      File newDataFile = new File(newPath);
-      final String newBaseName = newDataFile.getName();
-      final File[] newFiles = getFilesInDirectoryWithNameStartingWith(newDataFile, newBaseName);
+    File newDataFile = new File(newPath);
+    final String newBaseName = newDataFile.getName();
+    final File[] newFiles = getFilesInDirectoryWithNameStartingWith(newDataFile, newBaseName);
 
-      if (newFiles != null) {
-        File parentFile = newDataFile.getParentFile();
+    if (newFiles != null) {
+      File parentFile = newDataFile.getParentFile();
 
-        // newFiles should get the same names as oldDataFiles
-        for (File f : newFiles) {
-          String nameAfterRename = StringUtil.replace(f.getName(), newBaseName, oldDataFileBaseName);
-          FileUtil.rename(f, new File(parentFile, nameAfterRename));
-        }
+      // newFiles should get the same names as oldDataFiles
+      for (File f : newFiles) {
+        String nameAfterRename = StringUtil.replace(f.getName(), newBaseName, oldDataFileBaseName);
+        FileUtil.rename(f, new File(parentFile, nameAfterRename));
       }
-
-      myValueStorage = PersistentHashMapValueStorage.create(oldDataFile.getPath(), myIsReadOnly);
-      LOG.info("Compacted " + myEnumerator.myFile.getPath() + ":" + sizeBefore + " bytes into " + newSize + " bytes in " + (System.currentTimeMillis() - now) + "ms.");
-      myEnumerator.putMetaData(myLiveAndGarbageKeysCounter);
-      myEnumerator.putMetaData2( myLargeIndexWatermarkId );
-      if (myDoTrace) LOG.assertTrue(myEnumerator.isDirty());
     }
+
+    myValueStorage = PersistentHashMapValueStorage.create(oldDataFile.getPath(), myIsReadOnly);
+    LOG.info("Compacted " + myEnumerator.myFile.getPath() + ":" + sizeBefore + " bytes into " + newSize + " bytes in " + (System.currentTimeMillis() - now) + "ms.");
+    myEnumerator.putMetaData(myLiveAndGarbageKeysCounter);
+    myEnumerator.putMetaData2( myLargeIndexWatermarkId );
+    if (myDoTrace) LOG.assertTrue(myEnumerator.isDirty());
   }
 
   private static File[] getFilesInDirectoryWithNameStartingWith(File fileFromDirectory, final String baseFileName) {
@@ -253,7 +253,7 @@ public class PersistentHashMapValueStorage {
 
           int available = myBufferStreamWrapper.available();
           chunkSize = DataInputOutputUtil.readINT(myBufferDataStreamWrapper);
-          prevChunkAddress = readPrevChunkAddress(info.valueAddress);
+          prevChunkAddress = readPrevChunkAddress(info.valueAddress, myBufferDataStreamWrapper);
           dataOffset = available - myBufferStreamWrapper.available();
 
           byte[] b;
@@ -370,6 +370,10 @@ public class PersistentHashMapValueStorage {
     int chunkCount = 0;
 
     byte[] result = null;
+    // local buffers make reading safe for concurrent callers, see PersistentHashMap#allowsConcurrentReads
+    final byte[] buffer = new byte[myBuffer.length];
+    final UnsyncByteArrayInputStream bufferStreamWrapper = new UnsyncByteArrayInputStream(buffer);
+    final DataInputStream bufferDataStreamWrapper = new DataInputStream(bufferStreamWrapper);
     RAReader reader = myCompactionModeReader;
     FileAccessorCache.Handle<RAReader> readerHandle = null;
     if (reader == null) {
@@ -380,31 +384,31 @@ public class PersistentHashMapValueStorage {
     try {
       while (chunk != 0) {
         if (chunk < 0 || chunk > mySize) throw new PersistentEnumeratorBase.CorruptedException(myFile);
-        int len = (int)Math.min(myBuffer.length, mySize - chunk);
+        int len = (int)Math.min(buffer.length, mySize - chunk);
 
         if (myCompressedAppendableFile != null) {
           DataInputStream stream = myCompressedAppendableFile.getStream(chunk);
-          stream.readFully(myBuffer, 0, len);
+          stream.readFully(buffer, 0, len);
           stream.close();
         } else {
-          reader.get(chunk, myBuffer, 0, len);
+          reader.get(chunk, buffer, 0, len);
         }
-        myBufferStreamWrapper.init(myBuffer, 0, len);
+        bufferStreamWrapper.init(buffer, 0, len);
 
-        final int chunkSize = DataInputOutputUtil.readINT(myBufferDataStreamWrapper);
+        final int chunkSize = DataInputOutputUtil.readINT(bufferDataStreamWrapper);
         if (chunkSize < 0) {
           throw new IOException("Value storage corrupted: negative chunk size: "+chunkSize);
         }
-        final long prevChunkAddress = readPrevChunkAddress(chunk);
-        final int headerOffset = len - myBufferStreamWrapper.available();
+        final long prevChunkAddress = readPrevChunkAddress(chunk, bufferDataStreamWrapper);
+        final int headerOffset = len - bufferStreamWrapper.available();
 
         byte[] b = new byte[(result != null ? result.length:0) + chunkSize];
         if (result != null) System.arraycopy(result, 0, b, b.length - result.length, result.length);
         result = b;
 
         checkPreconditions(result, chunkSize, 0);
-        if (chunkSize < myBuffer.length - headerOffset) {
-          System.arraycopy(myBuffer, headerOffset, result, 0, chunkSize);
+        if (chunkSize < buffer.length - headerOffset) {
+          System.arraycopy(buffer, headerOffset, result, 0, chunkSize);
         } else {
           if (myCompressedAppendableFile != null) {
             DataInputStream stream = myCompressedAppendableFile.getStream(chunk + headerOffset);
@@ -493,8 +497,8 @@ public class PersistentHashMapValueStorage {
     if (myExceptionalIOCancellationCallback != null) myExceptionalIOCancellationCallback.checkCancellation();
   }
 
-  private long readPrevChunkAddress(long chunk) throws IOException {
-    final long prevOffsetDiff = DataInputOutputUtil.readLONG(myBufferDataStreamWrapper);
+  private long readPrevChunkAddress(long chunk, DataInputStream stream) throws IOException {
+    final long prevOffsetDiff = DataInputOutputUtil.readLONG(stream);
     if(prevOffsetDiff >= chunk) {
       throw new IOException("readPrevChunkAddress:" + chunk + "," + prevOffsetDiff + "," + mySize + "," + myFile);
     }
@@ -618,8 +622,11 @@ public class PersistentHashMapValueStorage {
 
       try {
         RandomAccessFileWithLengthAndSizeTracking file = fileAccessor.get();
-        file.seek(addr);
-        file.read(dst, off, len);
+        //noinspection SynchronizationOnLocalVariableOrMethodParameter
+        synchronized (file) { // the same file is shared with appender, seek and read should be atomic
+          file.seek(addr);
+          file.read(dst, off, len);
+        }
       } finally {
         fileAccessor.release();
       }
@@ -643,7 +650,7 @@ public class PersistentHashMapValueStorage {
     }
 
     @Override
-    public void get(final long addr, final byte[] dst, final int off, final int len) throws IOException {
+    public synchronized void get(final long addr, final byte[] dst, final int off, final int len) throws IOException {
       myFile.seek(addr);
       myFile.read(dst, off, len);
     }
@@ -672,8 +679,11 @@ public class PersistentHashMapValueStorage {
       RandomAccessFileWithLengthAndSizeTracking file = fileAccessor.get();
 
       try {
-        file.seek(file.length());
-        file.write(b, off, len);
+        //noinspection SynchronizationOnLocalVariableOrMethodParameter
+        synchronized (file) {
+          file.seek(file.length());
+          file.write(b, off, len);
+        }
       }
       finally {
         fileAccessor.release();
@@ -31,11 +31,13 @@ import com.intellij.util.io.PagePool;
 import com.intellij.util.io.RecordDataOutput;
 import com.intellij.util.io.UnsyncByteArrayInputStream;
 import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.TestOnly;
 
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 
 @SuppressWarnings({"HardCodedStringLiteral"})
 public abstract class AbstractStorage implements Disposable, Forceable {
@@ -266,6 +268,57 @@ public abstract class AbstractStorage implements Disposable, Forceable {
     }
   }
 
+  public int getRecordsCount() throws IOException {
+    synchronized (myLock) {
+      return myRecordsTable.getRecordsCount();
+    }
+  }
+
+  public interface RecordBytesProcessor {
+    /**
+     * @param bytes buffer shared between invocations, record content occupies its first {@code length} bytes
+     * @return false to stop processing
+     */
+    boolean process(int record, @NotNull byte[] bytes, int length) throws IOException;
+  }
+
+  private static final int MAX_RECORDS_TO_PROCESS_AT_A_TIME = 1 << 16;
+
+  /**
+   * Feeds content of live records with ids in [fromRecord, toRecord) to the processor in the order of their addresses,
+   * so the data file is read sequentially page by page instead of with one random access per record.
+   * The processor is invoked under storage lock and should be fast.
+   * @return false if processor has stopped the processing
+   */
+  public boolean processRecords(int fromRecord, int toRecord, @NotNull RecordBytesProcessor processor) throws IOException {
+    assert fromRecord > 0;
+    synchronized (myLock) {
+      toRecord = Math.min(Math.min(toRecord, myRecordsTable.getRecordsCount() + 1), fromRecord + MAX_RECORDS_TO_PROCESS_AT_A_TIME);
+      if (fromRecord >= toRecord) return true;
+
+      // address << 16 | (record - fromRecord), address is far below 2^47 so ordering by the packed value orders by address
+      long[] order = new long[toRecord - fromRecord];
+      int count = 0;
+      int maxSize = 0;
+      for (int record = fromRecord; record < toRecord; ++record) {
+        int size = myRecordsTable.getSize(record);
+        if (size <= 0) continue;
+        order[count++] = (myRecordsTable.getAddress(record) << 16) | (record - fromRecord);
+        maxSize = Math.max(maxSize, size);
+      }
+      Arrays.sort(order, 0, count);
+
+      byte[] buffer = new byte[maxSize];
+      for (int i = 0; i < count; ++i) {
+        int record = fromRecord + (int)(order[i] & 0xFFFF);
+        int size = myRecordsTable.getSize(record);
+        myDataTable.readBytes(order[i] >>> 16, buffer, 0, size);
+        if (!processor.process(record, buffer, size)) return false;
+      }
+      return true;
+    }
+  }
+
   protected void appendBytes(int record, ByteSequence bytes) throws IOException {
     final int delta = bytes.getLength();
     if (delta == 0) return;
@@ -67,7 +67,11 @@ class DataTable implements Disposable, Forceable {
   }
 
   public void readBytes(long address, byte[] bytes) {
-    myFile.get(address, bytes, 0, bytes.length);
+    readBytes(address, bytes, 0, bytes.length);
+  }
+
+  public void readBytes(long address, byte[] bytes, int off, int len) {
+    myFile.get(address, bytes, off, len);
   }
 
   public void writeBytes(long address, byte[] bytes) {
@@ -25,6 +25,7 @@ import com.intellij.openapi.util.io.StreamUtil;
 import com.intellij.util.ConcurrencyUtil;
 import com.intellij.util.IncorrectOperationException;
 import com.intellij.util.containers.ContainerUtil;
+import com.intellij.util.io.ContentCodec;
 import com.intellij.util.io.PagePool;
 import com.intellij.util.io.UnsyncByteArrayInputStream;
 import org.jetbrains.annotations.NotNull;
@@ -33,9 +34,9 @@ import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.concurrent.*;
-import java.util.zip.DeflaterOutputStream;
 import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
 
@@ -51,6 +52,7 @@ public class RefCountingStorage extends AbstractStorage {
   }
 
   private final boolean myDoNotZipCaches;
+  @NotNull private final ContentCodec myCodec;
   private static final int MAX_PENDING_WRITE_SIZE = 20 * 1024 * 1024;
 
   public RefCountingStorage(String path) throws IOException {
@@ -62,24 +64,37 @@ public class RefCountingStorage extends AbstractStorage {
   }
 
   public RefCountingStorage(String path, CapacityAllocationPolicy capacityAllocationPolicy, boolean doNotZipCaches) throws IOException {
+    this(path, capacityAllocationPolicy, doNotZipCaches, ContentCodec.getDefault());
+  }
+
+  /**
+   * @param codec compresses new records; records compressed with any other codec, or with plain deflate before, are still readable
+   */
+  public RefCountingStorage(String path,
+                            CapacityAllocationPolicy capacityAllocationPolicy,
+                            boolean doNotZipCaches,
+                            @NotNull ContentCodec codec) throws IOException {
     super(path, capacityAllocationPolicy);
     myDoNotZipCaches = doNotZipCaches;
+    myCodec = codec;
   }
 
   @Override
   public DataInputStream readStream(int record) throws IOException {
     if (myDoNotZipCaches) return super.readStream(record);
-    BufferExposingByteArrayOutputStream stream = internalReadStream(record);
-    return new DataInputStream(new UnsyncByteArrayInputStream(stream.getInternalBuffer(), 0, stream.size()));
+    ByteSequence bytes = internalReadStream(record);
+    return new DataInputStream(new UnsyncByteArrayInputStream(bytes.getBytes(), 0, bytes.getLength()));
   }
 
   @Override
   protected byte[] readBytes(int record) throws IOException {
     if (myDoNotZipCaches) return super.readBytes(record);
-    return internalReadStream(record).toByteArray();
+    ByteSequence bytes = internalReadStream(record);
+    return bytes.getLength() == bytes.getBytes().length ? bytes.getBytes() : Arrays.copyOf(bytes.getBytes(), bytes.getLength());
   }
 
-  private BufferExposingByteArrayOutputStream internalReadStream(int record) throws IOException {
+  // the result always starts at the beginning of the array
+  private ByteSequence internalReadStream(int record) throws IOException {
     waitForPendingWriteForRecord(record);
     byte[] result;
 
@@ -87,11 +102,16 @@ public class RefCountingStorage extends AbstractStorage {
       result = super.readBytes(record);
     }
 
+    if (ContentCodec.isEncoded(result, 0, result.length)) {
+      return new ByteSequence(ContentCodec.decode(result, 0, result.length));
+    }
+
+    // written with plain deflate before the codecs were introduced
     InflaterInputStream in = new CustomInflaterInputStream(result);
     try {
       final BufferExposingByteArrayOutputStream outputStream = new BufferExposingByteArrayOutputStream();
       StreamUtil.copyStreamContent(in, outputStream);
-      return outputStream;
+      return new ByteSequence(outputStream.getInternalBuffer(), 0, outputStream.size());
     }
     finally {
       in.close();
@@ -164,14 +184,7 @@ public class RefCountingStorage extends AbstractStorage {
   }
 
   private void zipAndWrite(ByteSequence bytes, int record, boolean fixedSize) throws IOException {
-    BufferExposingByteArrayOutputStream s = new BufferExposingByteArrayOutputStream();
-    DeflaterOutputStream out = new DeflaterOutputStream(s);
-    try {
-      out.write(bytes.getBytes(), bytes.getOffset(), bytes.getLength());
-    }
-    finally {
-      out.close();
-    }
+    BufferExposingByteArrayOutputStream s = ContentCodec.encode(myCodec, bytes);
 
     synchronized (myLock) {
       doWrite(record, fixedSize, s);
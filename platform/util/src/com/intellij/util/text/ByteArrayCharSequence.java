@@ -22,9 +22,20 @@ import org.jetbrains.annotations.NotNull;
 public class ByteArrayCharSequence implements CharSequenceWithStringHash {
   private int hash;
   private final byte[] myChars;
+  private final int myStart;
+  private final int myEnd;
 
   private ByteArrayCharSequence(@NotNull byte[] chars) {
+    this(chars, 0, chars.length);
+  }
+
+  /**
+   * Single byte chars view (ASCII / ISO-8859-1) over given array range, array content is not copied and should not be changed afterwards
+   */
+  public ByteArrayCharSequence(@NotNull byte[] chars, int start, int end) {
     myChars = chars;
+    myStart = start;
+    myEnd = end;
   }
 
   @Override
@@ -38,12 +49,12 @@ public class ByteArrayCharSequence implements CharSequenceWithStringHash {
 
   @Override
   public final int length() {
-    return myChars.length;
+    return myEnd - myStart;
   }
 
   @Override
   public final char charAt(int index) {
-    return (char)myChars[index];
+    return (char)(myChars[index + myStart] & 0xFF);
   }
 
   @NotNull
@@ -20,9 +20,13 @@ import junit.framework.TestCase;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
+import java.util.Random;
 
 public class PagedFileStorageTest extends TestCase {
   private final PagedFileStorage.StorageLock lock = new PagedFileStorage.StorageLock();
@@ -118,6 +122,85 @@ public class PagedFileStorageTest extends TestCase {
     }
   }
 
+  public void testWritesToEvictedPagesAreNotLost() throws Exception {
+    final int pageSize = Page.PAGE_SIZE;
+    final int pageCount = 256;
+    // not even a single page fits, so every new page evicts all the others
+    PagedFileStorage.StorageLock smallLock = new PagedFileStorage.StorageLock(false, pageSize / 2);
+    PagedFileStorage storage = new PagedFileStorage(f, smallLock, pageSize, true);
+    try {
+      storage.resize((long)pageSize * pageCount);
+      for (int page = 0; page < pageCount; page++) {
+        storage.putInt((long)page * pageSize, page + 1);
+      }
+      for (int page = 0; page < pageCount; page += 3) {
+        storage.putInt((long)page * pageSize + 4, page + 1);
+      }
+      storage.force();
+    }
+    finally {
+      storage.close();
+    }
+
+    RandomAccessFile file = new RandomAccessFile(f, "r");
+    try {
+      for (int page = 0; page < pageCount; page++) {
+        file.seek((long)page * pageSize);
+        assertEquals("page " + page, page + 1, file.readInt());
+        assertEquals("page " + page, page % 3 == 0 ? page + 1 : 0, file.readInt());
+      }
+    }
+    finally {
+      file.close();
+    }
+  }
+
+  public void testConcurrentReads() throws Exception {
+    final int pageSize = Page.PAGE_SIZE;
+    final int pageCount = 64;
+    final int readsPerThread = 100000;
+    final PagedFileStorage.StorageLock sharedLock = new PagedFileStorage.StorageLock(false);
+
+    PagedFileStorage writer = new PagedFileStorage(f, sharedLock, pageSize, true);
+    writer.resize((long)pageSize * pageCount);
+    for (int page = 0; page < pageCount; page++) {
+      writer.putInt((long)page * pageSize, page);
+    }
+    writer.force();
+
+    final List<PagedFileStorage> storages = new ArrayList<PagedFileStorage>();
+    List<Thread> threads = new ArrayList<Thread>();
+    final Throwable[] failure = new Throwable[1];
+    for (int i = 0; i < 4; i++) {
+      // every thread has its own storage so the per-storage last page cache does not hide StorageLock lookups
+      final PagedFileStorage storage = new PagedFileStorage(f, sharedLock, pageSize, true);
+      final long seed = i;
+      storages.add(storage);
+      threads.add(new Thread("PagedFileStorage reader " + i) {
+        @Override
+        public void run() {
+          try {
+            Random random = new Random(seed);
+            for (int r = 0; r < readsPerThread; r++) {
+              int page = random.nextInt(pageCount);
+              if (storage.getInt((long)page * pageSize) != page) throw new AssertionError("Wrong value at page " + page);
+            }
+          }
+          catch (Throwable e) {
+            failure[0] = e;
+          }
+        }
+      });
+    }
+
+    for (Thread thread : threads) thread.start();
+    for (Thread thread : threads) thread.join();
+
+    for (PagedFileStorage storage : storages) storage.close();
+    writer.close();
+    if (failure[0] != null) throw new AssertionError(failure[0]);
+  }
+
   private static final SimpleDateFormat FORMATTER = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
 
   private static void printPct(int pct) {
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io.storage;
+
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.openapi.util.io.ByteSequence;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.ContentCodec;
+import com.intellij.util.io.SourceCodeCompressor;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DeflaterOutputStream;
+
+public class RefCountingStorageTest extends TestCase {
+  private static final String TEXT = "public class Foo {\n  private final int myBar;\n\n  public int getBar() {\n    return myBar;\n  }\n}\n";
+
+  private String getFileName() {
+    return FileUtil.getTempDirectory() + File.separatorChar + getName();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    Storage.deleteFiles(getFileName());
+    super.tearDown();
+  }
+
+  public void testCodecs() throws Exception {
+    byte[] text = repeat(TEXT, 100).getBytes();
+    byte[] random = new byte[10000];
+    new Random(0).nextBytes(random);
+
+    for (ContentCodec codec : Arrays.asList(ContentCodec.STORED, ContentCodec.SNAPPY, ContentCodec.DEFLATE)) {
+      for (byte[] bytes : Arrays.asList(text, random, new byte[0])) {
+        BufferExposingByteArrayOutputStream encoded = ContentCodec.encode(codec, new ByteSequence(bytes));
+        assertTrue(ContentCodec.isEncoded(encoded.getInternalBuffer(), 0, encoded.size()));
+        assertTrue(codec.getName(), encoded.size() <= bytes.length + 1);
+        assertTrue(Arrays.equals(bytes, ContentCodec.decode(encoded.getInternalBuffer(), 0, encoded.size())));
+      }
+    }
+    assertTrue(ContentCodec.encode(ContentCodec.SNAPPY, new ByteSequence(text)).size() < text.length / 4);
+  }
+
+  public void testRecordsWrittenWithDifferentCodecsAreReadable() throws Exception {
+    int[] records = new int[4];
+    byte[][] contents = new byte[records.length][];
+
+    RefCountingStorage storage = createStorage(false, ContentCodec.DEFLATE);
+    try {
+      for (int i = 0; i < records.length; i++) {
+        records[i] = storage.acquireNewRecord();
+        contents[i] = repeat(TEXT, i * 10 + 1).getBytes();
+      }
+      storage.writeBytes(records[0], new ByteSequence(contents[0]), false);
+      storage.writeBytes(records[1], new ByteSequence(contents[1]), false);
+    }
+    finally {
+      Disposer.dispose(storage);
+    }
+
+    storage = createStorage(true, ContentCodec.SNAPPY);
+    try {
+      // as written by the storage before the codecs
+      storage.writeBytes(records[2], new ByteSequence(deflate(contents[2])), false);
+    }
+    finally {
+      Disposer.dispose(storage);
+    }
+
+    storage = createStorage(false, ContentCodec.SNAPPY);
+    try {
+      storage.writeBytes(records[3], new ByteSequence(contents[3]), false);
+      storage.writeBytes(records[0], new ByteSequence(contents[0]), false);
+
+      for (int i = 0; i < records.length; i++) {
+        assertTrue(String.valueOf(i), Arrays.equals(contents[i], storage.readBytes(records[i])));
+      }
+    }
+    finally {
+      Disposer.dispose(storage);
+    }
+  }
+
+  public void testSourceCodeCompressor() throws Exception {
+    byte[] text = repeat(TEXT, 3).getBytes();
+    byte[] compressed = SourceCodeCompressor.compress(text);
+    assertTrue(compressed.length < text.length / 2);
+    assertTrue(Arrays.equals(text, SourceCodeCompressor.decompress(compressed)));
+    assertTrue(Arrays.equals(text, SourceCodeCompressor.decompress(deflate(text))));
+  }
+
+  private RefCountingStorage createStorage(boolean doNotZip, ContentCodec codec) throws IOException {
+    return new RefCountingStorage(getFileName(), CapacityAllocationPolicy.DEFAULT, doNotZip, codec);
+  }
+
+  private static byte[] deflate(byte[] bytes) throws IOException {
+    BufferExposingByteArrayOutputStream s = new BufferExposingByteArrayOutputStream();
+    DeflaterOutputStream out = new DeflaterOutputStream(s);
+    try {
+      out.write(bytes);
+    }
+    finally {
+      out.close();
+    }
+    return s.toByteArray();
+  }
+
+  private static String repeat(String s, int count) {
+    StringBuilder result = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      result.append(s).append(i);
+    }
+    return result.toString();
+  }
+}
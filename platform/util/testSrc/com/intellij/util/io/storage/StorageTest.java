@@ -22,7 +22,9 @@ package com.intellij.util.io.storage;
 import com.intellij.openapi.util.Disposer;
 import com.intellij.openapi.util.io.ByteSequence;
 import com.intellij.openapi.util.io.FileUtil;
+import gnu.trove.TIntHashSet;
 import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
@@ -111,6 +113,39 @@ public class StorageTest extends TestCase {
     appendNBytes(r, 512);
   }
 
+  public void testProcessRecords() throws Exception {
+    final int count = 1000;
+    for (int i = 0; i < count; i++) {
+      final int record = myStorage.createNewRecord();
+      if (i % 10 != 9) myStorage.writeBytes(record, new ByteSequence(String.valueOf(record).getBytes()), false);
+    }
+    // relocate some records to the end of data file
+    for (int record = 1; record <= count; record += 7) {
+      myStorage.writeBytes(record, new ByteSequence((record + "-relocated-" + record).getBytes()), false);
+    }
+
+    final TIntHashSet processed = new TIntHashSet();
+    final long[] lastAddress = {0};
+    for (int from = 1; from <= myStorage.getRecordsCount(); from += 100) {
+      lastAddress[0] = 0;
+      assertTrue(myStorage.processRecords(from, from + 100, new AbstractStorage.RecordBytesProcessor() {
+        @Override
+        public boolean process(int record, @NotNull byte[] bytes, int length) throws IOException {
+          long address = myStorage.myRecordsTable.getAddress(record);
+          assertTrue(address > lastAddress[0]);
+          lastAddress[0] = address;
+          assertEquals(new String(myStorage.readBytes(record)), new String(bytes, 0, length));
+          assertTrue(processed.add(record));
+          return true;
+        }
+      }));
+    }
+
+    for (int record = 1; record <= count; record++) {
+      assertEquals(myStorage.readBytes(record).length > 0, processed.contains(record));
+    }
+  }
+
   private void appendNBytes(final int r, final int len) throws IOException {
     DataOutputStream out = new DataOutputStream(myStorage.appendStream(r));
     for (int i = 0; i < len; i++) {
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.vcs.log.graph.impl.facade;
+
+import com.intellij.vcs.log.graph.api.LiteLinearGraph;
+import gnu.trove.TIntIntHashMap;
+import gnu.trove.TLongIntHashMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Precomputed "contained in branches" information for all nodes of a graph.
+ * <p/>
+ * Every branch head gets an ordinal, and every node refers to the bit set of ordinals of the branches containing it.
+ * Nodes of the same chain and most of the merged history are contained in the same branches,
+ * so there are few distinct sets, and they are shared between the nodes.
+ * The sets are calculated in one pass from the top of the graph: a node is contained in the branches containing its children.
+ */
+public class ContainingBranchesIndex {
+  private static final int EMPTY_SET = 0;
+
+  @NotNull private final int[] myBranchNodes;
+  @NotNull private final TIntIntHashMap myBranchOrdinals;
+  @NotNull private final int[] myNodeSets;
+  @NotNull private final List<BitSet> mySets;
+
+  private ContainingBranchesIndex(@NotNull int[] branchNodes,
+                                  @NotNull TIntIntHashMap branchOrdinals,
+                                  @NotNull int[] nodeSets,
+                                  @NotNull List<BitSet> sets) {
+    myBranchNodes = branchNodes;
+    myBranchOrdinals = branchOrdinals;
+    myNodeSets = nodeSets;
+    mySets = sets;
+  }
+
+  @NotNull
+  public static ContainingBranchesIndex build(@NotNull LiteLinearGraph graph, @NotNull Collection<Integer> branchNodeIds) {
+    int[] branchNodes = new int[branchNodeIds.size()];
+    int branchesCount = 0;
+    for (int nodeId : branchNodeIds) {
+      if (nodeId >= 0 && nodeId < graph.nodesCount()) branchNodes[branchesCount++] = nodeId;
+    }
+    branchNodes = Arrays.copyOf(branchNodes, branchesCount);
+    Arrays.sort(branchNodes);
+    TIntIntHashMap branchOrdinals = new TIntIntHashMap();
+    for (int ordinal = 0; ordinal < branchNodes.length; ordinal++) {
+      branchOrdinals.put(branchNodes[ordinal], ordinal);
+    }
+
+    SetsBuilder sets = new SetsBuilder();
+    int[] nodeSets = new int[graph.nodesCount()];
+    for (int nodeIndex = 0; nodeIndex < graph.nodesCount(); nodeIndex++) {
+      int set = EMPTY_SET;
+      for (int upNode : graph.getNodes(nodeIndex, LiteLinearGraph.NodeFilter.UP)) {
+        set = sets.union(set, nodeSets[upNode]);
+      }
+      if (branchOrdinals.containsKey(nodeIndex)) {
+        set = sets.add(set, branchOrdinals.get(nodeIndex));
+      }
+      nodeSets[nodeIndex] = set;
+    }
+    return new ContainingBranchesIndex(branchNodes, branchOrdinals, nodeSets, sets.mySets);
+  }
+
+  public int getDistinctSetsCount() {
+    return mySets.size();
+  }
+
+  @NotNull
+  public Set<Integer> getContainingBranches(int nodeIndex) {
+    if (nodeIndex < 0 || nodeIndex >= myNodeSets.length) return Collections.emptySet();
+
+    BitSet set = mySets.get(myNodeSets[nodeIndex]);
+    Set<Integer> result = new HashSet<>();
+    for (int ordinal = set.nextSetBit(0); ordinal >= 0; ordinal = set.nextSetBit(ordinal + 1)) {
+      result.add(myBranchNodes[ordinal]);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the nodes contained in any of the given branches, or null if some of the nodes are not branch heads in this index.
+   */
+  @Nullable
+  public BitSet getNodesContainedInBranches(@NotNull Collection<Integer> branchNodeIds) {
+    BitSet branches = new BitSet();
+    for (int nodeId : branchNodeIds) {
+      if (!myBranchOrdinals.containsKey(nodeId)) return null;
+      branches.set(myBranchOrdinals.get(nodeId));
+    }
+
+    BitSet matchingSets = new BitSet(mySets.size());
+    for (int i = 0; i < mySets.size(); i++) {
+      if (mySets.get(i).intersects(branches)) matchingSets.set(i);
+    }
+
+    BitSet result = new BitSet(myNodeSets.length);
+    for (int nodeIndex = 0; nodeIndex < myNodeSets.length; nodeIndex++) {
+      if (matchingSets.get(myNodeSets[nodeIndex])) result.set(nodeIndex);
+    }
+    return result;
+  }
+
+  private static class SetsBuilder {
+    @NotNull private final List<BitSet> mySets = new ArrayList<>();
+    @NotNull private final Map<BitSet, Integer> mySetIndexes = new HashMap<>();
+    @NotNull private final TLongIntHashMap myUnions = new TLongIntHashMap();
+
+    SetsBuilder() {
+      intern(new BitSet());
+    }
+
+    int union(int set1, int set2) {
+      if (set1 == set2 || set2 == EMPTY_SET) return set1;
+      if (set1 == EMPTY_SET) return set2;
+
+      long key = set1 < set2 ? ((long)set1 << 32) | set2 : ((long)set2 << 32) | set1;
+      if (myUnions.containsKey(key)) return myUnions.get(key);
+
+      BitSet union = (BitSet)mySets.get(set1).clone();
+      union.or(mySets.get(set2));
+      int result = intern(union);
+      myUnions.put(key, result);
+      return result;
+    }
+
+    int add(int set, int ordinal) {
+      if (mySets.get(set).get(ordinal)) return set;
+
+      BitSet result = (BitSet)mySets.get(set).clone();
+      result.set(ordinal);
+      return intern(result);
+    }
+
+    private int intern(@NotNull BitSet set) {
+      Integer index = mySetIndexes.get(set);
+      if (index != null) return index;
+
+      mySets.add(set);
+      mySetIndexes.put(set, mySets.size() - 1);
+      return mySets.size() - 1;
+    }
+  }
+}
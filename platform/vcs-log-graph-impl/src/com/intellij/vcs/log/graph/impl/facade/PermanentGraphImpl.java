@@ -52,17 +52,120 @@ public class PermanentGraphImpl<CommitId> implements PermanentGraph<CommitId>, P
     final PermanentCommitsInfoImpl<CommitId> commitIdPermanentCommitsInfo =
       PermanentCommitsInfoImpl.newInstance(graphCommits, idsGenerator.getNotLoadedCommits());
 
-    GraphLayoutImpl permanentGraphLayout = GraphLayoutBuilder.build(linearGraph, new Comparator<Integer>() {
+    GraphLayoutImpl permanentGraphLayout =
+      GraphLayoutBuilder.build(linearGraph, createHeadsComparator(commitIdPermanentCommitsInfo, graphColorManager));
+
+    return new PermanentGraphImpl<>(linearGraph, permanentGraphLayout, commitIdPermanentCommitsInfo, graphColorManager,
+                                    branchesCommitId);
+  }
+
+  /**
+   * Returns the number of commits at the top of the list which are not in the graph, if the rest of the list consists of exactly
+   * the commits of the graph in the same order (which is the case when the list is the graph with some new commits on top of it),
+   * or -1 otherwise.
+   */
+  public static <CommitId> int getNewTopCommitsCount(@NotNull PermanentGraphImpl<CommitId> graph,
+                                                     @NotNull List<? extends GraphCommit<CommitId>> graphCommits) {
+    int nodesCount = graph.myPermanentLinearGraph.nodesCount();
+    int newCommitsCount = graphCommits.size() - nodesCount;
+    if (newCommitsCount < 0) return -1;
+
+    for (int nodeIndex = 0; nodeIndex < nodesCount; nodeIndex++) {
+      GraphCommit<CommitId> commit = graphCommits.get(newCommitsCount + nodeIndex);
+      if (commit instanceof PermanentGraphCommit && ((PermanentGraphCommit)commit).myGraph == graph) {
+        if (((PermanentGraphCommit)commit).myNodeIndex != nodeIndex) return -1;
+      }
+      else if (!commit.getId().equals(graph.myPermanentCommitsInfo.getCommitId(nodeIndex))) {
+        return -1;
+      }
+    }
+    return newCommitsCount;
+  }
+
+  /**
+   * Creates the graph of the new commits on top of the given graph, reusing its structure and layout instead of building them
+   * from scratch.
+   *
+   * @param newCommits commits above all commits of the graph in the topological order, see {@link #getNewTopCommitsCount}.
+   * @return null if the new commits can not be attached to the graph, e.g. if some of them are not loaded parents of the graph commits.
+   */
+  @Nullable
+  public static <CommitId> PermanentGraphImpl<CommitId> addTopCommits(@NotNull PermanentGraphImpl<CommitId> graph,
+                                                                      @NotNull List<? extends GraphCommit<CommitId>> newCommits,
+                                                                      @NotNull GraphColorManager<CommitId> graphColorManager,
+                                                                      @NotNull Set<CommitId> branchesCommitId) {
+    newCommits = new ArrayList<>(DuplicateParentFixer.fixDuplicateParentCommits(newCommits));
+    PermanentCommitsInfoImpl<CommitId> previousCommitsInfo = graph.myPermanentCommitsInfo;
+    Map<Integer, CommitId> previousNotLoadedCommits = previousCommitsInfo.getNotLoadedCommits();
+
+    Map<CommitId, Integer> nodeIndexes = ContainerUtil.newHashMap();
+    for (int nodeIndex = 0; nodeIndex < newCommits.size(); nodeIndex++) {
+      nodeIndexes.put(newCommits.get(nodeIndex).getId(), nodeIndex);
+    }
+    if (nodeIndexes.size() != newCommits.size() || ContainerUtil.intersects(previousNotLoadedCommits.values(), nodeIndexes.keySet())) {
+      return null;
+    }
+
+    Map<CommitId, Integer> notLoadedIds = ContainerUtil.newHashMap();
+    for (Map.Entry<Integer, CommitId> entry : previousNotLoadedCommits.entrySet()) {
+      notLoadedIds.put(entry.getValue(), entry.getKey());
+    }
+    Set<CommitId> oldParents = ContainerUtil.newHashSet();
+    for (GraphCommit<CommitId> commit : newCommits) {
+      for (CommitId parent : commit.getParents()) {
+        if (!nodeIndexes.containsKey(parent) && !notLoadedIds.containsKey(parent)) oldParents.add(parent);
+      }
+    }
+    // parents of new commits are usually near the top
+    int nodesCount = graph.myPermanentLinearGraph.nodesCount();
+    for (int nodeIndex = 0; nodeIndex < nodesCount && !oldParents.isEmpty(); nodeIndex++) {
+      CommitId commitId = previousCommitsInfo.getCommitId(nodeIndex);
+      if (oldParents.remove(commitId)) nodeIndexes.put(commitId, nodeIndex + newCommits.size());
+    }
+
+    NotLoadedCommitsIdsGenerator<CommitId> idsGenerator = new NotLoadedCommitsIdsGenerator<>(previousNotLoadedCommits);
+    int[][] downNodes = new int[newCommits.size()][];
+    for (int nodeIndex = 0; nodeIndex < newCommits.size(); nodeIndex++) {
+      List<CommitId> parents = newCommits.get(nodeIndex).getParents();
+      downNodes[nodeIndex] = new int[parents.size()];
+      for (int i = 0; i < parents.size(); i++) {
+        CommitId parent = parents.get(i);
+        Integer downNode = nodeIndexes.get(parent);
+        if (downNode == null) {
+          downNode = notLoadedIds.get(parent);
+          if (downNode == null) {
+            downNode = idsGenerator.fun(parent);
+            notLoadedIds.put(parent, downNode);
+          }
+        }
+        else if (downNode <= nodeIndex) {
+          return null;
+        }
+        downNodes[nodeIndex][i] = downNode;
+      }
+    }
+
+    PermanentLinearGraphImpl linearGraph = PermanentLinearGraphBuilder.addTopNodes(graph.myPermanentLinearGraph, downNodes);
+    PermanentCommitsInfoImpl<CommitId> commitsInfo =
+      PermanentCommitsInfoImpl.addTopCommits(previousCommitsInfo, newCommits, idsGenerator.getNotLoadedCommits());
+    Comparator<Integer> headsComparator = createHeadsComparator(commitsInfo, graphColorManager);
+    GraphLayoutImpl layout = GraphLayoutBuilder.addTopNodes(graph.myPermanentGraphLayout, linearGraph, newCommits.size(), headsComparator);
+    if (layout == null) layout = GraphLayoutBuilder.build(linearGraph, headsComparator);
+
+    return new PermanentGraphImpl<>(linearGraph, layout, commitsInfo, graphColorManager, branchesCommitId);
+  }
+
+  @NotNull
+  private static <CommitId> Comparator<Integer> createHeadsComparator(@NotNull final PermanentCommitsInfoImpl<CommitId> commitsInfo,
+                                                                      @NotNull final GraphColorManager<CommitId> graphColorManager) {
+    return new Comparator<Integer>() {
       @Override
       public int compare(@NotNull Integer nodeIndex1, @NotNull Integer nodeIndex2) {
-        CommitId commitId1 = commitIdPermanentCommitsInfo.getCommitId(nodeIndex1);
-        CommitId commitId2 = commitIdPermanentCommitsInfo.getCommitId(nodeIndex2);
+        CommitId commitId1 = commitsInfo.getCommitId(nodeIndex1);
+        CommitId commitId2 = commitsInfo.getCommitId(nodeIndex2);
         return graphColorManager.compareHeads(commitId2, commitId1);
       }
-    });
-
-    return new PermanentGraphImpl<>(linearGraph, permanentGraphLayout, commitIdPermanentCommitsInfo, graphColorManager,
-                                    branchesCommitId);
+    };
   }
 
   @NotNull private final PermanentCommitsInfoImpl<CommitId> myPermanentCommitsInfo;
@@ -72,6 +175,7 @@ public class PermanentGraphImpl<CommitId> implements PermanentGraph<CommitId>, P
   @NotNull private final Set<Integer> myBranchNodeIds;
   @NotNull private final ReachableNodes myReachableNodes;
   @NotNull private final Supplier<BekIntMap> myBekIntMap;
+  @NotNull private final Supplier<ContainingBranchesIndex> myContainingBranchesIndex;
 
   public PermanentGraphImpl(@NotNull PermanentLinearGraphImpl permanentLinearGraph,
                             @NotNull GraphLayoutImpl permanentGraphLayout,
@@ -90,6 +194,12 @@ public class PermanentGraphImpl<CommitId> implements PermanentGraph<CommitId>, P
         return BekSorter.createBekMap(myPermanentLinearGraph, myPermanentGraphLayout, myPermanentCommitsInfo.getTimestampGetter());
       }
     });
+    myContainingBranchesIndex = Suppliers.memoize(new Supplier<ContainingBranchesIndex>() {
+      @Override
+      public ContainingBranchesIndex get() {
+        return ContainingBranchesIndex.build(LinearGraphUtils.asLiteLinearGraph(myPermanentLinearGraph), myBranchNodeIds);
+      }
+    });
   }
 
   @NotNull
@@ -134,17 +244,19 @@ public class PermanentGraphImpl<CommitId> implements PermanentGraph<CommitId>, P
   @NotNull
   @Override
   public List<GraphCommit<CommitId>> getAllCommits() {
-    List<GraphCommit<CommitId>> result = ContainerUtil.newArrayList();
-    for (int index = 0; index < myPermanentLinearGraph.nodesCount(); index++) {
-      CommitId commitId = myPermanentCommitsInfo.getCommitId(index);
-      List<Integer> downNodes = LinearGraphUtils.getDownNodesIncludeNotLoad(myPermanentLinearGraph, index);
-      List<CommitId> parentsCommitIds = myPermanentCommitsInfo.convertToCommitIdList(downNodes);
-      GraphCommit<CommitId> graphCommit =
-        new GraphCommitImpl<>(commitId, parentsCommitIds, myPermanentCommitsInfo.getTimestamp(index));
-      result.add(graphCommit);
-    }
+    // commits are created on demand, so that joining new commits to the log doesn't go through all of them
+    return new AbstractList<GraphCommit<CommitId>>() {
+      @NotNull
+      @Override
+      public GraphCommit<CommitId> get(int index) {
+        return new PermanentGraphCommit<>(PermanentGraphImpl.this, index);
+      }
 
-    return result;
+      @Override
+      public int size() {
+        return myPermanentLinearGraph.nodesCount();
+      }
+    };
   }
 
   @NotNull
@@ -158,7 +270,7 @@ public class PermanentGraphImpl<CommitId> implements PermanentGraph<CommitId>, P
   @Override
   public Set<CommitId> getContainingBranches(@NotNull CommitId commit) {
     int commitIndex = myPermanentCommitsInfo.getNodeId(commit);
-    return myPermanentCommitsInfo.convertToCommitIdSet(myReachableNodes.getContainingBranches(commitIndex, myBranchNodeIds));
+    return myPermanentCommitsInfo.convertToCommitIdSet(myContainingBranchesIndex.get().getContainingBranches(commitIndex));
   }
 
   @NotNull
@@ -170,8 +282,16 @@ public class PermanentGraphImpl<CommitId> implements PermanentGraph<CommitId>, P
         return myPermanentCommitsInfo.getNodeId(head);
       }
     });
+    BitSet nodes = myContainingBranchesIndex.get().getNodesContainedInBranches(headIds);
     if (!heads.isEmpty() && ContainerUtil.getFirstItem(heads) instanceof Integer) {
       final TIntHashSet branchNodes = new TIntHashSet();
+      if (nodes != null) {
+        for (int node = nodes.nextSetBit(0); node >= 0; node = nodes.nextSetBit(node + 1)) {
+          branchNodes.add((Integer)myPermanentCommitsInfo.getCommitId(node));
+        }
+        return new IntContainedInBranchCondition<>(branchNodes);
+      }
+      // heads which are not branches are not in the index
       myReachableNodes.walk(headIds, new Consumer<Integer>() {
         @Override
         public void consume(Integer node) {
@@ -182,6 +302,12 @@ public class PermanentGraphImpl<CommitId> implements PermanentGraph<CommitId>, P
     }
     else {
       final Set<CommitId> branchNodes = ContainerUtil.newHashSet();
+      if (nodes != null) {
+        for (int node = nodes.nextSetBit(0); node >= 0; node = nodes.nextSetBit(node + 1)) {
+          branchNodes.add(myPermanentCommitsInfo.getCommitId(node));
+        }
+        return new ContainedInBranchCondition<>(branchNodes);
+      }
       myReachableNodes.walk(headIds, new Consumer<Integer>() {
         @Override
         public void consume(Integer node) {
@@ -207,13 +333,54 @@ public class PermanentGraphImpl<CommitId> implements PermanentGraph<CommitId>, P
     return myPermanentGraphLayout;
   }
 
+  @NotNull
+  public ContainingBranchesIndex getContainingBranchesIndex() {
+    return myContainingBranchesIndex.get();
+  }
+
   @NotNull
   public Set<Integer> getBranchNodeIds() {
     return myBranchNodeIds;
   }
 
+  private static class PermanentGraphCommit<CommitId> implements GraphCommit<CommitId> {
+    @NotNull private final PermanentGraphImpl<CommitId> myGraph;
+    private final int myNodeIndex;
+
+    PermanentGraphCommit(@NotNull PermanentGraphImpl<CommitId> graph, int nodeIndex) {
+      myGraph = graph;
+      myNodeIndex = nodeIndex;
+    }
+
+    @NotNull
+    @Override
+    public CommitId getId() {
+      return myGraph.myPermanentCommitsInfo.getCommitId(myNodeIndex);
+    }
+
+    @NotNull
+    @Override
+    public List<CommitId> getParents() {
+      List<Integer> downNodes = LinearGraphUtils.getDownNodesIncludeNotLoad(myGraph.myPermanentLinearGraph, myNodeIndex);
+      return myGraph.myPermanentCommitsInfo.convertToCommitIdList(downNodes);
+    }
+
+    @Override
+    public long getTimestamp() {
+      return myGraph.myPermanentCommitsInfo.getTimestamp(myNodeIndex);
+    }
+  }
+
   private static class NotLoadedCommitsIdsGenerator<CommitId> implements NotNullFunction<CommitId, Integer> {
-    @NotNull private final Map<Integer, CommitId> myNotLoadedCommits = ContainerUtil.newHashMap();
+    @NotNull private final Map<Integer, CommitId> myNotLoadedCommits;
+
+    NotLoadedCommitsIdsGenerator() {
+      this(Collections.emptyMap());
+    }
+
+    NotLoadedCommitsIdsGenerator(@NotNull Map<Integer, CommitId> notLoadedCommits) {
+      myNotLoadedCommits = ContainerUtil.newHashMap(notLoadedCommits);
+    }
 
     @NotNull
     @Override
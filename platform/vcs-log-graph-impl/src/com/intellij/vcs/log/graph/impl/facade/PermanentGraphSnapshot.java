@@ -0,0 +1,85 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.vcs.log.graph.impl.facade;
+
+import com.intellij.vcs.log.graph.GraphColorManager;
+import com.intellij.vcs.log.graph.impl.permanent.GraphLayoutImpl;
+import com.intellij.vcs.log.graph.impl.permanent.PermanentCommitsInfoImpl;
+import com.intellij.vcs.log.graph.impl.permanent.PermanentGraphSerializer;
+import com.intellij.vcs.log.graph.impl.permanent.PermanentLinearGraphImpl;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Permanent graph structures of an integer graph read from a previously saved graph.
+ * Colors and branches depend on the current refs, so the graph itself is created only when they are known.
+ */
+public class PermanentGraphSnapshot {
+  @NotNull private final PermanentLinearGraphImpl myLinearGraph;
+  @NotNull private final GraphLayoutImpl myLayout;
+  @NotNull private final PermanentCommitsInfoImpl<Integer> myCommitsInfo;
+
+  private PermanentGraphSnapshot(@NotNull PermanentLinearGraphImpl linearGraph,
+                                 @NotNull GraphLayoutImpl layout,
+                                 @NotNull PermanentCommitsInfoImpl<Integer> commitsInfo) {
+    myLinearGraph = linearGraph;
+    myLayout = layout;
+    myCommitsInfo = commitsInfo;
+  }
+
+  public static void write(@NotNull PermanentGraphImpl<Integer> graph, @NotNull DataOutput out) throws IOException {
+    int nodesCount = graph.getLinearGraph().nodesCount();
+    PermanentGraphSerializer.writeLinearGraph(graph.getLinearGraph(), out);
+    PermanentGraphSerializer.writeLayout(graph.getPermanentGraphLayout(), nodesCount, out);
+    PermanentGraphSerializer.writeCommitsInfo(graph.getPermanentCommitsInfo(), nodesCount, out);
+  }
+
+  @NotNull
+  public static PermanentGraphSnapshot read(@NotNull ByteBuffer buffer) throws IOException {
+    PermanentLinearGraphImpl linearGraph = PermanentGraphSerializer.readLinearGraph(buffer);
+    int nodesCount = linearGraph.nodesCount();
+    GraphLayoutImpl layout = PermanentGraphSerializer.readLayout(buffer, nodesCount);
+    PermanentCommitsInfoImpl<Integer> commitsInfo = PermanentGraphSerializer.readCommitsInfo(buffer, nodesCount);
+
+    for (int head : layout.getHeadNodeIndex()) {
+      if (head < 0 || head >= nodesCount) throw new IOException("Head " + head + " is out of " + nodesCount + " nodes");
+    }
+    return new PermanentGraphSnapshot(linearGraph, layout, commitsInfo);
+  }
+
+  public int getCommitsCount() {
+    return myLinearGraph.nodesCount();
+  }
+
+  @NotNull
+  public Set<Integer> getHeads() {
+    Set<Integer> heads = new HashSet<>();
+    for (int headNodeIndex : myLayout.getHeadNodeIndex()) {
+      heads.add(myCommitsInfo.getCommitId(headNodeIndex));
+    }
+    return heads;
+  }
+
+  @NotNull
+  public PermanentGraphImpl<Integer> createGraph(@NotNull GraphColorManager<Integer> graphColorManager, @NotNull Set<Integer> branches) {
+    return new PermanentGraphImpl<>(myLinearGraph, myLayout, myCommitsInfo, graphColorManager, branches);
+  }
+}
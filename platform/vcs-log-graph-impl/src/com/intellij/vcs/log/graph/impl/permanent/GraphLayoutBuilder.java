@@ -21,9 +21,14 @@ import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.util.containers.ContainerUtil;
 import com.intellij.vcs.log.graph.api.LinearGraph;
 import com.intellij.vcs.log.graph.utils.DfsUtil;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntHashSet;
+import gnu.trove.TIntIntHashMap;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
 
@@ -42,8 +47,146 @@ public class GraphLayoutBuilder {
         heads.add(i);
       }
     }
+    GraphLayoutBuilder builder = new GraphLayoutBuilder(graph, sortHeads(heads, headNodeIndexComparator), graph.nodesCount());
+    return builder.build();
+  }
+
+  /**
+   * Lays out the graph built by {@link PermanentLinearGraphBuilder#addTopNodes} traversing only the new nodes. Old nodes keep their
+   * layout indexes, shifted to make room for the new ones, and a path of new nodes leading to an old head continues the layout index
+   * of that head, the same way as the full traversal would do it.
+   *
+   * @return null if the old heads are not in the order of the comparator anymore, so the layout has to be built from scratch.
+   */
+  @Nullable
+  public static GraphLayoutImpl addTopNodes(@NotNull GraphLayoutImpl layout,
+                                            @NotNull LinearGraph graph,
+                                            int newNodesCount,
+                                            @NotNull Comparator<Integer> headNodeIndexComparator) {
+    List<Integer> oldHeads = new ArrayList<>();
+    TIntHashSet continuedHeads = new TIntHashSet();
+    for (int oldHead : layout.getHeadNodeIndex()) {
+      int head = oldHead + newNodesCount;
+      if (getUpNodes(graph, head).isEmpty()) {
+        oldHeads.add(head);
+      }
+      else {
+        continuedHeads.add(head);
+      }
+    }
     try {
-      heads = ContainerUtil.sorted(heads, headNodeIndexComparator);
+      for (int i = 1; i < oldHeads.size(); i++) {
+        if (headNodeIndexComparator.compare(oldHeads.get(i - 1), oldHeads.get(i)) > 0) return null;
+      }
+    }
+    catch (ProcessCanceledException pce) {
+      throw pce;
+    }
+    catch (Exception e) {
+      return null;
+    }
+    if (newNodesCount == 0) return layout;
+
+    List<Integer> newHeads = new ArrayList<>();
+    for (int i = 0; i < newNodesCount; i++) {
+      if (getUpNodes(graph, i).isEmpty()) {
+        newHeads.add(i);
+      }
+    }
+    newHeads = sortHeads(newHeads, headNodeIndexComparator);
+
+    GraphLayoutBuilder builder = new GraphLayoutBuilder(graph, newHeads, newNodesCount);
+    Arrays.fill(builder.myLayoutIndex, newNodesCount, graph.nodesCount(), -1);
+    continuedHeads.forEach(head -> {
+      builder.myLayoutIndex[head] = 0;
+      return true;
+    });
+    builder.layOut();
+    if (builder.myContinuedHeads.size() != continuedHeads.size()) return null;
+
+    // old heads continued by the new ones, and where the layout indexes of the new heads go: before the old head they continue,
+    // or else before the first old head which is less important
+    TIntIntHashMap continuingHeads = new TIntIntHashMap();
+    int[] lanesOfHeads = builder.myStartLayoutIndexForHead;
+    for (int lane : builder.myContinuedHeads.keys()) {
+      continuingHeads.put(builder.myContinuedHeads.get(lane), newHeads.get(GraphLayoutImpl.getHeadOrder(lanesOfHeads, lane)));
+    }
+    int[] oldStarts = layout.getStartLayoutIndexes();
+    int[] oldStartHeads = layout.getHeadNodeIndexForStart();
+    int[] newHeadPositions = new int[newHeads.size()];
+    for (int i = 0; i < newHeads.size(); i++) {
+      int newHead = newHeads.get(i);
+      boolean continuing = continuingHeads.containsValue(newHead);
+      int position = 0;
+      for (; position < oldStarts.length; position++) {
+        int oldHead = oldStartHeads[position] + newNodesCount;
+        if (continuingHeads.containsKey(oldHead)) {
+          if (continuingHeads.get(oldHead) == newHead) break;
+        }
+        else if (!continuing && headNodeIndexComparator.compare(newHead, oldHead) < 0) {
+          break;
+        }
+      }
+      newHeadPositions[i] = position;
+    }
+
+    List<Integer> heads = new ArrayList<>();
+    TIntArrayList starts = new TIntArrayList();
+    TIntArrayList startHeads = new TIntArrayList();
+    int[] laneLayoutIndexes = new int[builder.currentLayoutIndex];
+    int[] oldShifts = new int[oldStarts.length];
+    int currentLayoutIndex = 1;
+    for (int position = 0; position <= oldStarts.length; position++) {
+      for (int i = 0; i < newHeads.size(); i++) {
+        if (newHeadPositions[i] != position) continue;
+        heads.add(newHeads.get(i));
+        int start = currentLayoutIndex;
+        int lanesEnd = i + 1 < lanesOfHeads.length ? lanesOfHeads[i + 1] : builder.currentLayoutIndex;
+        for (int lane = lanesOfHeads[i]; lane < lanesEnd; lane++) {
+          if (!builder.myContinuedHeads.containsKey(lane)) laneLayoutIndexes[lane] = currentLayoutIndex++;
+        }
+        if (currentLayoutIndex > start) {
+          starts.add(start);
+          startHeads.add(newHeads.get(i));
+        }
+      }
+      if (position == oldStarts.length) break;
+
+      int oldHead = oldStartHeads[position] + newNodesCount;
+      if (continuingHeads.containsKey(oldHead)) {
+        startHeads.add(continuingHeads.get(oldHead));
+      }
+      else {
+        if (!heads.contains(oldHead)) heads.add(oldHead);
+        startHeads.add(oldHead);
+      }
+      starts.add(currentLayoutIndex);
+      oldShifts[position] = currentLayoutIndex - oldStarts[position];
+      int end = position + 1 < oldStarts.length ? oldStarts[position + 1] : layout.getMaxLayoutIndex() + 1;
+      currentLayoutIndex += end - oldStarts[position];
+    }
+
+    for (int lane : builder.myContinuedHeads.keys()) {
+      int oldLayoutIndex = layout.getLayoutIndex(builder.myContinuedHeads.get(lane) - newNodesCount);
+      laneLayoutIndexes[lane] = oldLayoutIndex + oldShifts[layout.getHeadOrder(oldLayoutIndex)];
+    }
+    int[] layoutIndex = builder.myLayoutIndex;
+    for (int nodeIndex = 0; nodeIndex < layoutIndex.length; nodeIndex++) {
+      if (nodeIndex < newNodesCount) {
+        layoutIndex[nodeIndex] = laneLayoutIndexes[layoutIndex[nodeIndex]];
+      }
+      else {
+        int oldLayoutIndex = layout.getLayoutIndex(nodeIndex - newNodesCount);
+        layoutIndex[nodeIndex] = oldLayoutIndex + oldShifts[layout.getHeadOrder(oldLayoutIndex)];
+      }
+    }
+    return new GraphLayoutImpl(layoutIndex, heads, starts.toNativeArray(), startHeads.toNativeArray());
+  }
+
+  @NotNull
+  private static List<Integer> sortHeads(@NotNull List<Integer> heads, @NotNull Comparator<Integer> headNodeIndexComparator) {
+    try {
+      return ContainerUtil.sorted(heads, headNodeIndexComparator);
     }
     catch (ProcessCanceledException pce) {
       throw pce;
@@ -51,9 +194,8 @@ public class GraphLayoutBuilder {
     catch (Exception e) {
       // protection against possible comparator flaws
       LOG.error(e);
+      return heads;
     }
-    GraphLayoutBuilder builder = new GraphLayoutBuilder(graph, heads);
-    return builder.build();
   }
 
   @NotNull private final LinearGraph myGraph;
@@ -64,10 +206,16 @@ public class GraphLayoutBuilder {
 
   @NotNull private final DfsUtil myDfsUtil = new DfsUtil();
 
+  // nodes starting from this one are laid out already, except for the heads which are continued by the nodes above
+  private final int myNewNodesCount;
+  // layout index of a path of new nodes -> old head which it continues
+  @NotNull private final TIntIntHashMap myContinuedHeads = new TIntIntHashMap();
+
   private int currentLayoutIndex = 1;
 
-  private GraphLayoutBuilder(@NotNull LinearGraph graph, @NotNull List<Integer> headNodeIndex) {
+  private GraphLayoutBuilder(@NotNull LinearGraph graph, @NotNull List<Integer> headNodeIndex, int newNodesCount) {
     myGraph = graph;
+    myNewNodesCount = newNodesCount;
     myLayoutIndex = new int[graph.nodesCount()];
 
     myHeadNodeIndex = headNodeIndex;
@@ -79,6 +227,11 @@ public class GraphLayoutBuilder {
       @Override
       public int fun(int currentNode) {
         boolean firstVisit = myLayoutIndex[currentNode] == 0;
+        if (firstVisit && currentNode >= myNewNodesCount) {
+          myLayoutIndex[currentNode] = -1;
+          myContinuedHeads.put(currentLayoutIndex++, currentNode);
+          return DfsUtil.NextNode.NODE_NOT_FOUND;
+        }
         if (firstVisit) myLayoutIndex[currentNode] = currentLayoutIndex;
 
         int childWithoutLayoutIndex = -1;
@@ -101,15 +254,18 @@ public class GraphLayoutBuilder {
     });
   }
 
-  @NotNull
-  private GraphLayoutImpl build() {
+  private void layOut() {
     for (int i = 0; i < myHeadNodeIndex.size(); i++) {
       int headNodeIndex = myHeadNodeIndex.get(i);
       myStartLayoutIndexForHead[i] = currentLayoutIndex;
 
       dfs(headNodeIndex);
     }
+  }
 
+  @NotNull
+  private GraphLayoutImpl build() {
+    layOut();
     return new GraphLayoutImpl(myLayoutIndex, myHeadNodeIndex, myStartLayoutIndexForHead);
   }
 }
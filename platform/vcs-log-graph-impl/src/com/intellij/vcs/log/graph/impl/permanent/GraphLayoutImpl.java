@@ -15,6 +15,7 @@
  */
 package com.intellij.vcs.log.graph.impl.permanent;
 
+import com.intellij.util.ArrayUtil;
 import com.intellij.vcs.log.graph.api.GraphLayout;
 import com.intellij.vcs.log.graph.utils.IntList;
 import com.intellij.vcs.log.graph.utils.impl.CompressedIntList;
@@ -27,11 +28,31 @@ public class GraphLayoutImpl implements GraphLayout {
 
   @NotNull private final List<Integer> myHeadNodeIndex;
   @NotNull private final int[] myStartLayoutIndexForHead;
+  // head which the layout indexes starting from the corresponding myStartLayoutIndexForHead belong to
+  @NotNull private final int[] myHeadNodeIndexForStart;
+  private final int myMaxLayoutIndex;
 
   public GraphLayoutImpl(@NotNull int[] layoutIndex, @NotNull List<Integer> headNodeIndex, @NotNull int[] startLayoutIndexForHead) {
+    this(layoutIndex, headNodeIndex, startLayoutIndexForHead, ArrayUtil.toIntArray(headNodeIndex));
+  }
+
+  /**
+   * Layout where some ranges of layout indexes belong to heads which are not first in them, e.g. when the layout of an old head
+   * is reused after new commits were added on top of it.
+   */
+  GraphLayoutImpl(@NotNull int[] layoutIndex,
+                  @NotNull List<Integer> headNodeIndex,
+                  @NotNull int[] startLayoutIndex,
+                  @NotNull int[] headNodeIndexForStart) {
     myLayoutIndex = CompressedIntList.newInstance(layoutIndex);
     myHeadNodeIndex = headNodeIndex;
-    myStartLayoutIndexForHead = startLayoutIndexForHead;
+    myStartLayoutIndexForHead = startLayoutIndex;
+    myHeadNodeIndexForStart = headNodeIndexForStart;
+    int maxLayoutIndex = 0;
+    for (int index : layoutIndex) {
+      maxLayoutIndex = Math.max(maxLayoutIndex, index);
+    }
+    myMaxLayoutIndex = maxLayoutIndex;
   }
 
   @Override
@@ -45,7 +66,7 @@ public class GraphLayoutImpl implements GraphLayout {
   }
 
   public int getHeadNodeIndex(int layoutIndex) {
-    return myHeadNodeIndex.get(getHeadOrder(layoutIndex));
+    return myHeadNodeIndexForStart[getHeadOrder(layoutIndex)];
   }
 
   @NotNull
@@ -53,12 +74,30 @@ public class GraphLayoutImpl implements GraphLayout {
     return myHeadNodeIndex;
   }
 
-  private int getHeadOrder(int layoutIndex) {
+  @NotNull
+  int[] getStartLayoutIndexes() {
+    return myStartLayoutIndexForHead;
+  }
+
+  @NotNull
+  int[] getHeadNodeIndexForStart() {
+    return myHeadNodeIndexForStart;
+  }
+
+  int getMaxLayoutIndex() {
+    return myMaxLayoutIndex;
+  }
+
+  int getHeadOrder(int layoutIndex) {
+    return getHeadOrder(myStartLayoutIndexForHead, layoutIndex);
+  }
+
+  static int getHeadOrder(@NotNull int[] startLayoutIndexForHead, int layoutIndex) {
     int a = 0;
-    int b = myStartLayoutIndexForHead.length - 1;
+    int b = startLayoutIndexForHead.length - 1;
     while (b > a) {
       int middle = (a + b + 1) / 2;
-      if (myStartLayoutIndexForHead[middle] <= layoutIndex) {
+      if (startLayoutIndexForHead[middle] <= layoutIndex) {
         a = middle;
       }
       else {
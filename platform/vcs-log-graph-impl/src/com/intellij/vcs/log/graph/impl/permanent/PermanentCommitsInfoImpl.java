@@ -54,6 +54,51 @@ public class PermanentCommitsInfoImpl<CommitId> implements PermanentCommitsInfo<
     return new PermanentCommitsInfoImpl<>(timestampGetter, commitIdIndex, notLoadedCommits);
   }
 
+  /**
+   * Info for the new commits followed by all commits of the given info.
+   */
+  @NotNull
+  public static <CommitId> PermanentCommitsInfoImpl<CommitId> addTopCommits(@NotNull final PermanentCommitsInfoImpl<CommitId> commitsInfo,
+                                                                            @NotNull final List<? extends GraphCommit<CommitId>> newCommits,
+                                                                            @NotNull Map<Integer, CommitId> notLoadedCommits) {
+    if (newCommits.isEmpty() && notLoadedCommits.equals(commitsInfo.myNotLoadCommits)) return commitsInfo;
+
+    final int newCount = newCommits.size();
+    final int size = newCount + commitsInfo.myCommitIdIndexes.size();
+    TimestampGetter timestampGetter = IntTimestampGetter.newInstance(new TimestampGetter() {
+      @Override
+      public int size() {
+        return size;
+      }
+
+      @Override
+      public long getTimestamp(int index) {
+        if (index < newCount) return newCommits.get(index).getTimestamp();
+        return commitsInfo.myTimestampGetter.getTimestamp(index - newCount);
+      }
+    });
+
+    List<CommitId> commitIdIndex = new AbstractList<CommitId>() {
+      @Override
+      public CommitId get(int index) {
+        if (index < newCount) return newCommits.get(index).getId();
+        return commitsInfo.myCommitIdIndexes.get(index - newCount);
+      }
+
+      @Override
+      public int size() {
+        return size;
+      }
+    };
+    if (size > 0 && commitIdIndex.get(0).getClass() == Integer.class) {
+      commitIdIndex = (List<CommitId>)compressIntegers((List<Integer>)commitIdIndex);
+    }
+    else {
+      commitIdIndex = new ArrayList<>(commitIdIndex);
+    }
+    return new PermanentCommitsInfoImpl<>(timestampGetter, commitIdIndex, notLoadedCommits);
+  }
+
   @NotNull
   public static <CommitId> IntTimestampGetter createTimestampGetter(@NotNull final List<? extends GraphCommit<CommitId>> graphCommits) {
     return IntTimestampGetter.newInstance(new TimestampGetter() {
@@ -71,17 +116,37 @@ public class PermanentCommitsInfoImpl<CommitId> implements PermanentCommitsInfo<
 
   @NotNull
   private static List<Integer> createCompressedIntList(@NotNull final List<? extends GraphCommit<Integer>> graphCommits) {
-    final IntList compressedIntList = CompressedIntList.newInstance(new IntList() {
+    return compressIntegers(new AbstractList<Integer>() {
+      @Override
+      public Integer get(int index) {
+        return graphCommits.get(index).getId();
+      }
+
       @Override
       public int size() {
         return graphCommits.size();
       }
+    });
+  }
+
+  @NotNull
+  private static List<Integer> compressIntegers(@NotNull final List<Integer> commitIds) {
+    return compressIntegers(new IntList() {
+      @Override
+      public int size() {
+        return commitIds.size();
+      }
 
       @Override
       public int get(int index) {
-        return graphCommits.get(index).getId();
+        return commitIds.get(index);
       }
-    }, 30);
+    });
+  }
+
+  @NotNull
+  static List<Integer> compressIntegers(@NotNull IntList commitIds) {
+    final IntList compressedIntList = CompressedIntList.newInstance(commitIds, 30);
     return new AbstractList<Integer>() {
       @NotNull
       @Override
@@ -123,6 +188,11 @@ public class PermanentCommitsInfoImpl<CommitId> implements PermanentCommitsInfo<
     return myTimestampGetter.getTimestamp(nodeId);
   }
 
+  @NotNull
+  public Map<Integer, CommitId> getNotLoadedCommits() {
+    return myNotLoadCommits;
+  }
+
   @NotNull
   public TimestampGetter getTimestampGetter() {
     return myTimestampGetter;
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.vcs.log.graph.impl.permanent;
+
+import com.intellij.util.ArrayUtil;
+import com.intellij.vcs.log.graph.utils.Flags;
+import com.intellij.vcs.log.graph.utils.IntList;
+import com.intellij.vcs.log.graph.utils.TimestampGetter;
+import com.intellij.vcs.log.graph.utils.impl.BitSetFlags;
+import com.intellij.vcs.log.graph.utils.impl.IntTimestampGetter;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the permanent graph structures of an integer graph as plain big-endian int and long arrays
+ * and reads them back from a (possibly memory-mapped) byte buffer without any per-commit parsing.
+ */
+public class PermanentGraphSerializer {
+
+  public static void writeLinearGraph(@NotNull PermanentLinearGraphImpl graph, @NotNull DataOutput out) throws IOException {
+    Flags simpleNodes = graph.getSimpleNodes();
+    int nodesCount = simpleNodes.size();
+    out.writeInt(nodesCount);
+    for (int word = 0; word < (nodesCount + 31) / 32; word++) {
+      int bits = 0;
+      for (int bit = 0; bit < 32 && word * 32 + bit < nodesCount; bit++) {
+        if (simpleNodes.get(word * 32 + bit)) bits |= 1 << bit;
+      }
+      out.writeInt(bits);
+    }
+    writeInts(graph.getNodeToEdgeIndex(), out);
+    writeInts(graph.getLongEdges(), out);
+  }
+
+  @NotNull
+  public static PermanentLinearGraphImpl readLinearGraph(@NotNull ByteBuffer buffer) throws IOException {
+    int nodesCount = readSize(buffer, 1);
+    int[] words = readInts(buffer, (nodesCount + 31) / 32);
+    BitSetFlags simpleNodes = new BitSetFlags(nodesCount);
+    for (int nodeIndex = 0; nodeIndex < nodesCount; nodeIndex++) {
+      if ((words[nodeIndex / 32] & (1 << nodeIndex % 32)) != 0) simpleNodes.set(nodeIndex, true);
+    }
+    int[] nodeToEdgeIndex = readInts(buffer, readSize(buffer, 4));
+    int[] longEdges = readInts(buffer, readSize(buffer, 4));
+    if (nodeToEdgeIndex.length != nodesCount + 1 || nodeToEdgeIndex[nodesCount] > longEdges.length) {
+      throw new IOException("Inconsistent linear graph: " + nodesCount + " nodes, " + longEdges.length + " edges");
+    }
+    return new PermanentLinearGraphImpl(simpleNodes, nodeToEdgeIndex, longEdges);
+  }
+
+  public static void writeLayout(@NotNull GraphLayoutImpl layout, int nodesCount, @NotNull DataOutput out) throws IOException {
+    out.writeInt(nodesCount);
+    for (int nodeIndex = 0; nodeIndex < nodesCount; nodeIndex++) {
+      out.writeInt(layout.getLayoutIndex(nodeIndex));
+    }
+    writeInts(ArrayUtil.toIntArray(layout.getHeadNodeIndex()), out);
+    writeInts(layout.getStartLayoutIndexes(), out);
+    writeInts(layout.getHeadNodeIndexForStart(), out);
+  }
+
+  @NotNull
+  public static GraphLayoutImpl readLayout(@NotNull ByteBuffer buffer, int nodesCount) throws IOException {
+    int[] layoutIndex = readInts(buffer, readNodesCount(buffer, 4, nodesCount));
+    List<Integer> headNodeIndex = new ArrayList<>();
+    for (int head : readInts(buffer, readSize(buffer, 4))) {
+      headNodeIndex.add(head);
+    }
+    int[] startLayoutIndex = readInts(buffer, readSize(buffer, 4));
+    int[] headNodeIndexForStart = readInts(buffer, readSize(buffer, 4));
+    if (startLayoutIndex.length != headNodeIndex.size() || headNodeIndexForStart.length != headNodeIndex.size()) {
+      throw new IOException("Inconsistent layout: " + headNodeIndex.size() + " heads, " + startLayoutIndex.length + " starts");
+    }
+    return new GraphLayoutImpl(layoutIndex, headNodeIndex, startLayoutIndex, headNodeIndexForStart);
+  }
+
+  public static void writeCommitsInfo(@NotNull PermanentCommitsInfoImpl<Integer> commitsInfo, int nodesCount, @NotNull DataOutput out)
+    throws IOException {
+    out.writeInt(nodesCount);
+    for (int nodeIndex = 0; nodeIndex < nodesCount; nodeIndex++) {
+      out.writeInt(commitsInfo.getCommitId(nodeIndex));
+    }
+    for (int nodeIndex = 0; nodeIndex < nodesCount; nodeIndex++) {
+      out.writeLong(commitsInfo.getTimestamp(nodeIndex));
+    }
+    Map<Integer, Integer> notLoadedCommits = commitsInfo.getNotLoadedCommits();
+    out.writeInt(notLoadedCommits.size());
+    for (Map.Entry<Integer, Integer> entry : notLoadedCommits.entrySet()) {
+      out.writeInt(entry.getKey());
+      out.writeInt(entry.getValue());
+    }
+  }
+
+  @NotNull
+  public static PermanentCommitsInfoImpl<Integer> readCommitsInfo(@NotNull ByteBuffer buffer, int nodesCount) throws IOException {
+    final int[] commitIds = readInts(buffer, readNodesCount(buffer, 12, nodesCount));
+    final long[] timestamps = new long[commitIds.length];
+    getLongs(buffer, timestamps);
+
+    int notLoadedCount = readSize(buffer, 8);
+    Map<Integer, Integer> notLoadedCommits = new HashMap<>(notLoadedCount);
+    for (int i = 0; i < notLoadedCount; i++) {
+      notLoadedCommits.put(buffer.getInt(), buffer.getInt());
+    }
+
+    TimestampGetter timestampGetter = IntTimestampGetter.newInstance(new TimestampGetter() {
+      @Override
+      public int size() {
+        return timestamps.length;
+      }
+
+      @Override
+      public long getTimestamp(int index) {
+        return timestamps[index];
+      }
+    });
+    List<Integer> commitIdIndex = PermanentCommitsInfoImpl.compressIntegers(new IntList() {
+      @Override
+      public int size() {
+        return commitIds.length;
+      }
+
+      @Override
+      public int get(int index) {
+        return commitIds[index];
+      }
+    });
+    return new PermanentCommitsInfoImpl<>(timestampGetter, commitIdIndex, notLoadedCommits);
+  }
+
+  private static void writeInts(@NotNull IntList list, @NotNull DataOutput out) throws IOException {
+    out.writeInt(list.size());
+    for (int i = 0; i < list.size(); i++) {
+      out.writeInt(list.get(i));
+    }
+  }
+
+  private static void writeInts(@NotNull int[] array, @NotNull DataOutput out) throws IOException {
+    out.writeInt(array.length);
+    for (int value : array) {
+      out.writeInt(value);
+    }
+  }
+
+  /**
+   * Reads an element count, checking that the buffer has at least elementSize bytes for each of the elements.
+   */
+  private static int readSize(@NotNull ByteBuffer buffer, int elementSize) throws IOException {
+    int size = getInt(buffer);
+    if (size < 0 || (long)size * elementSize > buffer.remaining()) {
+      throw new IOException("Unexpected size " + size + " with " + buffer.remaining() + " bytes left");
+    }
+    return size;
+  }
+
+  private static int readNodesCount(@NotNull ByteBuffer buffer, int elementSize, int expectedNodesCount) throws IOException {
+    int nodesCount = readSize(buffer, elementSize);
+    if (nodesCount != expectedNodesCount) throw new IOException("Expected " + expectedNodesCount + " nodes, got " + nodesCount);
+    return nodesCount;
+  }
+
+  @NotNull
+  private static int[] readInts(@NotNull ByteBuffer buffer, int size) throws IOException {
+    int[] result = new int[size];
+    try {
+      buffer.asIntBuffer().get(result);
+    }
+    catch (BufferUnderflowException e) {
+      throw new IOException("Unexpected end of data", e);
+    }
+    buffer.position(buffer.position() + size * 4);
+    return result;
+  }
+
+  private static void getLongs(@NotNull ByteBuffer buffer, @NotNull long[] result) throws IOException {
+    try {
+      buffer.asLongBuffer().get(result);
+    }
+    catch (BufferUnderflowException e) {
+      throw new IOException("Unexpected end of data", e);
+    }
+    buffer.position(buffer.position() + result.length * 8);
+  }
+
+  private static int getInt(@NotNull ByteBuffer buffer) throws IOException {
+    if (buffer.remaining() < 4) throw new IOException("Unexpected end of data");
+    return buffer.getInt();
+  }
+}
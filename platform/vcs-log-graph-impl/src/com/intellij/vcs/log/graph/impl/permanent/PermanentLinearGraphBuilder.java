@@ -17,18 +17,23 @@
 package com.intellij.vcs.log.graph.impl.permanent;
 
 import com.intellij.util.NotNullFunction;
-import com.intellij.util.SmartList;
-import com.intellij.util.containers.ContainerUtil;
 import com.intellij.vcs.log.graph.GraphCommit;
 import com.intellij.vcs.log.graph.utils.Flags;
+import com.intellij.vcs.log.graph.utils.IntList;
 import com.intellij.vcs.log.graph.utils.impl.BitSetFlags;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.*;
+import java.util.Arrays;
+import java.util.List;
 
 import static com.intellij.vcs.log.graph.impl.permanent.DuplicateParentFixer.fixDuplicateParentCommits;
 
+/**
+ * Builds the graph in two passes over the commits: the first one finds simple nodes and counts long edges, the second one fills
+ * the edges. Down edges whose target is not reached yet are kept in primitive chains per target commit, so the only per-commit
+ * objects are the hash map entries of the commits which are currently pointed to but not reached.
+ */
 public class PermanentLinearGraphBuilder<CommitId> {
 
   @NotNull private final List<? extends GraphCommit<CommitId>> myCommits;
@@ -38,8 +43,14 @@ public class PermanentLinearGraphBuilder<CommitId> {
 
   @NotNull private final int[] myNodeToEdgeIndex;
   @NotNull private final int[] myLongEdges;
-  // downCommitId -> List of upNodeIndex
-  @NotNull private final Map<CommitId, List<Integer>> upAdjacentNodes = new HashMap<>();
+
+  // underdone down edges: up node index, edge index in myLongEdges and the next underdone edge to the same commit (or -1)
+  @NotNull private final int[] myUnderdoneUpNodes;
+  @NotNull private final int[] myUnderdoneEdges;
+  @NotNull private final int[] myUnderdoneNext;
+  private int myUnderdoneCount;
+  // downCommitId -> the last added underdone edge to it
+  @NotNull private final UnderdoneHeads<CommitId> myUnderdoneHeads = new UnderdoneHeads<>();
 
   private PermanentLinearGraphBuilder(@NotNull List<? extends GraphCommit<CommitId>> commits,
                                       @NotNull Flags simpleNodes,
@@ -51,6 +62,10 @@ public class PermanentLinearGraphBuilder<CommitId> {
 
     myNodeToEdgeIndex = new int[myNodesCount + 1];
     myLongEdges = new int[2 * longEdgesCount];
+
+    myUnderdoneUpNodes = new int[longEdgesCount];
+    myUnderdoneEdges = new int[longEdgesCount];
+    myUnderdoneNext = new int[longEdgesCount];
   }
 
   @NotNull
@@ -77,61 +92,117 @@ public class PermanentLinearGraphBuilder<CommitId> {
     return new PermanentLinearGraphBuilder<>(graphCommits, simpleNodes, longEdgesCount);
   }
 
-  @Nullable
-  private static <CommitId> CommitId nextCommitHashIndex(List<? extends GraphCommit<CommitId>> commits, int nodeIndex) {
-    if (nodeIndex < commits.size() - 1) return commits.get(nodeIndex + 1).getId();
-    return null;
-  }
-
-  private void addUnderdoneEdge(int upNodeIndex, CommitId downCommitId) {
-    List<Integer> upNodes = upAdjacentNodes.get(downCommitId);
-    if (upNodes == null) {
-      upNodes = new SmartList<>();
-      upAdjacentNodes.put(downCommitId, upNodes);
+  /**
+   * Builds the graph of the new top nodes followed by all nodes of the given graph, without traversing the commits of the latter again:
+   * its edges are copied with node indexes shifted by the count of the new nodes.
+   *
+   * @param newDownNodes down nodes of every new node, indexed in the resulting graph (negative ids are not loaded commits);
+   *                     all of them must be below the node.
+   */
+  @NotNull
+  public static PermanentLinearGraphImpl addTopNodes(@NotNull PermanentLinearGraphImpl graph, @NotNull int[][] newDownNodes) {
+    int newNodesCount = newDownNodes.length;
+    if (newNodesCount == 0) return graph;
+
+    Flags oldSimpleNodes = graph.getSimpleNodes();
+    IntList oldNodeToEdgeIndex = graph.getNodeToEdgeIndex();
+    IntList oldLongEdges = graph.getLongEdges();
+    int nodesCount = newNodesCount + graph.nodesCount();
+
+    Flags simpleNodes = new BitSetFlags(nodesCount);
+    // long up edges from the new nodes, later reused as positions to write them to
+    int[] newUpEdges = new int[nodesCount];
+    for (int nodeIndex = 0; nodeIndex < newNodesCount; nodeIndex++) {
+      int[] downNodes = newDownNodes[nodeIndex];
+      if (downNodes.length == 1 && downNodes[0] == nodeIndex + 1) {
+        simpleNodes.set(nodeIndex, true);
+        continue;
+      }
+      for (int downNode : downNodes) {
+        if (downNode >= 0) newUpEdges[downNode]++;
+      }
     }
-    upNodes.add(upNodeIndex);
-  }
-
-  private void fixUnderdoneEdge(int upNodeIndex, int downNodeIndex, CommitId downCommitId) {
-    int end = myNodeToEdgeIndex[upNodeIndex + 1];
-
-    GraphCommit<CommitId> upCommit = myCommits.get(upNodeIndex);
-    List<CommitId> parentHashIndices = upCommit.getParents();
 
-    for (int i = 0; i < parentHashIndices.size(); i++) {
-      if (parentHashIndices.get(i).equals(downCommitId)) {
-        int offset = parentHashIndices.size() - i;
-        int edgeIndex = end - offset;
+    int[] nodeToEdgeIndex = new int[nodesCount + 1];
+    for (int nodeIndex = 0; nodeIndex < nodesCount; nodeIndex++) {
+      int edgesCount = newUpEdges[nodeIndex];
+      if (nodeIndex < newNodesCount) {
+        if (!simpleNodes.get(nodeIndex)) edgesCount += newDownNodes[nodeIndex].length;
+      }
+      else {
+        int oldNodeIndex = nodeIndex - newNodesCount;
+        simpleNodes.set(nodeIndex, oldSimpleNodes.get(oldNodeIndex));
+        edgesCount += oldNodeToEdgeIndex.get(oldNodeIndex + 1) - oldNodeToEdgeIndex.get(oldNodeIndex);
+      }
+      nodeToEdgeIndex[nodeIndex + 1] = nodeToEdgeIndex[nodeIndex] + edgesCount;
+      newUpEdges[nodeIndex] = nodeToEdgeIndex[nodeIndex];
+    }
 
-        if (myLongEdges[edgeIndex] == -1) {
-          myLongEdges[edgeIndex] = downNodeIndex;
-          return;
+    // up edges go first in the ascending order, and the new up nodes are above the old ones
+    int[] longEdges = new int[nodeToEdgeIndex[nodesCount]];
+    for (int nodeIndex = 0; nodeIndex < newNodesCount; nodeIndex++) {
+      if (simpleNodes.get(nodeIndex)) continue;
+      for (int downNode : newDownNodes[nodeIndex]) {
+        if (downNode >= 0) longEdges[newUpEdges[downNode]++] = nodeIndex;
+      }
+    }
+    for (int nodeIndex = 0; nodeIndex < nodesCount; nodeIndex++) {
+      int edgeIndex = newUpEdges[nodeIndex];
+      if (nodeIndex < newNodesCount) {
+        if (simpleNodes.get(nodeIndex)) continue;
+        for (int downNode : newDownNodes[nodeIndex]) {
+          longEdges[edgeIndex++] = downNode;
         }
-        else {
-          throw new IllegalStateException("Edge was set early!. Up node: " + upNodeIndex + ", down node: " + downNodeIndex);
+      }
+      else {
+        int oldNodeIndex = nodeIndex - newNodesCount;
+        for (int i = oldNodeToEdgeIndex.get(oldNodeIndex); i < oldNodeToEdgeIndex.get(oldNodeIndex + 1); i++) {
+          int adjacentNode = oldLongEdges.get(i);
+          longEdges[edgeIndex++] = adjacentNode < 0 ? adjacentNode : adjacentNode + newNodesCount;
         }
       }
     }
-    throw new IllegalStateException("Not found underdone edges for node: " + upNodeIndex + ". Adjacent down node: " + downNodeIndex);
+
+    return new PermanentLinearGraphImpl(simpleNodes, nodeToEdgeIndex, longEdges);
+  }
+
+  @Nullable
+  private static <CommitId> CommitId nextCommitHashIndex(List<? extends GraphCommit<CommitId>> commits, int nodeIndex) {
+    if (nodeIndex < commits.size() - 1) return commits.get(nodeIndex + 1).getId();
+    return null;
+  }
+
+  private void addUnderdoneEdge(int upNodeIndex, int edgeIndex, CommitId downCommitId) {
+    int underdone = myUnderdoneCount++;
+    myUnderdoneUpNodes[underdone] = upNodeIndex;
+    myUnderdoneEdges[underdone] = edgeIndex;
+    myUnderdoneNext[underdone] = myUnderdoneHeads.put(downCommitId, underdone);
   }
 
   private void doStep(int nodeIndex) {
     GraphCommit<CommitId> commit = myCommits.get(nodeIndex);
 
-    List<Integer> upNodes = upAdjacentNodes.remove(commit.getId());
-    if (upNodes == null) upNodes = Collections.emptyList();
-
     int edgeIndex = myNodeToEdgeIndex[nodeIndex];
-    for (Integer upNodeIndex : upNodes) {
-      fixUnderdoneEdge(upNodeIndex, nodeIndex, commit.getId());
-      myLongEdges[edgeIndex] = upNodeIndex;
-      edgeIndex++;
+    if (!myUnderdoneHeads.isEmpty()) {
+      int head = myUnderdoneHeads.remove(commit.getId());
+
+      // up nodes are chained in the descending order
+      int upNodesCount = 0;
+      for (int underdone = head; underdone >= 0; underdone = myUnderdoneNext[underdone]) {
+        upNodesCount++;
+      }
+      int upEdgeIndex = edgeIndex + upNodesCount;
+      for (int underdone = head; underdone >= 0; underdone = myUnderdoneNext[underdone]) {
+        myLongEdges[myUnderdoneEdges[underdone]] = nodeIndex;
+        myLongEdges[--upEdgeIndex] = myUnderdoneUpNodes[underdone];
+      }
+      edgeIndex += upNodesCount;
     }
 
     // down nodes
     if (!mySimpleNodes.get(nodeIndex)) {
       for (CommitId downCommitId : commit.getParents()) {
-        addUnderdoneEdge(nodeIndex, downCommitId);
+        addUnderdoneEdge(nodeIndex, edgeIndex, downCommitId);
         myLongEdges[edgeIndex] = -1;
         edgeIndex++;
       }
@@ -140,28 +211,28 @@ public class PermanentLinearGraphBuilder<CommitId> {
     myNodeToEdgeIndex[nodeIndex + 1] = edgeIndex;
   }
 
-  private void fixUnderdoneEdgeForNotLoadCommit(int upNodeIndex, int notLoadId) {
-    for (int edgeIndex = myNodeToEdgeIndex[upNodeIndex]; edgeIndex < myNodeToEdgeIndex[upNodeIndex + 1]; edgeIndex++) {
-      if (myLongEdges[edgeIndex] == -1) {
-        myLongEdges[edgeIndex] = notLoadId;
-        return;
+  // not loaded commits get their ids in the order of their first underdone edges
+  private void fixUnderdoneEdges(@NotNull NotNullFunction<CommitId, Integer> notLoadedCommitToId) {
+    Object[] commitIds = myUnderdoneHeads.myKeys;
+    int[] heads = myUnderdoneHeads.myValues;
+    long[] order = new long[myUnderdoneHeads.mySize];
+    int count = 0;
+    for (int i = 0; i < commitIds.length; i++) {
+      if (commitIds[i] == null) continue;
+      int underdone = heads[i];
+      while (myUnderdoneNext[underdone] >= 0) {
+        underdone = myUnderdoneNext[underdone];
       }
+      order[count++] = ((long)myUnderdoneEdges[underdone] << 32) | i;
     }
-    throw new IllegalStateException("Not found underdone edge to not load commit for node: " + upNodeIndex);
-  }
+    Arrays.sort(order);
 
-  private void fixUnderdoneEdges(@NotNull NotNullFunction<CommitId, Integer> notLoadedCommitToId) {
-    List<CommitId> commitIds = ContainerUtil.newArrayList(upAdjacentNodes.keySet());
-    ContainerUtil.sort(commitIds, new Comparator<CommitId>() {
-      @Override
-      public int compare(@NotNull CommitId o1, @NotNull CommitId o2) {
-        return Collections.min(upAdjacentNodes.get(o1)) - Collections.min(upAdjacentNodes.get(o2));
-      }
-    });
-    for (CommitId notLoadCommit : commitIds) {
+    for (long edgeAndIndex : order) {
+      //noinspection unchecked
+      CommitId notLoadCommit = (CommitId)commitIds[(int)edgeAndIndex];
       int notLoadId = notLoadedCommitToId.fun(notLoadCommit);
-      for (int upNodeIndex : upAdjacentNodes.get(notLoadCommit)) {
-        fixUnderdoneEdgeForNotLoadCommit(upNodeIndex, notLoadId);
+      for (int underdone = heads[(int)edgeAndIndex]; underdone >= 0; underdone = myUnderdoneNext[underdone]) {
+        myLongEdges[myUnderdoneEdges[underdone]] = notLoadId;
       }
     }
   }
@@ -188,4 +259,88 @@ public class PermanentLinearGraphBuilder<CommitId> {
       }
     });
   }
+
+  /**
+   * Linear probing map from commit ids to int values (-1 for absent ones). Entries are removed with the backward shift,
+   * so that the table does not degrade when the commits are added and removed all along the history.
+   */
+  private static class UnderdoneHeads<K> {
+    @NotNull private Object[] myKeys = new Object[64];
+    @NotNull private int[] myValues = new int[64];
+    private int mySize;
+
+    private int slot(@NotNull Object key) {
+      int hash = key.hashCode() * 0x9E3779B9;
+      return (hash ^ (hash >>> 16)) & (myKeys.length - 1);
+    }
+
+    /**
+     * @return previous value or -1
+     */
+    int put(@NotNull K key, int value) {
+      int mask = myKeys.length - 1;
+      int slot = slot(key);
+      for (Object k = myKeys[slot]; k != null; k = myKeys[slot = (slot + 1) & mask]) {
+        if (k.equals(key)) {
+          int old = myValues[slot];
+          myValues[slot] = value;
+          return old;
+        }
+      }
+      myKeys[slot] = key;
+      myValues[slot] = value;
+      if (++mySize * 2 > myKeys.length) grow();
+      return -1;
+    }
+
+    /**
+     * @return removed value or -1
+     */
+    int remove(@NotNull K key) {
+      int mask = myKeys.length - 1;
+      int slot = slot(key);
+      for (Object k = myKeys[slot]; k != null; k = myKeys[slot = (slot + 1) & mask]) {
+        if (k.equals(key)) {
+          int value = myValues[slot];
+          shiftBack(slot);
+          mySize--;
+          return value;
+        }
+      }
+      return -1;
+    }
+
+    boolean isEmpty() {
+      return mySize == 0;
+    }
+
+    private void shiftBack(int hole) {
+      int mask = myKeys.length - 1;
+      for (int slot = (hole + 1) & mask; myKeys[slot] != null; slot = (slot + 1) & mask) {
+        int home = slot(myKeys[slot]);
+        // the entry may fill the hole if its home slot is not within (hole, slot]
+        if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+          myKeys[hole] = myKeys[slot];
+          myValues[hole] = myValues[slot];
+          hole = slot;
+        }
+      }
+      myKeys[hole] = null;
+    }
+
+    private void grow() {
+      Object[] keys = myKeys;
+      int[] values = myValues;
+      myKeys = new Object[keys.length * 2];
+      myValues = new int[keys.length * 2];
+      int mask = myKeys.length - 1;
+      for (int i = 0; i < keys.length; i++) {
+        if (keys[i] == null) continue;
+        int slot = slot(keys[i]);
+        while (myKeys[slot] != null) slot = (slot + 1) & mask;
+        myKeys[slot] = keys[i];
+        myValues[slot] = values[i];
+      }
+    }
+  }
 }
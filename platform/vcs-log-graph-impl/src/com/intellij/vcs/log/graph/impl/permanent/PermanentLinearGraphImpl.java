@@ -51,6 +51,21 @@ public class PermanentLinearGraphImpl implements LinearGraph {
     this(new BitSetFlags(0), new int[0], new int[0]);
   }
 
+  @NotNull
+  Flags getSimpleNodes() {
+    return mySimpleNodes;
+  }
+
+  @NotNull
+  IntList getNodeToEdgeIndex() {
+    return myNodeToEdgeIndex;
+  }
+
+  @NotNull
+  IntList getLongEdges() {
+    return myLongEdges;
+  }
+
   @Override
   public int nodesCount() {
     return mySimpleNodes.size();
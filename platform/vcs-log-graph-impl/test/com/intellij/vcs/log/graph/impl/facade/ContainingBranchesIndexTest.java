@@ -0,0 +1,126 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.vcs.log.graph.impl.facade;
+
+import com.intellij.openapi.util.Condition;
+import com.intellij.util.Consumer;
+import com.intellij.vcs.log.graph.GraphColorManager;
+import com.intellij.vcs.log.graph.GraphCommit;
+import com.intellij.vcs.log.graph.api.LiteLinearGraph;
+import com.intellij.vcs.log.graph.parser.SimpleCommit;
+import com.intellij.vcs.log.graph.utils.LinearGraphUtils;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ContainingBranchesIndexTest {
+  private static final GraphColorManager<Integer> COLOR_MANAGER = new GraphColorManager<Integer>() {
+    @Override
+    public int getColorOfBranch(Integer headCommit) {
+      return 0;
+    }
+
+    @Override
+    public int getColorOfFragment(Integer headCommit, int magicIndex) {
+      return 0;
+    }
+
+    @Override
+    public int compareHeads(Integer head1, Integer head2) {
+      return head2.compareTo(head1);
+    }
+  };
+
+  @Test
+  public void containingBranchesMatchGraphWalk() {
+    Random random = new Random(11);
+    List<GraphCommit<Integer>> commits = history(2000, random);
+    Set<Integer> branches = branches(commits, 100, random);
+    PermanentGraphImpl<Integer> graph = PermanentGraphImpl.newInstance(commits, COLOR_MANAGER, branches);
+
+    LiteLinearGraph liteGraph = LinearGraphUtils.asLiteLinearGraph(graph.getLinearGraph());
+    ReachableNodes reachableNodes = new ReachableNodes(liteGraph);
+    ContainingBranchesIndex index = graph.getContainingBranchesIndex();
+    for (int nodeIndex = 0; nodeIndex < liteGraph.nodesCount(); nodeIndex++) {
+      assertEquals(String.valueOf(nodeIndex), reachableNodes.getContainingBranches(nodeIndex, graph.getBranchNodeIds()),
+                   index.getContainingBranches(nodeIndex));
+    }
+    assertTrue(String.valueOf(index.getDistinctSetsCount()), index.getDistinctSetsCount() < commits.size() / 2);
+  }
+
+  @Test
+  public void containedInBranchConditionMatchesGraphWalk() {
+    Random random = new Random(3);
+    List<GraphCommit<Integer>> commits = history(1000, random);
+    Set<Integer> branches = branches(commits, 30, random);
+    PermanentGraphImpl<Integer> graph = PermanentGraphImpl.newInstance(commits, COLOR_MANAGER, branches);
+
+    List<Integer> heads = new ArrayList<>(branches).subList(0, 3);
+    Condition<Integer> condition = graph.getContainedInBranchCondition(heads);
+
+    final Set<Integer> expected = new HashSet<>();
+    new ReachableNodes(LinearGraphUtils.asLiteLinearGraph(graph.getLinearGraph())).walk(heads, new Consumer<Integer>() {
+      @Override
+      public void consume(Integer node) {
+        expected.add(node);
+      }
+    });
+    for (GraphCommit<Integer> commit : commits) {
+      assertEquals(String.valueOf(commit.getId()), expected.contains(commit.getId()), condition.value(commit.getId()));
+    }
+  }
+
+  @Test
+  public void headsWhichAreNotBranchesAreWalked() {
+    List<GraphCommit<Integer>> commits = history(300, new Random(1));
+    PermanentGraphImpl<Integer> graph = PermanentGraphImpl.newInstance(commits, COLOR_MANAGER, Collections.singleton(0));
+
+    Condition<Integer> condition = graph.getContainedInBranchCondition(Collections.singleton(299));
+    assertTrue(condition.value(299));
+    assertFalse(condition.value(0));
+  }
+
+  @NotNull
+  private static Set<Integer> branches(@NotNull List<GraphCommit<Integer>> commits, int count, @NotNull Random random) {
+    Set<Integer> branches = new LinkedHashSet<>();
+    branches.add(commits.get(0).getId());
+    while (branches.size() < count) {
+      branches.add(commits.get(random.nextInt(commits.size())).getId());
+    }
+    return branches;
+  }
+
+  /**
+   * Commits in the topological order with branches, merges and some parents outside of the list.
+   */
+  @NotNull
+  private static List<GraphCommit<Integer>> history(int size, @NotNull Random random) {
+    List<GraphCommit<Integer>> commits = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      List<Integer> parents = new ArrayList<>(2);
+      if (i < size - 1) parents.add(random.nextInt(5) == 0 ? Math.min(size - 1, i + 1 + random.nextInt(10)) : i + 1);
+      if (random.nextInt(5) == 0) {
+        int parent = random.nextInt(20) == 0 ? size + random.nextInt(10) : i + 2 + random.nextInt(50);
+        if ((parent < size - 1 || parent >= size) && !parents.contains(parent)) parents.add(parent);
+      }
+      commits.add(new SimpleCommit<>(i, parents, 1000L * (size - i)));
+    }
+    return commits;
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.vcs.log.graph.impl.facade;
+
+import com.intellij.util.containers.ContainerUtil;
+import com.intellij.vcs.log.graph.GraphColorManager;
+import com.intellij.vcs.log.graph.GraphCommit;
+import com.intellij.vcs.log.graph.impl.permanent.GraphLayoutImpl;
+import com.intellij.vcs.log.graph.parser.SimpleCommit;
+import com.intellij.vcs.log.graph.utils.LinearGraphUtils;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.util.*;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+public class PermanentGraphAddTopCommitsTest {
+  private static final GraphColorManager<Integer> COLOR_MANAGER = new GraphColorManager<Integer>() {
+    @Override
+    public int getColorOfBranch(Integer headCommit) {
+      return 0;
+    }
+
+    @Override
+    public int getColorOfFragment(Integer headCommit, int magicIndex) {
+      return 0;
+    }
+
+    @Override
+    public int compareHeads(Integer head1, Integer head2) {
+      return head2.compareTo(head1);
+    }
+  };
+
+  @Test
+  public void continuedBranchesKeepLayout() {
+    List<GraphCommit<Integer>> commits = asList(commit(0, 2),
+                                                commit(1, 3),
+                                                commit(2, 4),
+                                                commit(3, 5),
+                                                commit(4, 5),
+                                                commit(5));
+    PermanentGraphImpl<Integer> graph = addTopCommits(commits, 2);
+    PermanentGraphImpl<Integer> expected = PermanentGraphImpl.newInstance(commits, COLOR_MANAGER, Collections.emptySet());
+
+    assertEquals(layoutToStr(expected), layoutToStr(graph));
+    assertEquals(expected.getPermanentGraphLayout().getHeadNodeIndex(), graph.getPermanentGraphLayout().getHeadNodeIndex());
+  }
+
+  @Test
+  public void mergedHistory() {
+    Random random = new Random(11);
+    for (int attempt = 0; attempt < 20; attempt++) {
+      List<GraphCommit<Integer>> commits = history(2000, random);
+      PermanentGraphImpl<Integer> graph = addTopCommits(commits, 1 + random.nextInt(100));
+      PermanentGraphImpl<Integer> expected = PermanentGraphImpl.newInstance(commits, COLOR_MANAGER, Collections.emptySet());
+
+      assertEquals(commitsToStr(expected.getAllCommits()), commitsToStr(graph.getAllCommits()));
+      for (int nodeIndex = 0; nodeIndex < commits.size(); nodeIndex++) {
+        Integer commit = commits.get(nodeIndex).getId();
+        assertEquals(expected.getChildren(commit), graph.getChildren(commit));
+      }
+      assertLayoutIsValid(graph);
+    }
+  }
+
+  @Test
+  public void rewrittenHistoryIsNotAttached() {
+    List<GraphCommit<Integer>> commits = history(100, new Random(3));
+    PermanentGraphImpl<Integer> graph = PermanentGraphImpl.newInstance(commits.subList(10, 100), COLOR_MANAGER, Collections.emptySet());
+
+    assertEquals(10, PermanentGraphImpl.getNewTopCommitsCount(graph, ContainerUtil.concat(commits.subList(0, 10), graph.getAllCommits())));
+    assertEquals(10, PermanentGraphImpl.getNewTopCommitsCount(graph, commits));
+
+    List<GraphCommit<Integer>> rewritten = new ArrayList<>(commits);
+    rewritten.remove(50);
+    rewritten.add(50, commit(1000, 51));
+    assertEquals(-1, PermanentGraphImpl.getNewTopCommitsCount(graph, rewritten));
+    assertEquals(-1, PermanentGraphImpl.getNewTopCommitsCount(graph, commits.subList(20, 100)));
+  }
+
+  @NotNull
+  private static PermanentGraphImpl<Integer> addTopCommits(@NotNull List<GraphCommit<Integer>> commits, int newCommitsCount) {
+    PermanentGraphImpl<Integer> previousGraph =
+      PermanentGraphImpl.newInstance(commits.subList(newCommitsCount, commits.size()), COLOR_MANAGER, Collections.emptySet());
+    List<GraphCommit<Integer>> joinedCommits = ContainerUtil.concat(commits.subList(0, newCommitsCount), previousGraph.getAllCommits());
+    assertEquals(newCommitsCount, PermanentGraphImpl.getNewTopCommitsCount(previousGraph, joinedCommits));
+
+    PermanentGraphImpl<Integer> graph =
+      PermanentGraphImpl.addTopCommits(previousGraph, commits.subList(0, newCommitsCount), COLOR_MANAGER, Collections.emptySet());
+    assertNotNull(graph);
+    return graph;
+  }
+
+  /**
+   * Every node belongs to a head it is reachable from, and the heads are exactly the nodes without children.
+   */
+  private static void assertLayoutIsValid(@NotNull PermanentGraphImpl<Integer> graph) {
+    GraphLayoutImpl layout = graph.getPermanentGraphLayout();
+    int nodesCount = graph.getLinearGraph().nodesCount();
+
+    Set<Integer> heads = new HashSet<>();
+    for (int nodeIndex = 0; nodeIndex < nodesCount; nodeIndex++) {
+      if (LinearGraphUtils.getUpNodes(graph.getLinearGraph(), nodeIndex).isEmpty()) heads.add(nodeIndex);
+    }
+    assertEquals(heads, new HashSet<>(layout.getHeadNodeIndex()));
+    assertEquals(heads.size(), layout.getHeadNodeIndex().size());
+
+    Map<Integer, BitSet> reachableFromHead = new HashMap<>();
+    for (int head : heads) {
+      BitSet reachable = new BitSet();
+      Deque<Integer> queue = new ArrayDeque<>(Collections.singleton(head));
+      while (!queue.isEmpty()) {
+        int node = queue.pop();
+        if (reachable.get(node)) continue;
+        reachable.set(node);
+        queue.addAll(LinearGraphUtils.getDownNodes(graph.getLinearGraph(), node));
+      }
+      reachableFromHead.put(head, reachable);
+    }
+    for (int nodeIndex = 0; nodeIndex < nodesCount; nodeIndex++) {
+      int head = layout.getOneOfHeadNodeIndex(nodeIndex);
+      assertTrue("node " + nodeIndex + " head " + head, reachableFromHead.get(head).get(nodeIndex));
+    }
+  }
+
+  /**
+   * Commits in the topological order: some of them start new branches, some are merges, and a few point outside of the list.
+   */
+  @NotNull
+  private static List<GraphCommit<Integer>> history(int size, @NotNull Random random) {
+    List<GraphCommit<Integer>> commits = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      List<Integer> parents = new ArrayList<>(2);
+      if (i < size - 1) parents.add(random.nextInt(5) == 0 ? Math.min(size - 1, i + 1 + random.nextInt(10)) : i + 1);
+      if (random.nextInt(5) == 0) {
+        int parent = random.nextInt(50) == 0 ? size + random.nextInt(10) : i + 2 + random.nextInt(50);
+        if (parent < size - 1 || parent >= size) {
+          if (!parents.contains(parent)) parents.add(parent);
+        }
+      }
+      commits.add(new SimpleCommit<>(i, parents, size - i));
+    }
+    return commits;
+  }
+
+  @NotNull
+  private static GraphCommit<Integer> commit(int id, Integer... parents) {
+    return new SimpleCommit<>(id, asList(parents), 100 - id);
+  }
+
+  @NotNull
+  private static String commitsToStr(@NotNull List<GraphCommit<Integer>> commits) {
+    StringBuilder s = new StringBuilder();
+    for (GraphCommit<Integer> commit : commits) {
+      s.append(commit.getId()).append(commit.getParents()).append(commit.getTimestamp()).append("\n");
+    }
+    return s.toString();
+  }
+
+  @NotNull
+  private static String layoutToStr(@NotNull PermanentGraphImpl<Integer> graph) {
+    StringBuilder s = new StringBuilder();
+    for (int nodeIndex = 0; nodeIndex < graph.getLinearGraph().nodesCount(); nodeIndex++) {
+      s.append(graph.getPermanentGraphLayout().getLayoutIndex(nodeIndex)).append(":")
+        .append(graph.getPermanentGraphLayout().getOneOfHeadNodeIndex(nodeIndex)).append("\n");
+    }
+    return s.toString();
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.vcs.log.graph.impl.facade;
+
+import com.intellij.vcs.log.graph.GraphColorManager;
+import com.intellij.vcs.log.graph.GraphCommit;
+import com.intellij.vcs.log.graph.api.EdgeFilter;
+import com.intellij.vcs.log.graph.parser.SimpleCommit;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class PermanentGraphSnapshotTest {
+  private static final GraphColorManager<Integer> COLOR_MANAGER = new GraphColorManager<Integer>() {
+    @Override
+    public int getColorOfBranch(Integer headCommit) {
+      return 0;
+    }
+
+    @Override
+    public int getColorOfFragment(Integer headCommit, int magicIndex) {
+      return 0;
+    }
+
+    @Override
+    public int compareHeads(Integer head1, Integer head2) {
+      return head2.compareTo(head1);
+    }
+  };
+
+  @Test
+  public void graphIsRestored() throws IOException {
+    List<GraphCommit<Integer>> commits = history(3000, new Random(7));
+    PermanentGraphImpl<Integer> expected = PermanentGraphImpl.newInstance(commits, COLOR_MANAGER, Collections.emptySet());
+
+    PermanentGraphSnapshot snapshot = PermanentGraphSnapshot.read(ByteBuffer.wrap(write(expected)));
+    assertEquals(commits.size(), snapshot.getCommitsCount());
+    PermanentGraphImpl<Integer> graph = snapshot.createGraph(COLOR_MANAGER, Collections.emptySet());
+
+    assertEquals(graphToStr(expected), graphToStr(graph));
+    assertEquals(expected.getPermanentCommitsInfo().getNotLoadedCommits(), graph.getPermanentCommitsInfo().getNotLoadedCommits());
+    assertEquals(expected.getPermanentGraphLayout().getHeadNodeIndex(), graph.getPermanentGraphLayout().getHeadNodeIndex());
+
+    Set<Integer> heads = new HashSet<>();
+    for (int headNodeIndex : expected.getPermanentGraphLayout().getHeadNodeIndex()) {
+      heads.add(commits.get(headNodeIndex).getId());
+    }
+    assertEquals(heads, snapshot.getHeads());
+  }
+
+  @Test
+  public void truncatedDataIsRejected() throws IOException {
+    byte[] bytes = write(PermanentGraphImpl.newInstance(history(100, new Random(5)), COLOR_MANAGER, Collections.emptySet()));
+    for (int length : new int[]{0, 3, bytes.length / 3, bytes.length / 2, bytes.length - 1}) {
+      try {
+        PermanentGraphSnapshot.read(ByteBuffer.wrap(Arrays.copyOf(bytes, length)));
+        fail("Read " + length + " bytes out of " + bytes.length);
+      }
+      catch (IOException ignored) {
+      }
+    }
+  }
+
+  @NotNull
+  private static byte[] write(@NotNull PermanentGraphImpl<Integer> graph) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      PermanentGraphSnapshot.write(graph, out);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Commits in the topological order with branches, merges and some parents outside of the list.
+   */
+  @NotNull
+  private static List<GraphCommit<Integer>> history(int size, @NotNull Random random) {
+    List<GraphCommit<Integer>> commits = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      List<Integer> parents = new ArrayList<>(2);
+      if (i < size - 1) parents.add(random.nextInt(5) == 0 ? Math.min(size - 1, i + 1 + random.nextInt(10)) : i + 1);
+      if (random.nextInt(5) == 0) {
+        int parent = random.nextInt(20) == 0 ? size + random.nextInt(10) : i + 2 + random.nextInt(50);
+        if ((parent < size - 1 || parent >= size) && !parents.contains(parent)) parents.add(parent);
+      }
+      commits.add(new SimpleCommit<>(i, parents, 1000L * (size - i)));
+    }
+    return commits;
+  }
+
+  @NotNull
+  private static String graphToStr(@NotNull PermanentGraphImpl<Integer> graph) {
+    StringBuilder s = new StringBuilder();
+    for (int nodeIndex = 0; nodeIndex < graph.getLinearGraph().nodesCount(); nodeIndex++) {
+      s.append(graph.getPermanentCommitsInfo().getCommitId(nodeIndex)).append(" ")
+        .append(graph.getPermanentCommitsInfo().getTimestamp(nodeIndex)).append(" ")
+        .append(graph.getLinearGraph().getAdjacentEdges(nodeIndex, EdgeFilter.ALL)).append(" ")
+        .append(graph.getPermanentGraphLayout().getLayoutIndex(nodeIndex)).append(":")
+        .append(graph.getPermanentGraphLayout().getOneOfHeadNodeIndex(nodeIndex)).append("\n");
+    }
+    return s.toString();
+  }
+}
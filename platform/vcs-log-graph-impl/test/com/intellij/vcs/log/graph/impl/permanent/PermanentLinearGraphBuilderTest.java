@@ -0,0 +1,140 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.vcs.log.graph.impl.permanent;
+
+import com.intellij.util.NotNullFunction;
+import com.intellij.vcs.log.graph.GraphCommit;
+import com.intellij.vcs.log.graph.api.EdgeFilter;
+import com.intellij.vcs.log.graph.api.elements.GraphEdge;
+import com.intellij.vcs.log.graph.api.elements.GraphEdgeType;
+import com.intellij.vcs.log.graph.parser.SimpleCommit;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PermanentLinearGraphBuilderTest {
+  @Test
+  public void mergedHistoryWithNotLoadedCommits() {
+    checkGraph(mergedHistory(20000, 0.3, new Random(1)));
+  }
+
+  @Test
+  public void linearHistory() {
+    checkGraph(mergedHistory(20000, 0, new Random(2)));
+  }
+
+  @Test
+  public void heavilyMergedHistory() {
+    checkGraph(mergedHistory(20000, 0.5, new Random(3)));
+  }
+
+  private static void checkGraph(@NotNull List<GraphCommit<Integer>> commits) {
+    Map<Integer, Integer> notLoadedIds = new LinkedHashMap<>();
+    PermanentLinearGraphImpl graph = PermanentLinearGraphBuilder.newInstance(commits).build(notLoadedIdsGenerator(notLoadedIds));
+    assertEquals(notLoadedEdges(commits) > 0, !notLoadedIds.isEmpty());
+
+    int upEdges = 0;
+    int downEdges = 0;
+    for (int nodeIndex = 0; nodeIndex < commits.size(); nodeIndex++) {
+      List<Integer> expected = new ArrayList<>();
+      for (Integer parent : commits.get(nodeIndex).getParents()) {
+        expected.add(parent < commits.size() ? parent : notLoadedIds.get(parent));
+        downEdges++;
+      }
+
+      List<Integer> actual = new ArrayList<>();
+      for (GraphEdge edge : graph.getAdjacentEdges(nodeIndex, EdgeFilter.ALL)) {
+        if (edge.getType() == GraphEdgeType.NOT_LOAD_COMMIT) {
+          actual.add(edge.getTargetId());
+        }
+        else if (edge.getUpNodeIndex() == nodeIndex) {
+          actual.add(edge.getDownNodeIndex());
+        }
+        else {
+          upEdges++;
+        }
+      }
+      assertEquals("node " + nodeIndex, expected, actual);
+    }
+    assertEquals(downEdges - notLoadedEdges(commits), upEdges);
+
+    // ids are generated in the order of the first edges to not loaded commits
+    int previousId = 0;
+    for (Integer parent : firstReferenceOrder(commits)) {
+      int id = notLoadedIds.get(parent);
+      assertTrue(id < previousId);
+      previousId = id;
+    }
+  }
+
+  /**
+   * Commits in the topological order, a merge has a random second parent below it, and a few point outside of the loaded part.
+   */
+  @NotNull
+  private static List<GraphCommit<Integer>> mergedHistory(int size, double mergesRatio, @NotNull Random random) {
+    List<GraphCommit<Integer>> commits = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      List<Integer> parents = new ArrayList<>(2);
+      if (i < size - 1) parents.add(i + 1);
+      if (random.nextDouble() < mergesRatio) {
+        int parent = i + 2 + random.nextInt(500);
+        if (random.nextInt(100) == 0) parent = size + random.nextInt(size / 100 + 1);
+        if (!parents.contains(parent)) parents.add(parent);
+      }
+      commits.add(new SimpleCommit<>(i, parents, size - i));
+    }
+    return commits;
+  }
+
+  @NotNull
+  private static NotNullFunction<Integer, Integer> notLoadedIdsGenerator(@NotNull final Map<Integer, Integer> ids) {
+    return new NotNullFunction<Integer, Integer>() {
+      @NotNull
+      @Override
+      public Integer fun(Integer commit) {
+        assertTrue(!ids.containsKey(commit));
+        int id = -3 - ids.size();
+        ids.put(commit, id);
+        return id;
+      }
+    };
+  }
+
+  private static int notLoadedEdges(@NotNull List<GraphCommit<Integer>> commits) {
+    int result = 0;
+    for (GraphCommit<Integer> commit : commits) {
+      for (Integer parent : commit.getParents()) {
+        if (parent >= commits.size()) result++;
+      }
+    }
+    return result;
+  }
+
+  @NotNull
+  private static Collection<Integer> firstReferenceOrder(@NotNull List<GraphCommit<Integer>> commits) {
+    Set<Integer> result = new LinkedHashSet<>();
+    for (GraphCommit<Integer> commit : commits) {
+      for (Integer parent : commit.getParents()) {
+        if (parent >= commits.size()) result.add(parent);
+      }
+    }
+    return result;
+  }
+}
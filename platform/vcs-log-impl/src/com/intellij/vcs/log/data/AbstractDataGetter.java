@@ -26,11 +26,10 @@ import gnu.trove.TIntObjectHashMap;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.awt.*;
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The DataGetter realizes the following pattern of getting some data (parametrized by {@code T}) from the VCS:
@@ -56,9 +55,9 @@ abstract class AbstractDataGetter<T extends VcsShortCommitDetails> implements Di
   /**
    * The sequence number of the current "loading" task.
    */
-  private long myCurrentTaskIndex = 0;
+  @NotNull private final AtomicLong myCurrentTaskIndex = new AtomicLong();
 
-  @NotNull private final Collection<Runnable> myLoadingFinishedListeners = new ArrayList<>();
+  @NotNull private final Collection<Runnable> myLoadingFinishedListeners = ContainerUtil.createLockFreeCopyOnWriteList();
   @NotNull private VcsLogIndex myIndex;
 
   AbstractDataGetter(@NotNull VcsLogStorage hashMap,
@@ -87,28 +86,29 @@ abstract class AbstractDataGetter<T extends VcsShortCommitDetails> implements Di
 
   @Override
   public void dispose() {
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Commit details cache of " + getClass().getSimpleName() + ": " + myCache);
+    }
     myLoadingFinishedListeners.clear();
   }
 
   @Override
   @NotNull
   public T getCommitData(@NotNull Integer hash, @NotNull Iterable<Integer> neighbourHashes) {
-    assert EventQueue.isDispatchThread();
     T details = getFromCache(hash);
     if (details != null) {
       return details;
     }
 
-    runLoadCommitsData(neighbourHashes);
+    long taskNumber = runLoadCommitsData(neighbourHashes);
 
-    T result = myCache.get(hash);
-    assert result != null; // now it is in the cache as "Loading Details" (runLoadCommitsData puts it there)
-    return result;
+    // now it is in the cache as "Loading Details" (runLoadCommitsData puts it there), unless it was evicted already
+    T result = myCache.peek(hash);
+    return result != null ? result : createLoadingDetails(hash, taskNumber);
   }
 
   @Override
   public void loadCommitsData(@NotNull List<Integer> hashes, @NotNull Consumer<List<T>> consumer, @Nullable ProgressIndicator indicator) {
-    assert EventQueue.isDispatchThread();
     loadCommitsData(getCommitsMap(hashes), consumer, indicator);
   }
 
@@ -116,7 +116,7 @@ abstract class AbstractDataGetter<T extends VcsShortCommitDetails> implements Di
     final List<T> result = ContainerUtil.newArrayList();
     final TIntHashSet toLoad = new TIntHashSet();
 
-    long taskNumber = myCurrentTaskIndex++;
+    long taskNumber = myCurrentTaskIndex.getAndIncrement();
 
     for (int id : commits.keys()) {
       T details = getFromCache(id);
@@ -185,7 +185,7 @@ abstract class AbstractDataGetter<T extends VcsShortCommitDetails> implements Di
     T details = myCache.get(commitId);
     if (details != null) {
       if (details instanceof LoadingDetails) {
-        if (((LoadingDetails)details).getLoadingTaskIndex() <= myCurrentTaskIndex - MAX_LOADING_TASKS) {
+        if (((LoadingDetails)details).getLoadingTaskIndex() <= myCurrentTaskIndex.get() - MAX_LOADING_TASKS) {
           // don't let old "loading" requests stay in the cache forever
           myCache.remove(commitId);
           return null;
@@ -202,8 +202,8 @@ abstract class AbstractDataGetter<T extends VcsShortCommitDetails> implements Di
   @Nullable
   protected abstract T getFromAdditionalCache(int commitId);
 
-  private void runLoadCommitsData(@NotNull Iterable<Integer> hashes) {
-    long taskNumber = myCurrentTaskIndex++;
+  private long runLoadCommitsData(@NotNull Iterable<Integer> hashes) {
+    long taskNumber = myCurrentTaskIndex.getAndIncrement();
     TIntIntHashMap commits = getCommitsMap(hashes);
     TIntHashSet toLoad = new TIntHashSet();
 
@@ -213,14 +213,18 @@ abstract class AbstractDataGetter<T extends VcsShortCommitDetails> implements Di
     }
 
     myLoader.queue(new TaskDescriptor(toLoad));
+    return taskNumber;
   }
 
   private void cacheCommit(final int commitId, long taskNumber) {
     // fill the cache with temporary "Loading" values to avoid producing queries for each commit that has not been cached yet,
     // even if it will be loaded within a previous query
-    if (!myCache.isKeyCached(commitId)) {
-      myCache.put(commitId, (T)new IndexedDetails(myIndex, myHashMap, commitId, taskNumber));
-    }
+    myCache.putIfAbsent(commitId, createLoadingDetails(commitId, taskNumber));
+  }
+
+  @NotNull
+  private T createLoadingDetails(int commitId, long taskNumber) {
+    return (T)new IndexedDetails(myIndex, myHashMap, commitId, taskNumber);
   }
 
   @NotNull
@@ -265,10 +269,10 @@ abstract class AbstractDataGetter<T extends VcsShortCommitDetails> implements Di
   }
 
   public void saveInCache(@NotNull TIntObjectHashMap<T> details) {
-    UIUtil.invokeAndWaitIfNeeded((Runnable)() -> details.forEachEntry((key, value) -> {
+    details.forEachEntry((key, value) -> {
       myCache.put(key, value);
       return true;
-    }));
+    });
   }
 
   @NotNull
@@ -23,9 +23,11 @@ import com.intellij.vcs.log.graph.GraphColorManagerImpl;
 import com.intellij.vcs.log.graph.GraphCommit;
 import com.intellij.vcs.log.graph.PermanentGraph;
 import com.intellij.vcs.log.graph.impl.facade.PermanentGraphImpl;
+import com.intellij.vcs.log.graph.impl.facade.PermanentGraphSnapshot;
 import com.intellij.vcs.log.util.StopWatch;
 import gnu.trove.TIntHashSet;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.*;
 
@@ -48,6 +50,20 @@ public class DataPack extends DataPackBase {
                         @NotNull Map<VirtualFile, VcsLogProvider> providers,
                         @NotNull final VcsLogStorage hashMap,
                         boolean full) {
+    return build(commits, refs, providers, hashMap, null, full);
+  }
+
+  /**
+   * @param previousGraph graph of the previous data pack: if the commits are the same plus some new commits on top of them,
+   *                      the new graph is built by attaching them to the previous one.
+   */
+  @NotNull
+  static DataPack build(@NotNull List<? extends GraphCommit<Integer>> commits,
+                        @NotNull Map<VirtualFile, CompressedRefs> refs,
+                        @NotNull Map<VirtualFile, VcsLogProvider> providers,
+                        @NotNull final VcsLogStorage hashMap,
+                        @Nullable PermanentGraph<Integer> previousGraph,
+                        boolean full) {
     RefsModel refsModel;
     PermanentGraph<Integer> permanentGraph;
     if (commits.isEmpty()) {
@@ -55,19 +71,47 @@ public class DataPack extends DataPackBase {
       permanentGraph = EmptyPermanentGraph.getInstance();
     }
     else {
-      refsModel = new RefsModel(refs, getHeads(commits), hashMap, providers);
+      PermanentGraphImpl<Integer> previousGraphImpl =
+        previousGraph instanceof PermanentGraphImpl ? (PermanentGraphImpl<Integer>)previousGraph : null;
+      int newCommitsCount = previousGraphImpl != null ? PermanentGraphImpl.getNewTopCommitsCount(previousGraphImpl, commits) : -1;
+      List<? extends GraphCommit<Integer>> newCommits = newCommitsCount >= 0 ? commits.subList(0, newCommitsCount) : null;
+
+      Set<Integer> heads = newCommits != null ? getHeads(newCommits, previousGraphImpl) : getHeads(commits);
+      refsModel = new RefsModel(refs, heads, hashMap, providers);
       Function<Integer, Hash> hashGetter = createHashGetter(hashMap);
       GraphColorManagerImpl colorManager = new GraphColorManagerImpl(refsModel, hashGetter, getRefManagerMap(providers));
       Set<Integer> branches = getBranchCommitHashIndexes(refsModel.getBranches(), hashMap);
 
-      StopWatch sw = StopWatch.start("building graph");
-      permanentGraph = PermanentGraphImpl.newInstance(commits, colorManager, branches);
-      sw.report();
+      permanentGraph = null;
+      if (newCommits != null) {
+        StopWatch sw = StopWatch.start("attaching " + newCommits.size() + " new commits to graph");
+        permanentGraph = PermanentGraphImpl.addTopCommits(previousGraphImpl, newCommits, colorManager, branches);
+        sw.report();
+      }
+      if (permanentGraph == null) {
+        StopWatch sw = StopWatch.start("building graph");
+        permanentGraph = PermanentGraphImpl.newInstance(commits, colorManager, branches);
+        sw.report();
+      }
     }
 
     return new DataPack(refsModel, permanentGraph, providers, full);
   }
 
+  /**
+   * Full data pack for a graph saved in the previous session together with the refs it was built for.
+   */
+  @NotNull
+  static DataPack build(@NotNull PermanentGraphSnapshot snapshot,
+                        @NotNull Map<VirtualFile, CompressedRefs> refs,
+                        @NotNull Map<VirtualFile, VcsLogProvider> providers,
+                        @NotNull VcsLogStorage hashMap) {
+    RefsModel refsModel = new RefsModel(refs, snapshot.getHeads(), hashMap, providers);
+    GraphColorManagerImpl colorManager = new GraphColorManagerImpl(refsModel, createHashGetter(hashMap), getRefManagerMap(providers));
+    Set<Integer> branches = getBranchCommitHashIndexes(refsModel.getBranches(), hashMap);
+    return new DataPack(refsModel, snapshot.createGraph(colorManager, branches), providers, true);
+  }
+
   @NotNull
   public static Function<Integer, Hash> createHashGetter(@NotNull final VcsLogStorage hashMap) {
     return commitIndex -> {
@@ -79,12 +123,7 @@ public class DataPack extends DataPackBase {
 
   @NotNull
   private static Set<Integer> getHeads(@NotNull List<? extends GraphCommit<Integer>> commits) {
-    TIntHashSet parents = new TIntHashSet();
-    for (GraphCommit<Integer> commit : commits) {
-      for (int parent : commit.getParents()) {
-        parents.add(parent);
-      }
-    }
+    TIntHashSet parents = getParents(commits);
 
     Set<Integer> heads = ContainerUtil.newHashSet();
     for (GraphCommit<Integer> commit : commits) {
@@ -95,6 +134,31 @@ public class DataPack extends DataPackBase {
     return heads;
   }
 
+  @NotNull
+  private static Set<Integer> getHeads(@NotNull List<? extends GraphCommit<Integer>> newCommits,
+                                       @NotNull PermanentGraphImpl<Integer> previousGraph) {
+    Set<Integer> heads = getHeads(newCommits);
+    TIntHashSet parents = getParents(newCommits);
+    for (int headNodeIndex : previousGraph.getPermanentGraphLayout().getHeadNodeIndex()) {
+      int head = previousGraph.getPermanentCommitsInfo().getCommitId(headNodeIndex);
+      if (!parents.contains(head)) {
+        heads.add(head);
+      }
+    }
+    return heads;
+  }
+
+  @NotNull
+  private static TIntHashSet getParents(@NotNull List<? extends GraphCommit<Integer>> commits) {
+    TIntHashSet parents = new TIntHashSet();
+    for (GraphCommit<Integer> commit : commits) {
+      for (int parent : commit.getParents()) {
+        parents.add(parent);
+      }
+    }
+    return parents;
+  }
+
   @NotNull
   private static Set<Integer> getBranchCommitHashIndexes(@NotNull Collection<VcsRef> branches, @NotNull VcsLogStorage hashMap) {
     Set<Integer> result = new HashSet<>();
@@ -15,42 +15,215 @@
  */
 package com.intellij.vcs.log.data;
 
-import com.intellij.util.containers.SLRUMap;
+import com.intellij.util.SystemProperties;
+import com.intellij.vcs.log.VcsCommitMetadata;
+import com.intellij.vcs.log.VcsFullCommitDetails;
 import com.intellij.vcs.log.VcsShortCommitDetails;
+import com.intellij.vcs.log.impl.VcsChangesLazilyParsedDetails;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.awt.*;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * <p>The cache of commit details.</p>
  * <p>It is not actually a cache, but rather a limited map, because there is intentionally no way to get the non-cached value if it was not
  * found in the cache: such functionality is implemented by the {@link DataGetter} which is able to receive
  * non-cached details more efficiently, in a batch.</p>
- * <p>Any access to the Cache MUST be performed from the EDT thread.</p>
+ * <p>The map is limited by the estimated size of the details rather than by their number, so that a few commits with huge messages
+ * or lots of changes don't take as much memory as thousands of ordinary ones. It is split into segments by the commit id,
+ * each being an LRU map under its own lock, and can be accessed from any thread.</p>
  */
 class VcsCommitCache<CommitId, T extends VcsShortCommitDetails> {
+  private static final long DEFAULT_MAX_WEIGHT = SystemProperties.getIntProperty("idea.vcs.log.commit.cache.kb", 16 * 1024) * 1024L;
+  private static final int SEGMENTS_COUNT = 16;
 
-  private final SLRUMap<CommitId, T> myCache = new SLRUMap<>(5000, 5000);
+  private static final int DETAILS_WEIGHT = 256;
+  private static final int CHANGE_WEIGHT = 256;
+  private static final int NOT_PARSED_CHANGES_WEIGHT = 2048;
+
+  @NotNull private final Segment<CommitId, T>[] mySegments;
+
+  @NotNull private final AtomicLong myHits = new AtomicLong();
+  @NotNull private final AtomicLong myMisses = new AtomicLong();
+  @NotNull private final AtomicLong myEvictions = new AtomicLong();
+
+  VcsCommitCache() {
+    this(DEFAULT_MAX_WEIGHT);
+  }
+
+  @SuppressWarnings("unchecked")
+  VcsCommitCache(long maxWeight) {
+    mySegments = new Segment[SEGMENTS_COUNT];
+    for (int i = 0; i < SEGMENTS_COUNT; i++) {
+      mySegments[i] = new Segment<>(maxWeight / SEGMENTS_COUNT);
+    }
+  }
 
   public void put(@NotNull CommitId hash, @NotNull T commit) {
-    assert EventQueue.isDispatchThread();
-    myCache.put(hash, commit);
+    myEvictions.addAndGet(getSegment(hash).put(hash, commit, false));
+  }
+
+  /**
+   * Puts the value only if there is nothing cached for the commit yet.
+   */
+  public void putIfAbsent(@NotNull CommitId hash, @NotNull T commit) {
+    myEvictions.addAndGet(getSegment(hash).put(hash, commit, true));
   }
 
   public boolean isKeyCached(@NotNull CommitId hash) {
-    assert EventQueue.isDispatchThread();
-    return myCache.get(hash) != null;
+    return peek(hash) != null;
   }
 
   @Nullable
   public T get(@NotNull CommitId hash) {
-    assert EventQueue.isDispatchThread();
-    return myCache.get(hash);
+    T details = getSegment(hash).get(hash);
+    if (details == null || details instanceof LoadingDetails) {
+      myMisses.incrementAndGet();
+    }
+    else {
+      myHits.incrementAndGet();
+    }
+    return details;
+  }
+
+  /**
+   * Same as {@link #get(Object)}, but not counted in the statistics.
+   */
+  @Nullable
+  public T peek(@NotNull CommitId hash) {
+    return getSegment(hash).get(hash);
   }
 
   public void remove(@NotNull CommitId hash) {
-    assert EventQueue.isDispatchThread();
-    myCache.remove(hash);
+    getSegment(hash).remove(hash);
+  }
+
+  public long getHitCount() {
+    return myHits.get();
+  }
+
+  /**
+   * Number of requests for commits which were not cached or were still being loaded.
+   */
+  public long getMissCount() {
+    return myMisses.get();
+  }
+
+  public long getEvictionCount() {
+    return myEvictions.get();
+  }
+
+  public long getWeight() {
+    long weight = 0;
+    for (Segment<CommitId, T> segment : mySegments) {
+      weight += segment.getWeight();
+    }
+    return weight;
+  }
+
+  public int size() {
+    int size = 0;
+    for (Segment<CommitId, T> segment : mySegments) {
+      size += segment.size();
+    }
+    return size;
+  }
+
+  @Override
+  public String toString() {
+    return size() + " commits of " + getWeight() / 1024 + " kb, " +
+           getHitCount() + " hits, " + getMissCount() + " misses, " + getEvictionCount() + " evictions";
+  }
+
+  @NotNull
+  private Segment<CommitId, T> getSegment(@NotNull CommitId hash) {
+    int h = hash.hashCode();
+    h ^= (h >>> 16);
+    h *= 0x85ebca6b;
+    h ^= (h >>> 13);
+    return mySegments[(h & Integer.MAX_VALUE) % SEGMENTS_COUNT];
+  }
+
+  /**
+   * Rough estimate of the memory taken by the details, in bytes.
+   * Changes of lazily parsed details are not parsed for this, a fixed weight is used for them instead.
+   */
+  static int estimateWeight(@NotNull VcsShortCommitDetails details) {
+    if (details instanceof LoadingDetails) return DETAILS_WEIGHT;
+
+    int weight = DETAILS_WEIGHT + 2 * details.getSubject().length();
+    if (details instanceof VcsCommitMetadata) {
+      weight += 2 * ((VcsCommitMetadata)details).getFullMessage().length();
+    }
+    if (details instanceof VcsChangesLazilyParsedDetails) {
+      weight += NOT_PARSED_CHANGES_WEIGHT;
+    }
+    else if (details instanceof VcsFullCommitDetails) {
+      weight += CHANGE_WEIGHT * ((VcsFullCommitDetails)details).getChanges().size();
+    }
+    return weight;
+  }
+
+  private static class Segment<CommitId, T extends VcsShortCommitDetails> {
+    private final long myMaxWeight;
+    @NotNull private final LinkedHashMap<CommitId, WeightedDetails<T>> myMap = new LinkedHashMap<>(16, 0.75f, true);
+    private long myWeight;
+
+    Segment(long maxWeight) {
+      myMaxWeight = maxWeight;
+    }
+
+    /**
+     * @return number of evicted details
+     */
+    int put(@NotNull CommitId hash, @NotNull T commit, boolean onlyIfAbsent) {
+      WeightedDetails<T> details = new WeightedDetails<>(commit, estimateWeight(commit));
+      synchronized (this) {
+        if (onlyIfAbsent && myMap.containsKey(hash)) return 0;
+
+        WeightedDetails<T> old = myMap.put(hash, details);
+        if (old != null) myWeight -= old.myWeight;
+        myWeight += details.myWeight;
+
+        int evicted = 0;
+        for (Iterator<WeightedDetails<T>> it = myMap.values().iterator(); myWeight > myMaxWeight && myMap.size() > 1; evicted++) {
+          myWeight -= it.next().myWeight;
+          it.remove();
+        }
+        return evicted;
+      }
+    }
+
+    @Nullable
+    synchronized T get(@NotNull CommitId hash) {
+      WeightedDetails<T> details = myMap.get(hash);
+      return details != null ? details.myDetails : null;
+    }
+
+    synchronized void remove(@NotNull CommitId hash) {
+      WeightedDetails<T> old = myMap.remove(hash);
+      if (old != null) myWeight -= old.myWeight;
+    }
+
+    synchronized long getWeight() {
+      return myWeight;
+    }
+
+    synchronized int size() {
+      return myMap.size();
+    }
+  }
+
+  private static class WeightedDetails<T> {
+    @NotNull private final T myDetails;
+    private final int myWeight;
+
+    WeightedDetails(@NotNull T details, int weight) {
+      myDetails = details;
+      myWeight = weight;
+    }
   }
 }
@@ -118,8 +118,13 @@ public class VcsLogData implements Disposable, VcsLogDataProvider {
     myMiniDetailsGetter = new MiniDetailsGetter(myHashMap, logProviders, myTopCommitsDetailsCache, myIndex, this);
     myDetailsGetter = new CommitDetailsGetter(myHashMap, logProviders, myIndex, this);
 
+    VcsLogGraphSnapshot graphSnapshot = VcsLogGraphSnapshot.ENABLED && myHashMap instanceof VcsLogStorageImpl
+                                        ? new VcsLogGraphSnapshot(myProject, myLogProviders, myHashMap)
+                                        : null;
+    // registered after the hashes storage, so that the snapshot is saved before the storage is closed
+    if (graphSnapshot != null) Disposer.register(this, graphSnapshot);
     myRefresher = new VcsLogRefresherImpl(myProject, myHashMap, myLogProviders, myUserRegistry, myIndex, progress, myTopCommitsDetailsCache,
-                                          this::fireDataPackChangeEvent, FAILING_EXCEPTION_HANDLER, RECENT_COMMITS_COUNT);
+                                          graphSnapshot, this::fireDataPackChangeEvent, FAILING_EXCEPTION_HANDLER, RECENT_COMMITS_COUNT);
 
     myContainingBranchesGetter = new ContainingBranchesGetter(this, this);
   }
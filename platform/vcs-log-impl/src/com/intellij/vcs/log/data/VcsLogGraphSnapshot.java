@@ -0,0 +1,224 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.vcs.log.data;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.SystemProperties;
+import com.intellij.util.io.ByteBufferWrapper;
+import com.intellij.util.io.IOUtil;
+import com.intellij.vcs.log.*;
+import com.intellij.vcs.log.graph.PermanentGraph;
+import com.intellij.vcs.log.graph.impl.facade.PermanentGraphImpl;
+import com.intellij.vcs.log.graph.impl.facade.PermanentGraphSnapshot;
+import com.intellij.vcs.log.impl.HashImpl;
+import com.intellij.vcs.log.impl.VcsRefImpl;
+import com.intellij.vcs.log.util.PersistentUtil;
+import com.intellij.vcs.log.util.StopWatch;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps the full log graph together with the refs it was built for between IDE sessions,
+ * so that on startup only the commits made since it was saved need to be read from the VCS.
+ * <p/>
+ * The graph is stored as plain arrays which are read from a memory-mapped file. Commit indexes in it are only valid
+ * for the current hashes storage: the saved commit index of every ref is checked against it before the snapshot is used,
+ * and then the recent commits are joined to the snapshot like on a usual refresh, which validates it against the current refs.
+ * <p/>
+ * Writing the snapshot takes a while for a large graph, so the latest graph is written at most once in a few minutes,
+ * and on dispose unless it happens on EDT.
+ */
+public class VcsLogGraphSnapshot implements Disposable {
+  private static final Logger LOG = Logger.getInstance(VcsLogGraphSnapshot.class);
+  public static final boolean ENABLED = SystemProperties.getBooleanProperty("idea.vcs.log.graph.snapshot", true);
+  private static final long SAVE_INTERVAL =
+    TimeUnit.MINUTES.toMillis(SystemProperties.getIntProperty("idea.vcs.log.graph.snapshot.save.interval", 10));
+
+  @NotNull private static final String GRAPH_STORAGE = "graph";
+  private static final int VERSION = 1;
+  private static final int END_MARKER = 0x5EA1ED;
+
+  @NotNull private final File myFile;
+  @NotNull private final VcsLogStorage myHashMap;
+  @NotNull private final Map<VirtualFile, VcsLogProvider> myProviders;
+  @NotNull private final List<VirtualFile> myRoots;
+  @Nullable private volatile PermanentGraph<Integer> mySavedGraph;
+  @Nullable private DataPack myPendingDataPack; // guarded by this
+  private long myLastSaveTime; // guarded by this
+  private boolean myDisposed; // guarded by this
+
+  public VcsLogGraphSnapshot(@NotNull Project project,
+                             @NotNull Map<VirtualFile, VcsLogProvider> providers,
+                             @NotNull VcsLogStorage hashMap) {
+    myHashMap = hashMap;
+    myProviders = providers;
+    myRoots = providers.keySet().stream().sorted(Comparator.comparing(VirtualFile::getPath)).collect(Collectors.toList());
+    myFile = PersistentUtil.getStorageFile(GRAPH_STORAGE, PersistentUtil.calcLogId(project, providers),
+                                           VcsLogStorageImpl.VERSION + VERSION);
+  }
+
+  /**
+   * @return full data pack for the saved graph and refs, or null if there is no valid snapshot.
+   */
+  @Nullable
+  public DataPack load() {
+    if (!myFile.exists()) return null;
+
+    StopWatch sw = StopWatch.start("loading graph snapshot");
+    ByteBufferWrapper wrapper = ByteBufferWrapper.readOnly(myFile, 0);
+    try {
+      ByteBuffer buffer = wrapper.getBuffer();
+      if (buffer.remaining() < 8 || buffer.getInt() != VERSION) throw new IOException("Unknown snapshot version");
+
+      int refsLength = buffer.getInt();
+      if (refsLength < 0 || refsLength > buffer.remaining()) throw new IOException("Unexpected refs length " + refsLength);
+      byte[] refsBytes = new byte[refsLength];
+      buffer.get(refsBytes);
+      Map<VirtualFile, CompressedRefs> refs = readRefs(new DataInputStream(new ByteArrayInputStream(refsBytes)));
+      if (refs == null) {
+        LOG.info("Graph snapshot " + myFile + " does not match the hashes storage");
+        FileUtil.delete(myFile);
+        return null;
+      }
+
+      PermanentGraphSnapshot graph = PermanentGraphSnapshot.read(buffer);
+      if (buffer.remaining() != 4 || buffer.getInt() != END_MARKER) throw new IOException("Unexpected end of snapshot");
+
+      DataPack dataPack = DataPack.build(graph, refs, myProviders, myHashMap);
+      synchronized (this) {
+        mySavedGraph = dataPack.getPermanentGraph();
+        myLastSaveTime = System.currentTimeMillis();
+      }
+      sw.report();
+      return dataPack;
+    }
+    catch (IOException | BufferUnderflowException e) {
+      LOG.warn("Could not read graph snapshot " + myFile, e);
+      FileUtil.delete(myFile);
+      return null;
+    }
+    finally {
+      wrapper.unmap();
+    }
+  }
+
+  /**
+   * Remembers the graph of a full data pack to be saved, and saves it right away if the previous save was long enough ago.
+   */
+  public synchronized void update(@NotNull DataPack dataPack) {
+    PermanentGraph<Integer> graph = dataPack.getPermanentGraph();
+    if (myDisposed || !dataPack.isFull() || !(graph instanceof PermanentGraphImpl) || graph == mySavedGraph) return;
+
+    myPendingDataPack = dataPack;
+    if (System.currentTimeMillis() - myLastSaveTime >= SAVE_INTERVAL) savePending();
+  }
+
+  @Override
+  public synchronized void dispose() {
+    // the log is usually disposed on EDT when a project is closed, the graph saved last time is still valid then,
+    // only the commits made since then are read from the VCS on the next start
+    if (!ApplicationManager.getApplication().isDispatchThread()) savePending();
+    myPendingDataPack = null;
+    myDisposed = true;
+  }
+
+  private void savePending() {
+    DataPack dataPack = myPendingDataPack;
+    if (dataPack == null) return;
+    myPendingDataPack = null;
+    myLastSaveTime = System.currentTimeMillis();
+    save(dataPack);
+  }
+
+  private void save(@NotNull DataPack dataPack) {
+    PermanentGraph<Integer> graph = dataPack.getPermanentGraph();
+
+    StopWatch sw = StopWatch.start("saving graph snapshot");
+    File tempFile = new File(myFile.getPath() + ".tmp");
+    try {
+      FileUtil.createParentDirs(tempFile);
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 64 * 1024))) {
+        out.writeInt(VERSION);
+        byte[] refsBytes = writeRefs(dataPack.getRefsModel().getAllRefsByRoot());
+        out.writeInt(refsBytes.length);
+        out.write(refsBytes);
+        PermanentGraphSnapshot.write((PermanentGraphImpl<Integer>)graph, out);
+        out.writeInt(END_MARKER);
+      }
+      FileUtil.delete(myFile);
+      FileUtil.rename(tempFile, myFile);
+      mySavedGraph = graph;
+      sw.report();
+    }
+    catch (IOException e) {
+      LOG.warn("Could not save graph snapshot " + myFile, e);
+      FileUtil.delete(tempFile);
+    }
+  }
+
+  @NotNull
+  private byte[] writeRefs(@NotNull Map<VirtualFile, CompressedRefs> refsByRoot) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(myRoots.size());
+    for (VirtualFile root : myRoots) {
+      CompressedRefs refs = refsByRoot.get(root);
+      Collection<VcsRef> rootRefs = refs == null ? Collections.emptyList() : refs.getRefs();
+
+      out.writeInt(rootRefs.size());
+      for (VcsRef ref : rootRefs) {
+        out.writeInt(myHashMap.getCommitIndex(ref.getCommitHash(), root));
+        ((HashImpl)ref.getCommitHash()).write(out);
+        IOUtil.writeUTF(out, ref.getName());
+        myProviders.get(root).getReferenceManager().serialize(out, ref.getType());
+      }
+    }
+    return bytes.toByteArray();
+  }
+
+  @Nullable
+  private Map<VirtualFile, CompressedRefs> readRefs(@NotNull DataInput in) throws IOException {
+    if (in.readInt() != myRoots.size()) throw new IOException("Unexpected number of roots");
+
+    Map<VirtualFile, CompressedRefs> result = new HashMap<>();
+    for (VirtualFile root : myRoots) {
+      int refsCount = in.readInt();
+      Set<VcsRef> refs = new HashSet<>();
+      for (int i = 0; i < refsCount; i++) {
+        int commitIndex = in.readInt();
+        Hash hash = HashImpl.read(in);
+        String name = IOUtil.readUTF(in);
+        VcsRefType type = myProviders.get(root).getReferenceManager().deserialize(in);
+        if (myHashMap.getCommitIndex(hash, root) != commitIndex) return null;
+        refs.add(new VcsRefImpl(hash, name, type, root));
+      }
+      result.put(root, new CompressedRefs(refs, myHashMap));
+    }
+    return result;
+  }
+}
@@ -51,6 +51,7 @@ public class VcsLogRefresherImpl implements VcsLogRefresher {
   @NotNull private final VcsUserRegistryImpl myUserRegistry;
   @NotNull private final VcsLogIndex myIndex;
   @NotNull private final TopCommitsCache myTopCommitsDetailsCache;
+  @Nullable private final VcsLogGraphSnapshot myGraphSnapshot;
   @NotNull private final Consumer<Exception> myExceptionHandler;
   @NotNull private final VcsLogProgress myProgress;
 
@@ -67,6 +68,7 @@ public class VcsLogRefresherImpl implements VcsLogRefresher {
                              @NotNull VcsLogIndex index,
                              @NotNull VcsLogProgress progress,
                              @NotNull TopCommitsCache topCommitsDetailsCache,
+                             @Nullable VcsLogGraphSnapshot graphSnapshot,
                              @NotNull Consumer<DataPack> dataPackUpdateHandler,
                              @NotNull Consumer<Exception> exceptionHandler,
                              int recentCommitsCount) {
@@ -76,6 +78,7 @@ public class VcsLogRefresherImpl implements VcsLogRefresher {
     myUserRegistry = userRegistry;
     myIndex = index;
     myTopCommitsDetailsCache = topCommitsDetailsCache;
+    myGraphSnapshot = graphSnapshot;
     myExceptionHandler = exceptionHandler;
     myRecentCommitCount = recentCommitsCount;
     myProgress = progress;
@@ -225,6 +228,7 @@ public class VcsLogRefresherImpl implements VcsLogRefresher {
         }
         dataPack = doRefresh(rootsToRefresh);
       }
+      if (myGraphSnapshot != null) myGraphSnapshot.update(dataPack);
     }
 
     @NotNull
@@ -232,7 +236,7 @@ public class VcsLogRefresherImpl implements VcsLogRefresher {
       Collection<VirtualFile> rootsToRefresh = ContainerUtil.newArrayList();
       for (RefreshRequest request : requests) {
         if (request == RefreshRequest.RELOAD_ALL) {
-          myCurrentDataPack = DataPack.EMPTY;
+          myCurrentDataPack = loadGraphSnapshot();
           return myProviders.keySet();
         }
         rootsToRefresh.addAll(request.rootsToRefresh);
@@ -240,6 +244,26 @@ public class VcsLogRefresherImpl implements VcsLogRefresher {
       return rootsToRefresh;
     }
 
+    /**
+     * Graph saved in the previous session, to which the recent commits are joined instead of reading the full log.
+     */
+    @NotNull
+    private DataPack loadGraphSnapshot() {
+      DataPack dataPack = myGraphSnapshot != null ? myGraphSnapshot.load() : null;
+      if (dataPack == null) return DataPack.EMPTY;
+
+      // commits which were not indexed in the previous session are not going to be read from the VCS now
+      for (GraphCommit<Integer> commit : dataPack.getPermanentGraph().getAllCommits()) {
+        int index = commit.getId();
+        if (!myIndex.isIndexed(index)) {
+          CommitId commitId = myHashMap.getCommitId(index);
+          if (commitId != null) myIndex.markForIndexing(index, commitId.getRoot());
+        }
+      }
+      myIndex.scheduleIndex(true);
+      return dataPack;
+    }
+
     @NotNull
     private DataPack doRefresh(@NotNull Collection<VirtualFile> roots) {
       StopWatch sw = StopWatch.start("refresh");
@@ -257,7 +281,7 @@ public class VcsLogRefresherImpl implements VcsLogRefresher {
               commitCount *= 5;
             }
             else {
-              return DataPack.build(joinedFullLog, allNewRefs, myProviders, myHashMap, true);
+              return DataPack.build(joinedFullLog, allNewRefs, myProviders, myHashMap, permanentGraph, true);
             }
           }
           // couldn't join => need to reload everything; if 5000 commits is still not enough, it's worth reporting:
@@ -17,6 +17,8 @@ package com.intellij.vcs.log.data;
 
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.util.Condition;
+import com.intellij.openapi.util.Conditions;
 import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.vcs.VcsException;
 import com.intellij.openapi.vfs.VirtualFile;
@@ -214,6 +216,8 @@ class VisiblePackBuilder {
   private Collection<CommitId> filterInMemory(@NotNull PermanentGraph<Integer> permanentGraph,
                                               @NotNull List<VcsLogDetailsFilter> detailsFilters,
                                               @Nullable Set<Integer> matchingHeads) {
+    Condition<Integer> matchesAnyHead =
+      matchingHeads == null ? Conditions.alwaysTrue() : permanentGraph.getContainedInBranchCondition(matchingHeads);
     Collection<CommitId> result = ContainerUtil.newArrayList();
     for (GraphCommit<Integer> commit : permanentGraph.getAllCommits()) {
       VcsCommitMetadata data = getDetailsFromCache(commit.getId());
@@ -221,30 +225,15 @@ class VisiblePackBuilder {
         // no more continuous details in the cache
         break;
       }
-      if (matchesAllFilters(data, permanentGraph, detailsFilters, matchingHeads)) {
+      if (matchesAnyHead.value(commit.getId()) && matchesAllFilters(data, detailsFilters)) {
         result.add(new CommitId(data.getId(), data.getRoot()));
       }
     }
     return result;
   }
 
-  private boolean matchesAllFilters(@NotNull final VcsCommitMetadata commit,
-                                    @NotNull final PermanentGraph<Integer> permanentGraph,
-                                    @NotNull List<VcsLogDetailsFilter> detailsFilters,
-                                    @Nullable final Set<Integer> matchingHeads) {
-    boolean matchesAllDetails = ContainerUtil.and(detailsFilters, filter -> filter.matches(commit));
-    return matchesAllDetails && matchesAnyHead(permanentGraph, commit, matchingHeads);
-  }
-
-  private boolean matchesAnyHead(@NotNull PermanentGraph<Integer> permanentGraph,
-                                 @NotNull VcsCommitMetadata commit,
-                                 @Nullable Set<Integer> matchingHeads) {
-    if (matchingHeads == null) {
-      return true;
-    }
-    // TODO O(n^2)
-    int commitIndex = myHashMap.getCommitIndex(commit.getId(), commit.getRoot());
-    return ContainerUtil.intersects(permanentGraph.getContainingBranches(commitIndex), matchingHeads);
+  private static boolean matchesAllFilters(@NotNull final VcsCommitMetadata commit, @NotNull List<VcsLogDetailsFilter> detailsFilters) {
+    return ContainerUtil.and(detailsFilters, filter -> filter.matches(commit));
   }
 
   @Nullable
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.vcs.log.data.index;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.util.containers.ContainerUtil;
+import com.intellij.vcs.log.VcsFullCommitDetails;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Indexes the details read from the VCS in chunks: the index data for the chunks is calculated on a pool,
+ * and then they are written into the storage one after another in the reading order, each index of a chunk in one batch.
+ * The commits of a chunk are marked as indexed only after the rest of their data is written.
+ * <p/>
+ * After a cancellation or an error the chunks which are not written yet are dropped.
+ */
+class IndexingPipeline<T> {
+  private static final Logger LOG = Logger.getInstance(IndexingPipeline.class);
+  static final int CHUNK_SIZE = 200;
+
+  @NotNull private final ProgressIndicator myIndicator;
+  @NotNull private final Indexer<T> myIndexer;
+  @NotNull private final ExecutorService myIndexingExecutor;
+  @NotNull private final ExecutorService myWritingExecutor;
+  @NotNull private final Semaphore myChunksInProgress;
+  @NotNull private final AtomicReference<Throwable> myError = new AtomicReference<>();
+  @NotNull private List<VcsFullCommitDetails> myChunk = ContainerUtil.newArrayList();
+  @Nullable private Future<?> myLastWrite;
+
+  IndexingPipeline(@NotNull ProgressIndicator indicator,
+                   @NotNull Indexer<T> indexer,
+                   @NotNull ExecutorService indexingExecutor,
+                   @NotNull ExecutorService writingExecutor,
+                   int maxChunksInProgress) {
+    myIndicator = indicator;
+    myIndexer = indexer;
+    myIndexingExecutor = indexingExecutor;
+    myWritingExecutor = writingExecutor;
+    myChunksInProgress = new Semaphore(maxChunksInProgress);
+  }
+
+  public void add(@NotNull VcsFullCommitDetails details) {
+    myChunk.add(details);
+    if (myChunk.size() >= CHUNK_SIZE) submitChunk();
+  }
+
+  /**
+   * Submits the last chunk and waits until everything is written.
+   *
+   * @return the error which stopped the indexing, or null if there was none or the indexing was canceled
+   */
+  @Nullable
+  public Throwable finish() {
+    try {
+      if (!myIndicator.isCanceled()) submitChunk();
+    }
+    finally {
+      if (myLastWrite != null) {
+        try {
+          myLastWrite.get();
+        }
+        catch (InterruptedException | ExecutionException e) {
+          LOG.warn(e);
+        }
+      }
+    }
+
+    Throwable error = myError.get();
+    return error instanceof ProcessCanceledException ? null : error;
+  }
+
+  private void submitChunk() {
+    if (myChunk.isEmpty()) return;
+    List<VcsFullCommitDetails> chunk = myChunk;
+    myChunk = ContainerUtil.newArrayList();
+
+    // do not read the details too far ahead of the writer
+    try {
+      while (!myChunksInProgress.tryAcquire(10, TimeUnit.MILLISECONDS)) {
+        myIndicator.checkCanceled();
+      }
+    }
+    catch (InterruptedException e) {
+      throw new ProcessCanceledException(e);
+    }
+
+    Future<List<T>> prepared = myIndexingExecutor.submit(() -> {
+      if (isStopped()) return null;
+      return ContainerUtil.map(chunk, myIndexer::prepare);
+    });
+    myLastWrite = myWritingExecutor.submit(() -> {
+      try {
+        List<T> commits = prepared.get();
+        if (commits == null || isStopped()) return;
+
+        if (myIndexer.store(commits)) {
+          myIndexer.markIndexed(commits);
+        }
+      }
+      catch (Throwable t) {
+        myError.compareAndSet(null, t instanceof ExecutionException ? t.getCause() : t);
+      }
+      finally {
+        myChunksInProgress.release();
+      }
+    });
+  }
+
+  private boolean isStopped() {
+    return myError.get() != null || myIndicator.isCanceled();
+  }
+
+  interface Indexer<T> {
+    /**
+     * Calculates the index data of a commit, called on the indexing pool.
+     */
+    @NotNull
+    T prepare(@NotNull VcsFullCommitDetails details);
+
+    /**
+     * Writes the index data of a chunk, except for the set of indexed commits. Chunks are written one by one in the reading order.
+     *
+     * @return false if the data could not be written and the commits should not be marked as indexed
+     */
+    boolean store(@NotNull List<T> chunk);
+
+    /**
+     * Marks the commits of a chunk as indexed, called after {@link #store(List)} succeeded for the chunk.
+     */
+    void markIndexed(@NotNull List<T> chunk);
+  }
+}
@@ -17,6 +17,7 @@ package com.intellij.vcs.log.data.index;
 
 import com.intellij.openapi.Disposable;
 import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.util.Computable;
 import com.intellij.openapi.util.Disposer;
 import com.intellij.util.Consumer;
 import com.intellij.util.indexing.*;
@@ -33,8 +34,10 @@ import org.jetbrains.annotations.NotNull;
 import java.io.File;
 import java.io.IOException;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.locks.Lock;
 import java.util.function.ObjIntConsumer;
 
 import static com.intellij.vcs.log.data.index.VcsLogPersistentIndex.getVersion;
@@ -101,8 +104,29 @@ public class VcsLogFullDetailsIndex<T> implements Disposable {
     });
   }
 
-  public void update(int commitId, @NotNull VcsFullCommitDetails details) throws IOException {
-    myMapReduceIndex.update(commitId, details).compute();
+  /**
+   * Calculates the index data for the commit and returns the update which writes it into the index.
+   * The data can be calculated on any thread, the updates are written by {@link #applyUpdates(List)}.
+   */
+  @NotNull
+  public Computable<Boolean> prepareUpdate(int commitId, @NotNull VcsFullCommitDetails details) {
+    return myMapReduceIndex.update(commitId, details);
+  }
+
+  /**
+   * Writes the updates under a single write lock instead of taking it for every commit.
+   */
+  public void applyUpdates(@NotNull List<Computable<Boolean>> updates) {
+    Lock lock = myMapReduceIndex.getWriteLock();
+    lock.lock();
+    try {
+      for (Computable<Boolean> update : updates) {
+        update.compute();
+      }
+    }
+    finally {
+      lock.unlock();
+    }
   }
 
   public void flush() throws StorageException {
@@ -21,6 +21,7 @@ import com.intellij.openapi.components.ServiceManager;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.progress.*;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Computable;
 import com.intellij.openapi.util.Condition;
 import com.intellij.openapi.util.Disposer;
 import com.intellij.openapi.vcs.FilePath;
@@ -28,10 +29,13 @@ import com.intellij.openapi.vcs.VcsException;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.util.EmptyConsumer;
 import com.intellij.util.Processor;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.ThrowableRunnable;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.containers.EmptyIntHashSet;
 import com.intellij.util.indexing.StorageException;
+import com.intellij.util.indexing.containers.ChangeBufferingList;
 import com.intellij.util.io.*;
 import com.intellij.vcs.log.*;
 import com.intellij.vcs.log.data.*;
@@ -51,6 +55,7 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.IntStream;
 
@@ -59,7 +64,9 @@ import static com.intellij.vcs.log.util.PersistentUtil.*;
 
 public class VcsLogPersistentIndex implements VcsLogIndex, Disposable {
   private static final Logger LOG = Logger.getInstance(VcsLogPersistentIndex.class);
-  private static final int VERSION = 0;
+  private static final int VERSION = ChangeBufferingList.COMPRESSED_ID_SETS_ENABLED ? 1 : 0;
+  private static final int INDEXING_THREADS =
+    SystemProperties.getIntProperty("idea.vcs.log.index.threads", Math.min(4, Math.max(1, Runtime.getRuntime().availableProcessors() - 1)));
 
   @NotNull private final Project myProject;
   @NotNull private final FatalErrorHandler myFatalErrorsConsumer;
@@ -73,6 +80,10 @@ public class VcsLogPersistentIndex implements VcsLogIndex, Disposable {
 
   @NotNull private final SingleTaskController<IndexingRequest, Void> mySingleTaskController = new MySingleTaskController();
   @NotNull private final Map<VirtualFile, AtomicInteger> myNumberOfTasks = ContainerUtil.newHashMap();
+  @NotNull private final ExecutorService myIndexingExecutor =
+    AppExecutorUtil.createBoundedApplicationPoolExecutor("VcsLogPersistentIndex pool", INDEXING_THREADS);
+  @NotNull private final ExecutorService myWritingExecutor =
+    AppExecutorUtil.createBoundedApplicationPoolExecutor("VcsLogPersistentIndex writer", 1);
 
   @NotNull private Map<VirtualFile, TIntHashSet> myCommitsToIndex = ContainerUtil.newHashMap();
 
@@ -134,17 +145,36 @@ public class VcsLogPersistentIndex implements VcsLogIndex, Disposable {
     mySingleTaskController.request(new IndexingRequest(commitsToIndex, full));
   }
 
-  private void storeDetail(@NotNull VcsFullCommitDetails detail) {
-    if (myIndexStorage == null) return;
-    try {
-      int index = myHashMap.getCommitIndex(detail.getId(), detail.getRoot());
+  @NotNull
+  private IndexedCommit prepareDetail(@NotNull MyIndexStorage storage, @NotNull VcsFullCommitDetails detail) {
+    int index = myHashMap.getCommitIndex(detail.getId(), detail.getRoot());
+    return new IndexedCommit(index, detail.getFullMessage(),
+                             storage.trigrams.prepareUpdate(index, detail),
+                             storage.users.prepareUpdate(index, detail),
+                             storage.paths.prepareUpdate(index, detail));
+  }
 
-      myIndexStorage.messages.put(index, detail.getFullMessage());
-      myIndexStorage.trigrams.update(index, detail);
-      myIndexStorage.users.update(index, detail);
-      myIndexStorage.paths.update(index, detail);
+  private boolean storeDetails(@NotNull MyIndexStorage storage, @NotNull List<IndexedCommit> commits) {
+    try {
+      for (IndexedCommit commit : commits) {
+        storage.messages.put(commit.index, commit.message);
+      }
+      storage.trigrams.applyUpdates(ContainerUtil.map(commits, commit -> commit.trigrams));
+      storage.users.applyUpdates(ContainerUtil.map(commits, commit -> commit.users));
+      storage.paths.applyUpdates(ContainerUtil.map(commits, commit -> commit.paths));
+      return true;
+    }
+    catch (IOException e) {
+      myFatalErrorsConsumer.consume(this, e);
+    }
+    return false;
+  }
 
-      myIndexStorage.commits.put(index);
+  private void markIndexed(@NotNull MyIndexStorage storage, @NotNull List<IndexedCommit> commits) {
+    try {
+      for (IndexedCommit commit : commits) {
+        storage.commits.put(commit.index);
+      }
     }
     catch (IOException e) {
       myFatalErrorsConsumer.consume(this, e);
@@ -522,10 +552,10 @@ public class VcsLogPersistentIndex implements VcsLogIndex, Disposable {
 
       LOG.debug(StopWatch.formatTime(System.currentTimeMillis() - time) +
                 " for indexing " +
-                counter.newIndexedCommits +
+                counter.newIndexedCommits.get() +
                 " new commits out of " +
                 counter.allCommits);
-      int leftCommits = counter.allCommits - counter.newIndexedCommits - counter.oldCommits;
+      int leftCommits = counter.allCommits - counter.newIndexedCommits.get() - counter.oldCommits;
       if (leftCommits > 0) {
         LOG.warn("Did not index " + leftCommits + " commits");
       }
@@ -551,24 +581,31 @@ public class VcsLogPersistentIndex implements VcsLogIndex, Disposable {
       // We pass hashes to VcsLogProvider#readFullDetails in batches
       // in order to avoid allocating too much memory for these hashes
       // (we have up to 150K commits here that will occupy up to 18Mb as Strings).
-      TroveUtil.processBatches(commits, BATCH_SIZE, batch -> {
-        counter.indicator.checkCanceled();
+      IndexingPipeline<IndexedCommit> pipeline = createPipeline(counter);
+      if (pipeline == null) return;
+      try {
+        TroveUtil.processBatches(commits, BATCH_SIZE, batch -> {
+          counter.indicator.checkCanceled();
 
-        if (indexOneByOne(root, batch)) {
-          counter.newIndexedCommits += batch.size();
-        }
+          indexOneByOne(root, batch, pipeline);
 
-        counter.displayProgress();
-      });
+          counter.displayProgress();
+        });
+      }
+      finally {
+        finish(pipeline, counter);
+      }
 
       flush();
     }
 
-    private boolean indexOneByOne(@NotNull VirtualFile root, @NotNull TIntHashSet commits) {
+    private void indexOneByOne(@NotNull VirtualFile root,
+                               @NotNull TIntHashSet commits,
+                               @NotNull IndexingPipeline<IndexedCommit> pipeline) {
       VcsLogProvider provider = myProviders.get(root);
       try {
         List<String> hashes = TroveUtil.map(commits, value -> myHashMap.getCommitId(value).getHash().asString());
-        provider.readFullDetails(root, hashes, VcsLogPersistentIndex.this::storeDetail);
+        provider.readFullDetails(root, hashes, pipeline::add);
       }
       catch (VcsException e) {
         LOG.error(e);
@@ -576,9 +613,7 @@ public class VcsLogPersistentIndex implements VcsLogIndex, Disposable {
           markForIndexing(value, root);
           return true;
         });
-        return false;
       }
-      return true;
     }
 
     public void indexAll(@NotNull VirtualFile root,
@@ -599,12 +634,13 @@ public class VcsLogPersistentIndex implements VcsLogIndex, Disposable {
         indexOneByOne(root, counter, TroveUtil.stream(notIndexed));
       }
       else {
+        IndexingPipeline<IndexedCommit> pipeline = createPipeline(counter);
+        if (pipeline == null) return;
         try {
           myProviders.get(root).readAllFullDetails(root, details -> {
             int index = myHashMap.getCommitIndex(details.getId(), details.getRoot());
             if (notIndexed.contains(index)) {
-              storeDetail(details);
-              counter.newIndexedCommits++;
+              pipeline.add(details);
             }
 
             counter.indicator.checkCanceled();
@@ -618,16 +654,72 @@ public class VcsLogPersistentIndex implements VcsLogIndex, Disposable {
             return true;
           });
         }
+        finally {
+          finish(pipeline, counter);
+        }
       }
 
       flush();
     }
+
+    @Nullable
+    private IndexingPipeline<IndexedCommit> createPipeline(@NotNull CommitsCounter counter) {
+      MyIndexStorage storage = myIndexStorage;
+      if (storage == null) return null;
+      return new IndexingPipeline<>(counter.indicator, new IndexingPipeline.Indexer<IndexedCommit>() {
+        @NotNull
+        @Override
+        public IndexedCommit prepare(@NotNull VcsFullCommitDetails details) {
+          return prepareDetail(storage, details);
+        }
+
+        @Override
+        public boolean store(@NotNull List<IndexedCommit> chunk) {
+          return storeDetails(storage, chunk);
+        }
+
+        @Override
+        public void markIndexed(@NotNull List<IndexedCommit> chunk) {
+          VcsLogPersistentIndex.this.markIndexed(storage, chunk);
+          // progress is displayed by the reading thread
+          counter.newIndexedCommits.addAndGet(chunk.size());
+        }
+      }, myIndexingExecutor, myWritingExecutor, 2 * INDEXING_THREADS + 1);
+    }
+
+    private void finish(@NotNull IndexingPipeline<IndexedCommit> pipeline, @NotNull CommitsCounter counter) {
+      Throwable error = pipeline.finish();
+      if (error != null) {
+        LOG.error("Error while indexing", error);
+      }
+      counter.displayProgress();
+    }
+  }
+
+  private static class IndexedCommit {
+    public final int index;
+    @NotNull public final String message;
+    @NotNull public final Computable<Boolean> trigrams;
+    @NotNull public final Computable<Boolean> users;
+    @NotNull public final Computable<Boolean> paths;
+
+    private IndexedCommit(int index,
+                          @NotNull String message,
+                          @NotNull Computable<Boolean> trigrams,
+                          @NotNull Computable<Boolean> users,
+                          @NotNull Computable<Boolean> paths) {
+      this.index = index;
+      this.message = message;
+      this.trigrams = trigrams;
+      this.users = users;
+      this.paths = paths;
+    }
   }
 
   private static class CommitsCounter {
     @NotNull public final ProgressIndicator indicator;
     public final int allCommits;
-    public volatile int newIndexedCommits;
+    @NotNull public final AtomicInteger newIndexedCommits = new AtomicInteger();
     public volatile int oldCommits;
 
     private CommitsCounter(@NotNull ProgressIndicator indicator, int commits) {
@@ -636,7 +728,7 @@ public class VcsLogPersistentIndex implements VcsLogIndex, Disposable {
     }
 
     public void displayProgress() {
-      indicator.setFraction(((double)newIndexedCommits + oldCommits) / allCommits);
+      indicator.setFraction(((double)newIndexedCommits.get() + oldCommits) / allCommits);
     }
   }
 }
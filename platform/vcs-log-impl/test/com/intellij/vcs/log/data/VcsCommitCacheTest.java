@@ -0,0 +1,133 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.vcs.log.data;
+
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.testFramework.LightVirtualFile;
+import com.intellij.vcs.log.VcsCommitMetadata;
+import com.intellij.vcs.log.VcsUser;
+import com.intellij.vcs.log.impl.HashImpl;
+import com.intellij.vcs.log.impl.VcsCommitMetadataImpl;
+import com.intellij.vcs.log.impl.VcsUserImpl;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class VcsCommitCacheTest {
+  private static final LightVirtualFile ROOT = new LightVirtualFile("root");
+  private static final VcsUser USER = new VcsUserImpl("John Doe", "john.doe@example.com");
+
+  @Test
+  public void leastRecentlyUsedCommitsAreEvicted() {
+    VcsCommitCache<Integer, VcsCommitMetadata> cache = new VcsCommitCache<>(16 * 1000 * weight(commit(0, 10)));
+    for (int i = 0; i < 20000; i++) {
+      cache.put(i, commit(i, 10));
+      assertNotNull(cache.get(0)); // keep the first commit used
+    }
+
+    assertNotNull(cache.get(0));
+    assertNotNull(cache.get(19999));
+    assertNull(cache.get(1));
+    assertTrue(cache.size() < 20000);
+    assertEquals(20000 - cache.size(), cache.getEvictionCount());
+  }
+
+  @Test
+  public void heavyCommitsTakeMoreSpace() {
+    long maxWeight = 16 * 100 * weight(commit(0, 10));
+    VcsCommitCache<Integer, VcsCommitMetadata> light = new VcsCommitCache<>(maxWeight);
+    VcsCommitCache<Integer, VcsCommitMetadata> heavy = new VcsCommitCache<>(maxWeight);
+    for (int i = 0; i < 5000; i++) {
+      light.put(i, commit(i, 10));
+      heavy.put(i, commit(i, 10000));
+    }
+
+    assertTrue(light.size() + " " + heavy.size(), heavy.size() * 10 < light.size());
+    assertTrue(light.getWeight() <= maxWeight);
+    assertTrue(heavy.getWeight() <= maxWeight);
+  }
+
+  @Test
+  public void hitsAndMissesAreCounted() {
+    VcsCommitCache<Integer, VcsCommitMetadata> cache = new VcsCommitCache<>(1024 * 1024);
+    cache.put(1, commit(1, 10));
+    cache.get(1);
+    cache.get(1);
+    cache.get(2);
+    cache.peek(3);
+
+    assertEquals(2, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  @Test
+  public void concurrentAccess() throws InterruptedException {
+    VcsCommitCache<Integer, VcsCommitMetadata> cache = new VcsCommitCache<>(16 * 500 * weight(commit(0, 10)));
+    AtomicReference<Throwable> error = new AtomicReference<>();
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 8; t++) {
+      int thread = t;
+      threads.add(new Thread(() -> {
+        try {
+          for (int i = 0; i < 20000; i++) {
+            int commit = (i * 31 + thread) % 3000;
+            VcsCommitMetadata details = cache.get(commit);
+            if (details == null) {
+              cache.putIfAbsent(commit, commit(commit, 10));
+            }
+            else {
+              assertEquals(HashImpl.build(hash(commit)), details.getId());
+            }
+            if (i % 100 == 0) cache.remove(commit);
+          }
+        }
+        catch (Throwable e) {
+          error.set(e);
+        }
+      }));
+    }
+    threads.forEach(Thread::start);
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertNull(error.get());
+    assertEquals(8 * 20000, cache.getHitCount() + cache.getMissCount());
+    assertTrue(cache.getWeight() <= 16 * 500 * weight(commit(0, 10)));
+  }
+
+  private static long weight(@NotNull VcsCommitMetadata commit) {
+    return VcsCommitCache.estimateWeight(commit);
+  }
+
+  @NotNull
+  private static VcsCommitMetadata commit(int index, int messageLength) {
+    String message = "subject " + index + "\n\n" + StringUtil.repeat("a", messageLength);
+    return new VcsCommitMetadataImpl(HashImpl.build(hash(index)), Collections.emptyList(), index, ROOT, "subject " + index,
+                                     USER, message, USER, index);
+  }
+
+  @NotNull
+  private static String hash(int index) {
+    return StringUtil.repeat("0", 40 - Integer.toHexString(index).length()) + Integer.toHexString(index);
+  }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.vcs.log.data.index;
+
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.util.AbstractProgressIndicatorBase;
+import com.intellij.testFramework.LightVirtualFile;
+import com.intellij.util.Consumer;
+import com.intellij.vcs.log.VcsFullCommitDetails;
+import com.intellij.vcs.log.VcsUser;
+import com.intellij.vcs.log.impl.HashImpl;
+import com.intellij.vcs.log.impl.VcsChangesLazilyParsedDetails;
+import com.intellij.vcs.log.impl.VcsUserImpl;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.intellij.vcs.log.data.index.IndexingPipeline.CHUNK_SIZE;
+import static org.junit.Assert.*;
+
+public class IndexingPipelineTest {
+  private static final LightVirtualFile ROOT = new LightVirtualFile("root");
+  private static final VcsUser USER = new VcsUserImpl("John Smith", "John.Smith@example.com");
+
+  private final ExecutorService myIndexingExecutor = Executors.newFixedThreadPool(3);
+  private final ExecutorService myWritingExecutor = Executors.newSingleThreadExecutor();
+  private final AbstractProgressIndicatorBase myIndicator = new AbstractProgressIndicatorBase();
+
+  @After
+  public void tearDown() throws Exception {
+    myIndexingExecutor.shutdownNow();
+    myWritingExecutor.shutdownNow();
+    assertTrue(myIndexingExecutor.awaitTermination(10, TimeUnit.SECONDS));
+    assertTrue(myWritingExecutor.awaitTermination(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void allCommitsAreIndexed() {
+    int count = 10 * CHUNK_SIZE + 17;
+    TestIndexer indexer = new TestIndexer();
+    IndexingPipeline<Integer> pipeline = createPipeline(indexer);
+    readFullDetails(count, pipeline::add);
+    assertNull(pipeline.finish());
+
+    assertEquals(count, indexer.myStored.size());
+    assertEquals(count, indexer.myIndexed.size());
+    for (int i = 0; i < count; i++) {
+      assertEquals("message " + i, indexer.myStored.get(i));
+      assertTrue(indexer.myIndexed.contains(i));
+    }
+    assertTrue(indexer.myIndexedBeforeStored.isEmpty());
+  }
+
+  @Test
+  public void commitsAreMarkedAsIndexedOnlyAfterTheirDataIsStored() {
+    TestIndexer indexer = new TestIndexer() {
+      @Override
+      public boolean store(@NotNull List<Integer> chunk) {
+        // the second chunk could not be written
+        return !chunk.contains(CHUNK_SIZE) && super.store(chunk);
+      }
+    };
+    IndexingPipeline<Integer> pipeline = createPipeline(indexer);
+    readFullDetails(3 * CHUNK_SIZE, pipeline::add);
+    assertNull(pipeline.finish());
+
+    assertTrue(indexer.myIndexedBeforeStored.isEmpty());
+    assertEquals(2 * CHUNK_SIZE, indexer.myIndexed.size());
+    for (int i = CHUNK_SIZE; i < 2 * CHUNK_SIZE; i++) {
+      assertFalse(indexer.myIndexed.contains(i));
+    }
+  }
+
+  @Test
+  public void cancellationLeavesRemainingCommitsNotIndexed() {
+    int count = 10 * CHUNK_SIZE;
+    TestIndexer indexer = new TestIndexer() {
+      @Override
+      public void markIndexed(@NotNull List<Integer> chunk) {
+        super.markIndexed(chunk);
+        if (chunk.contains(0)) myIndicator.cancel();
+      }
+    };
+    IndexingPipeline<Integer> pipeline = createPipeline(indexer);
+    try {
+      readFullDetails(count, details -> {
+        myIndicator.checkCanceled();
+        pipeline.add(details);
+      });
+    }
+    catch (ProcessCanceledException ignored) {
+    }
+    finally {
+      assertNull(pipeline.finish());
+    }
+
+    assertNotIndexedAfterFirstChunk(indexer, count);
+  }
+
+  @Test
+  public void errorLeavesRemainingCommitsNotIndexed() {
+    int count = 10 * CHUNK_SIZE;
+    RuntimeException error = new RuntimeException("can't prepare");
+    TestIndexer indexer = new TestIndexer() {
+      @NotNull
+      @Override
+      public Integer prepare(@NotNull VcsFullCommitDetails details) {
+        if (getIndex(details) == CHUNK_SIZE) throw error;
+        return super.prepare(details);
+      }
+    };
+    IndexingPipeline<Integer> pipeline = createPipeline(indexer);
+    readFullDetails(count, pipeline::add);
+    assertSame(error, pipeline.finish());
+
+    assertNotIndexedAfterFirstChunk(indexer, count);
+  }
+
+  @Test
+  public void errorInWriterLeavesRemainingCommitsNotIndexed() {
+    int count = 10 * CHUNK_SIZE;
+    RuntimeException error = new RuntimeException("can't write");
+    TestIndexer indexer = new TestIndexer() {
+      @Override
+      public boolean store(@NotNull List<Integer> chunk) {
+        if (chunk.contains(CHUNK_SIZE)) throw error;
+        return super.store(chunk);
+      }
+    };
+    IndexingPipeline<Integer> pipeline = createPipeline(indexer);
+    readFullDetails(count, pipeline::add);
+    assertSame(error, pipeline.finish());
+
+    assertNotIndexedAfterFirstChunk(indexer, count);
+  }
+
+  private static void assertNotIndexedAfterFirstChunk(@NotNull TestIndexer indexer, int count) {
+    assertTrue(indexer.myIndexedBeforeStored.isEmpty());
+    for (int i = 0; i < CHUNK_SIZE; i++) {
+      assertTrue(indexer.myIndexed.contains(i));
+    }
+    for (int i = CHUNK_SIZE; i < count; i++) {
+      assertFalse(String.valueOf(i), indexer.myIndexed.contains(i));
+    }
+  }
+
+  @NotNull
+  private IndexingPipeline<Integer> createPipeline(@NotNull TestIndexer indexer) {
+    return new IndexingPipeline<>(myIndicator, indexer, myIndexingExecutor, myWritingExecutor, 3);
+  }
+
+  /**
+   * Reads the details like a VCS provider does, i.e. one by one on the calling thread.
+   */
+  private static void readFullDetails(int count, @NotNull Consumer<VcsFullCommitDetails> consumer) {
+    for (int i = 0; i < count; i++) {
+      String hash = String.format("%040x", i);
+      consumer.consume(new VcsChangesLazilyParsedDetails(HashImpl.build(hash), Collections.emptyList(), i, ROOT, "subject " + i, USER,
+                                                         "message " + i, USER, i, Collections::emptyList));
+    }
+  }
+
+  private static int getIndex(@NotNull VcsFullCommitDetails details) {
+    return (int)details.getTimestamp();
+  }
+
+  private static class TestIndexer implements IndexingPipeline.Indexer<Integer> {
+    private final Map<Integer, String> myMessages = new ConcurrentHashMap<>();
+    // written on the writing thread only, read after the pipeline is finished
+    private final List<String> myStored = new ArrayList<>();
+    private final Set<Integer> myStoredIndices = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final Set<Integer> myIndexed = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final Set<Integer> myIndexedBeforeStored = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    @NotNull
+    @Override
+    public Integer prepare(@NotNull VcsFullCommitDetails details) {
+      int index = getIndex(details);
+      myMessages.put(index, details.getFullMessage());
+      return index;
+    }
+
+    @Override
+    public boolean store(@NotNull List<Integer> chunk) {
+      for (Integer index : chunk) {
+        myStored.add(myMessages.get(index));
+        myStoredIndices.add(index);
+      }
+      return true;
+    }
+
+    @Override
+    public void markIndexed(@NotNull List<Integer> chunk) {
+      for (Integer index : chunk) {
+        if (!myStoredIndices.contains(index)) myIndexedBeforeStored.add(index);
+        myIndexed.add(index);
+      }
+    }
+  }
+}